@@ -0,0 +1,184 @@
+package create.simulator;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The fixed surroundings robots drive around in: walls, virtual walls and cliffs, all as straight segments.
+ * Arenas are built up piece by piece or loaded from a text file with one piece per line:
+ * <pre>
+ * # Comments start with a hash
+ * wall x1 y1 x2 y2 [x3 y3 ...]     a wall along a line through the points
+ * vwall x1 y1 x2 y2                the beam of a Virtual Wall beacon
+ * cliff x1 y1 x2 y2 x3 y3 [...]    an area where the floor drops away, closed automatically
+ * </pre>
+ * Coordinates are in millimeters.  Once it's complete, an arena is indexed with buildIndex()
+ *   for the sensors to query.
+ * @author dvanhumb
+ */
+public class Arena
+{
+	// Kinds of segment, which are also the bits of a query's mask:
+	public static final int WALL = 1;
+	public static final int VIRTUAL_WALL = 2;
+	public static final int CLIFF = 4;
+	
+	// Segments as (x1, y1, x2, y2) runs, with the kind of each:
+	protected double[] segments = new double[64];
+	protected int[] kinds = new int[16];
+	protected int count;
+	
+	/**
+	 * Create a new, empty arena.
+	 */
+	public Arena()
+	{
+	}
+	
+	/**
+	 * Add a wall along a single line.
+	 */
+	public void addWall(double x1, double y1, double x2, double y2)
+	{
+		addSegment(WALL, x1, y1, x2, y2);
+	}
+	
+	/**
+	 * Add the beam of a Virtual Wall beacon, which robots sense but can drive through.
+	 */
+	public void addVirtualWall(double x1, double y1, double x2, double y2)
+	{
+		addSegment(VIRTUAL_WALL, x1, y1, x2, y2);
+	}
+	
+	/**
+	 * Add an area where the floor drops away.
+	 * @param points The corners of the area as x, y pairs; the last joins back to the first.
+	 */
+	public void addCliff(double[] points)
+	{
+		if (points.length < 6 || points.length % 2 != 0)
+			throw new IllegalArgumentException("A cliff needs at least three corners");
+		
+		for (int k=0; k < points.length; k += 2)
+		{
+			int next = (k + 2) % points.length;
+			addSegment(CLIFF, points[k], points[k+1], points[next], points[next+1]);
+		}
+	}
+	
+	protected void addSegment(int kind, double x1, double y1, double x2, double y2)
+	{
+		if (count == kinds.length)
+		{
+			kinds = Arrays.copyOf(kinds, count * 2);
+			segments = Arrays.copyOf(segments, count * 8);
+		}
+		kinds[count] = kind;
+		segments[4*count] = x1;
+		segments[4*count+1] = y1;
+		segments[4*count+2] = x2;
+		segments[4*count+3] = y2;
+		count++;
+	}
+	
+	/**
+	 * Returns the number of segments in the arena.
+	 * @return
+	 */
+	public int getSegmentCount()
+	{
+		return count;
+	}
+	
+	/**
+	 * Returns an index of the arena that sensors can query quickly.
+	 * Later changes to the arena don't affect the index.
+	 * @return
+	 */
+	public ArenaIndex buildIndex()
+	{
+		return new ArenaIndex(this, ArenaIndex.DEFAULT_CELL_SIZE);
+	}
+	
+	// --------
+	// Loading:
+	// --------
+	
+	/**
+	 * Load an arena from a file.
+	 * @param file The file to read.
+	 * @return The arena it describes.
+	 * @throws IOException If the file can't be read or has a mistake in it.
+	 */
+	public static Arena load(File file) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			return parse(in, file.getName());
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	/**
+	 * Read an arena from a stream of text.
+	 * @param in The text to read.
+	 * @param name What to call the source in error messages.
+	 * @return The arena it describes.
+	 * @throws IOException If the text can't be read or has a mistake in it.
+	 */
+	public static Arena parse(BufferedReader in, String name) throws IOException
+	{
+		Arena arena = new Arena();
+		String line;
+		int lineNumber = 0;
+		while ((line = in.readLine()) != null)
+		{
+			lineNumber++;
+			int comment = line.indexOf('#');
+			if (comment >= 0)
+				line = line.substring(0, comment);
+			line = line.trim();
+			if (line.length() == 0)
+				continue;
+			
+			String[] parts = line.split("\\s+");
+			double[] points = new double[parts.length - 1];
+			try
+			{
+				for (int k=0; k < points.length; k++)
+					points[k] = Double.parseDouble(parts[k+1]);
+			}
+			catch (NumberFormatException er)
+			{
+				throw new IOException(name + ":" + lineNumber + ": Not a number: " + er.getMessage());
+			}
+			if (points.length < 4 || points.length % 2 != 0)
+				throw new IOException(name + ":" + lineNumber + ": Expected pairs of coordinates after '" + parts[0] + "'");
+			
+			if (parts[0].equals("wall"))
+			{
+				for (int k=0; k+3 < points.length; k += 2)
+					arena.addWall(points[k], points[k+1], points[k+2], points[k+3]);
+			}
+			else if (parts[0].equals("vwall"))
+			{
+				for (int k=0; k+3 < points.length; k += 2)
+					arena.addVirtualWall(points[k], points[k+1], points[k+2], points[k+3]);
+			}
+			else if (parts[0].equals("cliff"))
+			{
+				if (points.length < 6)
+					throw new IOException(name + ":" + lineNumber + ": A cliff needs at least three corners");
+				arena.addCliff(points);
+			}
+			else
+				throw new IOException(name + ":" + lineNumber + ": Unknown piece '" + parts[0] + "'");
+		}
+		return arena;
+	} // end parse()
+} // end class Arena
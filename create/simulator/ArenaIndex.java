@@ -0,0 +1,356 @@
+package create.simulator;
+
+import java.util.*;
+
+/**
+ * The geometry service every sensor model uses: an immutable uniform grid over an Arena's segments.
+ * Each cell lists the segments that touch it, so a query only looks at the handful of segments
+ *   near it however large the arena is.  Each cell also remembers whether its lower-left corner is
+ *   inside a cliff, so telling whether a point is over a cliff only takes the crossings within one cell.
+ * Queries don't allocate or change anything, so they can run on many threads at once.
+ * @author dvanhumb
+ */
+public class ArenaIndex
+{
+	/**
+	 * The default width of a grid cell, in millimeters; a few robot-widths.
+	 */
+	public static final double DEFAULT_CELL_SIZE = 500.0;
+	
+	// The segments, copied out of the arena:
+	private final double[] x1, y1, x2, y2;
+	private final int[] kind;
+	
+	// Cell (cx, cy) covers [left + cx*size, left + (cx+1)*size) and likewise in y
+	private final double inverseCellSize;
+	private final double cellSize, left, bottom;
+	private final int columns, rows;
+	// cellStart[c] .. cellStart[c+1] index the segments touching cell c in cellItems
+	private final int[] cellStart, cellItems;
+	// Whether each cell's lower-left corner is inside a cliff
+	private final boolean[] cornerInCliff;
+	
+	/**
+	 * Index the given arena.
+	 * @param arena The arena to index.
+	 * @param cellSize The width of each grid cell, in millimeters.
+	 */
+	public ArenaIndex(Arena arena, double cellSize)
+	{
+		int n = arena.count;
+		x1 = new double[n];
+		y1 = new double[n];
+		x2 = new double[n];
+		y2 = new double[n];
+		kind = Arrays.copyOf(arena.kinds, n);
+		
+		double minX = 0, minY = 0, maxX = 0, maxY = 0;
+		for (int s=0; s < n; s++)
+		{
+			x1[s] = arena.segments[4*s];
+			y1[s] = arena.segments[4*s+1];
+			x2[s] = arena.segments[4*s+2];
+			y2[s] = arena.segments[4*s+3];
+			if (s == 0)
+			{
+				minX = maxX = x1[s];
+				minY = maxY = y1[s];
+			}
+			minX = Math.min(minX, Math.min(x1[s], x2[s]));
+			maxX = Math.max(maxX, Math.max(x1[s], x2[s]));
+			minY = Math.min(minY, Math.min(y1[s], y2[s]));
+			maxY = Math.max(maxY, Math.max(y1[s], y2[s]));
+		}
+		
+		// Leave a cell of space all round, so the first corner of each row is clear of every cliff
+		this.cellSize = cellSize;
+		inverseCellSize = 1.0 / cellSize;
+		left = minX - cellSize;
+		bottom = minY - cellSize;
+		columns = (int)Math.floor((maxX - left) * inverseCellSize) + 2;
+		rows = (int)Math.floor((maxY - bottom) * inverseCellSize) + 2;
+		int cells = columns * rows;
+		
+		// Count the cells each segment touches, then fill them in with a counting sort
+		int[] start = new int[cells + 1];
+		int[] items = null;
+		int[] cursor = null;
+		for (int pass=0; pass < 2; pass++)
+		{
+			for (int s=0; s < n; s++)
+			{
+				int fromX = column(Math.min(x1[s], x2[s])), toX = column(Math.max(x1[s], x2[s]));
+				int fromY = row(Math.min(y1[s], y2[s])), toY = row(Math.max(y1[s], y2[s]));
+				for (int cy=fromY; cy <= toY; cy++)
+				{
+					for (int cx=fromX; cx <= toX; cx++)
+					{
+						if (!touchesCell(s, cx, cy))
+							continue;
+						int cell = cy * columns + cx;
+						if (pass == 0)
+							start[cell+1]++;
+						else
+							items[cursor[cell]++] = s;
+					}
+				}
+			}
+			
+			if (pass == 0)
+			{
+				for (int c=0; c < cells; c++)
+					start[c+1] += start[c];
+				items = new int[start[cells]];
+				cursor = Arrays.copyOf(start, cells);
+			}
+		}
+		cellStart = start;
+		cellItems = items;
+		
+		// Walk along each row of corners, flipping at every cliff edge crossed
+		cornerInCliff = new boolean[cells];
+		for (int cy=0; cy < rows; cy++)
+		{
+			boolean inside = false;
+			for (int cx=0; cx < columns; cx++)
+			{
+				cornerInCliff[cy * columns + cx] = inside;
+				if (cx+1 < columns && (countCrossingsInCell(cx, cy, cornerX(cx), cornerY(cy), cornerX(cx+1), cornerY(cy), Arena.CLIFF) & 1) != 0)
+					inside = !inside;
+			}
+		}
+	} // end ArenaIndex()
+	
+	// --------
+	// Queries:
+	// --------
+	
+	/**
+	 * Finds the nearest segment of the given kinds within a distance of a point.
+	 * @param x The point's x-coordinate.
+	 * @param y The point's y-coordinate.
+	 * @param radius How far to look.
+	 * @param kinds The kinds of segment to look for, as a mask of Arena.WALL, Arena.VIRTUAL_WALL and Arena.CLIFF.
+	 * @return The segment, or -1 if none is strictly within the radius.
+	 */
+	public int nearestSegment(double x, double y, double radius, int kinds)
+	{
+		int best = -1;
+		double bestDistance2 = radius * radius;
+		int fromX = clampColumn(column(x - radius)), toX = clampColumn(column(x + radius));
+		int fromY = clampRow(row(y - radius)), toY = clampRow(row(y + radius));
+		for (int cy=fromY; cy <= toY; cy++)
+		{
+			for (int cx=fromX; cx <= toX; cx++)
+			{
+				int cell = cy * columns + cx;
+				for (int k=cellStart[cell]; k < cellStart[cell+1]; k++)
+				{
+					int s = cellItems[k];
+					if ((kind[s] & kinds) == 0)
+						continue;
+					double dx = x - closestX(s, x, y), dy = y - closestY(s, x, y);
+					double distance2 = dx*dx + dy*dy;
+					// Segments can be listed in several cells; taking the lowest on ties keeps the answer the same
+					if (distance2 < bestDistance2 || (distance2 == bestDistance2 && best >= 0 && s < best))
+					{
+						best = s;
+						bestDistance2 = distance2;
+					}
+				}
+			}
+		}
+		return best;
+	} // end nearestSegment()
+	
+	/**
+	 * Returns the x-coordinate of the point on a segment nearest the given point.
+	 */
+	public double closestX(int segment, double x, double y)
+	{
+		return x1[segment] + (x2[segment] - x1[segment]) * closestFraction(segment, x, y);
+	}
+	
+	/**
+	 * Returns the y-coordinate of the point on a segment nearest the given point.
+	 */
+	public double closestY(int segment, double x, double y)
+	{
+		return y1[segment] + (y2[segment] - y1[segment]) * closestFraction(segment, x, y);
+	}
+	
+	private double closestFraction(int s, double x, double y)
+	{
+		double dx = x2[s] - x1[s], dy = y2[s] - y1[s];
+		double length2 = dx*dx + dy*dy;
+		if (length2 == 0)
+			return 0;
+		double t = ((x - x1[s]) * dx + (y - y1[s]) * dy) / length2;
+		return t < 0 ? 0 : (t > 1 ? 1 : t);
+	}
+	
+	/**
+	 * Casts a short ray and finds how far it goes before hitting a segment of the given kinds.
+	 * Looks through every cell the ray's bounding box covers, so keep rays to a few cells long.
+	 * @param x The ray's starting x-coordinate.
+	 * @param y The ray's starting y-coordinate.
+	 * @param dx The x-component of the ray's direction, which must be unit length.
+	 * @param dy The y-component of the ray's direction.
+	 * @param length How far to look.
+	 * @param kinds The kinds of segment that stop the ray.
+	 * @return The distance to the first hit, or Double.POSITIVE_INFINITY if there's none within the length.
+	 */
+	public double castRay(double x, double y, double dx, double dy, double length, int kinds)
+	{
+		double best = Double.POSITIVE_INFINITY;
+		double ex = x + dx * length, ey = y + dy * length;
+		int fromX = clampColumn(column(Math.min(x, ex))), toX = clampColumn(column(Math.max(x, ex)));
+		int fromY = clampRow(row(Math.min(y, ey))), toY = clampRow(row(Math.max(y, ey)));
+		for (int cy=fromY; cy <= toY; cy++)
+		{
+			for (int cx=fromX; cx <= toX; cx++)
+			{
+				int cell = cy * columns + cx;
+				for (int k=cellStart[cell]; k < cellStart[cell+1]; k++)
+				{
+					int s = cellItems[k];
+					if ((kind[s] & kinds) == 0)
+						continue;
+					
+					// Solve x + t*d = a + u*(b - a) for t along the ray and u along the segment
+					double sx = x2[s] - x1[s], sy = y2[s] - y1[s];
+					double denominator = dx * sy - dy * sx;
+					if (denominator == 0)
+						continue; // Parallel
+					double ax = x1[s] - x, ay = y1[s] - y;
+					double t = (ax * sy - ay * sx) / denominator;
+					double u = (ax * dy - ay * dx) / denominator;
+					if (t >= 0 && t <= length && u >= 0 && u <= 1 && t < best)
+						best = t;
+				}
+			}
+		}
+		return best;
+	} // end castRay()
+	
+	/**
+	 * Returns true if the given point is over a cliff.
+	 */
+	public boolean isOverCliff(double x, double y)
+	{
+		int cx = column(x), cy = row(y);
+		if (cx < 0 || cy < 0 || cx >= columns || cy >= rows)
+			return false; // Outside the grid, which has no cliffs near its edges
+		
+		int cell = cy * columns + cx;
+		boolean inside = cornerInCliff[cell];
+		if ((countCrossingsInCell(cx, cy, cornerX(cx), cornerY(cy), x, y, Arena.CLIFF) & 1) != 0)
+			inside = !inside;
+		return inside;
+	}
+	
+	/**
+	 * Counts the segments of the given kinds that a line lying within one cell crosses.
+	 * A segment end exactly on the line counts as being on its left, so a line passing through a
+	 *   corner where two edges meet crosses it once, and a line just touching a corner crosses it
+	 *   twice or not at all.
+	 */
+	private int countCrossingsInCell(int cx, int cy, double px, double py, double qx, double qy, int kinds)
+	{
+		int crossings = 0;
+		double lx = qx - px, ly = qy - py;
+		int cell = cy * columns + cx;
+		for (int k=cellStart[cell]; k < cellStart[cell+1]; k++)
+		{
+			int s = cellItems[k];
+			if ((kind[s] & kinds) == 0)
+				continue;
+			
+			double sideA = lx * (y1[s] - py) - ly * (x1[s] - px);
+			double sideB = lx * (y2[s] - py) - ly * (x2[s] - px);
+			if ((sideA >= 0) == (sideB >= 0))
+				continue;
+			
+			// Where the segment's line cuts this line, as a fraction of the way from p to q
+			double sx = x2[s] - x1[s], sy = y2[s] - y1[s];
+			double t = ((x1[s] - px) * sy - (y1[s] - py) * sx) / (lx * sy - ly * sx);
+			if (t >= 0 && t < 1)
+				crossings++;
+		}
+		return crossings;
+	} // end countCrossingsInCell()
+	
+	// ------------------
+	// Grid bookkeeping:
+	// ------------------
+	
+	/**
+	 * Returns true if a segment touches the closed rectangle of the given cell.
+	 */
+	private boolean touchesCell(int s, int cx, int cy)
+	{
+		// Clip the segment to the cell, Liang-Barsky style
+		double minX = cornerX(cx), maxX = cornerX(cx+1);
+		double minY = cornerY(cy), maxY = cornerY(cy+1);
+		double dx = x2[s] - x1[s], dy = y2[s] - y1[s];
+		double enter = 0, leave = 1;
+		double[] p = {-dx, dx, -dy, dy};
+		double[] q = {x1[s] - minX, maxX - x1[s], y1[s] - minY, maxY - y1[s]};
+		for (int k=0; k < 4; k++)
+		{
+			if (p[k] == 0)
+			{
+				if (q[k] < 0)
+					return false;
+			}
+			else
+			{
+				double t = q[k] / p[k];
+				if (p[k] < 0)
+					enter = Math.max(enter, t);
+				else
+					leave = Math.min(leave, t);
+			}
+		}
+		return enter <= leave;
+	} // end touchesCell()
+	
+	private int column(double x)
+	{
+		return (int)Math.floor((x - left) * inverseCellSize);
+	}
+	
+	private int row(double y)
+	{
+		return (int)Math.floor((y - bottom) * inverseCellSize);
+	}
+	
+	private int clampColumn(int cx)
+	{
+		return Math.max(0, Math.min(columns - 1, cx));
+	}
+	
+	private int clampRow(int cy)
+	{
+		return Math.max(0, Math.min(rows - 1, cy));
+	}
+	
+	private double cornerX(int cx)
+	{
+		return left + cx * cellSize;
+	}
+	
+	private double cornerY(int cy)
+	{
+		return bottom + cy * cellSize;
+	}
+	
+	/**
+	 * Returns the number of segments in the index.
+	 * @return
+	 */
+	public int getSegmentCount()
+	{
+		return kind.length;
+	}
+} // end class ArenaIndex
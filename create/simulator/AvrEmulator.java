@@ -0,0 +1,1251 @@
+package create.simulator;
+
+import java.util.*;
+
+/**
+ * An ATmega168, the processor on the Command Module, running a program built for it.
+ * The whole instruction set the ATmega168 has is emulated, with each instruction taking as many
+ *   clock cycles as on the real processor.  Each word of flash is decoded the first time it's run
+ *   and the decoded instruction kept, so the loops a controller spends its time in are only decoded
+ *   once; programs run many times faster than the real 18.432 MHz.
+ * Of the peripherals, only the ones the Command Module runtime uses are there:
+ * <ul>
+ * <li>USART0, whose bytes go to a SerialListener and come back through receive().  Each byte takes
+ *   as long to send or arrive as it would at the baud rate UBRR0 sets.</li>
+ * <li>Timer 1, counting in normal or CTC mode with any of the internal prescalers, with its compare A
+ *   and overflow interrupts.  The runtime uses it for cm_wait_ms().</li>
+ * </ul>
+ * Reading the other I/O registers gives back whatever was last written to them.
+ * @author dvanhumb
+ */
+public class AvrEmulator
+{
+	public static final long CLOCK = 18432000;
+	public static final int FLASH_SIZE = 16 * 1024;
+	public static final int RAM_END = 0x4ff;
+	
+	public static final int VECTOR_TIMER1_COMPA = 11;
+	public static final int VECTOR_TIMER1_OVF = 13;
+	public static final int VECTOR_USART_RX = 18;
+	public static final int VECTOR_USART_UDRE = 19;
+	
+	// The registers the emulator handles itself, by their addresses in the data space:
+	private static final int SPL = 0x5d, SPH = 0x5e, SREG = 0x5f;
+	private static final int TIFR1 = 0x36, TIMSK1 = 0x6f;
+	private static final int TCCR1B = 0x81, TCNT1L = 0x84, TCNT1H = 0x85, OCR1AL = 0x88, OCR1AH = 0x89;
+	private static final int UCSR0A = 0xc0, UCSR0B = 0xc1, UBRR0L = 0xc4, UBRR0H = 0xc5, UDR0 = 0xc6;
+	
+	// The bits of SREG:
+	private static final int FLAG_C = 0x01, FLAG_Z = 0x02, FLAG_N = 0x04, FLAG_V = 0x08;
+	private static final int FLAG_S = 0x10, FLAG_H = 0x20, FLAG_T = 0x40, FLAG_I = 0x80;
+	private static final int ARITHMETIC_FLAGS = FLAG_C | FLAG_Z | FLAG_N | FLAG_V | FLAG_S | FLAG_H;
+	
+	// The bits of the peripherals' registers:
+	private static final int OCF1A = 0x02, TOV1 = 0x01, OCIE1A = 0x02, TOIE1 = 0x01, WGM12 = 0x08;
+	private static final int RXC0 = 0x80, TXC0 = 0x40, UDRE0 = 0x20, U2X0 = 0x02;
+	private static final int RXCIE0 = 0x80, UDRIE0 = 0x20, RXEN0 = 0x10, TXEN0 = 0x08;
+	private static final int[] PRESCALERS = {0, 1, 8, 64, 256, 1024, 0, 0};
+	
+	// The decoded instructions.  OP_UNDECODED is 0, so new arrays start out all undecoded.
+	private static final int OP_UNDECODED = 0, OP_UNKNOWN = 1, OP_NOP = 2, OP_MOVW = 3, OP_MULS = 4, OP_MULSU = 5;
+	private static final int OP_FMUL = 6, OP_FMULS = 7, OP_FMULSU = 8, OP_CPC = 9, OP_SBC = 10, OP_ADD = 11;
+	private static final int OP_CPSE = 12, OP_CP = 13, OP_SUB = 14, OP_ADC = 15, OP_AND = 16, OP_EOR = 17;
+	private static final int OP_OR = 18, OP_MOV = 19, OP_CPI = 20, OP_SBCI = 21, OP_SUBI = 22, OP_ORI = 23;
+	private static final int OP_ANDI = 24, OP_LDD_Y = 25, OP_LDD_Z = 26, OP_STD_Y = 27, OP_STD_Z = 28;
+	private static final int OP_LDS = 29, OP_LD_Z_INC = 30, OP_LD_Z_DEC = 31, OP_LPM_Z = 32, OP_LPM_Z_INC = 33;
+	private static final int OP_LD_Y_INC = 34, OP_LD_Y_DEC = 35, OP_LD_X = 36, OP_LD_X_INC = 37, OP_LD_X_DEC = 38;
+	private static final int OP_POP = 39, OP_STS = 40, OP_ST_Z_INC = 41, OP_ST_Z_DEC = 42, OP_ST_Y_INC = 43;
+	private static final int OP_ST_Y_DEC = 44, OP_ST_X = 45, OP_ST_X_INC = 46, OP_ST_X_DEC = 47, OP_PUSH = 48;
+	private static final int OP_COM = 49, OP_NEG = 50, OP_SWAP = 51, OP_INC = 52, OP_ASR = 53, OP_LSR = 54;
+	private static final int OP_ROR = 55, OP_DEC = 56, OP_BSET = 57, OP_BCLR = 58, OP_RET = 59, OP_RETI = 60;
+	private static final int OP_LPM = 61, OP_IJMP = 62, OP_ICALL = 63, OP_JMP = 64, OP_CALL = 65, OP_ADIW = 66;
+	private static final int OP_SBIW = 67, OP_CBI = 68, OP_SBIC = 69, OP_SBI = 70, OP_SBIS = 71, OP_MUL = 72;
+	private static final int OP_IN = 73, OP_OUT = 74, OP_RJMP = 75, OP_RCALL = 76, OP_LDI = 77, OP_BRBS = 78;
+	private static final int OP_BRBC = 79, OP_BLD = 80, OP_BST = 81, OP_SBRC = 82, OP_SBRS = 83;
+	
+	protected byte[] flash = new byte[FLASH_SIZE];
+	protected byte[] data = new byte[RAM_END + 1];
+	// Each flash word's decoded instruction and its two operands:
+	protected int[] ops = new int[FLASH_SIZE / 2];
+	protected int[] first = new int[FLASH_SIZE / 2];
+	protected int[] second = new int[FLASH_SIZE / 2];
+	
+	// The program counter, in words, and the clock cycles run since the last reset:
+	protected int pc;
+	protected long cycles;
+	protected int sreg;
+	
+	// When something next happens in the peripherals, and whether an interrupt might be waiting:
+	private long nextEvent;
+	private boolean interruptCheck;
+	// The AVR always runs one more instruction after interrupts are enabled:
+	private boolean interruptDelay;
+	
+	// Timer 1, counting from timerCount at timerSince:
+	private int timerCount, ocr1a, timerTemp;
+	private long timerSince, nextTimerEvent;
+	
+	// USART0: when the byte being sent is done, when the next can be written, and the bytes on their way in
+	private long txShiftEnd, udreAt;
+	private boolean txComplete;
+	private ArrayDeque<Long> received = new ArrayDeque<Long>();
+	private long lastArrival;
+	private int lastReceived;
+	protected SerialListener serialListener;
+	
+	public AvrEmulator()
+	{
+		reset();
+	}
+	
+	/**
+	 * Puts a program into flash, as the bootloader would, and resets.
+	 * @param program The flash's contents, such as from IntelHex.load().
+	 */
+	public void loadProgram(byte[] program)
+	{
+		Arrays.fill(flash, (byte)0xff);
+		System.arraycopy(program, 0, flash, 0, Math.min(program.length, FLASH_SIZE));
+		Arrays.fill(ops, OP_UNDECODED);
+		reset();
+	}
+	
+	/**
+	 * Resets the processor, as the reset pin would.  Flash is kept, and RAM is cleared.
+	 */
+	public void reset()
+	{
+		Arrays.fill(data, (byte)0);
+		pc = 0;
+		cycles = 0;
+		sreg = 0;
+		setSp(RAM_END);
+		interruptCheck = false;
+		interruptDelay = false;
+		
+		timerCount = 0;
+		ocr1a = 0;
+		timerSince = 0;
+		nextTimerEvent = Long.MAX_VALUE;
+		
+		txShiftEnd = 0;
+		udreAt = 0;
+		txComplete = false;
+		received.clear();
+		lastArrival = 0;
+		lastReceived = 0;
+		nextEvent = Long.MAX_VALUE;
+	}
+	
+	public void setSerialListener(SerialListener listener)
+	{
+		serialListener = listener;
+	}
+	
+	/**
+	 * Sends a byte to the program's serial port.  It arrives once the bytes before it have, and
+	 *   whatever the program is sending has gone, taking a character's time at the baud rate.
+	 * @param value The byte.
+	 */
+	public void receive(int value)
+	{
+		if ((data[UCSR0B] & RXEN0) == 0)
+			return;
+		long arrival = Math.max(Math.max(cycles, txShiftEnd), lastArrival) + getCharacterCycles();
+		lastArrival = arrival;
+		received.add((arrival << 8) | (value & 0xff));
+		nextEvent = Math.min(nextEvent, arrival);
+	}
+	
+	/**
+	 * Returns how many clock cycles a character takes at the baud rate the program has set.
+	 * @return
+	 */
+	public long getCharacterCycles()
+	{
+		int ubrr = ((data[UBRR0H] & 0x0f) << 8) | (data[UBRR0L] & 0xff);
+		// A start bit, eight data bits and a stop bit, each taking 16 clocks of the baud rate generator, or 8 at double speed
+		return ((data[UCSR0A] & U2X0) != 0 ? 8 : 16) * (ubrr + 1) * 10L;
+	}
+	
+	public long getCycles()
+	{
+		return cycles;
+	}
+	
+	/**
+	 * Returns the program counter, as a byte address like the listing's.
+	 * @return
+	 */
+	public int getProgramCounter()
+	{
+		return pc * 2;
+	}
+	
+	/**
+	 * Runs the program until the given number of cycles since reset have passed.
+	 * @param until The cycle count to stop at; the last instruction may take it a little past.
+	 * @throws IllegalStateException If the program runs an instruction the ATmega168 doesn't have.
+	 */
+	public void run(long until)
+	{
+		while (cycles < until)
+		{
+			if (cycles >= nextEvent)
+				updatePeripherals();
+			if (interruptCheck && (sreg & FLAG_I) != 0)
+			{
+				if (interruptDelay)
+					interruptDelay = false;
+				else
+				{
+					int vector = getPendingInterrupt();
+					if (vector >= 0)
+						interrupt(vector);
+					else
+						interruptCheck = false;
+				}
+			}
+			step();
+		}
+	} // end run()
+	
+	/**
+	 * Runs a single instruction.
+	 */
+	protected void step()
+	{
+		int op = ops[pc];
+		if (op == OP_UNDECODED)
+			op = decode(pc);
+		int a = first[pc], b = second[pc];
+		int next = (pc + 1) & (FLASH_SIZE / 2 - 1);
+		int value, result;
+		
+		switch (op)
+		{
+		case OP_NOP:
+			cycles++;
+			break;
+		case OP_MOVW:
+			data[a] = data[b];
+			data[a + 1] = data[b + 1];
+			cycles++;
+			break;
+		case OP_MULS:
+			setProduct(data[a] * data[b], false);
+			break;
+		case OP_MULSU:
+			setProduct(data[a] * (data[b] & 0xff), false);
+			break;
+		case OP_FMUL:
+			setProduct((data[a] & 0xff) * (data[b] & 0xff), true);
+			break;
+		case OP_FMULS:
+			setProduct(data[a] * data[b], true);
+			break;
+		case OP_FMULSU:
+			setProduct(data[a] * (data[b] & 0xff), true);
+			break;
+		case OP_MUL:
+			setProduct((data[a] & 0xff) * (data[b] & 0xff), false);
+			break;
+		case OP_CPC:
+			subtract(data[a] & 0xff, data[b] & 0xff, sreg & FLAG_C, true);
+			cycles++;
+			break;
+		case OP_SBC:
+			data[a] = (byte)subtract(data[a] & 0xff, data[b] & 0xff, sreg & FLAG_C, true);
+			cycles++;
+			break;
+		case OP_SBCI:
+			data[a] = (byte)subtract(data[a] & 0xff, b, sreg & FLAG_C, true);
+			cycles++;
+			break;
+		case OP_CP:
+			subtract(data[a] & 0xff, data[b] & 0xff, 0, false);
+			cycles++;
+			break;
+		case OP_CPI:
+			subtract(data[a] & 0xff, b, 0, false);
+			cycles++;
+			break;
+		case OP_SUB:
+			data[a] = (byte)subtract(data[a] & 0xff, data[b] & 0xff, 0, false);
+			cycles++;
+			break;
+		case OP_SUBI:
+			data[a] = (byte)subtract(data[a] & 0xff, b, 0, false);
+			cycles++;
+			break;
+		case OP_ADD:
+			data[a] = (byte)add(data[a] & 0xff, data[b] & 0xff, 0);
+			cycles++;
+			break;
+		case OP_ADC:
+			data[a] = (byte)add(data[a] & 0xff, data[b] & 0xff, sreg & FLAG_C);
+			cycles++;
+			break;
+		case OP_AND:
+			data[a] = (byte)logic(data[a] & data[b] & 0xff);
+			cycles++;
+			break;
+		case OP_ANDI:
+			data[a] = (byte)logic(data[a] & b & 0xff);
+			cycles++;
+			break;
+		case OP_OR:
+			data[a] = (byte)logic((data[a] | data[b]) & 0xff);
+			cycles++;
+			break;
+		case OP_ORI:
+			data[a] = (byte)logic((data[a] | b) & 0xff);
+			cycles++;
+			break;
+		case OP_EOR:
+			data[a] = (byte)logic((data[a] ^ data[b]) & 0xff);
+			cycles++;
+			break;
+		case OP_MOV:
+			data[a] = data[b];
+			cycles++;
+			break;
+		case OP_LDI:
+			data[a] = (byte)b;
+			cycles++;
+			break;
+		case OP_CPSE:
+			cycles++;
+			if (data[a] == data[b])
+				next = skip(next);
+			break;
+		case OP_SBRC:
+			cycles++;
+			if ((data[a] & b) == 0)
+				next = skip(next);
+			break;
+		case OP_SBRS:
+			cycles++;
+			if ((data[a] & b) != 0)
+				next = skip(next);
+			break;
+		case OP_SBIC:
+			cycles++;
+			if ((readData(a) & b) == 0)
+				next = skip(next);
+			break;
+		case OP_SBIS:
+			cycles++;
+			if ((readData(a) & b) != 0)
+				next = skip(next);
+			break;
+		case OP_CBI:
+			writeData(a, readData(a) & ~b);
+			cycles += 2;
+			break;
+		case OP_SBI:
+			writeData(a, readData(a) | b);
+			cycles += 2;
+			break;
+		case OP_IN:
+			data[a] = (byte)readData(b);
+			cycles++;
+			break;
+		case OP_OUT:
+			writeData(b, data[a] & 0xff);
+			cycles++;
+			break;
+		case OP_LDS:
+			data[a] = (byte)readData(b);
+			next = (next + 1) & (FLASH_SIZE / 2 - 1);
+			cycles += 2;
+			break;
+		case OP_STS:
+			writeData(b, data[a] & 0xff);
+			next = (next + 1) & (FLASH_SIZE / 2 - 1);
+			cycles += 2;
+			break;
+		case OP_LDD_Y:
+			data[a] = (byte)readData(getPair(28) + b);
+			cycles += 2;
+			break;
+		case OP_LDD_Z:
+			data[a] = (byte)readData(getPair(30) + b);
+			cycles += 2;
+			break;
+		case OP_STD_Y:
+			writeData(getPair(28) + b, data[a] & 0xff);
+			cycles += 2;
+			break;
+		case OP_STD_Z:
+			writeData(getPair(30) + b, data[a] & 0xff);
+			cycles += 2;
+			break;
+		case OP_LD_X:
+			data[a] = (byte)readData(getPair(26));
+			cycles += 2;
+			break;
+		case OP_LD_X_INC:
+		case OP_LD_Y_INC:
+		case OP_LD_Z_INC:
+			value = getPair(b);
+			setPair(b, value + 1);
+			data[a] = (byte)readData(value);
+			cycles += 2;
+			break;
+		case OP_LD_X_DEC:
+		case OP_LD_Y_DEC:
+		case OP_LD_Z_DEC:
+			value = (getPair(b) - 1) & 0xffff;
+			setPair(b, value);
+			data[a] = (byte)readData(value);
+			cycles += 2;
+			break;
+		case OP_ST_X:
+			writeData(getPair(26), data[a] & 0xff);
+			cycles += 2;
+			break;
+		case OP_ST_X_INC:
+		case OP_ST_Y_INC:
+		case OP_ST_Z_INC:
+			value = getPair(b);
+			setPair(b, value + 1);
+			writeData(value, data[a] & 0xff);
+			cycles += 2;
+			break;
+		case OP_ST_X_DEC:
+		case OP_ST_Y_DEC:
+		case OP_ST_Z_DEC:
+			value = (getPair(b) - 1) & 0xffff;
+			setPair(b, value);
+			writeData(value, data[a] & 0xff);
+			cycles += 2;
+			break;
+		case OP_LPM:
+			data[0] = flash[getPair(30) & (FLASH_SIZE - 1)];
+			cycles += 3;
+			break;
+		case OP_LPM_Z:
+			data[a] = flash[getPair(30) & (FLASH_SIZE - 1)];
+			cycles += 3;
+			break;
+		case OP_LPM_Z_INC:
+			value = getPair(30);
+			setPair(30, value + 1);
+			data[a] = flash[value & (FLASH_SIZE - 1)];
+			cycles += 3;
+			break;
+		case OP_PUSH:
+			push(data[a] & 0xff);
+			cycles += 2;
+			break;
+		case OP_POP:
+			data[a] = (byte)pop();
+			cycles += 2;
+			break;
+		case OP_COM:
+			result = ~data[a] & 0xff;
+			sreg = (sreg & ~ARITHMETIC_FLAGS) | FLAG_C | nz(result);
+			sreg = withSign(sreg);
+			data[a] = (byte)result;
+			cycles++;
+			break;
+		case OP_NEG:
+			value = data[a] & 0xff;
+			result = -value & 0xff;
+			sreg = (sreg & ~ARITHMETIC_FLAGS) | nz(result);
+			if (result != 0)
+				sreg |= FLAG_C;
+			if (result == 0x80)
+				sreg |= FLAG_V;
+			if (((result | value) & 0x08) != 0)
+				sreg |= FLAG_H;
+			sreg = withSign(sreg);
+			data[a] = (byte)result;
+			cycles++;
+			break;
+		case OP_SWAP:
+			value = data[a] & 0xff;
+			data[a] = (byte)((value >> 4) | (value << 4));
+			cycles++;
+			break;
+		case OP_INC:
+			result = (data[a] + 1) & 0xff;
+			sreg = (sreg & ~(FLAG_Z | FLAG_N | FLAG_V | FLAG_S)) | nz(result);
+			if (result == 0x80)
+				sreg |= FLAG_V;
+			sreg = withSign(sreg);
+			data[a] = (byte)result;
+			cycles++;
+			break;
+		case OP_DEC:
+			result = (data[a] - 1) & 0xff;
+			sreg = (sreg & ~(FLAG_Z | FLAG_N | FLAG_V | FLAG_S)) | nz(result);
+			if (result == 0x7f)
+				sreg |= FLAG_V;
+			sreg = withSign(sreg);
+			data[a] = (byte)result;
+			cycles++;
+			break;
+		case OP_ASR:
+			value = data[a] & 0xff;
+			data[a] = (byte)shiftRight(value, (value >> 1) | (value & 0x80));
+			cycles++;
+			break;
+		case OP_LSR:
+			value = data[a] & 0xff;
+			data[a] = (byte)shiftRight(value, value >> 1);
+			cycles++;
+			break;
+		case OP_ROR:
+			value = data[a] & 0xff;
+			data[a] = (byte)shiftRight(value, (value >> 1) | ((sreg & FLAG_C) << 7));
+			cycles++;
+			break;
+		case OP_BSET:
+			sreg |= a;
+			if (a == FLAG_I)
+				enableInterrupts();
+			cycles++;
+			break;
+		case OP_BCLR:
+			sreg &= ~a;
+			cycles++;
+			break;
+		case OP_BST:
+			sreg = (data[a] & b) != 0 ? sreg | FLAG_T : sreg & ~FLAG_T;
+			cycles++;
+			break;
+		case OP_BLD:
+			data[a] = (byte)((sreg & FLAG_T) != 0 ? data[a] | b : data[a] & ~b);
+			cycles++;
+			break;
+		case OP_ADIW:
+			value = getPair(a);
+			result = value + b;
+			sreg = (sreg & ~(FLAG_C | FLAG_Z | FLAG_N | FLAG_V | FLAG_S)) | wordFlags(result & 0xffff);
+			if ((~value & result & 0x8000) != 0)
+				sreg |= FLAG_V;
+			if ((~result & value & 0x8000) != 0)
+				sreg |= FLAG_C;
+			sreg = withSign(sreg);
+			setPair(a, result);
+			cycles += 2;
+			break;
+		case OP_SBIW:
+			value = getPair(a);
+			result = value - b;
+			sreg = (sreg & ~(FLAG_C | FLAG_Z | FLAG_N | FLAG_V | FLAG_S)) | wordFlags(result & 0xffff);
+			if ((value & ~result & 0x8000) != 0)
+				sreg |= FLAG_V;
+			if ((result & ~value & 0x8000) != 0)
+				sreg |= FLAG_C;
+			sreg = withSign(sreg);
+			setPair(a, result);
+			cycles += 2;
+			break;
+		case OP_BRBS:
+			if ((sreg & a) != 0)
+			{
+				next = (next + b) & (FLASH_SIZE / 2 - 1);
+				cycles++;
+			}
+			cycles++;
+			break;
+		case OP_BRBC:
+			if ((sreg & a) == 0)
+			{
+				next = (next + b) & (FLASH_SIZE / 2 - 1);
+				cycles++;
+			}
+			cycles++;
+			break;
+		case OP_RJMP:
+			next = (next + b) & (FLASH_SIZE / 2 - 1);
+			cycles += 2;
+			break;
+		case OP_RCALL:
+			pushAddress(next);
+			next = (next + b) & (FLASH_SIZE / 2 - 1);
+			cycles += 3;
+			break;
+		case OP_JMP:
+			next = b;
+			cycles += 3;
+			break;
+		case OP_CALL:
+			pushAddress(next + 1);
+			next = b;
+			cycles += 4;
+			break;
+		case OP_IJMP:
+			next = getPair(30) & (FLASH_SIZE / 2 - 1);
+			cycles += 2;
+			break;
+		case OP_ICALL:
+			pushAddress(next);
+			next = getPair(30) & (FLASH_SIZE / 2 - 1);
+			cycles += 3;
+			break;
+		case OP_RET:
+			next = popAddress();
+			cycles += 4;
+			break;
+		case OP_RETI:
+			next = popAddress();
+			sreg |= FLAG_I;
+			enableInterrupts();
+			cycles += 4;
+			break;
+		default:
+			throw new IllegalStateException(String.format("Unknown instruction %04x at 0x%x", getWord(pc), pc * 2));
+		}
+		pc = next;
+	} // end step()
+	
+	/**
+	 * Works out what the instruction at a flash word is, keeping it for next time.
+	 * @param address The word's address, in words.
+	 * @return The instruction.
+	 */
+	protected int decode(int address)
+	{
+		int word = getWord(address);
+		int op = OP_UNKNOWN, a = 0, b = 0;
+		// The most common operands: a register Rd in bits 4-8, and a register Rr in bits 0-3 and 9
+		int d = (word >> 4) & 0x1f;
+		int r = (word & 0x0f) | ((word >> 5) & 0x10);
+		// An upper register and an 8-bit constant
+		int upper = 16 + ((word >> 4) & 0x0f);
+		int constant = (word & 0x0f) | ((word >> 4) & 0xf0);
+		
+		switch (word >> 12)
+		{
+		case 0x0:
+			if (word == 0)
+				op = OP_NOP;
+			else if ((word & 0xff00) == 0x0100)
+			{
+				op = OP_MOVW;
+				a = ((word >> 4) & 0x0f) * 2;
+				b = (word & 0x0f) * 2;
+			}
+			else if ((word & 0xff00) == 0x0200)
+			{
+				op = OP_MULS;
+				a = upper;
+				b = 16 + (word & 0x0f);
+			}
+			else if ((word & 0xff00) == 0x0300)
+			{
+				int[] kinds = {OP_MULSU, OP_FMUL, OP_FMULS, OP_FMULSU};
+				op = kinds[((word >> 6) & 0x02) | ((word >> 3) & 0x01)];
+				a = 16 + ((word >> 4) & 0x07);
+				b = 16 + (word & 0x07);
+			}
+			else
+			{
+				int[] kinds = {OP_UNKNOWN, OP_CPC, OP_SBC, OP_ADD};
+				op = kinds[(word >> 10) & 0x03];
+				a = d;
+				b = r;
+			}
+			break;
+		case 0x1:
+		{
+			int[] kinds = {OP_CPSE, OP_CP, OP_SUB, OP_ADC};
+			op = kinds[(word >> 10) & 0x03];
+			a = d;
+			b = r;
+			break;
+		}
+		case 0x2:
+		{
+			int[] kinds = {OP_AND, OP_EOR, OP_OR, OP_MOV};
+			op = kinds[(word >> 10) & 0x03];
+			a = d;
+			b = r;
+			break;
+		}
+		case 0x3:
+		case 0x4:
+		case 0x5:
+		case 0x6:
+		case 0x7:
+		{
+			int[] kinds = {OP_CPI, OP_SBCI, OP_SUBI, OP_ORI, OP_ANDI};
+			op = kinds[(word >> 12) - 3];
+			a = upper;
+			b = constant;
+			break;
+		}
+		case 0x8:
+		case 0xa:
+		{
+			// LDD and STD, with LD and ST through Y and Z as the displacement 0
+			boolean store = (word & 0x0200) != 0;
+			boolean throughY = (word & 0x0008) != 0;
+			op = store ? (throughY ? OP_STD_Y : OP_STD_Z) : (throughY ? OP_LDD_Y : OP_LDD_Z);
+			a = d;
+			b = (word & 0x07) | ((word >> 7) & 0x18) | ((word >> 8) & 0x20);
+			break;
+		}
+		case 0x9:
+			op = decodeNine(word, d, r);
+			a = d;
+			b = r;
+			if (op == OP_LDS || op == OP_STS)
+				b = getWord(address + 1);
+			else if (op == OP_LD_X_INC || op == OP_LD_X_DEC || op == OP_ST_X_INC || op == OP_ST_X_DEC)
+				b = 26;
+			else if (op == OP_LD_Y_INC || op == OP_LD_Y_DEC || op == OP_ST_Y_INC || op == OP_ST_Y_DEC)
+				b = 28;
+			else if (op == OP_LD_Z_INC || op == OP_LD_Z_DEC || op == OP_ST_Z_INC || op == OP_ST_Z_DEC)
+				b = 30;
+			else if (op == OP_BSET || op == OP_BCLR)
+				a = 1 << ((word >> 4) & 0x07);
+			else if (op == OP_JMP || op == OP_CALL)
+				b = ((((word >> 3) & 0x3e) | (word & 0x01)) << 16 | getWord(address + 1)) & (FLASH_SIZE / 2 - 1);
+			else if (op == OP_ADIW || op == OP_SBIW)
+			{
+				a = 24 + ((word >> 4) & 0x03) * 2;
+				b = (word & 0x0f) | ((word >> 2) & 0x30);
+			}
+			else if (op == OP_CBI || op == OP_SBIC || op == OP_SBI || op == OP_SBIS)
+			{
+				a = 0x20 + ((word >> 3) & 0x1f);
+				b = 1 << (word & 0x07);
+			}
+			break;
+		case 0xb:
+			op = (word & 0x0800) != 0 ? OP_OUT : OP_IN;
+			a = d;
+			b = 0x20 + ((word & 0x0f) | ((word >> 5) & 0x30));
+			break;
+		case 0xc:
+		case 0xd:
+			op = (word >> 12) == 0xc ? OP_RJMP : OP_RCALL;
+			// A signed 12-bit offset in words
+			b = ((word & 0x0fff) << 20) >> 20;
+			break;
+		case 0xe:
+			op = OP_LDI;
+			a = upper;
+			b = constant;
+			break;
+		case 0xf:
+			if ((word & 0x0800) == 0)
+			{
+				op = (word & 0x0400) == 0 ? OP_BRBS : OP_BRBC;
+				a = 1 << (word & 0x07);
+				// A signed 7-bit offset in words
+				b = ((word >> 3) & 0x7f) << 25 >> 25;
+			}
+			else if ((word & 0x0008) == 0)
+			{
+				int[] kinds = {OP_BLD, OP_BST, OP_SBRC, OP_SBRS};
+				op = kinds[(word >> 9) & 0x03];
+				a = d;
+				b = 1 << (word & 0x07);
+			}
+			break;
+		}
+		
+		ops[address] = op;
+		first[address] = a;
+		second[address] = b;
+		return op;
+	} // end decode()
+	
+	/**
+	 * Decodes the instructions starting with 1001, which are most of the ones with a single register.
+	 */
+	private static int decodeNine(int word, int d, int r)
+	{
+		switch ((word >> 8) & 0x0f)
+		{
+		case 0x0:
+		case 0x1:
+		{
+			int[] kinds = {OP_LDS, OP_LD_Z_INC, OP_LD_Z_DEC, OP_UNKNOWN, OP_LPM_Z, OP_LPM_Z_INC, OP_UNKNOWN, OP_UNKNOWN,
+				OP_UNKNOWN, OP_LD_Y_INC, OP_LD_Y_DEC, OP_UNKNOWN, OP_LD_X, OP_LD_X_INC, OP_LD_X_DEC, OP_POP};
+			return kinds[word & 0x0f];
+		}
+		case 0x2:
+		case 0x3:
+		{
+			int[] kinds = {OP_STS, OP_ST_Z_INC, OP_ST_Z_DEC, OP_UNKNOWN, OP_UNKNOWN, OP_UNKNOWN, OP_UNKNOWN, OP_UNKNOWN,
+				OP_UNKNOWN, OP_ST_Y_INC, OP_ST_Y_DEC, OP_UNKNOWN, OP_ST_X, OP_ST_X_INC, OP_ST_X_DEC, OP_PUSH};
+			return kinds[word & 0x0f];
+		}
+		case 0x4:
+		case 0x5:
+			switch (word & 0x0f)
+			{
+			case 0x0: return OP_COM;
+			case 0x1: return OP_NEG;
+			case 0x2: return OP_SWAP;
+			case 0x3: return OP_INC;
+			case 0x5: return OP_ASR;
+			case 0x6: return OP_LSR;
+			case 0x7: return OP_ROR;
+			case 0xa: return OP_DEC;
+			case 0xc:
+			case 0xd: return OP_JMP;
+			case 0xe:
+			case 0xf: return OP_CALL;
+			case 0x8:
+				if ((word & 0xff8f) == 0x9408)
+					return OP_BSET;
+				if ((word & 0xff8f) == 0x9488)
+					return OP_BCLR;
+				switch (word)
+				{
+				case 0x9508: return OP_RET;
+				case 0x9518: return OP_RETI;
+				case 0x95c8: return OP_LPM;
+				// SLEEP, BREAK, WDR and SPM do nothing here
+				case 0x9588:
+				case 0x9598:
+				case 0x95a8:
+				case 0x95e8: return OP_NOP;
+				}
+				return OP_UNKNOWN;
+			case 0x9:
+				if (word == 0x9409)
+					return OP_IJMP;
+				if (word == 0x9509)
+					return OP_ICALL;
+				return OP_UNKNOWN;
+			}
+			return OP_UNKNOWN;
+		case 0x6: return OP_ADIW;
+		case 0x7: return OP_SBIW;
+		case 0x8: return OP_CBI;
+		case 0x9: return OP_SBIC;
+		case 0xa: return OP_SBI;
+		case 0xb: return OP_SBIS;
+		default: return OP_MUL;
+		}
+	} // end decodeNine()
+	
+	private int getWord(int address)
+	{
+		int offset = (address * 2) & (FLASH_SIZE - 1);
+		return (flash[offset] & 0xff) | ((flash[offset + 1] & 0xff) << 8);
+	}
+	
+	/**
+	 * Skips the instruction after a skip instruction, taking a cycle per word skipped.
+	 */
+	private int skip(int next)
+	{
+		int word = getWord(next);
+		boolean twoWords = (word & 0xfe0c) == 0x940c || (word & 0xfc0f) == 0x9000;
+		cycles += twoWords ? 2 : 1;
+		return (next + (twoWords ? 2 : 1)) & (FLASH_SIZE / 2 - 1);
+	}
+	
+	// ----------------
+	// Flags and maths:
+	// ----------------
+	
+	private int add(int a, int b, int carry)
+	{
+		int sum = a + b + carry;
+		int result = sum & 0xff;
+		int flags = nz(result);
+		if (sum > 0xff)
+			flags |= FLAG_C;
+		if ((a & 0x0f) + (b & 0x0f) + carry > 0x0f)
+			flags |= FLAG_H;
+		if (((a ^ result) & (b ^ result) & 0x80) != 0)
+			flags |= FLAG_V;
+		sreg = withSign((sreg & ~ARITHMETIC_FLAGS) | flags);
+		return result;
+	}
+	
+	/**
+	 * Subtracts, setting the flags.  With keepZero, as for SBC and CPC, a zero result only leaves Z set if it already was.
+	 */
+	private int subtract(int a, int b, int carry, boolean keepZero)
+	{
+		int difference = a - b - carry;
+		int result = difference & 0xff;
+		int flags = nz(result);
+		if (keepZero && (sreg & FLAG_Z) == 0)
+			flags &= ~FLAG_Z;
+		if (difference < 0)
+			flags |= FLAG_C;
+		if ((a & 0x0f) - (b & 0x0f) - carry < 0)
+			flags |= FLAG_H;
+		if (((a ^ b) & (a ^ result) & 0x80) != 0)
+			flags |= FLAG_V;
+		sreg = withSign((sreg & ~ARITHMETIC_FLAGS) | flags);
+		return result;
+	}
+	
+	private int logic(int result)
+	{
+		sreg = withSign((sreg & ~(FLAG_Z | FLAG_N | FLAG_V | FLAG_S)) | nz(result));
+		return result;
+	}
+	
+	private int shiftRight(int value, int result)
+	{
+		result &= 0xff;
+		int flags = nz(result) | (value & FLAG_C);
+		// V is N xor C after a shift
+		if (((flags & FLAG_N) != 0) != ((flags & FLAG_C) != 0))
+			flags |= FLAG_V;
+		sreg = withSign((sreg & ~(FLAG_C | FLAG_Z | FLAG_N | FLAG_V | FLAG_S)) | flags);
+		return result;
+	}
+	
+	/**
+	 * Puts a product in R1:R0, shifting it left for the fractional multiplies.
+	 */
+	private void setProduct(int product, boolean fractional)
+	{
+		product &= 0xffff;
+		int flags = (product & 0x8000) != 0 ? FLAG_C : 0;
+		if (fractional)
+			product = (product << 1) & 0xffff;
+		if (product == 0)
+			flags |= FLAG_Z;
+		sreg = (sreg & ~(FLAG_C | FLAG_Z)) | flags;
+		data[0] = (byte)product;
+		data[1] = (byte)(product >> 8);
+		cycles += 2;
+	}
+	
+	private static int nz(int result)
+	{
+		return (result == 0 ? FLAG_Z : 0) | ((result & 0x80) != 0 ? FLAG_N : 0);
+	}
+	
+	private static int wordFlags(int result)
+	{
+		return (result == 0 ? FLAG_Z : 0) | ((result & 0x8000) != 0 ? FLAG_N : 0);
+	}
+	
+	/**
+	 * Sets S to N xor V.
+	 */
+	private static int withSign(int flags)
+	{
+		boolean negative = (flags & FLAG_N) != 0, overflow = (flags & FLAG_V) != 0;
+		return negative != overflow ? flags | FLAG_S : flags & ~FLAG_S;
+	}
+	
+	// -----------------------
+	// Registers and the stack:
+	// -----------------------
+	
+	private int getPair(int low)
+	{
+		return (data[low] & 0xff) | ((data[low + 1] & 0xff) << 8);
+	}
+	
+	private void setPair(int low, int value)
+	{
+		data[low] = (byte)value;
+		data[low + 1] = (byte)(value >> 8);
+	}
+	
+	private int getSp()
+	{
+		return getPair(SPL);
+	}
+	
+	private void setSp(int sp)
+	{
+		setPair(SPL, sp);
+	}
+	
+	private void push(int value)
+	{
+		int sp = getSp();
+		writeData(sp, value);
+		setSp(sp - 1);
+	}
+	
+	private int pop()
+	{
+		int sp = (getSp() + 1) & 0xffff;
+		setSp(sp);
+		return readData(sp);
+	}
+	
+	private void pushAddress(int address)
+	{
+		push(address & 0xff);
+		push((address >> 8) & 0xff);
+	}
+	
+	private int popAddress()
+	{
+		int high = pop();
+		return ((high << 8) | pop()) & (FLASH_SIZE / 2 - 1);
+	}
+	
+	// ------------------------
+	// Memory and peripherals:
+	// ------------------------
+	
+	/**
+	 * Reads a byte from the data space, where the registers, I/O registers and RAM are.
+	 */
+	protected int readData(int address)
+	{
+		if (address >= 0x100)
+			return address <= RAM_END ? data[address] & 0xff : 0;
+		switch (address)
+		{
+		case SREG:
+			return sreg;
+		case UDR0:
+			if (isReceived())
+			{
+				lastReceived = (int)(received.poll() & 0xff);
+				interruptCheck = true;
+			}
+			return lastReceived;
+		case UCSR0A:
+			return (data[UCSR0A] & 0x03) | (isReceived() ? RXC0 : 0) | (txComplete && cycles >= txShiftEnd ? TXC0 : 0)
+				| (cycles >= udreAt ? UDRE0 : 0);
+		case TCNT1L:
+			updateTimer();
+			timerTemp = timerCount >> 8;
+			return timerCount & 0xff;
+		case TCNT1H:
+			return timerTemp;
+		case TIFR1:
+			updateTimer();
+			return data[TIFR1] & 0xff;
+		default:
+			return data[address] & 0xff;
+		}
+	} // end readData()
+	
+	protected void writeData(int address, int value)
+	{
+		value &= 0xff;
+		if (address >= 0x100)
+		{
+			if (address <= RAM_END)
+				data[address] = (byte)value;
+			return;
+		}
+		switch (address)
+		{
+		case SREG:
+			sreg = value;
+			if ((value & FLAG_I) != 0)
+				enableInterrupts();
+			break;
+		case UDR0:
+			send(value);
+			break;
+		case UCSR0A:
+			// Writing a one clears TXC0
+			if ((value & TXC0) != 0)
+				txComplete = false;
+			data[UCSR0A] = (byte)(value & 0x03);
+			break;
+		case UCSR0B:
+			data[UCSR0B] = (byte)value;
+			interruptCheck = true;
+			break;
+		case TIFR1:
+			// Writing a one clears a flag
+			updateTimer();
+			data[TIFR1] &= (byte)~value;
+			break;
+		case TIMSK1:
+			data[TIMSK1] = (byte)value;
+			interruptCheck = true;
+			break;
+		case TCNT1H:
+		case OCR1AH:
+			// The high byte waits in TEMP until the low byte is written
+			timerTemp = value;
+			break;
+		case TCNT1L:
+			updateTimer();
+			timerCount = (timerTemp << 8) | value;
+			scheduleTimer();
+			break;
+		case OCR1AL:
+			updateTimer();
+			ocr1a = (timerTemp << 8) | value;
+			scheduleTimer();
+			break;
+		case TCCR1B:
+			updateTimer();
+			data[TCCR1B] = (byte)value;
+			timerSince = cycles;
+			scheduleTimer();
+			break;
+		default:
+			data[address] = (byte)value;
+			break;
+		}
+	} // end writeData()
+	
+	private void enableInterrupts()
+	{
+		interruptCheck = true;
+		interruptDelay = true;
+	}
+	
+	/**
+	 * Returns the waiting interrupt with the highest priority, or -1 if none is.
+	 */
+	private int getPendingInterrupt()
+	{
+		int flags = data[TIFR1] & data[TIMSK1];
+		if ((flags & OCF1A) != 0)
+			return VECTOR_TIMER1_COMPA;
+		if ((flags & TOV1) != 0)
+			return VECTOR_TIMER1_OVF;
+		if ((data[UCSR0B] & RXCIE0) != 0 && isReceived())
+			return VECTOR_USART_RX;
+		if ((data[UCSR0B] & UDRIE0) != 0 && cycles >= udreAt)
+			return VECTOR_USART_UDRE;
+		return -1;
+	}
+	
+	/**
+	 * Jumps to an interrupt's vector, as the processor does between instructions.
+	 */
+	private void interrupt(int vector)
+	{
+		// The timer's flags are cleared by taking the interrupt; the USART's by dealing with its cause
+		if (vector == VECTOR_TIMER1_COMPA)
+			data[TIFR1] &= ~OCF1A;
+		else if (vector == VECTOR_TIMER1_OVF)
+			data[TIFR1] &= ~TOV1;
+		pushAddress(pc);
+		sreg &= ~FLAG_I;
+		pc = vector * 2;
+		cycles += 4;
+	}
+	
+	/**
+	 * Catches the peripherals up to the current cycle, then works out when they next need attention.
+	 */
+	private void updatePeripherals()
+	{
+		updateTimer();
+		nextEvent = nextTimerEvent;
+		if (!received.isEmpty())
+		{
+			long arrival = received.peek() >> 8;
+			if (arrival <= cycles)
+				interruptCheck = true;
+			else
+				nextEvent = Math.min(nextEvent, arrival);
+		}
+		if (udreAt > cycles)
+			nextEvent = Math.min(nextEvent, udreAt);
+		else if ((data[UCSR0B] & UDRIE0) != 0)
+			interruptCheck = true;
+	}
+	
+	private boolean isReceived()
+	{
+		return !received.isEmpty() && (received.peek() >> 8) <= cycles;
+	}
+	
+	/**
+	 * Starts sending a byte, or holds it in the transmit buffer until the byte being sent has gone.
+	 */
+	private void send(int value)
+	{
+		if ((data[UCSR0B] & TXEN0) == 0)
+			return;
+		long character = getCharacterCycles();
+		if (cycles >= txShiftEnd)
+		{
+			txShiftEnd = cycles + character;
+			udreAt = cycles;
+		}
+		else
+		{
+			udreAt = txShiftEnd;
+			txShiftEnd += character;
+			nextEvent = Math.min(nextEvent, udreAt);
+		}
+		txComplete = true;
+		if (serialListener != null)
+			serialListener.byteSent(value);
+	}
+	
+	/**
+	 * Counts timer 1 up to the current cycle, raising its flags for any matches and overflows passed.
+	 */
+	private void updateTimer()
+	{
+		int prescaler = PRESCALERS[data[TCCR1B] & 0x07];
+		if (prescaler == 0)
+		{
+			timerSince = cycles;
+			return;
+		}
+		long ticks = (cycles - timerSince) / prescaler;
+		if (ticks <= 0)
+			return;
+		timerSince += ticks * prescaler;
+		
+		int period = getTimerTop() + 1;
+		if (ticks >= getTicksToMatch(period))
+			data[TIFR1] |= OCF1A;
+		if ((data[TCCR1B] & WGM12) == 0 && timerCount + ticks > 0xffff)
+			data[TIFR1] |= TOV1;
+		timerCount = (int)((timerCount + ticks) % period);
+		scheduleTimer();
+		interruptCheck = true;
+	} // end updateTimer()
+	
+	/**
+	 * Works out when timer 1 next matches or overflows.
+	 */
+	private void scheduleTimer()
+	{
+		int prescaler = PRESCALERS[data[TCCR1B] & 0x07];
+		if (prescaler == 0)
+		{
+			nextTimerEvent = Long.MAX_VALUE;
+			return;
+		}
+		int period = getTimerTop() + 1;
+		long ticks = getTicksToMatch(period);
+		if ((data[TCCR1B] & WGM12) == 0)
+			ticks = Math.min(ticks, period - timerCount);
+		nextTimerEvent = timerSince + ticks * prescaler;
+		nextEvent = Math.min(nextEvent, nextTimerEvent);
+	}
+	
+	/**
+	 * Returns the top of the count: OCR1A in CTC mode, 0xffff otherwise.
+	 */
+	private int getTimerTop()
+	{
+		return (data[TCCR1B] & WGM12) != 0 ? ocr1a : 0xffff;
+	}
+	
+	/**
+	 * Returns how many ticks until the count next reaches OCR1A, or more than a period if it never will.
+	 */
+	private long getTicksToMatch(int period)
+	{
+		if (ocr1a >= period)
+			return Long.MAX_VALUE;
+		// Past a top that's just been lowered, the count runs on round through 0xffff
+		if (timerCount > ocr1a)
+			return 0x10000L - timerCount + ocr1a;
+		long ticks = (ocr1a - timerCount + period) % period;
+		return ticks == 0 ? period : ticks;
+	}
+} // end class AvrEmulator
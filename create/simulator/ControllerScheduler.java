@@ -0,0 +1,165 @@
+package create.simulator;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs RobotControllers and sets the pace of their loops.
+ * Every controller's loop() starts on a shared grid of ticks, a loop period apart, and controllers
+ *   are parked between ticks and while paused, so idle robots cost no processor time at all.
+ * Controllers taking part in a VirtualClock measure the loop period in simulated time instead,
+ *   so it costs simulated time rather than wall-clock time.
+ * Controllers run on virtual threads when asked and the Java runtime has them, or otherwise on a
+ *   pool of daemon threads that are reused as controllers come and go.  A controller keeps its pooled
+ *   thread for as long as it runs, parked or not, so without virtual threads every running controller
+ *   still pins one platform thread; only the spinning and the thread start-up costs are saved.
+ * @author dvanhumb
+ */
+public class ControllerScheduler
+{
+	/**
+	 * The default time between the starts of a controller's loops, in microseconds.
+	 * The Create updates its sensors every 15ms, so looping faster gains nothing.
+	 */
+	public static final long DEFAULT_LOOP_PERIOD = 15000;
+	
+	private static ControllerScheduler shared;
+	
+	private final ExecutorService workers;
+	private final boolean virtualThreads;
+	// The time between loops in microseconds, or 0 for no limit:
+	private volatile long loopPeriod;
+	// Where the grid of ticks starts, in System.nanoTime() terms:
+	private final long epoch = System.nanoTime();
+	
+	/**
+	 * Create a new scheduler using the default loop period and platform threads.
+	 */
+	public ControllerScheduler()
+	{
+		this(DEFAULT_LOOP_PERIOD, false);
+	}
+	
+	/**
+	 * Create a new scheduler.
+	 * @param loopPeriod The time between the starts of each controller's loops, in microseconds, or 0 for no limit.
+	 * @param virtualThreads True to run controllers on virtual threads if the Java runtime supports them.
+	 */
+	public ControllerScheduler(long loopPeriod, boolean virtualThreads)
+	{
+		setLoopPeriod(loopPeriod);
+		
+		ExecutorService executor = virtualThreads ? newVirtualThreadExecutor() : null;
+		this.virtualThreads = executor != null;
+		if (executor == null)
+		{
+			final AtomicInteger number = new AtomicInteger();
+			executor = Executors.newCachedThreadPool(new ThreadFactory()
+			{
+				public Thread newThread(Runnable task)
+				{
+					Thread thread = new Thread(task, "RobotController-" + number.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		workers = executor;
+	} // end ControllerScheduler()
+	
+	/**
+	 * Returns a virtual-thread-per-task executor, looked up by reflection so this still runs on
+	 *   Java runtimes without virtual threads, or null if there isn't one.
+	 */
+	private static ExecutorService newVirtualThreadExecutor()
+	{
+		try
+		{
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (Exception er)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns the scheduler used by controllers that aren't part of a CreateSimulatorCore.
+	 * @return
+	 */
+	public static synchronized ControllerScheduler getShared()
+	{
+		if (shared == null)
+			shared = new ControllerScheduler();
+		return shared;
+	}
+	
+	/**
+	 * Sets how often controllers start a loop.
+	 * @param loopsPerSecond The number of loops each controller runs per second, or 0 for no limit.
+	 */
+	public void setLoopRate(double loopsPerSecond)
+	{
+		if (loopsPerSecond < 0)
+			throw new IllegalArgumentException("Loop rate can't be negative: " + loopsPerSecond);
+		setLoopPeriod(loopsPerSecond == 0 ? 0 : Math.max(1, Math.round(1e6 / loopsPerSecond)));
+	}
+	
+	/**
+	 * Sets the time between the starts of each controller's loops.
+	 * @param micros The loop period in microseconds, or 0 for no limit.
+	 */
+	public void setLoopPeriod(long micros)
+	{
+		if (micros < 0)
+			throw new IllegalArgumentException("Loop period can't be negative: " + micros);
+		loopPeriod = micros;
+	}
+	
+	/**
+	 * Returns the time between the starts of each controller's loops, in microseconds, or 0 for no limit.
+	 * @return
+	 */
+	public long getLoopPeriod()
+	{
+		return loopPeriod;
+	}
+	
+	/**
+	 * Returns true if controllers run on virtual threads.
+	 * @return
+	 */
+	public boolean isUsingVirtualThreads()
+	{
+		return virtualThreads;
+	}
+	
+	/**
+	 * Returns the System.nanoTime() of the first tick after the given time, so loops line up
+	 *   on the shared grid however long each one took.
+	 */
+	long nextTick(long now)
+	{
+		long period = loopPeriod * 1000;
+		if (period == 0)
+			return now;
+		long ticks = (now - epoch) / period + 1;
+		return epoch + ticks * period;
+	}
+	
+	/**
+	 * Starts running a controller.
+	 */
+	void execute(RobotController controller)
+	{
+		workers.execute(controller);
+	}
+	
+	/**
+	 * Stops accepting new controllers.  Controllers already running carry on until stopped.
+	 */
+	public void shutdown()
+	{
+		workers.shutdown();
+	}
+} // end class ControllerScheduler
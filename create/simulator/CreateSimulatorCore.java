@@ -1,6 +1,8 @@
 package create.simulator;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * The core class for the iRobot Create simulator 
@@ -8,8 +10,287 @@ import java.util.*;
  */
 public class CreateSimulatorCore
 {
+	/**
+	 * The default length of a simulation step, in microseconds.
+	 */
+	public static final long DEFAULT_TIMESTEP = 1000;
+	
 	/**
 	 * A list of all the RobotControllers in the simulation
 	 */
 	protected Vector<RobotController> controllers;
+	/**
+	 * A list of all the robots in the simulation that have been given SimulatedRobot views
+	 */
+	protected Vector<SimulatedRobot> robots;
+	/**
+	 * The state of every robot in the simulation
+	 */
+	protected WorldState world;
+	
+	/**
+	 * The length of each simulation step, in microseconds.
+	 */
+	protected long timestep;
+	/**
+	 * How much time has passed in the simulation, in microseconds.
+	 */
+	protected long simulatedTime;
+	/**
+	 * The pool robots are stepped on, or null to step them on the calling thread.
+	 */
+	protected ForkJoinPool pool;
+	/**
+	 * The clock controllers wait on; it steps the simulation once they're all waiting.
+	 */
+	protected VirtualClock clock;
+	/**
+	 * The scheduler the controllers run on.
+	 */
+	protected ControllerScheduler scheduler;
+	/**
+	 * The trace keyframes are recorded to, or null to record none.
+	 */
+	protected TraceRecorder trace;
+	// The simulated time between keyframes, and when the next one is due:
+	protected long keyframeInterval;
+	protected long nextKeyframe;
+	
+	/**
+	 * Create a new, empty simulation with the default timestep.
+	 */
+	public CreateSimulatorCore()
+	{
+		this(DEFAULT_TIMESTEP);
+	}
+	
+	/**
+	 * Create a new, empty simulation.
+	 * @param timestep The length of each simulation step, in microseconds.
+	 */
+	public CreateSimulatorCore(long timestep)
+	{
+		if (timestep <= 0)
+			throw new IllegalArgumentException("Timestep must be positive: " + timestep);
+		
+		this.timestep = timestep;
+		controllers = new Vector<RobotController>();
+		robots = new Vector<SimulatedRobot>();
+		world = new WorldState(16);
+		clock = new VirtualClock(this);
+		scheduler = new ControllerScheduler();
+	}
+	
+	/**
+	 * Add a new robot with no controller to the simulation.
+	 * @return The new robot.
+	 */
+	public SimulatedRobot addRobot()
+	{
+		return addRobot(0, 0, 0);
+	}
+	
+	/**
+	 * Add a new robot with no controller to the simulation at the given pose.
+	 * @param x The x-coordinate of the robot's center, in millimeters.
+	 * @param y The y-coordinate of the robot's center, in millimeters.
+	 * @param heading The direction the robot faces, in radians counter-clockwise from the x-axis.
+	 * @return The new robot.
+	 */
+	public SimulatedRobot addRobot(double x, double y, double heading)
+	{
+		SimulatedRobot robot;
+		synchronized (world)
+		{
+			robot = world.getRobot(world.addRobot(x, y, heading));
+		}
+		robots.add(robot);
+		return robot;
+	}
+	
+	/**
+	 * Add a new robot to the simulation, driven by the given RobotController.
+	 * The controller takes part in the simulation's VirtualClock, so simulated time won't move on
+	 *   until it has been started and is waiting.
+	 * @param controller The controller that will drive the new robot.
+	 * @return The new robot.
+	 */
+	public SimulatedRobot addRobot(RobotController controller)
+	{
+		SimulatedRobot robot = addRobot();
+		controller.setRobot(robot);
+		controller.setClock(clock);
+		controller.setScheduler(scheduler);
+		controllers.add(controller);
+		return robot;
+	}
+	
+	/**
+	 * Sets the walls, virtual walls and cliffs the robots drive around in.
+	 * The arena is indexed once here, so sensing it stays cheap however big it is.
+	 * @param arena The arena, or null for an open floor.
+	 */
+	public void setArena(Arena arena)
+	{
+		synchronized (world)
+		{
+			world.setArena(arena == null ? null : arena.buildIndex());
+		}
+	}
+	
+	/**
+	 * Advance every robot in the simulation by one timestep.
+	 */
+	public void step()
+	{
+		synchronized (world)
+		{
+			world.step(timestep, pool);
+			simulatedTime += timestep;
+			if (trace != null && simulatedTime >= nextKeyframe)
+				recordKeyframe();
+		}
+	}
+	
+	/**
+	 * Records keyframes of the whole world to a trace, so readers can seek through it.
+	 * The trace is usually also given to each robot's RobotRepeater, which records the commands and replies in between.
+	 * @param trace The trace to record to, or null to stop recording.
+	 * @param keyframeInterval The simulated time between keyframes, in microseconds.
+	 */
+	public void setTrace(TraceRecorder trace, long keyframeInterval)
+	{
+		if (keyframeInterval <= 0)
+			throw new IllegalArgumentException("Keyframe interval must be positive: " + keyframeInterval);
+		synchronized (world)
+		{
+			this.trace = trace;
+			this.keyframeInterval = keyframeInterval;
+			if (trace != null)
+				recordKeyframe();
+		}
+	}
+	
+	/**
+	 * Records a keyframe of the world now, and works out when the next one is due.
+	 */
+	private void recordKeyframe()
+	{
+		try
+		{
+			trace.recordKeyframe(simulatedTime, world);
+			nextKeyframe = simulatedTime + keyframeInterval;
+		}
+		catch (IOException er)
+		{
+			System.err.println("Stopped recording keyframes: " + er.getMessage());
+			trace = null;
+		}
+	}
+	
+	/**
+	 * Advance the simulation as fast as possible by at least the given length of simulated time.
+	 * @param micros The amount of simulated time to run for, in microseconds.
+	 */
+	public void runFor(long micros)
+	{
+		long end = simulatedTime + micros;
+		while (simulatedTime < end)
+			step();
+	}
+	
+	/**
+	 * Sets how many threads each step is split across.
+	 * The results are identical whatever the number of threads; only the speed changes.
+	 * @param threads The number of threads to use, where 1 steps on the calling thread.
+	 */
+	public void setParallelism(int threads)
+	{
+		ForkJoinPool old;
+		// Swap under the world's lock so a step in progress finishes on the pool it started with
+		synchronized (world)
+		{
+			old = pool;
+			pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		}
+		if (old != null)
+			old.shutdown();
+	}
+	
+	/**
+	 * Stops any threads the simulation started, once its controllers have stopped.
+	 */
+	public void shutdown()
+	{
+		setParallelism(1);
+		scheduler.shutdown();
+	}
+	
+	/**
+	 * Returns how much time has passed in the simulation, in microseconds.
+	 * @return
+	 */
+	public long getSimulatedTime()
+	{
+		return simulatedTime;
+	}
+	
+	/**
+	 * Moves the simulation to another time, such as that of a saved state being loaded.
+	 * @param micros The new simulated time, in microseconds.
+	 */
+	public void setSimulatedTime(long micros)
+	{
+		synchronized (world)
+		{
+			simulatedTime = micros;
+		}
+	}
+	
+	/**
+	 * Returns the length of each simulation step, in microseconds.
+	 * @return
+	 */
+	public long getTimestep()
+	{
+		return timestep;
+	}
+	
+	/**
+	 * Returns a list of all the robots in the simulation that have SimulatedRobot views.
+	 * Robots added directly to the WorldState don't appear here.
+	 * @return
+	 */
+	public Vector<SimulatedRobot> getRobots()
+	{
+		return robots;
+	}
+	
+	/**
+	 * Returns the clock controllers wait on.
+	 * @return
+	 */
+	public VirtualClock getClock()
+	{
+		return clock;
+	}
+	
+	/**
+	 * Returns the scheduler the controllers run on, which sets how often they loop.
+	 * @return
+	 */
+	public ControllerScheduler getScheduler()
+	{
+		return scheduler;
+	}
+	
+	/**
+	 * Returns the state of every robot in the simulation.
+	 * Large swarms should be added and inspected through this rather than through SimulatedRobot views.
+	 * @return
+	 */
+	public WorldState getWorld()
+	{
+		return world;
+	}
 }
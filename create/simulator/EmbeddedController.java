@@ -0,0 +1,128 @@
+package create.simulator;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Runs a project's Command Module build, the .hex file that would be downloaded to the robot, on
+ *   an emulated ATmega168 in place of the local build.
+ * What the program sends out the serial port is carried out on the simulated robot as the Open
+ *   Interface would, and any answer is sent back at the baud rate, so the program sees the same
+ *   timing as on the robot.  The emulated processor is kept in step with the simulation: each loop
+ *   runs as many clock cycles as the time the loop takes, on the simulation's clock if there is one
+ *   and in real time if not.
+ * @author dvanhumb
+ */
+public class EmbeddedController extends RobotController
+{
+	protected AvrEmulator emulator = new AvrEmulator();
+	protected SerialBridge bridge;
+	// When the program started, on whichever clock is being kept to:
+	private long startTime;
+	
+	/**
+	 * Loads a program built for the Command Module.
+	 * @param hexFile The program, as an Intel HEX file.
+	 * @throws IOException If the file can't be read.
+	 */
+	public EmbeddedController(File hexFile) throws IOException
+	{
+		emulator.loadProgram(IntelHex.load(hexFile, AvrEmulator.FLASH_SIZE));
+	}
+	
+	public void setRobot(SimulatedRobot robot)
+	{
+		super.setRobot(robot);
+		bridge = robot == null ? null : new SerialBridge(robot, emulator);
+		emulator.setSerialListener(bridge);
+	}
+	
+	/**
+	 * Returns the emulated processor.
+	 * @return
+	 */
+	public AvrEmulator getEmulator()
+	{
+		return emulator;
+	}
+	
+	public void init()
+	{
+		emulator.reset();
+		startTime = getTime();
+	}
+	
+	/**
+	 * Runs the processor up to the end of this loop's time.
+	 */
+	public void loop()
+	{
+		long until = getTime() - startTime;
+		// With a clock, the time passes once the loop is over, so run through to then
+		if (clock != null)
+			until += Math.max(scheduler.getLoopPeriod(), clock.getTimestep());
+		try
+		{
+			emulator.run(until * AvrEmulator.CLOCK / 1000000);
+		}
+		catch (IllegalStateException er)
+		{
+			// The real processor would go off the rails too, so there's no sense carrying on
+			System.err.println("The Command Module program stopped: " + er.getMessage());
+			stopRobot();
+		}
+	}
+	
+	/**
+	 * Returns the time in microseconds, on the simulation's clock if there is one.
+	 */
+	private long getTime()
+	{
+		return clock != null ? clock.getTime() : System.nanoTime() / 1000;
+	}
+	
+	/**
+	 * Gathers the bytes the program sends into Open Interface commands, and carries them out on the robot.
+	 */
+	protected static class SerialBridge extends RobotRepeater implements SerialListener
+	{
+		protected AvrEmulator emulator;
+		
+		public SerialBridge(SimulatedRobot robot, AvrEmulator emulator)
+		{
+			super(robot);
+			this.emulator = emulator;
+			// Replies go straight back as the robot's raw bytes
+			binaryProtocol = true;
+			binaryReplies = true;
+		}
+		
+		public void byteSent(int value)
+		{
+			if (commandLength == command.length)
+				command = Arrays.copyOf(command, command.length * 2);
+			command[commandLength++] = (byte)value;
+			int length = OICodec.getCommandLength(command, 0, commandLength);
+			if (length < 0 || commandLength < length)
+				return;
+			
+			replyLength = 0;
+			rawReplyLength = 0;
+			switch (command[0] & 0xff)
+			{
+			case COMMAND_WAIT_TIME:
+			case COMMAND_WAIT_DISTANCE:
+			case COMMAND_WAIT_ANGLE:
+			case SIM_COMMAND_WAIT_MS:
+				// The robot would stop listening for the wait, which the processor can't see; the runtime waits by itself
+				break;
+			default:
+				controlSimulated();
+				break;
+			}
+			for (int i=0; i < replyLength; i++)
+				emulator.receive(reply[i] & 0xff);
+			commandLength = 0;
+		} // end byteSent()
+	} // end class SerialBridge
+} // end class EmbeddedController
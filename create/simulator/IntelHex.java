@@ -0,0 +1,98 @@
+package create.simulator;
+
+import java.io.*;
+
+/**
+ * Reads the Intel HEX files avr-objcopy makes, as avrdude would to program the Command Module.
+ * @author dvanhumb
+ */
+public class IntelHex
+{
+	private static final int RECORD_DATA = 0x00;
+	private static final int RECORD_END = 0x01;
+	private static final int RECORD_SEGMENT = 0x02;
+	private static final int RECORD_LINEAR = 0x04;
+	
+	/**
+	 * Reads a HEX file into memory.
+	 * @param file The file.
+	 * @param size The size of the memory; bytes past its end are an error.
+	 * @return The memory, with any bytes the file doesn't give left as 0xff, like erased flash.
+	 * @throws IOException If the file can't be read or isn't a valid HEX file.
+	 */
+	public static byte[] load(File file, int size) throws IOException
+	{
+		byte[] memory = new byte[size];
+		for (int i=0; i < size; i++)
+			memory[i] = (byte)0xff;
+		
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			int base = 0;
+			int lineNumber = 0;
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+				if (line.length() == 0)
+					continue;
+				byte[] record = parseRecord(line, file.getName() + ":" + lineNumber);
+				
+				int length = record[0] & 0xff;
+				int address = ((record[1] & 0xff) << 8) | (record[2] & 0xff);
+				switch (record[3] & 0xff)
+				{
+				case RECORD_DATA:
+					if (base + address + length > size)
+						throw new IOException(file.getName() + ":" + lineNumber + ": Data past the end of the memory");
+					System.arraycopy(record, 4, memory, base + address, length);
+					break;
+				case RECORD_END:
+					return memory;
+				case RECORD_SEGMENT:
+					base = (((record[4] & 0xff) << 8) | (record[5] & 0xff)) << 4;
+					break;
+				case RECORD_LINEAR:
+					base = (((record[4] & 0xff) << 8) | (record[5] & 0xff)) << 16;
+					break;
+				default:
+					// Start addresses mean nothing to the AVR, which always starts at 0
+					break;
+				}
+			}
+			throw new IOException(file.getName() + ": No end-of-file record");
+		}
+		finally
+		{
+			in.close();
+		}
+	} // end load()
+	
+	/**
+	 * Turns a line of the file into the bytes it holds, checking its checksum.
+	 */
+	private static byte[] parseRecord(String line, String where) throws IOException
+	{
+		if (line.charAt(0) != ':' || line.length() < 11 || line.length() % 2 != 1)
+			throw new IOException(where + ": Not a HEX record");
+		
+		byte[] record = new byte[(line.length() - 1) / 2];
+		int sum = 0;
+		for (int i=0; i < record.length; i++)
+		{
+			int high = Character.digit(line.charAt(1 + 2*i), 16);
+			int low = Character.digit(line.charAt(2 + 2*i), 16);
+			if (high < 0 || low < 0)
+				throw new IOException(where + ": Not a HEX record");
+			record[i] = (byte)((high << 4) | low);
+			sum += record[i] & 0xff;
+		}
+		if ((record[0] & 0xff) + 5 != record.length)
+			throw new IOException(where + ": The record's length is wrong");
+		if ((sum & 0xff) != 0)
+			throw new IOException(where + ": Bad checksum");
+		return record;
+	}
+} // end class IntelHex
@@ -0,0 +1,327 @@
+package create.simulator;
+
+import java.io.*;
+
+/**
+ * Encodes and decodes Open Interface commands and sensor packets, both as raw bytes and in the
+ *   text protocol a MODE_LOCAL controller uses for debugging.
+ * Nothing here allocates, so it can be used once per command.
+ * @author dvanhumb
+ */
+public class OICodec implements OI_Constants
+{
+	// The size in bytes of each sensor packet, indexed by packet ID:
+	private static final int[] PACKET_SIZES = {
+		26, 10, 6, 10, 14, 12, 52,               // groups 0-6
+		1, 1, 1, 1, 1, 1, 1, 1, 1, 1,            // 7-16
+		1, 1, 2, 2,                              // 17-20
+		1, 2, 2, 1, 2, 2,                        // 21-26
+		2, 2, 2, 2, 2, 1, 2, 1,                  // 27-34
+		1, 1, 1, 1, 2, 2, 2, 2                   // 35-42
+	};
+	// The first and last packets in each group:
+	private static final int[] GROUP_FIRST = {7, 7, 17, 21, 27, 35, 7};
+	private static final int[] GROUP_LAST = {26, 16, 20, 26, 34, 42, 42};
+	
+	// Names used for the simulator commands in the text protocol:
+	private static final byte[][] COMMAND_NAMES = {
+		"PowerOn".getBytes(), "PowerOff".getBytes(), "RobotIsOn".getBytes(), "Binary".getBytes()
+	};
+	private static final short[] NAMED_COMMANDS = {
+		SIM_COMMAND_POWER_ON, SIM_COMMAND_POWER_OFF, SIM_COMMAND_ROBOT_IS_ON, SIM_REQUEST_BINARY
+	};
+	
+	private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+	
+	// The rate each of COMMAND_BAUD's codes sets, in bits per second:
+	private static final int[] BAUD_RATES = {
+		300, 600, 1200, 2400, 4800, 9600, 14400, 19200, 28800, 38400, 57600, 115200
+	};
+	
+	/**
+	 * Returns the highest sensor packet ID.
+	 * @return
+	 */
+	public static int getLastPacket()
+	{
+		return PACKET_SIZES.length - 1;
+	}
+	
+	/**
+	 * Returns the number of bytes the given sensor packet or packet group takes, or 0 if there is no such packet.
+	 * @param packet The packet ID.
+	 * @return
+	 */
+	public static int getPacketSize(int packet)
+	{
+		if (packet < 0 || packet >= PACKET_SIZES.length)
+			return 0;
+		return PACKET_SIZES[packet];
+	}
+	
+	/**
+	 * Returns true if the given packet ID stands for a group of packets.
+	 * @param packet
+	 * @return
+	 */
+	public static boolean isGroup(int packet)
+	{
+		return packet >= PACKET_GROUP_0 && packet <= PACKET_GROUP_6;
+	}
+	
+	/**
+	 * Returns the first packet in the given group, or the packet itself if it isn't a group.
+	 * @param packet
+	 * @return
+	 */
+	public static int getFirstPacket(int packet)
+	{
+		return isGroup(packet) ? GROUP_FIRST[packet] : packet;
+	}
+	
+	/**
+	 * Returns the last packet in the given group, or the packet itself if it isn't a group.
+	 * @param packet
+	 * @return
+	 */
+	public static int getLastPacket(int packet)
+	{
+		return isGroup(packet) ? GROUP_LAST[packet] : packet;
+	}
+	
+	/**
+	 * Returns true if the given packet holds a signed value.
+	 * @param packet
+	 * @return
+	 */
+	public static boolean isSigned(int packet)
+	{
+		switch (packet)
+		{
+		case PACKET_DISTANCE:
+		case PACKET_ANGLE:
+		case PACKET_CURRENT:
+		case PACKET_TEMPERATURE:
+		case PACKET_REQUESTED_VELOCITY:
+		case PACKET_REQUESTED_RADIUS:
+		case PACKET_REQUESTED_RIGHT_VELOCITY:
+		case PACKET_REQUESTED_LEFT_VELOCITY:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Works out the length of the command starting at the given offset, including its opcode.
+	 * @param buffer The bytes received so far.
+	 * @param offset Where the command starts.
+	 * @param available How many bytes from offset have been received.
+	 * @return The command's length in bytes, or -1 if more bytes are needed to tell.
+	 */
+	public static int getCommandLength(byte[] buffer, int offset, int available)
+	{
+		if (available < 1)
+			return -1;
+		
+		int opcode = buffer[offset] & 0xff;
+		switch (opcode)
+		{
+		case COMMAND_START:
+		case COMMAND_CONTROL:
+		case COMMAND_SAFE_MODE:
+		case COMMAND_FULL_MODE:
+		case COMMAND_DEMO_SPOT:
+		case COMMAND_DEMO_COVER:
+		case COMMAND_DEMO_COVER_AND_DOCK:
+		case COMMAND_PLAY_SCRIPT:
+		case COMMAND_SHOW_SCRIPT:
+		case SIM_COMMAND_POWER_ON:
+		case SIM_COMMAND_POWER_OFF:
+		case SIM_COMMAND_ROBOT_IS_ON:
+		case SIM_COMMAND_NEXT_LOOP:
+			return 1;
+		case COMMAND_BAUD:
+		case COMMAND_DEMO:
+		case COMMAND_LOW_SIDE_DRIVERS:
+		case COMMAND_PLAY_SONG:
+		case COMMAND_SENSORS:
+		case COMMAND_DIGITAL_OUTPUTS:
+		case COMMAND_PAUSE_RESUME_STREAM:
+		case COMMAND_SEND_IR:
+		case COMMAND_WAIT_TIME:
+		case COMMAND_WAIT_EVENT:
+			return 2;
+		case COMMAND_WAIT_DISTANCE:
+		case COMMAND_WAIT_ANGLE:
+		case SIM_COMMAND_WAIT_MS:
+			return 3;
+		case COMMAND_LEDS:
+		case COMMAND_PWM_LOW_SIDE_DRIVERS:
+			return 4;
+		case COMMAND_DRIVE:
+		case COMMAND_DRIVE_DIRECT:
+			return 5;
+		case COMMAND_SONG:
+			// Song number, song length, then a note and a duration for each note
+			if (available < 3)
+				return -1;
+			return 3 + 2 * (buffer[offset+2] & 0xff);
+		case COMMAND_STREAM:
+		case COMMAND_QUERY_LIST:
+		case COMMAND_SCRIPT:
+			// A count, then that many bytes
+			if (available < 2)
+				return -1;
+			return 2 + (buffer[offset+1] & 0xff);
+		default:
+			// Not a command; skip the byte
+			return 1;
+		}
+	} // end getCommandLength()
+	
+	/**
+	 * Returns the rate a COMMAND_BAUD code sets, or -1 if the code isn't one the robot knows.
+	 * @param code The baud code, from 0 (300 bps) to 11 (115200 bps).
+	 * @return The rate in bits per second.
+	 */
+	public static int getBaudRate(int code)
+	{
+		if (code < 0 || code >= BAUD_RATES.length)
+			return -1;
+		return BAUD_RATES[code];
+	}
+	
+	/**
+	 * Reads a big-endian signed 16-bit value.
+	 */
+	public static int getSignedWord(byte[] buffer, int offset)
+	{
+		return (short)(((buffer[offset] & 0xff) << 8) | (buffer[offset+1] & 0xff));
+	}
+	
+	/**
+	 * Reads a big-endian unsigned 16-bit value.
+	 */
+	public static int getUnsignedWord(byte[] buffer, int offset)
+	{
+		return ((buffer[offset] & 0xff) << 8) | (buffer[offset+1] & 0xff);
+	}
+	
+	/**
+	 * Writes a value of the given size big-endian, as the Open Interface sends sensor packets.
+	 * @return The offset after the written bytes.
+	 */
+	public static int putValue(byte[] buffer, int offset, int value, int size)
+	{
+		if (size == 2)
+			buffer[offset++] = (byte)(value >> 8);
+		buffer[offset++] = (byte)value;
+		return offset;
+	}
+	
+	/**
+	 * Clamps a sensor reading to what the given packet can carry.
+	 * @param packet The packet ID.
+	 * @param value The reading.
+	 * @return
+	 */
+	public static int clampToPacket(int packet, int value)
+	{
+		boolean word = getPacketSize(packet) == 2;
+		if (isSigned(packet))
+		{
+			int limit = word ? Short.MAX_VALUE : Byte.MAX_VALUE;
+			return Math.max(-limit - 1, Math.min(limit, value));
+		}
+		return Math.max(0, Math.min(word ? 0xffff : 0xff, value));
+	}
+	
+	// --------------
+	// Text protocol:
+	// --------------
+	
+	/**
+	 * Parses one line of the text protocol into raw command bytes.
+	 * Each token is either a hex value such as 0x89 (one byte) or 0x01F4 (two bytes, big-endian),
+	 *   or the name of a simulator command.
+	 * @param line The line, without its line ending.
+	 * @param length The number of bytes in the line.
+	 * @param command Where to put the command's bytes.
+	 * @return The number of command bytes, which is 0 for an empty line.
+	 * @throws IOException If the line can't be parsed.
+	 */
+	public static int parseTextCommand(byte[] line, int length, byte[] command) throws IOException
+	{
+		int used = 0;
+		int pos = 0;
+		while (pos < length)
+		{
+			// Skip the spaces between tokens
+			if (line[pos] == ' ' || line[pos] == '\t' || line[pos] == '\r')
+			{
+				pos++;
+				continue;
+			}
+			int end = pos;
+			while (end < length && line[end] != ' ' && line[end] != '\t' && line[end] != '\r')
+				end++;
+			
+			if (used + 2 > command.length)
+				throw new IOException("Command too long: " + new String(line, 0, length));
+			
+			if (end - pos > 2 && line[pos] == '0' && (line[pos+1] == 'x' || line[pos+1] == 'X'))
+			{
+				int value = 0;
+				for (int k=pos+2; k < end; k++)
+				{
+					int digit = Character.digit(line[k], 16);
+					if (digit < 0)
+						throw new IOException("Bad hex value: " + new String(line, pos, end - pos));
+					value = (value << 4) | digit;
+				}
+				// Four digits means a word
+				used = putValue(command, used, value, end - pos - 2 > 2 ? 2 : 1);
+			}
+			else
+			{
+				int name = findName(line, pos, end);
+				if (name < 0)
+					throw new IOException("Unknown command: " + new String(line, pos, end - pos));
+				command[used++] = (byte)NAMED_COMMANDS[name];
+			}
+			pos = end;
+		}
+		return used;
+	} // end parseTextCommand()
+	
+	private static int findName(byte[] line, int from, int to)
+	{
+		for (int n=0; n < COMMAND_NAMES.length; n++)
+		{
+			byte[] name = COMMAND_NAMES[n];
+			if (name.length != to - from)
+				continue;
+			int k = 0;
+			while (k < name.length && name[k] == line[from + k])
+				k++;
+			if (k == name.length)
+				return n;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Writes a value as a line of the text protocol: 0xNN for one byte, 0xNNNN for two.
+	 * @return The offset after the written line.
+	 */
+	public static int putTextValue(byte[] buffer, int offset, int value, int size)
+	{
+		buffer[offset++] = '0';
+		buffer[offset++] = 'x';
+		for (int shift=size*8-4; shift >= 0; shift -= 4)
+			buffer[offset++] = HEX_DIGITS[(value >> shift) & 0xf];
+		buffer[offset++] = '\n';
+		return offset;
+	}
+} // end class OICodec
@@ -43,6 +43,10 @@ public interface OI_Constants
 	 * Sets the robot into Passive mode. The program can only ask for and recieve sensor data in this mode.
 	 */
 	public static final short COMMAND_PASSIVE = 128;
+	/**
+	 * An older command that sets the robot into Safe mode, the same as COMMAND_SAFE_MODE.
+	 */
+	public static final short COMMAND_CONTROL = 130;
 	/**
 	 * Starts a specified demo.
 	 * Has one parameter: Demo code (byte)
@@ -105,8 +109,163 @@ public interface OI_Constants
 	public static final short COMMAND_PLAY_SONG = 141;
 	/**
 	 * Requests information from sensors.
+	 * Has one parameter: Packet ID (byte)
 	 */
 	public static final short COMMAND_SENSORS = 142;
+	/**
+	 * Starts a continuous stream of sensor packets, sent every 15ms.
+	 * Has a variable number of parameters: Number of packets (byte), followed by that many Packet IDs (bytes)
+	 */
+	public static final short COMMAND_STREAM = 148;
+	/**
+	 * Requests a list of sensor packets, returned together in the order requested.
+	 * Has a variable number of parameters: Number of packets (byte), followed by that many Packet IDs (bytes)
+	 */
+	public static final short COMMAND_QUERY_LIST = 149;
+	/**
+	 * Pauses or resumes the sensor stream.
+	 * Has one parameter: 0 to pause or 1 to resume (byte)
+	 */
+	public static final short COMMAND_PAUSE_RESUME_STREAM = 150;
+	/**
+	 * Unsupported.
+	 */
+	public static final short COMMAND_SCRIPT = 152;
+	/**
+	 * Unsupported.
+	 */
+	public static final short COMMAND_PLAY_SCRIPT = 153;
+	/**
+	 * Unsupported.
+	 */
+	public static final short COMMAND_SHOW_SCRIPT = 154;
+	/**
+	 * Waits for a length of time.
+	 * Has one parameter: Time in tenths of a second (byte)
+	 */
+	public static final short COMMAND_WAIT_TIME = 155;
+	/**
+	 * Waits until the robot has driven a distance.
+	 * Has one parameter: Distance in millimeters (2 bytes, signed)
+	 */
+	public static final short COMMAND_WAIT_DISTANCE = 156;
+	/**
+	 * Waits until the robot has turned through an angle.
+	 * Has one parameter: Angle in degrees, counter-clockwise being positive (2 bytes, signed)
+	 */
+	public static final short COMMAND_WAIT_ANGLE = 157;
+	/**
+	 * Unsupported.
+	 */
+	public static final short COMMAND_WAIT_EVENT = 158;
+	
+	// ------------------------------------------------------------
+	// Simulator commands, only understood by the RobotRepeater:
+	// ------------------------------------------------------------
+	
+	/**
+	 * Turns the robot on. Sent as "PowerOn" in the text protocol.
+	 */
+	public static final short SIM_COMMAND_POWER_ON = 0xF0;
+	/**
+	 * Turns the robot off. Sent as "PowerOff" in the text protocol.
+	 */
+	public static final short SIM_COMMAND_POWER_OFF = 0xF1;
+	/**
+	 * Asks whether the robot is on. Replies with one byte, 1 if it is and 0 if it isn't.
+	 * Sent as "RobotIsOn" in the text protocol.
+	 */
+	public static final short SIM_COMMAND_ROBOT_IS_ON = 0xF2;
+	/**
+	 * Waits for a length of simulated time, then replies with one byte.
+	 * Has one parameter: Time in milliseconds (2 bytes, unsigned)
+	 */
+	public static final short SIM_COMMAND_WAIT_MS = 0xF3;
+	/**
+	 * Ends one pass of the controller's loop, letting the rest of its loop period pass, then replies with one byte.
+	 * A loop that never waits still takes at least one step of simulated time, so the robot moves on.
+	 */
+	public static final short SIM_COMMAND_NEXT_LOOP = 0xF4;
+	/**
+	 * Only ever follows COMMAND_START, asking to switch to binary frames. Sent as "Binary" in the text protocol.
+	 * Replies with one byte, 1 if the repeater has switched.
+	 */
+	public static final short SIM_REQUEST_BINARY = 0xFE;
+	
+	// --------------------
+	// Sensor packet codes:
+	// --------------------
+	
+	/**
+	 * Packets 7 to 26.
+	 */
+	public static final short PACKET_GROUP_0 = 0;
+	/**
+	 * Packets 7 to 16.
+	 */
+	public static final short PACKET_GROUP_1 = 1;
+	/**
+	 * Packets 17 to 20.
+	 */
+	public static final short PACKET_GROUP_2 = 2;
+	/**
+	 * Packets 21 to 26.
+	 */
+	public static final short PACKET_GROUP_3 = 3;
+	/**
+	 * Packets 27 to 34.
+	 */
+	public static final short PACKET_GROUP_4 = 4;
+	/**
+	 * Packets 35 to 42.
+	 */
+	public static final short PACKET_GROUP_5 = 5;
+	/**
+	 * Packets 7 to 42.
+	 */
+	public static final short PACKET_GROUP_6 = 6;
+	public static final short PACKET_BUMPS_DROPS = 7;
+	public static final short PACKET_WALL = 8;
+	public static final short PACKET_CLIFF_LEFT = 9;
+	public static final short PACKET_CLIFF_FRONT_LEFT = 10;
+	public static final short PACKET_CLIFF_FRONT_RIGHT = 11;
+	public static final short PACKET_CLIFF_RIGHT = 12;
+	public static final short PACKET_VIRTUAL_WALL = 13;
+	public static final short PACKET_OVERCURRENTS = 14;
+	public static final short PACKET_IR_BYTE = 17;
+	public static final short PACKET_BUTTONS = 18;
+	public static final short PACKET_DISTANCE = 19;
+	public static final short PACKET_ANGLE = 20;
+	public static final short PACKET_CHARGING_STATE = 21;
+	public static final short PACKET_VOLTAGE = 22;
+	public static final short PACKET_CURRENT = 23;
+	public static final short PACKET_TEMPERATURE = 24;
+	public static final short PACKET_CHARGE = 25;
+	public static final short PACKET_CAPACITY = 26;
+	public static final short PACKET_WALL_SIGNAL = 27;
+	public static final short PACKET_CLIFF_LEFT_SIGNAL = 28;
+	public static final short PACKET_CLIFF_FRONT_LEFT_SIGNAL = 29;
+	public static final short PACKET_CLIFF_FRONT_RIGHT_SIGNAL = 30;
+	public static final short PACKET_CLIFF_RIGHT_SIGNAL = 31;
+	public static final short PACKET_DIGITAL_INPUTS = 32;
+	public static final short PACKET_ANALOG_INPUT = 33;
+	public static final short PACKET_CHARGING_SOURCES = 34;
+	public static final short PACKET_OI_MODE = 35;
+	public static final short PACKET_SONG_NUMBER = 36;
+	public static final short PACKET_SONG_PLAYING = 37;
+	public static final short PACKET_STREAM_PACKETS = 38;
+	public static final short PACKET_REQUESTED_VELOCITY = 39;
+	public static final short PACKET_REQUESTED_RADIUS = 40;
+	public static final short PACKET_REQUESTED_RIGHT_VELOCITY = 41;
+	public static final short PACKET_REQUESTED_LEFT_VELOCITY = 42;
+	
+	/**
+	 * The OI mode reported before the Start command has been sent.
+	 */
+	public static final short OI_MODE_OFF = 0;
+	public static final short OI_MODE_PASSIVE = 1;
+	public static final short OI_MODE_SAFE = 2;
+	public static final short OI_MODE_FULL = 3;
 	
 	// ----------------
 	// Parameter codes:
@@ -1,15 +1,44 @@
 package create.simulator;
 
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
 /**
  * Provides methods for directing an iRobot Create. Usually subclassed.
  * Interfaces between the core (CreateSimulartorCore) and the controlling program.
- * Shows its own 
+ * Runs on a ControllerScheduler, which paces its loops and parks it while it's paused.
+ * Parking waits on a lock rather than a monitor, so a controller on a virtual thread leaves its
+ *   carrier thread free for others meanwhile.
+ * Controllers used to be threads of their own, so start(), join(), isAlive(), interrupt() and
+ *   setName() still work as they did, acting on the scheduler's thread while the controller runs.
  * @author dvanhumb
  */
-public abstract class RobotController extends Thread 
+public abstract class RobotController implements Runnable
 {
 	private volatile boolean running = false;
 	private volatile boolean paused = false;
+	private boolean started = false;
+	private boolean finished = false;
+	// The thread running the controller, so stopping it can interrupt a wait
+	private Thread worker;
+	// The name to give the thread running the controller, or null to leave it be:
+	private volatile String name;
+	// Guards the fields above, and wakes the controller to be unpaused or stopped:
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition wake = lock.newCondition();
+	
+	/**
+	 * The simulated robot this controller drives, or null if it isn't attached to one.
+	 */
+	protected SimulatedRobot robot;
+	/**
+	 * The clock waits are measured on, or null to wait in wall-clock time.
+	 */
+	protected VirtualClock clock;
+	/**
+	 * The scheduler the controller runs on.
+	 */
+	protected ControllerScheduler scheduler = ControllerScheduler.getShared();
 	
 	// ----------------------
 	// Robot-control methods:
@@ -25,12 +54,15 @@ public abstract class RobotController extends Thread
 		// Cap the speeds
 		left = Math.max(-500, Math.min(500, left));
 		right = Math.max(-500, Math.min(500, right));
+		
+		if (robot != null)
+			robot.driveDirect(left, right);
 	}
 	
 	/**
 	 * Direct the robot to drive in a circle with a given radius and speed.
 	 * @param speed The speed to drive. Negative values indicate driving backwards. Range: -500 to 500
-	 * @param radius The radius of the circle. Positive values indicate turning right, while negative values indicate turning left. Range: -2000 to 2000, unless you want straight (0x7fff or 0x8000) or turning in-place (0xffff)
+	 * @param radius The radius of the circle. Positive values indicate turning left, while negative values indicate turning right. Range: -2000 to 2000, unless you want straight (0x7fff or 0x8000) or turning in-place (0xffff)
 	 */
 	public void driveRadius(int speed, int radius)
 	{
@@ -38,6 +70,9 @@ public abstract class RobotController extends Thread
 		speed = Math.max(-500, Math.min(500, speed));
 		if (radius != 32768 && radius != 32767 && radius != 0xffff)
 			radius = Math.max(-2000, Math.min(2000, radius));
+		
+		if (robot != null)
+			robot.driveRadius(speed, radius);
 	}
 	
 	/**
@@ -46,7 +81,8 @@ public abstract class RobotController extends Thread
 	 */
 	public void sendIRcode(short code)
 	{
-		
+		if (robot != null)
+			robot.sendIR(code);
 	}
 	
 	/**
@@ -65,8 +101,10 @@ public abstract class RobotController extends Thread
 	 */
 	public short getIRcode()
 	{
-		// For now, return 255, the code for "no code recieved"
-		return 255;
+		// With no robot, return 255, the code for "no code recieved"
+		if (robot == null)
+			return 255;
+		return (short)robot.getIRReceived();
 	}
 	
 	// For now, I'm ignoring songs
@@ -77,25 +115,42 @@ public abstract class RobotController extends Thread
 	 */
 	public void waitTime(short delay)
 	{
-		
+		delay = (short)Math.max(0, Math.min(255, delay));
+		if (clock != null)
+			clock.sleep(delay * 100000L);
+		else
+		{
+			try
+			{
+				Thread.sleep(delay * 100L);
+			}
+			catch (InterruptedException er)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 	
 	/**
 	 * Tell the Create to wait until it's drive a particular distance.
-	 * @param distance The distance to wait.
+	 * Does nothing unless the controller is part of a simulation.
+	 * @param distance The distance to wait, in millimeters. Negative values wait for driving backwards.
 	 */
 	public void waitDistance(int distance)
 	{
-		
+		if (clock != null && robot != null)
+			clock.waitDistance(robot, distance);
 	}
 	
 	/**
 	 * Tells the Create to wait until it's turned a particular angle.
-	 * @param angle The angle to wait, in degrees.
+	 * Does nothing unless the controller is part of a simulation.
+	 * @param angle The angle to wait, in degrees. Positive values wait for turning counter-clockwise.
 	 */
 	public void waitAngle(int angle)
 	{
-		
+		if (clock != null && robot != null)
+			clock.waitAngle(robot, angle);
 	}
 	
 	// ---------------------------------------------
@@ -113,37 +168,210 @@ public abstract class RobotController extends Thread
 	public abstract void loop();
 	
 	/**
-	 * Starts and runs the controller's code.
+	 * Starts and runs the controller's code.  Usually called by the scheduler, through startRobot().
 	 */
 	final public void run()
 	{
+		Thread thread = Thread.currentThread();
+		String threadName = thread.getName();
+		lock.lock();
+		try
+		{
+			worker = thread;
+			if (name != null)
+				thread.setName(name);
+		}
+		finally
+		{
+			lock.unlock();
+		}
 		running = true;
-		init();
-		while (running)
+		try
+		{
+			init();
+			long nextTick = System.nanoTime();
+			while (running)
+			{
+				if (paused && !park())
+					break;
+				
+				if (clock == null)
+				{
+					// Wait for this controller's next tick
+					if (!sleepUntil(nextTick))
+						break;
+					if (paused)
+						continue;
+					loop();
+					nextTick = scheduler.nextTick(System.nanoTime());
+				}
+				else
+				{
+					long before = clock.getTime();
+					loop();
+					// Loops take at least the loop period, or a step, of simulated time, so the simulation moves on
+					long elapsed = clock.getTime() - before;
+					long period = Math.max(scheduler.getLoopPeriod(), clock.getTimestep());
+					if (running && elapsed < period)
+						clock.sleep(period - elapsed);
+				}
+			}
+		}
+		finally
+		{
+			running = false;
+			if (clock != null)
+				clock.unregister();
+			lock.lock();
+			try
+			{
+				worker = null;
+				finished = true;
+				wake.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			// Don't leave a stop's interruption, or the controller's name, behind on a pooled thread
+			Thread.interrupted();
+			thread.setName(threadName);
+		}
+	} // end run()
+	
+	/**
+	 * Parks while the robot is paused.  A paused controller stops taking part in the clock,
+	 *   so the rest of the simulation carries on without it.
+	 * @return False if the robot was stopped meanwhile.
+	 */
+	private boolean park()
+	{
+		if (clock != null)
+			clock.unregister();
+		lock.lock();
+		try
+		{
+			while (paused && running)
+				wake.await();
+		}
+		catch (InterruptedException er)
+		{
+			// Stopped
+		}
+		finally
 		{
-			while (paused) yield();
-			loop();
+			lock.unlock();
+			if (clock != null)
+				clock.register();
 		}
+		return running;
+	} // end park()
+	
+	/**
+	 * Parks until the given System.nanoTime(), waking early to be paused or stopped.
+	 * @return False if the robot was stopped meanwhile.
+	 */
+	private boolean sleepUntil(long time)
+	{
+		long left;
+		lock.lock();
+		try
+		{
+			while (running && !paused && (left = time - System.nanoTime()) > 0)
+				wake.awaitNanos(left);
+		}
+		catch (InterruptedException er)
+		{
+			// Stopped
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return running;
 	}
 	
 	// -------------------------------------
 	// Robot controller controlling methods:
 	// -------------------------------------
 	
+	/**
+	 * Attach this controller to a simulated robot. Usually called by CreateSimulatorCore.
+	 * @param robot The robot to drive.
+	 */
+	public void setRobot(SimulatedRobot robot)
+	{
+		this.robot = robot;
+	}
+	
+	/**
+	 * Make this controller's waits use the given clock, registering it as a participant.
+	 * Usually called by CreateSimulatorCore.
+	 * @param clock The simulation's clock.
+	 */
+	public void setClock(VirtualClock clock)
+	{
+		this.clock = clock;
+		if (clock != null)
+			clock.register();
+	}
+	
+	/**
+	 * Choose the scheduler this controller runs on. Usually called by CreateSimulatorCore.
+	 * Only takes effect if the robot hasn't been started yet.
+	 * @param scheduler The scheduler to use.
+	 */
+	public void setScheduler(ControllerScheduler scheduler)
+	{
+		this.scheduler = scheduler;
+	}
+	
+	/**
+	 * Returns the simulated robot this controller drives.
+	 * @return The robot, or null if this controller isn't attached to one.
+	 */
+	public SimulatedRobot getRobot()
+	{
+		return robot;
+	}
+	
 	/**
 	 * Start the robot running.
+	 * @throws IllegalStateException If the robot has already been started.
 	 */
 	public void startRobot()
 	{
-		start();
+		lock.lock();
+		try
+		{
+			if (started)
+				throw new IllegalStateException("Robot controller already started");
+			started = true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		scheduler.execute(this);
 	}
 	
 	/**
-	 * Stop the robot.
+	 * Stop the robot.  Any wait it's in ends straight away, and it stops once its current loop returns.
 	 */
 	public void stopRobot()
 	{
 		running = false;
+		lock.lock();
+		try
+		{
+			wake.signalAll();
+			if (worker != null)
+				worker.interrupt();
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 	
 	/**
@@ -168,7 +396,16 @@ public abstract class RobotController extends Thread
 	 */
 	public void unpauseRobot()
 	{
-		paused = false;
+		lock.lock();
+		try
+		{
+			paused = false;
+			wake.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 	
 	/**
@@ -179,4 +416,121 @@ public abstract class RobotController extends Thread
 	{
 		return paused;
 	}
+	
+	// -----------------------------------------------------
+	// Thread methods, from when controllers were threads:
+	// -----------------------------------------------------
+	
+	/**
+	 * Start the robot running, the same as startRobot().
+	 * @throws IllegalStateException If the robot has already been started.
+	 */
+	public void start()
+	{
+		startRobot();
+	}
+	
+	/**
+	 * Returns true from when the robot is started until its controller has finished running.
+	 * @return
+	 */
+	public boolean isAlive()
+	{
+		lock.lock();
+		try
+		{
+			return (started || worker != null) && !finished;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits for the controller to finish running.
+	 * @throws InterruptedException If the waiting thread is interrupted.
+	 */
+	public void join() throws InterruptedException
+	{
+		join(0);
+	}
+	
+	/**
+	 * Waits up to the given time for the controller to finish running.
+	 * @param millis The longest to wait in milliseconds, or 0 to wait as long as it takes.
+	 * @throws InterruptedException If the waiting thread is interrupted.
+	 */
+	public void join(long millis) throws InterruptedException
+	{
+		if (millis < 0)
+			throw new IllegalArgumentException("Timeout can't be negative");
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		lock.lock();
+		try
+		{
+			while (isAlive())
+			{
+				if (millis == 0)
+					wake.await();
+				else
+				{
+					long left = deadline - System.nanoTime();
+					if (left <= 0)
+						break;
+					wake.awaitNanos(left);
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	} // end join()
+	
+	/**
+	 * Interrupts the controller's current wait, if it's running.
+	 */
+	public void interrupt()
+	{
+		lock.lock();
+		try
+		{
+			if (worker != null)
+				worker.interrupt();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Names the thread that runs the controller, to tell it apart in thread dumps.
+	 * @param name The name to use.
+	 */
+	public void setName(String name)
+	{
+		this.name = name;
+		lock.lock();
+		try
+		{
+			if (worker != null && name != null)
+				worker.setName(name);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the name given by setName(), or the class name if there isn't one.
+	 * @return
+	 */
+	public String getName()
+	{
+		String name = this.name;
+		return name != null ? name : getClass().getName();
+	}
 } // end class RobotController
@@ -1,19 +1,60 @@
 package create.simulator;
 
 import java.io.*;
+import java.util.*;
 import gnu.io.*;
 
 /**
  * An interface to a locally-executing controller.
+ * The controller starts out talking the text protocol, one command per line with each byte written
+ *   as 0xNN (or a word as 0xNNNN), and replies come back one value per line.  If it starts with
+ *   "0x80 Binary", both sides switch to binary frames: each command is sent as a length byte followed
+ *   by the raw Open Interface bytes, and replies are the raw bytes the robot would send.
+ * Waits are answered with a single byte once they're over, so the controller knows when to carry on.
+ * A real robot is asked to stream the sensor packets the controller reads, so its sensor requests
+ *   are answered at once from the latest frame rather than waiting on the serial port each time.
+ * The serial link to a simulated robot takes no time unless a baud rate is set, when each byte that
+ *   would cross the real link costs its transmission time in simulated time.
  * @author dvanhumb
  */
-public class RobotRepeater
+public class RobotRepeater implements Runnable, OI_Constants
 {
+	/**
+	 * The rate the robot and the Command Module talk at until told otherwise, in bits per second.
+	 */
+	public static final int DEFAULT_BAUD_RATE = 57600;
+	// Each byte goes with a start and a stop bit:
+	private static final int BITS_PER_BYTE = 10;
+	// How long to wait for the robot's stream to start carrying newly asked-for packets, in milliseconds:
+	private static final long STREAM_TIMEOUT = 500;
+	
 	protected Process masterProcess;
 	
-	// Buffers to communicate with the controlling process:
-	protected BufferedReader coreIn;
-	protected PrintStream coreOut;
+	// Streams to communicate with the controlling process:
+	protected InputStream coreIn;
+	protected OutputStream coreOut;
+	/**
+	 * True once the controller has switched to binary frames.
+	 */
+	protected boolean binaryProtocol;
+	/**
+	 * True once replies go to the controller as raw bytes.  This follows binaryProtocol, but for a real
+	 *   robot it only changes once the answer to the request for binary frames has gone, in text, since
+	 *   the replies are built by whoever is answering rather than by the thread reading commands.
+	 */
+	protected boolean binaryReplies;
+	
+	// The command being handled and the reply to it, reused so handling a command doesn't allocate:
+	protected byte[] command = new byte[256];
+	protected int commandLength;
+	protected byte[] reply = new byte[512];
+	protected int replyLength;
+	// The reply in raw binary form whichever protocol is in use, which is what traces hold:
+	protected byte[] rawReply = new byte[256];
+	protected int rawReplyLength;
+	// The text line being read, and the raw bytes of a sensor reply:
+	private byte[] line = new byte[1024];
+	private byte[] sensorData = new byte[64];
 	
 	// Buffers to communicate with the virtual and real robots:
 	/**
@@ -21,19 +62,63 @@ public class RobotRepeater
 	 */
 	protected SimulatedRobot simulatedRobot;
 	/**
-	 * If this is not null and simulatedRobot is null, control the real robot.
+	 * The clock the simulated robot's waits are measured on, or null to wait in wall-clock time.
+	 */
+	protected VirtualClock clock;
+	/**
+	 * The time between the starts of the controller's loops, in microseconds, as a ControllerScheduler paces them.
+	 */
+	protected long loopPeriod = ControllerScheduler.DEFAULT_LOOP_PERIOD;
+	// When the controller's current loop began, or -1 before its first:
+	private long loopStart = -1;
+	/**
+	 * The rate of the serial link to the simulated robot in bits per second, or 0 if bytes take no time.
+	 */
+	protected int baudRate;
+	// When the link will have finished sending everything so far, in simulated microseconds:
+	private long linkFreeTime;
+	/**
+	 * Where every command and reply is recorded, or null to record nothing.
+	 */
+	protected volatile TraceRecorder trace;
+	// When the repeater started, for timing traces of robots with no clock:
+	private final long startNanos = System.nanoTime();
+	/**
+	 * The real robot's serial port, if there is one.
 	 */
 	protected SerialPort realRobot;
-	protected BufferedInputStream realIn;
-	protected OutputStream realOut;
+	/**
+	 * If this is not null and simulatedRobot is null, control the real robot through it.
+	 */
+	protected SerialTransport transport;
+	/**
+	 * The latest frame of the real robot's sensor stream, or null to ask the robot for each sensor request.
+	 */
+	protected SensorCache sensorCache;
+	// The Stream command being sent, and the bytes of a reply read from the cache:
+	private byte[] streamCommand = new byte[SensorCache.MAX_STREAM_COMMAND];
+	private byte[] streamData = new byte[64];
+	// The real robot's baud rate, which limits how much a frame of the stream can carry:
+	private int realBaudRate = DEFAULT_BAUD_RATE;
+	// True once the robot has been found not to stream, so sensor requests go to it directly:
+	private boolean streamFailed;
+	// The sets of packets already warned about, so each is only warned about once:
+	private Set<String> streamWarnings = new HashSet<String>();
+	private boolean frameSizeWarned;
+	// Writes a real robot's replies to the controller, so a slow controller can't hold up the serial port:
+	private ReplyWriter replyWriter;
+	
+	private RobotRepeater(InputStream in, OutputStream out)
+	{
+		coreIn = new BufferedInputStream(in);
+		coreOut = new BufferedOutputStream(out);
+	}
 	
 	private RobotRepeater(Process master)
 	{
+		// Connect to the Process's IO ports
+		this(master.getInputStream(), master.getOutputStream());
 		masterProcess = master;
-		
-		// Connect to the Process's IO ports 
-		coreIn = new BufferedReader(new InputStreamReader(master.getInputStream()));
-		coreOut = new PrintStream(master.getOutputStream());
 	}
 	
 	/**
@@ -48,6 +133,28 @@ public class RobotRepeater
 		simulatedRobot = robot;
 	}
 	
+	/**
+	 * Create a new RobotRepeater with a controller on the other end of a pair of streams and a simulated robot.
+	 * @param in The stream the controller's commands arrive on.
+	 * @param out The stream replies are sent to the controller on.
+	 * @param robot The simulated robot.
+	 */
+	public RobotRepeater(InputStream in, OutputStream out, SimulatedRobot robot)
+	{
+		this(in, out);
+		
+		simulatedRobot = robot;
+	}
+	
+	/**
+	 * Create a new RobotRepeater for a subclass that supplies the commands itself.
+	 * @param robot The simulated robot.
+	 */
+	protected RobotRepeater(SimulatedRobot robot)
+	{
+		simulatedRobot = robot;
+	}
+	
 	/**
 	 * Create a new RobotRepeater with a controlling process and a serial port to control a real robot.
 	 * @param master The controlling proces.
@@ -59,39 +166,772 @@ public class RobotRepeater
 		this(master);
 		
 		realRobot = port;
-		realIn = new BufferedInputStream(port.getInputStream());
-		realOut = port.getOutputStream();
+		transport = new SerialTransport(port.getInputStream(), port.getOutputStream(), new RealReplies());
+		setStreaming(true);
+	}
+	
+	/**
+	 * Create a new RobotRepeater with a controller and a real robot both on the other end of pairs of streams,
+	 *   such as a fake robot on a pseudo-terminal.
+	 * @param in The stream the controller's commands arrive on.
+	 * @param out The stream replies are sent to the controller on.
+	 * @param robotIn The stream the robot's answers arrive on.
+	 * @param robotOut The stream commands are sent to the robot on.
+	 */
+	public RobotRepeater(InputStream in, OutputStream out, InputStream robotIn, OutputStream robotOut)
+	{
+		this(in, out);
+		
+		transport = new SerialTransport(robotIn, robotOut, new RealReplies());
+		setStreaming(true);
+	}
+	
+	/**
+	 * Chooses whether a real robot's sensor requests are answered from a stream of its sensors,
+	 *   which is the default, or by asking the robot each time.  Call before run().
+	 * @param streaming True to stream.
+	 */
+	public void setStreaming(boolean streaming)
+	{
+		if (transport == null)
+			return;
+		sensorCache = streaming ? new SensorCache() : null;
+		transport.setFrameListener(sensorCache);
+	}
+	
+	/**
+	 * Make the simulated robot's waits use the given clock, registering this repeater as a participant.
+	 * Simulated time then only moves on while the controller is waiting.
+	 * @param clock The simulation's clock.
+	 */
+	public void setClock(VirtualClock clock)
+	{
+		this.clock = clock;
+		if (clock != null)
+			clock.register();
+	}
+	
+	/**
+	 * Makes the serial link to the simulated robot take as long as the real one, in simulated time.
+	 * From then on COMMAND_BAUD changes the rate, as it does on the robot.  The link only takes
+	 *   time for robots with a clock; without one the controller already runs in real time.
+	 * @param bitsPerSecond The rate to start at, or 0 for a link that takes no time.
+	 */
+	public void setBaudRate(int bitsPerSecond)
+	{
+		baudRate = Math.max(bitsPerSecond, 0);
+	}
+	
+	/**
+	 * Sets how long each of the controller's loops lasts at least, as a ControllerScheduler does for
+	 *   RobotControllers.  A loop ends when the controller sends SIM_COMMAND_NEXT_LOOP.
+	 * @param micros The time between the starts of loops, in microseconds, or 0 for a loop to take
+	 *   only one step of simulated time.
+	 */
+	public void setLoopPeriod(long micros)
+	{
+		loopPeriod = Math.max(micros, 0);
+	}
+	
+	/**
+	 * Records every command and reply from now on, starting with where the simulated robot is.
+	 * The trace can be shared with other repeaters; whoever created it closes it once they're all done.
+	 * @param trace The trace to record to, or null to stop recording.
+	 */
+	public void setTrace(TraceRecorder trace)
+	{
+		this.trace = trace;
+		if (trace != null && simulatedRobot != null)
+		{
+			try
+			{
+				trace.recordPose(getTime(), getTraceId(), simulatedRobot.getX(), simulatedRobot.getY(), simulatedRobot.getHeading());
+			}
+			catch (IOException er)
+			{
+				stopTrace(er);
+			}
+		}
 	}
 	
+	/**
+	 * Returns the connection to the real robot, which keeps count of how it's doing, or null for a simulated robot.
+	 * @return
+	 */
+	public SerialTransport getTransport()
+	{
+		return transport;
+	}
+	
+	/**
+	 * Passes commands from the controller to the robot until the controller closes its output.
+	 */
 	public void run()
 	{
-		// Accept a command from the controller
+		if (simulatedRobot == null && transport != null)
+		{
+			replyWriter = new ReplyWriter();
+			Thread writer = new Thread(replyWriter, "RobotRepeater replies");
+			writer.setDaemon(true);
+			writer.start();
+			transport.start("RobotRepeater");
+		}
 		try
 		{
-			String line = coreIn.readLine();
-			String[] parsed = line.split(" +");
-			if (parsed.length == 0)
-				return;
-			
-			if (simulatedRobot != null)
-				controlSimulated(parsed);
-			else if (realRobot != null)
-				controlReal(parsed);
-			// else we have nothing to control
+			while (readCommand())
+			{
+				if (commandLength == 0)
+					continue;
+				int opcode = command[0] & 0xff;
+				// The robot only acts once the whole command is in
+				if (simulatedRobot != null)
+					sendOverLink(getLinkBytes(opcode));
+				if (trace != null)
+					traceEvent(TraceRecorder.EVENT_COMMAND, command, commandLength);
+				
+				if (simulatedRobot != null)
+				{
+					replyLength = 0;
+					rawReplyLength = 0;
+					controlSimulated();
+					// Only sensor data comes back over the real link; the other replies are the repeater's own
+					if (opcode == COMMAND_SENSORS || opcode == COMMAND_QUERY_LIST)
+						sendOverLink(rawReplyLength);
+					sendReply();
+				}
+				else if (transport != null)
+					controlReal(); // The replies come back to RealReplies as they arrive
+				// else we have nothing to control
+			}
 		}
 		catch (IOException er)
 		{
-			
+			// The controller has gone away
+		}
+		finally
+		{
+			if (clock != null)
+				clock.unregister();
+			if (transport != null)
+			{
+				// Leave the robot quiet for whoever talks to it next
+				if (sensorCache != null && sensorCache.isStreaming())
+					transport.send(new byte[] {(byte)COMMAND_PAUSE_RESUME_STREAM, 0}, 0, 2);
+				transport.close();
+			}
+			if (replyWriter != null)
+				replyWriter.close();
+			trace = null;
 		}
 	} // end run()
 	
-	private void controlSimulated(String[] command)
+	/**
+	 * Sends the controller the reply that's been built up, if there is one.
+	 */
+	private void sendReply() throws IOException
+	{
+		if (replyLength == 0)
+			return;
+		if (trace != null)
+			traceEvent(TraceRecorder.EVENT_REPLY, rawReply, rawReplyLength);
+		coreOut.write(reply, 0, replyLength);
+		coreOut.flush();
+	}
+	
+	private void traceEvent(int type, byte[] data, int length)
+	{
+		try
+		{
+			trace.record(type, getTime(), getTraceId(), data, 0, length);
+		}
+		catch (IOException er)
+		{
+			stopTrace(er);
+		}
+	}
+	
+	/**
+	 * Returns the simulated time, or the time since the repeater started for robots with no clock, in microseconds.
+	 */
+	private long getTime()
+	{
+		return clock != null ? clock.getTime() : (System.nanoTime() - startNanos) / 1000;
+	}
+	
+	/**
+	 * Returns the id the robot's records carry: its id in the simulation, or 0 for the real robot.
+	 */
+	private int getTraceId()
+	{
+		return simulatedRobot != null ? simulatedRobot.getId() : 0;
+	}
+	
+	/**
+	 * Stops recording after a problem with the trace.  A broken trace shouldn't stop the robot.
+	 */
+	private void stopTrace(IOException problem)
+	{
+		System.err.println("Stopped recording the trace: " + problem.getMessage());
+		trace = null;
+	}
+	
+	/**
+	 * Accepts one command from the controller into the command buffer.
+	 * @return False if the controller has closed its output.
+	 * @throws IOException
+	 */
+	protected boolean readCommand() throws IOException
 	{
+		if (binaryProtocol)
+		{
+			int length = coreIn.read();
+			if (length < 0)
+				return false;
+			readFully(coreIn, command, 0, length);
+			commandLength = length;
+			return true;
+		}
 		
+		int used = 0;
+		int c;
+		while ((c = coreIn.read()) >= 0 && c != '\n')
+		{
+			if (used == line.length)
+				line = Arrays.copyOf(line, used * 2);
+			line[used++] = (byte)c;
+		}
+		if (c < 0 && used == 0)
+			return false;
+		
+		try
+		{
+			commandLength = OICodec.parseTextCommand(line, used, command);
+		}
+		catch (IOException er)
+		{
+			// A garbled line shouldn't stop the robot
+			System.err.println("Ignoring command from the controller: " + er.getMessage());
+			commandLength = 0;
+		}
+		return true;
+	} // end readCommand()
+	
+	/**
+	 * Carries out the command in the command buffer on the simulated robot, adding any answer to the reply.
+	 */
+	protected void controlSimulated()
+	{
+		SimulatedRobot robot = simulatedRobot;
+		switch (command[0] & 0xff)
+		{
+		case COMMAND_START:
+			robot.setMode(OI_MODE_PASSIVE);
+			if (commandLength > 1 && (command[1] & 0xff) == SIM_REQUEST_BINARY)
+				acceptBinary();
+			break;
+		case COMMAND_CONTROL:
+		case COMMAND_SAFE_MODE:
+			robot.setMode(OI_MODE_SAFE);
+			break;
+		case COMMAND_FULL_MODE:
+			robot.setMode(OI_MODE_FULL);
+			break;
+		case COMMAND_DEMO:
+		case COMMAND_DEMO_SPOT:
+		case COMMAND_DEMO_COVER:
+		case COMMAND_DEMO_COVER_AND_DOCK:
+			// The demos aren't simulated, but like the real robot, drop back to Passive mode
+			robot.stop();
+			robot.setMode(OI_MODE_PASSIVE);
+			break;
+		case COMMAND_DRIVE:
+			robot.driveRadius(OICodec.getSignedWord(command, 1), OICodec.getSignedWord(command, 3));
+			break;
+		case COMMAND_DRIVE_DIRECT:
+			robot.driveDirect(OICodec.getSignedWord(command, 3), OICodec.getSignedWord(command, 1));
+			break;
+		case COMMAND_SEND_IR:
+			robot.sendIR(command[1] & 0xff);
+			break;
+		case COMMAND_SENSORS:
+			replySensors(1, 1);
+			break;
+		case COMMAND_QUERY_LIST:
+			replySensors(2, command[1] & 0xff);
+			break;
+		case COMMAND_WAIT_TIME:
+			waitSimulated(COMMAND_WAIT_TIME, (command[1] & 0xff) * 100000L);
+			break;
+		case SIM_COMMAND_WAIT_MS:
+			waitSimulated(COMMAND_WAIT_TIME, OICodec.getUnsignedWord(command, 1) * 1000L);
+			break;
+		case COMMAND_WAIT_DISTANCE:
+		case COMMAND_WAIT_ANGLE:
+			waitSimulated(command[0] & 0xff, OICodec.getSignedWord(command, 1));
+			break;
+		case SIM_COMMAND_POWER_ON:
+			robot.setPowered(true);
+			break;
+		case SIM_COMMAND_POWER_OFF:
+			robot.setPowered(false);
+			break;
+		case SIM_COMMAND_ROBOT_IS_ON:
+			addReply(robot.isPowered() ? 1 : 0, 1);
+			break;
+		case SIM_COMMAND_NEXT_LOOP:
+			waitSimulated(COMMAND_WAIT_TIME, getLoopDelay());
+			loopStart = getTime();
+			break;
+		case COMMAND_BAUD:
+			// The command itself went at the old rate; everything after it goes at the new one
+			if (baudRate > 0 && OICodec.getBaudRate(command[1] & 0xff) > 0)
+				baudRate = OICodec.getBaudRate(command[1] & 0xff);
+			break;
+		default:
+			// LEDs, songs and outputs have no effect on the simulation
+			break;
+		}
+	} // end controlSimulated()
+	
+	/**
+	 * Waits on the simulated robot, then tells the controller the wait is over with a one-byte reply.
+	 * @param opcode COMMAND_WAIT_TIME, COMMAND_WAIT_DISTANCE or COMMAND_WAIT_ANGLE.
+	 * @param amount Microseconds, millimeters or degrees.
+	 */
+	protected void waitSimulated(int opcode, long amount)
+	{
+		if (clock != null)
+		{
+			if (opcode == COMMAND_WAIT_TIME)
+				clock.sleep(amount);
+			else if (opcode == COMMAND_WAIT_DISTANCE)
+				clock.waitDistance(simulatedRobot, (int)amount);
+			else
+				clock.waitAngle(simulatedRobot, (int)amount);
+		}
+		else if (opcode == COMMAND_WAIT_TIME)
+			sleep(amount / 1000);
+		// Without a clock nothing is stepping the robot, so a distance or angle would never come
+		
+		addReply(1, 1);
+	}
+	
+	/**
+	 * Returns how long is left of the controller's current loop: the rest of the loop period, and with a
+	 *   clock at least one step, as RobotController loops take.
+	 */
+	private long getLoopDelay()
+	{
+		long period = clock != null ? Math.max(loopPeriod, clock.getTimestep()) : loopPeriod;
+		long elapsed = loopStart < 0 ? 0 : getTime() - loopStart;
+		return Math.max(period - elapsed, 0);
+	}
+	
+	/**
+	 * Returns how many of the command's bytes would cross the real link.
+	 * The simulator's own commands and the request for binary frames never reach the robot.
+	 */
+	private int getLinkBytes(int opcode)
+	{
+		if (opcode >= SIM_COMMAND_POWER_ON)
+			return 0;
+		if (opcode == COMMAND_START)
+			return 1;
+		return commandLength;
+	}
+	
+	/**
+	 * Lets the time it takes to send some bytes over the link pass in simulated time.
+	 * Simulated time moves in whole steps, so the link runs ahead of it by up to a step rather
+	 *   than rounding every command up to one; the bytes still take their time overall.
+	 * @param bytes How many bytes are sent.
+	 */
+	private void sendOverLink(int bytes)
+	{
+		if (baudRate <= 0 || clock == null || bytes == 0)
+			return;
+		long now = clock.getTime();
+		linkFreeTime = Math.max(linkFreeTime, now) + bytes * BITS_PER_BYTE * 1000000L / baudRate;
+		
+		long timestep = clock.getTimestep();
+		long behind = linkFreeTime - now;
+		if (behind >= timestep)
+			clock.sleep(behind - behind % timestep);
+	} // end sendOverLink()
+	
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException er)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Answers a request for the packets listed in the command, all read from the robot at once.
+	 * @param offset Where the packet IDs start in the command.
+	 * @param count How many packet IDs there are.
+	 */
+	private void replySensors(int offset, int count)
+	{
+		int size = getSensorDataSize(command, offset, count);
+		if (sensorData.length < size)
+			sensorData = new byte[size];
+		simulatedRobot.readSensors(command, offset, count, sensorData, 0);
+		addSensorReply(command, offset, count, sensorData);
+	}
+	
+	/**
+	 * Returns how many bytes of sensor data the packets listed in a request take.
+	 */
+	private static int getSensorDataSize(byte[] request, int offset, int count)
+	{
+		int size = 0;
+		for (int k=0; k < count; k++)
+			size += OICodec.getPacketSize(request[offset+k] & 0xff);
+		return size;
+	}
+	
+	/**
+	 * Adds the raw sensor bytes for the packets listed in a request to the reply.
+	 */
+	private void addSensorReply(byte[] request, int offset, int count, byte[] data)
+	{
+		int position = 0;
+		for (int k=0; k < count; k++)
+		{
+			int packet = request[offset+k] & 0xff;
+			for (int p=OICodec.getFirstPacket(packet); p <= OICodec.getLastPacket(packet); p++)
+			{
+				int size = OICodec.getPacketSize(p);
+				if (size == 0)
+					continue;
+				addReply(size == 2 ? OICodec.getUnsignedWord(data, position) : data[position] & 0xff, size);
+				position += size;
+			}
+		}
 	}
 	
-	private void controlReal(String[] command)
+	/**
+	 * Queues the command in the command buffer for the real robot.
+	 * Nothing waits for the robot here; any answer, even one the repeater makes up itself, is
+	 *   sent to the controller by RealReplies once everything asked for before it has been answered.
+	 */
+	private void controlReal()
 	{
+		int opcode = command[0] & 0xff;
+		switch (opcode)
+		{
+		case SIM_COMMAND_ROBOT_IS_ON:
+			transport.request(command, commandLength, 0, 0);
+			return;
+		case SIM_COMMAND_POWER_ON:
+		case SIM_COMMAND_POWER_OFF:
+			// The real robot's power switch can't be reached over the serial port
+			return;
+		case COMMAND_START:
+			if (commandLength > 1 && (command[1] & 0xff) == SIM_REQUEST_BINARY)
+			{
+				// Read frames from now on, since the next command will already be one; the answer still
+				//   goes in text, and RealReplies switches the replies once it has
+				transport.request(command, commandLength, 1, 0);
+				binaryProtocol = true;
+			}
+			else
+				transport.send(command, 0, 1);
+			// Start the stream again in case the robot dropped it
+			if (sensorCache != null && sensorCache.isStreaming() && !streamFailed)
+				transport.send(streamCommand, 0, sensorCache.putStreamCommand(streamCommand));
+			return;
+		case SIM_COMMAND_WAIT_MS:
+			sleep(OICodec.getUnsignedWord(command, 1));
+			transport.request(command, commandLength, 0, 0);
+			return;
+		case SIM_COMMAND_NEXT_LOOP:
+			sleep(getLoopDelay() / 1000);
+			loopStart = getTime();
+			transport.request(command, commandLength, 0, 0);
+			return;
+		case COMMAND_WAIT_TIME:
+		case COMMAND_WAIT_DISTANCE:
+		case COMMAND_WAIT_ANGLE:
+			waitReal(opcode);
+			return;
+		case COMMAND_SENSORS:
+			if (sensorCache != null && !streamFailed)
+				queryStream(1, 1);
+			else
+				transport.request(command, commandLength, commandLength, getSensorDataSize(command, 1, 1));
+			return;
+		case COMMAND_QUERY_LIST:
+			if (sensorCache != null && !streamFailed)
+				queryStream(2, command[1] & 0xff);
+			else
+				transport.request(command, commandLength, commandLength, getSensorDataSize(command, 2, command[1] & 0xff));
+			return;
+		case COMMAND_STREAM:
+		case COMMAND_PAUSE_RESUME_STREAM:
+			// The repeater runs the stream itself, and the controller's would only get in its way
+			if (sensorCache != null)
+				return;
+			break;
+		case COMMAND_BAUD:
+			transport.send(command, 0, commandLength);
+			if (OICodec.getBaudRate(command[1] & 0xff) > 0)
+				realBaudRate = OICodec.getBaudRate(command[1] & 0xff);
+			checkFrameSize();
+			return;
+		}
 		
+		transport.send(command, 0, commandLength);
+	} // end controlReal()
+	
+	/**
+	 * Sends a wait to the real robot, and has it answered once the wait is over.
+	 * The robot doesn't say when that is, but it answers nothing until then, so without a stream a
+	 *   request for the OI mode sent straight after the wait comes back when it ends.  A stream keeps
+	 *   the port busy, so then the wait is timed here, or measured from the stream's distance or angle.
+	 */
+	private void waitReal(int opcode)
+	{
+		if (sensorCache == null || streamFailed)
+		{
+			command[commandLength] = (byte)COMMAND_SENSORS;
+			command[commandLength + 1] = (byte)PACKET_OI_MODE;
+			transport.request(command, commandLength + 2, commandLength + 2, OICodec.getPacketSize(PACKET_OI_MODE));
+			return;
+		}
+		
+		transport.send(command, 0, commandLength);
+		if (opcode == COMMAND_WAIT_TIME)
+			sleep((command[1] & 0xff) * 100L);
+		else
+		{
+			int packet = opcode == COMMAND_WAIT_DISTANCE ? PACKET_DISTANCE : PACKET_ANGLE;
+			streamPackets(new byte[] {(byte)packet}, 0, 1);
+			if (!sensorCache.waitForTravel(packet, OICodec.getSignedWord(command, 1), STREAM_TIMEOUT))
+				System.err.println("The robot stopped streaming during a wait; carrying on without it");
+		}
+		transport.request(command, commandLength, 0, 0);
+	} // end waitReal()
+	
+	/**
+	 * Answers a sensor request from the stream, first adding any packets the stream isn't carrying.
+	 * Only a request for new packets waits on the robot, for the first frame that has them.  If no
+	 *   frame ever comes, the robot is asked directly from then on.
+	 */
+	private void queryStream(int offset, int count)
+	{
+		streamPackets(command, offset, count);
+		if (sensorCache.waitFor(command, offset, count, STREAM_TIMEOUT))
+		{
+			transport.request(command, commandLength, 0, 0);
+			return;
+		}
+		
+		if (sensorCache.getFrameCount() == 0)
+		{
+			// Not a single frame has come, so the robot doesn't stream: stop asking, and ask it for each request instead
+			System.err.println("The robot isn't streaming its sensors; asking it for each reading instead");
+			streamFailed = true;
+			transport.send(new byte[] {(byte)COMMAND_PAUSE_RESUME_STREAM, 0}, 0, 2);
+			transport.request(command, commandLength, commandLength, getSensorDataSize(command, offset, count));
+			return;
+		}
+		// Frames are coming without some of these packets, which can only read as zero
+		String packets = Arrays.toString(Arrays.copyOfRange(command, offset, offset + count));
+		if (streamWarnings.add(packets))
+			System.err.println("The robot's stream isn't carrying all of packets " + packets + "; they read as zero until it does");
+		transport.request(command, commandLength, 0, 0);
+	} // end queryStream()
+	
+	/**
+	 * Adds packets to the stream, starting it again with them if it wasn't carrying them already.
+	 */
+	private void streamPackets(byte[] request, int offset, int count)
+	{
+		if (sensorCache.addPackets(request, offset, count))
+		{
+			transport.send(streamCommand, 0, sensorCache.putStreamCommand(streamCommand));
+			checkFrameSize();
+		}
+	}
+	
+	/**
+	 * Warns, once, if a frame of the stream takes longer to send than the robot leaves between frames.
+	 * The robot doesn't check this itself; the frames just come late or broken.
+	 */
+	private void checkFrameSize()
+	{
+		if (sensorCache == null || frameSizeWarned)
+			return;
+		int frameSize = sensorCache.getFrameSize();
+		long budget = realBaudRate * SensorCache.FRAME_INTERVAL / (BITS_PER_BYTE * 1000000L);
+		if (!sensorCache.isStreaming() || frameSize <= budget)
+			return;
+		System.err.printf("The sensor stream's %d-byte frames don't fit in the %d bytes %d baud carries between frames; readings will come late\n",
+			frameSize, budget, realBaudRate);
+		frameSizeWarned = true;
+	}
+	
+	/**
+	 * Passes the real robot's answers, and the repeater's own answers for it, back to the controller in order.
+	 * Called by the transport's reader thread, which owns the reply buffers for a real robot, and which
+	 *   only queues the replies for the ReplyWriter so it's never held up by the controller.
+	 */
+	private class RealReplies implements SerialTransport.ReplyListener
+	{
+		public void replyReceived(byte[] request, int requestLength, byte[] data, int dataLength, long latency)
+		{
+			replyLength = 0;
+			rawReplyLength = 0;
+			switch (request[0] & 0xff)
+			{
+			case COMMAND_SENSORS:
+				addSensorReply(request, 1, 1, readStream(request, 1, 1, data, dataLength));
+				break;
+			case COMMAND_QUERY_LIST:
+				addSensorReply(request, 2, request[1] & 0xff, readStream(request, 2, request[1] & 0xff, data, dataLength));
+				break;
+			default:
+				// The robot can only be reached while it's on, binary frames are always accepted, and waits are over
+				addReply(1, 1);
+				break;
+			}
+			
+			if (trace != null)
+				traceEvent(TraceRecorder.EVENT_REPLY, rawReply, rawReplyLength);
+			replyWriter.add(reply, replyLength);
+			if ((request[0] & 0xff) == COMMAND_START && requestLength > 1 && (request[1] & 0xff) == SIM_REQUEST_BINARY)
+				binaryReplies = true;
+		}
+		
+		/**
+		 * Returns the sensor data for a request: the robot's own reply if it sent one, or else the stream's.
+		 */
+		private byte[] readStream(byte[] request, int offset, int count, byte[] reply, int replyLength)
+		{
+			if (sensorCache == null || replyLength > 0)
+				return reply;
+			int size = getSensorDataSize(request, offset, count);
+			if (streamData.length < size)
+				streamData = new byte[size];
+			sensorCache.read(request, offset, count, streamData);
+			return streamData;
+		}
+	} // end class RealReplies
+	
+	/**
+	 * Writes replies to the controller on a thread of its own, each time sending everything queued since
+	 *   its last write, the way SerialTransport writes to the robot.
+	 */
+	private class ReplyWriter implements Runnable
+	{
+		private byte[] outgoing = new byte[512];
+		private int outgoingLength;
+		private byte[] writing = new byte[512];
+		private boolean closed;
+		
+		/**
+		 * Queues bytes for the controller.
+		 */
+		public synchronized void add(byte[] data, int length)
+		{
+			if (closed || length == 0)
+				return;
+			if (outgoingLength + length > outgoing.length)
+				outgoing = Arrays.copyOf(outgoing, Math.max(outgoingLength + length, outgoing.length * 2));
+			System.arraycopy(data, 0, outgoing, outgoingLength, length);
+			outgoingLength += length;
+			notifyAll();
+		}
+		
+		/**
+		 * Stops once everything queued has been written.
+		 */
+		public synchronized void close()
+		{
+			closed = true;
+			notifyAll();
+		}
+		
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					int length;
+					synchronized (this)
+					{
+						while (outgoingLength == 0 && !closed)
+							wait();
+						if (outgoingLength == 0)
+							return;
+						byte[] full = outgoing;
+						outgoing = writing;
+						writing = full;
+						length = outgoingLength;
+						outgoingLength = 0;
+					}
+					coreOut.write(writing, 0, length);
+					coreOut.flush();
+				}
+			}
+			catch (InterruptedException er)
+			{
+			}
+			catch (IOException er)
+			{
+				// The controller has gone away, which the repeater finds out for itself
+				close();
+			}
+		} // end run()
+	} // end class ReplyWriter
+	
+	/**
+	 * Tells the controller binary frames are accepted and switches to them for everything that follows.
+	 */
+	private void acceptBinary()
+	{
+		addReply(1, 1);
+		binaryProtocol = true;
+		binaryReplies = true;
+	}
+	
+	/**
+	 * Adds a value to the reply in whichever protocol the controller is using.
+	 * @param value The value to send.
+	 * @param size Its size in bytes, 1 or 2.
+	 */
+	protected void addReply(int value, int size)
+	{
+		// Leave room for the longest text form, "0xNNNN\n"
+		if (replyLength + 7 > reply.length)
+			reply = Arrays.copyOf(reply, reply.length * 2);
+		if (rawReplyLength + 2 > rawReply.length)
+			rawReply = Arrays.copyOf(rawReply, rawReply.length * 2);
+		
+		rawReplyLength = OICodec.putValue(rawReply, rawReplyLength, value, size);
+		if (binaryReplies)
+			replyLength = OICodec.putValue(reply, replyLength, value, size);
+		else
+			replyLength = OICodec.putTextValue(reply, replyLength, value, size);
+	}
+	
+	private static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException
+	{
+		while (length > 0)
+		{
+			int read = in.read(buffer, offset, length);
+			if (read < 0)
+				throw new EOFException();
+			offset += read;
+			length -= read;
+		}
 	}
-}
+} // end class RobotRepeater
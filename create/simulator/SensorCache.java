@@ -0,0 +1,278 @@
+package create.simulator;
+
+/**
+ * The latest reading of each sensor packet the real robot is streaming, so sensor requests can be
+ *   answered straight away instead of asking the robot over the serial port and waiting.
+ * Distance and angle are added up across frames until they're read, since on the robot reading
+ *   them is what starts them again from zero.
+ * @author dvanhumb
+ */
+public class SensorCache implements SerialTransport.FrameListener, OI_Constants
+{
+	/**
+	 * The longest the Stream command can be, asking for every packet there is.
+	 */
+	public static final int MAX_STREAM_COMMAND = 2 + OICodec.getLastPacket() + 1;
+	/**
+	 * The time between the frames of the robot's stream, in microseconds.
+	 */
+	public static final long FRAME_INTERVAL = 15000;
+	// A frame's header, length and checksum bytes:
+	private static final int FRAME_OVERHEAD = 3;
+	
+	// Each single packet's latest value, whether it's being streamed, and whether a frame has given it since:
+	private final int[] values = new int[OICodec.getLastPacket() + 1];
+	private final boolean[] streamed = new boolean[values.length];
+	private final boolean[] known = new boolean[values.length];
+	// The packet IDs the Stream command asks for, where whole groups are asked for by their group IDs:
+	private final boolean[] requested = new boolean[values.length];
+	private int requestedCount;
+	// How many frames have come in:
+	private long frames;
+	// The distance and angle travelled since the stream started, never reset, which waits measure from:
+	private long distanceTravelled, angleTurned;
+	
+	/**
+	 * Adds the packets in a request to those streamed.
+	 * A group is streamed by its group ID, which costs one ID byte a frame rather than one for each of
+	 *   its packets, and replaces any of its packets or smaller groups streamed already.  Packets asked
+	 *   for on their own are streamed on their own.
+	 * @param request Holds the packet IDs.
+	 * @param offset Where the packet IDs start.
+	 * @param count How many packet IDs there are.
+	 * @return True if any weren't being streamed already, so the stream needs starting again.
+	 */
+	public synchronized boolean addPackets(byte[] request, int offset, int count)
+	{
+		boolean added = false;
+		for (int k=0; k < count; k++)
+		{
+			int packet = request[offset+k] & 0xff;
+			if (OICodec.getPacketSize(packet) == 0 || isStreamed(packet))
+				continue;
+			
+			int first = OICodec.getFirstPacket(packet), last = OICodec.getLastPacket(packet);
+			for (int other=0; other < requested.length; other++)
+			{
+				if (requested[other] && first <= OICodec.getFirstPacket(other) && OICodec.getLastPacket(other) <= last)
+				{
+					requested[other] = false;
+					requestedCount--;
+				}
+			}
+			requested[packet] = true;
+			requestedCount++;
+			for (int p=first; p <= last; p++)
+				streamed[p] = OICodec.getPacketSize(p) > 0;
+			added = true;
+		}
+		return added;
+	} // end addPackets()
+	
+	/**
+	 * Returns true if every packet the given ID stands for is being streamed already.
+	 */
+	private boolean isStreamed(int packet)
+	{
+		for (int p=OICodec.getFirstPacket(packet); p <= OICodec.getLastPacket(packet); p++)
+		{
+			if (OICodec.getPacketSize(p) > 0 && !streamed[p])
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns true once any packets have been added, so the robot should be streaming.
+	 */
+	public synchronized boolean isStreaming()
+	{
+		return requestedCount > 0;
+	}
+	
+	/**
+	 * Writes the Stream command for every packet added so far.
+	 * @param buffer Where to write it, with room for MAX_STREAM_COMMAND bytes.
+	 * @return The command's length.
+	 */
+	public synchronized int putStreamCommand(byte[] buffer)
+	{
+		int length = 0;
+		buffer[length++] = (byte)COMMAND_STREAM;
+		buffer[length++] = (byte)requestedCount;
+		for (int p=0; p < requested.length; p++)
+		{
+			if (requested[p])
+				buffer[length++] = (byte)p;
+		}
+		return length;
+	}
+	
+	/**
+	 * Returns how many bytes each frame of the stream takes on the wire, header and checksum included.
+	 */
+	public synchronized int getFrameSize()
+	{
+		int size = FRAME_OVERHEAD;
+		for (int p=0; p < requested.length; p++)
+		{
+			if (requested[p])
+				size += 1 + OICodec.getPacketSize(p);
+		}
+		return size;
+	}
+	
+	/**
+	 * Waits until a frame has given every packet in a request.
+	 * @param timeout The longest to wait, in milliseconds.
+	 * @return False if they didn't all come in time.
+	 */
+	public synchronized boolean waitFor(byte[] request, int offset, int count, long timeout)
+	{
+		long end = System.currentTimeMillis() + timeout;
+		while (!isKnown(request, offset, count))
+		{
+			long left = end - System.currentTimeMillis();
+			if (left <= 0)
+				return false;
+			try
+			{
+				wait(left);
+			}
+			catch (InterruptedException er)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	} // end waitFor()
+	
+	/**
+	 * Waits until the stream shows the robot has gone a distance or turned an angle, as the robot
+	 *   itself does for the Wait Distance and Wait Angle commands.
+	 * @param packet PACKET_DISTANCE or PACKET_ANGLE, which must be being streamed.
+	 * @param amount Millimeters or degrees; a negative amount waits for the robot to go backwards or clockwise.
+	 * @param timeout The longest to go without a frame before giving up, in milliseconds.
+	 * @return False if the stream stopped first.
+	 */
+	public synchronized boolean waitForTravel(int packet, int amount, long timeout)
+	{
+		long start = getTravelled(packet);
+		long lastFrames = frames;
+		long end = System.currentTimeMillis() + timeout;
+		while (amount >= 0 ? getTravelled(packet) - start < amount : getTravelled(packet) - start > amount)
+		{
+			long now = System.currentTimeMillis();
+			if (frames != lastFrames)
+			{
+				lastFrames = frames;
+				end = now + timeout;
+			}
+			if (now >= end)
+				return false;
+			try
+			{
+				wait(end - now);
+			}
+			catch (InterruptedException er)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	} // end waitForTravel()
+	
+	private long getTravelled(int packet)
+	{
+		return packet == PACKET_DISTANCE ? distanceTravelled : angleTurned;
+	}
+	
+	private boolean isKnown(byte[] request, int offset, int count)
+	{
+		for (int k=0; k < count; k++)
+		{
+			int packet = request[offset+k] & 0xff;
+			for (int p=OICodec.getFirstPacket(packet); p <= OICodec.getLastPacket(packet); p++)
+			{
+				if (OICodec.getPacketSize(p) > 0 && !known[p])
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Answers a Sensors or Query List request from the cache, writing the bytes the robot would have sent.
+	 * Packets no frame has given yet read as zero.
+	 * @param request Holds the packet IDs, which may include groups.
+	 * @param offset Where the packet IDs start.
+	 * @param count How many packet IDs there are.
+	 * @param out Where to write the reply; it must have room for every packet.
+	 * @return The length of the reply.
+	 */
+	public synchronized int read(byte[] request, int offset, int count, byte[] out)
+	{
+		int length = 0;
+		for (int k=0; k < count; k++)
+		{
+			int packet = request[offset+k] & 0xff;
+			for (int p=OICodec.getFirstPacket(packet); p <= OICodec.getLastPacket(packet); p++)
+			{
+				int size = OICodec.getPacketSize(p);
+				if (size == 0)
+					continue;
+				length = OICodec.putValue(out, length, OICodec.clampToPacket(p, values[p]), size);
+				if (p == PACKET_DISTANCE || p == PACKET_ANGLE)
+					values[p] = 0;
+			}
+		}
+		return length;
+	} // end read()
+	
+	/**
+	 * Returns how many frames have come in.
+	 */
+	public synchronized long getFrameCount()
+	{
+		return frames;
+	}
+	
+	/**
+	 * Takes in a frame of the stream: each packet's ID followed by its bytes.
+	 */
+	public synchronized void frameReceived(byte[] frame, int length)
+	{
+		int position = 0;
+		while (position < length)
+		{
+			int packet = frame[position++] & 0xff;
+			int size = OICodec.getPacketSize(packet);
+			if (size == 0 || position + size > length)
+				break; // Not a packet the robot knows, so the rest can't be read
+			for (int p=OICodec.getFirstPacket(packet); p <= OICodec.getLastPacket(packet); p++)
+			{
+				size = OICodec.getPacketSize(p);
+				if (size == 0)
+					continue;
+				int value = size == 2 ? OICodec.getUnsignedWord(frame, position) : frame[position] & 0xff;
+				if (OICodec.isSigned(p))
+					value = size == 2 ? (short)value : (byte)value;
+				position += size;
+				
+				if (p == PACKET_DISTANCE)
+					distanceTravelled += value;
+				else if (p == PACKET_ANGLE)
+					angleTurned += value;
+				if (p == PACKET_DISTANCE || p == PACKET_ANGLE)
+					values[p] += value;
+				else
+					values[p] = value;
+				known[p] = true;
+			}
+		}
+		frames++;
+		notifyAll();
+	} // end frameReceived()
+} // end class SensorCache
@@ -0,0 +1,14 @@
+package create.simulator;
+
+/**
+ * Is told about each byte an emulated Command Module sends out its serial port.
+ * @author dvanhumb
+ */
+public interface SerialListener
+{
+	/**
+	 * Called as the program writes a byte to the serial port.
+	 * @param value The byte, from 0 to 255.
+	 */
+	public void byteSent(int value);
+}
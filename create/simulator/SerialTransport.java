@@ -0,0 +1,534 @@
+package create.simulator;
+
+import java.io.*;
+
+/**
+ * Talks to a real robot over its serial port without holding up whoever is sending the commands.
+ * Commands are queued and a writer thread sends everything queued since its last write in one go,
+ *   so a burst of commands costs one write instead of one each.  A reader thread reads what the
+ *   robot sends back into a ring buffer and hands each request its reply, in the order the requests
+ *   were sent, as soon as enough bytes have come in.  Once nothing is waiting for a reply, whatever
+ *   else the robot sends is read as the frames of a sensor stream, if there's anyone to give them to.
+ * The transport only needs a pair of streams, so it runs just as well against a fake robot on a
+ *   pseudo-terminal as against a SerialPort.
+ * @author dvanhumb
+ */
+public class SerialTransport
+{
+	/**
+	 * Is given the replies to requests, and told when requests that have no reply come round.
+	 */
+	public interface ReplyListener
+	{
+		/**
+		 * Called once every earlier request has been answered, with the reply to this one.
+		 * Called on the reader thread, or on the sender's if nothing was outstanding; never on both at once.
+		 * The buffers are reused once this returns.
+		 * @param request The request as it was given to request().
+		 * @param requestLength The length of the request.
+		 * @param reply The bytes the robot sent back.
+		 * @param replyLength How many bytes it sent back, which is what was asked for.
+		 * @param latency The time from queueing the request to its reply, in microseconds.
+		 */
+		public void replyReceived(byte[] request, int requestLength, byte[] reply, int replyLength, long latency);
+	}
+	
+	/**
+	 * Is given each frame of the robot's sensor stream that arrives intact.
+	 */
+	public interface FrameListener
+	{
+		/**
+		 * Called on the reader thread with a frame's packets: each packet's ID followed by its bytes.
+		 * The buffer is reused once this returns.
+		 * @param frame The packets, without the frame's header, length or checksum.
+		 * @param length How many bytes of packets there are.
+		 */
+		public void frameReceived(byte[] frame, int length);
+	}
+	
+	// Room for the longest reply there can be, a query list of 255 copies of group 6:
+	private static final int RING_SIZE = 16384;
+	// The byte each frame of a sensor stream starts with:
+	private static final int STREAM_HEADER = 19;
+	
+	private final InputStream in;
+	private final OutputStream out;
+	private final ReplyListener listener;
+	private FrameListener frameListener;
+	private Thread writer;
+	private Thread reader;
+	private boolean closed;
+	
+	// Bytes waiting to be written, and the buffer the writer swaps them into:
+	private byte[] outgoing = new byte[256];
+	private int outgoingLength;
+	private byte[] writing = new byte[256];
+	
+	// Requests waiting for their replies, oldest first, in a circular queue of reused slots:
+	private Pending[] pending = new Pending[16];
+	private int pendingFirst;
+	private int pendingCount;
+	
+	// What the robot has sent that hasn't been handed out yet:
+	private final byte[] ring = new byte[RING_SIZE];
+	private int ringStart;
+	private int ringLength;
+	// The packets of the stream frame being handed out:
+	private final byte[] frame = new byte[256];
+	
+	// Statistics:
+	private long commands;
+	private long writes;
+	private long replies;
+	private long totalLatency;
+	private long lastLatency;
+	private long maxLatency;
+	private long strayBytes;
+	private long frames;
+	private long badFrames;
+	
+	/**
+	 * Create a new transport over a pair of streams to the robot.  Call start() to start talking.
+	 * @param in What the robot sends.
+	 * @param out Where to send the robot commands.
+	 * @param listener What to give replies to.
+	 */
+	public SerialTransport(InputStream in, OutputStream out, ReplyListener listener)
+	{
+		this.in = in;
+		this.out = out;
+		this.listener = listener;
+		for (int k=0; k < pending.length; k++)
+			pending[k] = new Pending();
+	}
+	
+	/**
+	 * Starts the reader and writer threads.
+	 * @param name What to call the threads, for debugging.
+	 */
+	public synchronized void start(String name)
+	{
+		if (writer != null)
+			return;
+		writer = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				writeLoop();
+			}
+		}, name + " writer");
+		reader = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				readLoop();
+			}
+		}, name + " reader");
+		writer.setDaemon(true);
+		reader.setDaemon(true);
+		writer.start();
+		reader.start();
+	}
+	
+	/**
+	 * Gives the frames of a sensor stream to a listener.  The stream must be started by sending the
+	 *   robot a Stream command, and nothing should ask the robot for sensors while it's running.
+	 * @param listener What to give frames to, or null to treat whatever no request wants as stray.
+	 */
+	public synchronized void setFrameListener(FrameListener listener)
+	{
+		frameListener = listener;
+	}
+	
+	/**
+	 * Stops talking to the robot once anything queued has been written.  Outstanding requests go unanswered.
+	 * The streams are left open; whoever opened the port closes it.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		notifyAll();
+		if (reader != null)
+			reader.interrupt();
+	}
+	
+	/**
+	 * Queues bytes for the robot that don't need an answer.
+	 */
+	public synchronized void send(byte[] data, int offset, int length)
+	{
+		if (length == 0 || closed)
+			return;
+		if (outgoingLength + length > outgoing.length)
+			outgoing = grow(outgoing, outgoingLength + length);
+		System.arraycopy(data, offset, outgoing, outgoingLength, length);
+		outgoingLength += length;
+		commands++;
+		notifyAll();
+	}
+	
+	/**
+	 * Queues a request whose answer is handed to the listener in turn.
+	 * A request can send nothing and want no reply, just to have the listener called once everything
+	 *   before it has been answered.
+	 * @param request The request, which is kept to give back with its reply.
+	 * @param length The length of the request.
+	 * @param sendLength How many of its bytes to send to the robot, from the start.
+	 * @param replyLength How many bytes the robot will answer with.
+	 */
+	public synchronized void request(byte[] request, int length, int sendLength, int replyLength)
+	{
+		if (closed)
+			return;
+		long now = System.nanoTime();
+		send(request, 0, sendLength);
+		if (replyLength == 0 && pendingCount == 0)
+		{
+			// Nothing is outstanding, so there's nothing to wait for
+			listener.replyReceived(request, length, ring, 0, 0);
+			return;
+		}
+		
+		if (pendingCount == pending.length)
+		{
+			Pending[] larger = new Pending[pending.length * 2];
+			for (int k=0; k < pendingCount; k++)
+				larger[k] = pending[(pendingFirst + k) % pending.length];
+			for (int k=pendingCount; k < larger.length; k++)
+				larger[k] = new Pending();
+			pending = larger;
+			pendingFirst = 0;
+		}
+		Pending slot = pending[(pendingFirst + pendingCount) % pending.length];
+		if (slot.request.length < length)
+			slot.request = new byte[length];
+		System.arraycopy(request, 0, slot.request, 0, length);
+		slot.requestLength = length;
+		slot.replyLength = replyLength;
+		slot.queued = now;
+		pendingCount++;
+		notifyAll();
+	} // end request()
+	
+	/**
+	 * Returns how many requests are waiting for their replies.
+	 */
+	public synchronized int getQueueDepth()
+	{
+		return pendingCount;
+	}
+	
+	/**
+	 * Returns how many bytes are waiting to be written to the robot.
+	 */
+	public synchronized int getUnsentBytes()
+	{
+		return outgoingLength;
+	}
+	
+	/**
+	 * Returns how many commands have been sent, including those sent with requests.
+	 */
+	public synchronized long getCommandCount()
+	{
+		return commands;
+	}
+	
+	/**
+	 * Returns how many writes sending those commands took.
+	 */
+	public synchronized long getWriteCount()
+	{
+		return writes;
+	}
+	
+	/**
+	 * Returns the round-trip time of the latest reply, in microseconds.
+	 */
+	public synchronized long getLastLatency()
+	{
+		return lastLatency;
+	}
+	
+	/**
+	 * Returns the average round-trip time of the replies so far, in microseconds.
+	 */
+	public synchronized long getAverageLatency()
+	{
+		return replies == 0 ? 0 : totalLatency / replies;
+	}
+	
+	/**
+	 * Returns the longest round-trip time of the replies so far, in microseconds.
+	 */
+	public synchronized long getMaxLatency()
+	{
+		return maxLatency;
+	}
+	
+	/**
+	 * Returns how many bytes the robot sent that no request was waiting for and that weren't part of a frame.
+	 */
+	public synchronized long getStrayBytes()
+	{
+		return strayBytes;
+	}
+	
+	/**
+	 * Returns how many frames of the sensor stream have been handed out.
+	 */
+	public synchronized long getFrameCount()
+	{
+		return frames;
+	}
+	
+	/**
+	 * Returns how many frames of the sensor stream were dropped for a bad checksum.
+	 */
+	public synchronized long getBadFrameCount()
+	{
+		return badFrames;
+	}
+	
+	/**
+	 * Writes whatever has been queued, as one write each time, until closed.
+	 */
+	private void writeLoop()
+	{
+		try
+		{
+			while (true)
+			{
+				int length;
+				synchronized (this)
+				{
+					while (outgoingLength == 0 && !closed)
+						waitHere();
+					if (outgoingLength == 0)
+						return; // Closed, with everything written
+					// Swap buffers so commands can keep queueing while this lot is written
+					byte[] full = outgoing;
+					outgoing = writing;
+					writing = full;
+					length = outgoingLength;
+					outgoingLength = 0;
+					writes++;
+				}
+				out.write(writing, 0, length);
+				out.flush();
+			}
+		}
+		catch (IOException er)
+		{
+			System.err.println("Lost the connection to the robot: " + er.getMessage());
+		}
+	} // end writeLoop()
+	
+	/**
+	 * Reads what the robot sends and hands it out to the requests waiting for it, until closed.
+	 */
+	private void readLoop()
+	{
+		try
+		{
+			while (!isClosed())
+			{
+				// Read straight into the ring, up to its end or the oldest unread byte
+				int end = (ringStart + ringLength) % RING_SIZE;
+				int room = end < ringStart ? ringStart - end : RING_SIZE - end;
+				if (ringLength == RING_SIZE)
+					room = 0;
+				if (room > 0)
+				{
+					int read = in.read(ring, end, room);
+					if (read < 0)
+						return;
+					ringLength += read;
+				}
+				if (!deliverReplies() && !readFrames() && ringLength == RING_SIZE)
+				{
+					// No request wants any of it, so there's no point keeping it
+					synchronized (this)
+					{
+						strayBytes += ringLength;
+					}
+					ringStart = 0;
+					ringLength = 0;
+				}
+			}
+		}
+		catch (IOException er)
+		{
+			if (!isClosed())
+				System.err.println("Lost the connection to the robot: " + er.getMessage());
+		}
+	} // end readLoop()
+	
+	/**
+	 * Answers the oldest requests for as long as there's enough data for them.
+	 * The request stays at the front of the queue until its listener returns, so a request that
+	 *   needs no reply can't be answered ahead of it.
+	 * @return True if any were answered.
+	 */
+	private boolean deliverReplies()
+	{
+		boolean delivered = false;
+		while (true)
+		{
+			Pending slot;
+			synchronized (this)
+			{
+				if (pendingCount == 0)
+				{
+					if (frameListener != null)
+						return delivered; // It's the stream's
+					// Nothing was asked for, so nothing should have come
+					strayBytes += ringLength;
+					ringStart = 0;
+					ringLength = 0;
+					return delivered;
+				}
+				slot = pending[pendingFirst];
+				if (slot.replyLength > ringLength)
+					return delivered;
+			}
+			
+			if (slot.reply.length < slot.replyLength)
+				slot.reply = new byte[slot.replyLength];
+			for (int k=0; k < slot.replyLength; k++)
+				slot.reply[k] = (byte)peek(k);
+			skip(slot.replyLength);
+			
+			long latency = (System.nanoTime() - slot.queued) / 1000;
+			if (slot.replyLength > 0)
+			{
+				synchronized (this)
+				{
+					replies++;
+					totalLatency += latency;
+					lastLatency = latency;
+					maxLatency = Math.max(maxLatency, latency);
+				}
+			}
+			listener.replyReceived(slot.request, slot.requestLength, slot.reply, slot.replyLength, latency);
+			
+			synchronized (this)
+			{
+				pendingFirst = (pendingFirst + 1) % pending.length;
+				pendingCount--;
+			}
+			delivered = true;
+		}
+	} // end deliverReplies()
+	
+	/**
+	 * Hands whole frames of the sensor stream to the frame listener: a header byte, the length of the
+	 *   packets, the packets, and a checksum that makes all the bytes add up to zero.
+	 * Bytes that don't start a frame with a good checksum are skipped until one does.
+	 * @return True if any frames were handed out.
+	 */
+	private boolean readFrames()
+	{
+		FrameListener target;
+		synchronized (this)
+		{
+			if (frameListener == null || pendingCount > 0)
+				return false;
+			target = frameListener;
+		}
+		
+		boolean delivered = false;
+		while (ringLength >= 3)
+		{
+			if (peek(0) != STREAM_HEADER)
+			{
+				skip(1);
+				synchronized (this)
+				{
+					strayBytes++;
+				}
+				continue;
+			}
+			int length = peek(1);
+			if (ringLength < length + 3)
+				break;
+			
+			int sum = 0;
+			for (int k=0; k < length + 3; k++)
+				sum += peek(k);
+			if ((sum & 0xff) != 0)
+			{
+				// Most likely a header byte in the middle of a frame, so look for the next one
+				skip(1);
+				synchronized (this)
+				{
+					badFrames++;
+				}
+				continue;
+			}
+			
+			for (int k=0; k < length; k++)
+				frame[k] = (byte)peek(2 + k);
+			skip(length + 3);
+			synchronized (this)
+			{
+				frames++;
+			}
+			target.frameReceived(frame, length);
+			delivered = true;
+		}
+		return delivered;
+	} // end readFrames()
+	
+	/**
+	 * Returns an unread byte from the ring, counting from the oldest.
+	 */
+	private int peek(int index)
+	{
+		return ring[(ringStart + index) % RING_SIZE] & 0xff;
+	}
+	
+	private void skip(int count)
+	{
+		ringStart = (ringStart + count) % RING_SIZE;
+		ringLength -= count;
+	}
+	
+	private synchronized boolean isClosed()
+	{
+		return closed;
+	}
+	
+	private void waitHere()
+	{
+		try
+		{
+			wait();
+		}
+		catch (InterruptedException er)
+		{
+			closed = true;
+		}
+	}
+	
+	private static byte[] grow(byte[] buffer, int needed)
+	{
+		byte[] larger = new byte[Math.max(needed, buffer.length * 2)];
+		System.arraycopy(buffer, 0, larger, 0, buffer.length);
+		return larger;
+	}
+	
+	/**
+	 * A request waiting for its reply.  The slots and their buffers are reused.
+	 */
+	private static class Pending
+	{
+		byte[] request = new byte[16];
+		int requestLength;
+		byte[] reply = new byte[16];
+		int replyLength;
+		// When it was queued, from System.nanoTime():
+		long queued;
+	}
+} // end class SerialTransport
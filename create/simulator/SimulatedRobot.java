@@ -1,6 +1,517 @@
 package create.simulator;
 
+/**
+ * The simulated body of a single iRobot Create.
+ * A view of one robot's slot in a WorldState, which holds the pose and wheel speeds and integrates
+ *   them with a fixed timestep using the exact arc a differential-drive robot follows at constant wheel speeds.
+ * Units follow the Open Interface: millimeters, millimeters per second, and (internally)
+ *   radians measured counter-clockwise.
+ * @author dvanhumb
+ */
 public class SimulatedRobot
 {
-
-}
+	/**
+	 * The distance between the centers of the two drive wheels, in millimeters.
+	 */
+	public static final double WHEEL_BASE = 258.0;
+	/**
+	 * The radius of the robot's round body, in millimeters.
+	 */
+	public static final double ROBOT_RADIUS = 165.0;
+	/**
+	 * The fastest either wheel can be driven, in millimeters per second.
+	 */
+	public static final int MAX_SPEED = 500;
+	/**
+	 * The largest turning radius the Open Interface accepts that isn't a special case, in millimeters.
+	 */
+	public static final int MAX_RADIUS = 2000;
+	
+	/**
+	 * The world this robot lives in.
+	 */
+	protected final WorldState world;
+	/**
+	 * This robot's slot in the world.
+	 */
+	protected final int id;
+	
+	/**
+	 * Create a new SimulatedRobot in a world of its own, sitting still at the origin and facing along the x-axis.
+	 */
+	public SimulatedRobot()
+	{
+		this(0, 0, 0);
+	}
+	
+	/**
+	 * Create a new SimulatedRobot in a world of its own, sitting still at the given pose.
+	 * @param x The x-coordinate of the robot's center, in millimeters.
+	 * @param y The y-coordinate of the robot's center, in millimeters.
+	 * @param heading The direction the robot faces, in radians counter-clockwise from the x-axis.
+	 */
+	public SimulatedRobot(double x, double y, double heading)
+	{
+		world = new WorldState(1);
+		id = world.addRobot(x, y, heading);
+	}
+	
+	/**
+	 * Create a view of a robot that already exists in the given world.
+	 * @param world The world the robot lives in.
+	 * @param id The robot's id.
+	 */
+	public SimulatedRobot(WorldState world, int id)
+	{
+		this.world = world;
+		this.id = id;
+	}
+	
+	// ----------------------
+	// Robot-control methods:
+	// ----------------------
+	
+	/**
+	 * Give speeds to the wheels individually. Negative values drive that wheel backwards.
+	 * @param left The speed of the left wheel in mm/s. Capped to -500 to 500.
+	 * @param right The speed of the right wheel in mm/s. Capped to -500 to 500.
+	 */
+	public void driveDirect(int left, int right)
+	{
+		synchronized (world)
+		{
+			world.driveDirect(id, left, right);
+		}
+	}
+	
+	/**
+	 * Drive along a circle of the given radius at the given speed, as the Open Interface's Drive command does.
+	 * @param speed The average speed of the wheels in mm/s. Capped to -500 to 500.
+	 * @param radius The radius of the circle in mm, with positive values turning left. 0x8000 and 0x7fff
+	 *   drive straight, 0xffff spins clockwise in place and 1 spins counter-clockwise in place.
+	 */
+	public void driveRadius(int speed, int radius)
+	{
+		synchronized (world)
+		{
+			world.driveRadius(id, speed, radius);
+		}
+	}
+	
+	/**
+	 * Stop both wheels.
+	 */
+	public void stop()
+	{
+		driveDirect(0, 0);
+	}
+	
+	/**
+	 * Start transmitting the given byte from the IR transmitter until told to send something else.
+	 * @param code The byte to send, or 255 to stop transmitting.
+	 */
+	public void sendIR(int code)
+	{
+		synchronized (world)
+		{
+			world.sendIR(id, code);
+		}
+	}
+	
+	/**
+	 * Sets the robot's Open Interface mode, see the OI_MODE_* constants in OI_Constants.
+	 * @param mode
+	 */
+	public void setMode(int mode)
+	{
+		synchronized (world)
+		{
+			world.setMode(id, mode);
+		}
+	}
+	
+	/**
+	 * Switches the robot on or off.
+	 * @param on
+	 */
+	public void setPowered(boolean on)
+	{
+		synchronized (world)
+		{
+			world.setPowered(id, on);
+		}
+	}
+	
+	// -------------------
+	// Simulation methods:
+	// -------------------
+	
+	/**
+	 * Advance just this robot by one timestep, leaving the rest of its world alone.
+	 * Does no allocation, so it's safe to call millions of times a second.
+	 * @param micros The length of the timestep, in microseconds.
+	 */
+	public void step(long micros)
+	{
+		synchronized (world)
+		{
+			world.integrate(id, id+1, micros);
+		}
+	}
+	
+	/**
+	 * Move the robot directly to the given pose without touching its odometry.
+	 * @param x The new x-coordinate, in millimeters.
+	 * @param y The new y-coordinate, in millimeters.
+	 * @param heading The new heading, in radians counter-clockwise from the x-axis.
+	 */
+	public void setPose(double x, double y, double heading)
+	{
+		synchronized (world)
+		{
+			world.setPose(id, x, y, heading);
+		}
+	}
+	
+	// ----------------
+	// Sensor readings:
+	// ----------------
+	
+	/**
+	 * Returns the distance travelled since the last call, in whole millimeters, as the Distance sensor packet does.
+	 * Any fraction of a millimeter is kept for the next reading.
+	 * @return The distance travelled, with negative values meaning backwards.
+	 */
+	public int readDistance()
+	{
+		synchronized (world)
+		{
+			return world.readDistance(id);
+		}
+	}
+	
+	/**
+	 * Returns the angle turned since the last call, in whole degrees, as the Angle sensor packet does.
+	 * Any fraction of a degree is kept for the next reading.
+	 * @return The angle turned, with counter-clockwise being positive.
+	 */
+	public int readAngle()
+	{
+		synchronized (world)
+		{
+			return world.readAngle(id);
+		}
+	}
+	
+	/**
+	 * Returns the value of a single sensor packet as the Open Interface would send it, so reading the
+	 *   Distance or Angle packet resets it.  Packets the simulator doesn't model read as 0.
+	 * @param packet The packet ID, from 7 to 42.  Use OICodec to expand packet groups.
+	 * @return The packet's value, clamped to what the packet can carry.
+	 */
+	public int readSensor(int packet)
+	{
+		synchronized (world)
+		{
+			int bits = world.getSensors(id);
+			int value;
+			switch (packet)
+			{
+			case OI_Constants.PACKET_BUMPS_DROPS:
+				value = bits & 0x1f;
+				break;
+			case OI_Constants.PACKET_WALL:
+				value = (bits & WorldState.SENSOR_WALL) != 0 ? 1 : 0;
+				break;
+			case OI_Constants.PACKET_CLIFF_LEFT:
+				value = (bits & WorldState.SENSOR_CLIFF_LEFT) != 0 ? 1 : 0;
+				break;
+			case OI_Constants.PACKET_CLIFF_FRONT_LEFT:
+				value = (bits & WorldState.SENSOR_CLIFF_FRONT_LEFT) != 0 ? 1 : 0;
+				break;
+			case OI_Constants.PACKET_CLIFF_FRONT_RIGHT:
+				value = (bits & WorldState.SENSOR_CLIFF_FRONT_RIGHT) != 0 ? 1 : 0;
+				break;
+			case OI_Constants.PACKET_CLIFF_RIGHT:
+				value = (bits & WorldState.SENSOR_CLIFF_RIGHT) != 0 ? 1 : 0;
+				break;
+			case OI_Constants.PACKET_VIRTUAL_WALL:
+				value = (bits & WorldState.SENSOR_VIRTUAL_WALL) != 0 ? 1 : 0;
+				break;
+			case OI_Constants.PACKET_WALL_SIGNAL:
+				value = world.getSignal(id, WorldState.SIGNAL_WALL);
+				break;
+			case OI_Constants.PACKET_CLIFF_LEFT_SIGNAL:
+			case OI_Constants.PACKET_CLIFF_FRONT_LEFT_SIGNAL:
+			case OI_Constants.PACKET_CLIFF_FRONT_RIGHT_SIGNAL:
+			case OI_Constants.PACKET_CLIFF_RIGHT_SIGNAL:
+				value = world.getSignal(id, WorldState.SIGNAL_CLIFF_LEFT + packet - OI_Constants.PACKET_CLIFF_LEFT_SIGNAL);
+				break;
+			case OI_Constants.PACKET_IR_BYTE:
+				value = world.getIRReceived(id);
+				break;
+			case OI_Constants.PACKET_DISTANCE:
+				value = world.readDistance(id);
+				break;
+			case OI_Constants.PACKET_ANGLE:
+				value = world.readAngle(id);
+				break;
+			case OI_Constants.PACKET_VOLTAGE:
+				value = world.getBatteryVoltage(id);
+				break;
+			case OI_Constants.PACKET_CURRENT:
+				value = world.getBatteryCurrent(id);
+				break;
+			case OI_Constants.PACKET_TEMPERATURE:
+				value = 25;
+				break;
+			case OI_Constants.PACKET_CHARGE:
+				value = (int)world.getCharge(id);
+				break;
+			case OI_Constants.PACKET_CAPACITY:
+				value = (int)WorldState.BATTERY_CAPACITY;
+				break;
+			case OI_Constants.PACKET_OI_MODE:
+				value = world.getMode(id);
+				break;
+			case OI_Constants.PACKET_REQUESTED_VELOCITY:
+				value = world.getRequestedSpeed(id);
+				break;
+			case OI_Constants.PACKET_REQUESTED_RADIUS:
+				value = world.getRequestedRadius(id);
+				break;
+			case OI_Constants.PACKET_REQUESTED_RIGHT_VELOCITY:
+				value = world.getRightSpeed(id);
+				break;
+			case OI_Constants.PACKET_REQUESTED_LEFT_VELOCITY:
+				value = world.getLeftSpeed(id);
+				break;
+			default:
+				value = 0;
+			}
+			return OICodec.clampToPacket(packet, value);
+		}
+	} // end readSensor()
+	
+	/**
+	 * Answers a Sensors or Query List request in one go, writing the packets' bytes as the robot would send them.
+	 * Every packet is read at the same instant, so they're consistent with each other.
+	 * @param packets Holds the packet IDs, which may include groups.
+	 * @param offset Where the packet IDs start.
+	 * @param count How many packet IDs there are.
+	 * @param out Where to write the reply; it must have room for every packet.
+	 * @param outOffset Where to start writing.
+	 * @return The offset after the written reply.
+	 */
+	public int readSensors(byte[] packets, int offset, int count, byte[] out, int outOffset)
+	{
+		synchronized (world)
+		{
+			for (int k=0; k < count; k++)
+			{
+				int packet = packets[offset+k] & 0xff;
+				for (int p=OICodec.getFirstPacket(packet); p <= OICodec.getLastPacket(packet); p++)
+				{
+					int size = OICodec.getPacketSize(p);
+					if (size > 0)
+						outOffset = OICodec.putValue(out, outOffset, readSensor(p), size);
+				}
+			}
+			return outOffset;
+		}
+	} // end readSensors()
+	
+	/**
+	 * Returns the signed distance the robot has driven since it was created, in millimeters.
+	 * @return
+	 */
+	public double getOdometer()
+	{
+		synchronized (world)
+		{
+			return world.getOdometer(id);
+		}
+	}
+	
+	/**
+	 * Returns the angle the robot has turned since it was created, in radians counter-clockwise.
+	 * @return
+	 */
+	public double getTotalAngle()
+	{
+		synchronized (world)
+		{
+			return world.getTotalAngle(id);
+		}
+	}
+	
+	public double getX()
+	{
+		synchronized (world)
+		{
+			return world.getX(id);
+		}
+	}
+	
+	public double getY()
+	{
+		synchronized (world)
+		{
+			return world.getY(id);
+		}
+	}
+	
+	/**
+	 * Returns the robot's heading in radians, counter-clockwise from the x-axis, between -PI and PI.
+	 * @return
+	 */
+	public double getHeading()
+	{
+		synchronized (world)
+		{
+			return world.getHeading(id);
+		}
+	}
+	
+	public int getLeftSpeed()
+	{
+		synchronized (world)
+		{
+			return world.getLeftSpeed(id);
+		}
+	}
+	
+	public int getRightSpeed()
+	{
+		synchronized (world)
+		{
+			return world.getRightSpeed(id);
+		}
+	}
+	
+	/**
+	 * Returns the speed the robot's center is moving at, in mm/s.
+	 * @return
+	 */
+	public double getVelocity()
+	{
+		synchronized (world)
+		{
+			return (world.getLeftSpeed(id) + world.getRightSpeed(id)) * 0.5;
+		}
+	}
+	
+	/**
+	 * Returns the rate the robot is turning at, in radians per second counter-clockwise.
+	 * @return
+	 */
+	public double getAngularVelocity()
+	{
+		synchronized (world)
+		{
+			return (world.getRightSpeed(id) - world.getLeftSpeed(id)) / WHEEL_BASE;
+		}
+	}
+	
+	public int getRequestedSpeed()
+	{
+		synchronized (world)
+		{
+			return world.getRequestedSpeed(id);
+		}
+	}
+	
+	public int getRequestedRadius()
+	{
+		synchronized (world)
+		{
+			return world.getRequestedRadius(id);
+		}
+	}
+	
+	/**
+	 * Returns the robot's battery charge, in milliamp-hours.
+	 * @return
+	 */
+	public double getCharge()
+	{
+		synchronized (world)
+		{
+			return world.getCharge(id);
+		}
+	}
+	
+	/**
+	 * Returns the robot's packed sensor bits, see the SENSOR_* constants in WorldState.
+	 * @return
+	 */
+	public int getSensors()
+	{
+		synchronized (world)
+		{
+			return world.getSensors(id);
+		}
+	}
+	
+	/**
+	 * Returns the last IR byte received from another robot, or 255 if nothing is in range.
+	 * @return
+	 */
+	public int getIRReceived()
+	{
+		synchronized (world)
+		{
+			return world.getIRReceived(id);
+		}
+	}
+	
+	/**
+	 * Returns the number of times this robot's bumpers have been newly pressed.
+	 * @return
+	 */
+	public int getCollisions()
+	{
+		synchronized (world)
+		{
+			return world.getCollisions(id);
+		}
+	}
+	
+	/**
+	 * Returns the robot's Open Interface mode, see the OI_MODE_* constants in OI_Constants.
+	 * @return
+	 */
+	public int getMode()
+	{
+		synchronized (world)
+		{
+			return world.getMode(id);
+		}
+	}
+	
+	public boolean isPowered()
+	{
+		synchronized (world)
+		{
+			return world.isPowered(id);
+		}
+	}
+	
+	/**
+	 * Returns the world this robot lives in.
+	 * @return
+	 */
+	public WorldState getWorld()
+	{
+		return world;
+	}
+	
+	/**
+	 * Returns this robot's id within its world.
+	 * @return
+	 */
+	public int getId()
+	{
+		return id;
+	}
+} // end class SimulatedRobot
@@ -0,0 +1,363 @@
+package create.simulator;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Reads back a trace written by a TraceRecorder, one record at a time.
+ * Only a window of the file a few pages long is mapped at once, sliding along as records are read,
+ *   so traces of any length can be read without holding them in memory.  seek() jumps straight to
+ *   the keyframe at or before a time, using the trace's index, or an index built by scanning the
+ *   trace if it was never closed properly.
+ * @author dvanhumb
+ */
+public class TraceReader implements Closeable
+{
+	// The window is PAGE_COUNT pages of PAGE_SIZE bytes:
+	private static final int PAGE_SIZE = 64 * 1024;
+	private static final int PAGE_COUNT = 16;
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final String name;
+	private final long timestep;
+	// Where the records end, which is where the index starts if there is one:
+	private long end;
+	// The mapped part of the file, or an empty buffer until the first read after a move:
+	private ByteBuffer window;
+	// Where the window starts in the file:
+	private long windowStart;
+	
+	// The keyframes' times and offsets, in order:
+	private long[] keyframeTimes;
+	private long[] keyframeOffsets;
+	
+	// The current record:
+	private long position;
+	private int type = TraceRecorder.EVENT_END;
+	private long time;
+	private int robot;
+	private int length;
+	private byte[] data = new byte[256];
+	
+	/**
+	 * Open a trace.
+	 * @param file The trace file.
+	 * @throws IOException If it can't be read or isn't a trace.
+	 */
+	public TraceReader(File file) throws IOException
+	{
+		this.file = new RandomAccessFile(file, "r");
+		name = file.getName();
+		try
+		{
+			channel = this.file.getChannel();
+			end = channel.size();
+			if (end < TraceRecorder.HEADER_SIZE || this.file.readInt() != TraceRecorder.MAGIC)
+				throw new IOException(name + ": Not a trace");
+			int version = this.file.readInt();
+			if (version != TraceRecorder.VERSION)
+				throw new IOException(name + ": Unknown trace version " + version);
+			timestep = this.file.readLong();
+			
+			if (!readIndex())
+				scanIndex();
+			rewind();
+		}
+		catch (IOException er)
+		{
+			this.file.close();
+			throw er;
+		}
+	} // end TraceReader()
+	
+	/**
+	 * Reads the keyframe index from the end of the trace.
+	 * @return False if the trace doesn't end with an index.
+	 */
+	private boolean readIndex() throws IOException
+	{
+		long size = end;
+		if (size < TraceRecorder.HEADER_SIZE + TraceRecorder.TRAILER_SIZE)
+			return false;
+		file.seek(size - TraceRecorder.TRAILER_SIZE);
+		long indexOffset = file.readLong();
+		int count = file.readInt();
+		if (file.readInt() != TraceRecorder.INDEX_MAGIC || count < 0
+				|| indexOffset != size - TraceRecorder.TRAILER_SIZE - 16L * count)
+			return false;
+		
+		keyframeTimes = new long[count];
+		keyframeOffsets = new long[count];
+		file.seek(indexOffset);
+		for (int k=0; k < count; k++)
+		{
+			keyframeTimes[k] = file.readLong();
+			keyframeOffsets[k] = file.readLong();
+		}
+		end = indexOffset;
+		return true;
+	} // end readIndex()
+	
+	/**
+	 * Builds the keyframe index by reading through every record.
+	 */
+	private void scanIndex() throws IOException
+	{
+		keyframeTimes = new long[0];
+		keyframeOffsets = new long[0];
+		
+		long[] times = new long[16], offsets = new long[16];
+		int count = 0;
+		rewind();
+		while (next())
+		{
+			if (type != TraceRecorder.EVENT_KEYFRAME)
+				continue;
+			if (count == times.length)
+			{
+				times = Arrays.copyOf(times, count * 2);
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			times[count] = time;
+			offsets[count] = position;
+			count++;
+		}
+		keyframeTimes = Arrays.copyOf(times, count);
+		keyframeOffsets = Arrays.copyOf(offsets, count);
+	} // end scanIndex()
+	
+	/**
+	 * Goes back to the start of the trace.
+	 */
+	public void rewind() throws IOException
+	{
+		moveTo(TraceRecorder.HEADER_SIZE, 0);
+	}
+	
+	/**
+	 * Moves to the last keyframe at or before the given time, so the next record read is that keyframe.
+	 * @param time The simulated time to find, in microseconds.
+	 * @return The keyframe's time, or -1 if there are none that early, which leaves the trace where it was.
+	 */
+	public long seek(long time) throws IOException
+	{
+		int k = Arrays.binarySearch(keyframeTimes, time);
+		if (k < 0)
+			k = -k - 2;
+		else
+		{
+			// Keyframes can share a time; take the last
+			while (k + 1 < keyframeTimes.length && keyframeTimes[k + 1] == time)
+				k++;
+		}
+		if (k < 0)
+			return -1;
+		
+		moveTo(keyframeOffsets[k], keyframeTimes[k]);
+		return keyframeTimes[k];
+	} // end seek()
+	
+	/**
+	 * Puts the next record to read at the given offset, before any current record.
+	 */
+	private void moveTo(long offset, long time)
+	{
+		if (window != null && offset >= windowStart && offset <= windowStart + window.limit())
+			window.position((int)(offset - windowStart));
+		else
+		{
+			windowStart = offset;
+			window = ByteBuffer.allocate(0);
+		}
+		position = offset;
+		this.time = time;
+		type = TraceRecorder.EVENT_END;
+		length = 0;
+	}
+	
+	/**
+	 * Makes sure the window holds at least the given number of bytes after the read position,
+	 *   sliding it on if it doesn't.
+	 * @return False if the records end first.
+	 */
+	private boolean ensure(int needed) throws IOException
+	{
+		if (window.remaining() >= needed)
+			return true;
+		long offset = windowStart + window.position();
+		if (end - offset < needed)
+			return false;
+		
+		long start = offset - offset % PAGE_SIZE;
+		long size = Math.min(end - start, Math.max(PAGE_SIZE * PAGE_COUNT, offset - start + needed));
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		window.order(ByteOrder.BIG_ENDIAN);
+		window.position((int)(offset - start));
+		windowStart = start;
+		return true;
+	} // end ensure()
+	
+	/**
+	 * Moves on to the next record.
+	 * @return False at the end of the trace.
+	 * @throws IOException If the trace is cut off part-way through a record.
+	 */
+	public boolean next() throws IOException
+	{
+		position = windowStart + window.position();
+		if (!ensure(1))
+			return end();
+		type = window.get() & 0xff;
+		if (type == TraceRecorder.EVENT_END)
+			return end();
+		
+		// The record's header is at most this long, but the last one might be shorter
+		ensure((int)Math.min(10 + 5 + 5, end - position - 1));
+		try
+		{
+			long delta = getVarint();
+			time += (delta >>> 1) ^ -(delta & 1);
+			robot = (int)getVarint();
+			length = (int)getVarint();
+			if (length < 0 || !ensure(length))
+				throw new BufferUnderflowException();
+			if (data.length < length)
+				data = new byte[Math.max(length, data.length * 2)];
+			window.get(data, 0, length);
+		}
+		catch (BufferUnderflowException er)
+		{
+			throw new IOException(name + ": Trace cut off at " + position);
+		}
+		
+		// Keyframes hold their own time, as they may be where a reader starts
+		if (type == TraceRecorder.EVENT_KEYFRAME && length >= 8)
+			time = getDataBuffer().getLong();
+		return true;
+	} // end next()
+	
+	private boolean end()
+	{
+		type = TraceRecorder.EVENT_END;
+		length = 0;
+		return false;
+	}
+	
+	private long getVarint()
+	{
+		long value = 0;
+		int shift = 0;
+		int b;
+		do
+		{
+			b = window.get();
+			value |= (long)(b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+	
+	/**
+	 * Returns the length of the simulation steps the trace was recorded with, in microseconds.
+	 * @return
+	 */
+	public long getTimestep()
+	{
+		return timestep;
+	}
+	
+	/**
+	 * Returns the simulated times of the trace's keyframes, in order.
+	 * @return
+	 */
+	public long[] getKeyframeTimes()
+	{
+		return keyframeTimes.clone();
+	}
+	
+	/**
+	 * Returns where the current record starts in the file.
+	 * @return
+	 */
+	public long getPosition()
+	{
+		return position;
+	}
+	
+	/**
+	 * Returns the current record's type, one of the TraceRecorder.EVENT_* constants.
+	 * @return
+	 */
+	public int getType()
+	{
+		return type;
+	}
+	
+	/**
+	 * Returns the simulated time of the current record, in microseconds.
+	 * @return
+	 */
+	public long getTime()
+	{
+		return time;
+	}
+	
+	/**
+	 * Returns the id of the robot the current record is about.
+	 * @return
+	 */
+	public int getRobot()
+	{
+		return robot;
+	}
+	
+	/**
+	 * Returns the number of data bytes in the current record.
+	 * @return
+	 */
+	public int getLength()
+	{
+		return length;
+	}
+	
+	/**
+	 * Returns the current record's data.  The array is reused by the next record.
+	 * @return
+	 */
+	public byte[] getData()
+	{
+		return data;
+	}
+	
+	/**
+	 * Returns the current record's data as a big-endian buffer, such as for WorldState.loadState().
+	 * Like getData(), it's only good until the next record.
+	 * @return
+	 */
+	public ByteBuffer getDataBuffer()
+	{
+		return ByteBuffer.wrap(data, 0, length);
+	}
+	
+	/**
+	 * Returns one of the doubles in the current record's data, such as a pose's.
+	 * @param index Which double, counting from 0.
+	 * @return
+	 */
+	public double getDouble(int index)
+	{
+		long bits = 0;
+		for (int k=0; k < 8; k++)
+			bits = (bits << 8) | (data[index*8 + k] & 0xff);
+		return Double.longBitsToDouble(bits);
+	}
+	
+	public void close() throws IOException
+	{
+		window = null;
+		file.close();
+	}
+} // end class TraceReader
@@ -0,0 +1,267 @@
+package create.simulator;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Records everything the controllers in a simulation say to their robots, and everything the robots
+ *   say back, to a compact binary trace.
+ * The trace starts with a header (the magic number, the format version and the simulation's timestep),
+ *   followed by one record per event:
+ * <pre>
+ * type           1 byte, one of the EVENT_* constants
+ * time           signed varint, microseconds since the previous record
+ * robot          varint, the robot's id in the WorldState
+ * length         varint
+ * data           length bytes
+ * </pre>
+ * Varints are unsigned, seven bits a byte, low bits first.  Signed varints are zig-zag encoded first
+ *   (0, -1, 1, -2, ... as 0, 1, 2, 3, ...), since repeaters sharing a trace read the clock before
+ *   taking their turn to record, so a record can be stamped a little earlier than the one before it.
+ * A zero type byte ends the records.
+ * Every so often the CreateSimulatorCore adds a keyframe holding the whole world's state, so a reader
+ *   can start replaying from the nearest keyframe instead of from the beginning.  Closing the trace
+ *   adds an index of the keyframes after the end of the records:
+ * <pre>
+ * keyframes      (time, offset) pairs of longs, one per keyframe
+ * index offset   long, where the pairs start
+ * count          int, the number of keyframes
+ * INDEX_MAGIC    int
+ * </pre>
+ * Records are written straight into a memory-mapped window of the file, a megabyte long, so recording
+ *   an event is a handful of memory writes with no system calls.  Once the window fills, a new one is
+ *   mapped from the page the records have reached, and the old one is left for the garbage collector
+ *   to unmap; the only system call is that mapping, once a megabyte.
+ * The RobotRepeaters of a simulation can share one recorder.
+ * @author dvanhumb
+ */
+public class TraceRecorder
+{
+	public static final int MAGIC = 0x43535452; // "CSTR"
+	public static final int VERSION = 3;
+	public static final int HEADER_SIZE = 16;
+	public static final int INDEX_MAGIC = 0x43534958; // "CSIX"
+	public static final int TRAILER_SIZE = 16;
+	
+	// Kinds of record:
+	public static final int EVENT_END = 0;
+	/**
+	 * The raw bytes of a command from the controller, whichever protocol it arrived in.
+	 */
+	public static final int EVENT_COMMAND = 1;
+	/**
+	 * The bytes sent back to the controller, exactly as sent.
+	 */
+	public static final int EVENT_REPLY = 2;
+	/**
+	 * Where the robot is: its x, y and heading as three big-endian doubles.
+	 */
+	public static final int EVENT_POSE = 3;
+	/**
+	 * The whole world: the time as a big-endian long, then the state written by WorldState.saveState().
+	 */
+	public static final int EVENT_KEYFRAME = 4;
+	
+	// Each window is PAGE_COUNT pages of PAGE_SIZE bytes:
+	private static final int PAGE_SIZE = 64 * 1024;
+	private static final int PAGE_COUNT = 16;
+	// The most a record can take besides its data: a type byte and three varints
+	private static final int RECORD_OVERHEAD = 1 + 10 + 5 + 5;
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private MappedByteBuffer window;
+	// Where the window starts in the file:
+	private long windowStart;
+	private long lastTime;
+	private boolean closed;
+	// The time and offset of each keyframe, for the index:
+	private long[] keyframes = new long[32];
+	private int keyframeCount;
+	
+	/**
+	 * Start a new trace, replacing anything already in the file.
+	 * @param file The file to record to.
+	 * @param timestep The length of the simulation's steps, in microseconds, which replays need to match.
+	 * @throws IOException If the file can't be written.
+	 */
+	public TraceRecorder(File file, long timestep) throws IOException
+	{
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		channel = this.file.getChannel();
+		mapWindow(0, HEADER_SIZE);
+		window.putInt(MAGIC);
+		window.putInt(VERSION);
+		window.putLong(timestep);
+	}
+	
+	/**
+	 * Records a command from a controller.
+	 * @param time The simulated time, in microseconds.
+	 * @param robot The robot's id.
+	 */
+	public void recordCommand(long time, int robot, byte[] command, int length) throws IOException
+	{
+		record(EVENT_COMMAND, time, robot, command, 0, length);
+	}
+	
+	/**
+	 * Records a robot's answer to its controller, as raw Open Interface bytes.
+	 * @param time The simulated time, in microseconds.
+	 * @param robot The robot's id.
+	 */
+	public void recordReply(long time, int robot, byte[] reply, int length) throws IOException
+	{
+		record(EVENT_REPLY, time, robot, reply, 0, length);
+	}
+	
+	/**
+	 * Records where a robot is, so a replay can start it in the same place.
+	 * @param time The simulated time, in microseconds.
+	 * @param robot The robot's id.
+	 */
+	public synchronized void recordPose(long time, int robot, double x, double y, double heading) throws IOException
+	{
+		start(EVENT_POSE, time, robot, 24);
+		window.putDouble(x);
+		window.putDouble(y);
+		window.putDouble(heading);
+	}
+	
+	/**
+	 * Records the state of the whole world, which a reader can seek straight to.
+	 * Nothing may change the world meanwhile.
+	 * @param time The simulated time, in microseconds.
+	 * @param world The world to save.
+	 */
+	public synchronized void recordKeyframe(long time, WorldState world) throws IOException
+	{
+		long offset = getLength();
+		start(EVENT_KEYFRAME, time, 0, 8 + 4 + world.getCount() * WorldState.ROBOT_STATE_SIZE);
+		window.putLong(time);
+		world.saveState(window);
+		
+		if (2 * keyframeCount == keyframes.length)
+			keyframes = Arrays.copyOf(keyframes, keyframes.length * 2);
+		keyframes[2 * keyframeCount] = time;
+		keyframes[2 * keyframeCount + 1] = offset;
+		keyframeCount++;
+	}
+	
+	/**
+	 * Records an event.
+	 * @param type One of the EVENT_* constants.
+	 * @param time The simulated time, in microseconds.
+	 * @param robot The id of the robot it happened to.
+	 * @param data The event's bytes.
+	 * @param offset Where they start in data.
+	 * @param length How many there are.
+	 */
+	public synchronized void record(int type, long time, int robot, byte[] data, int offset, int length) throws IOException
+	{
+		start(type, time, robot, length);
+		window.put(data, offset, length);
+	}
+	
+	/**
+	 * Writes a record's type, time, robot and length, making sure the whole record fits in the window.
+	 */
+	private void start(int type, long time, int robot, int length) throws IOException
+	{
+		if (closed)
+			throw new IOException("Trace already closed");
+		if (window.remaining() < RECORD_OVERHEAD + length)
+			mapWindow(getLength(), RECORD_OVERHEAD + length);
+		
+		window.put((byte)type);
+		long delta = time - lastTime;
+		putVarint((delta << 1) ^ (delta >> 63));
+		putVarint(robot);
+		putVarint(length);
+		lastTime = time;
+	}
+	
+	private void putVarint(long value)
+	{
+		while ((value & ~0x7fL) != 0)
+		{
+			window.put((byte)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		window.put((byte)value);
+	}
+	
+	/**
+	 * Maps a new window starting at the page holding the given position in the file.
+	 * @param position Where the next write goes.
+	 * @param needed How many bytes must fit after it.
+	 */
+	private void mapWindow(long position, int needed) throws IOException
+	{
+		long start = position - position % PAGE_SIZE;
+		int size = PAGE_SIZE * PAGE_COUNT;
+		while (position - start + needed > size)
+			size += PAGE_SIZE;
+		
+		window = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+		window.order(ByteOrder.BIG_ENDIAN);
+		window.position((int)(position - start));
+		windowStart = start;
+	}
+	
+	/**
+	 * Returns how many bytes of trace have been written.
+	 * @return
+	 */
+	public synchronized long getLength()
+	{
+		return windowStart + window.position();
+	}
+	
+	/**
+	 * Makes sure everything recorded so far is on disk.
+	 */
+	public synchronized void flush()
+	{
+		window.force();
+	}
+	
+	/**
+	 * Ends the trace with the keyframe index and closes the file.
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		
+		int footer = 1 + 16 * keyframeCount + TRAILER_SIZE;
+		if (window.remaining() < footer)
+			mapWindow(getLength(), footer);
+		window.put((byte)EVENT_END);
+		long indexOffset = getLength();
+		for (int k=0; k < 2 * keyframeCount; k++)
+			window.putLong(keyframes[k]);
+		window.putLong(indexOffset);
+		window.putInt(keyframeCount);
+		window.putInt(INDEX_MAGIC);
+		
+		long length = getLength();
+		window.force();
+		window = null;
+		try
+		{
+			// Trim the unused end of the last window; this can fail while it's still mapped on some platforms,
+			//   which leaves zeros behind that readers take as the end.  Unlike the channel, this works even
+			//   if the recording thread has been interrupted
+			file.setLength(length);
+		}
+		catch (IOException er)
+		{
+		}
+		file.close();
+	} // end close()
+} // end class TraceRecorder
@@ -0,0 +1,252 @@
+package create.simulator;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Re-drives simulated robots from a recorded trace, without running their controllers.
+ * Each command is carried out at the simulated time it was recorded, stepping the simulation in
+ *   between, and each reply the robot gives is checked against the recorded one.  A simulation that
+ *   still behaves as it did when the trace was recorded replays with no mismatches.
+ * A replay starts from the first keyframe it meets, which sets up the whole world.  Keyframes met
+ *   after that are passed over, so any drift from the recording still shows up as mismatches.
+ *   seek() starts again from the nearest keyframe, so reaching any time costs one keyframe and the
+ *   records after it rather than the whole trace.
+ * @author dvanhumb
+ */
+public class TraceReplayer
+{
+	protected final CreateSimulatorCore core;
+	protected final TraceReader trace;
+	// The replays of each robot, by id:
+	protected final Vector<Replay> replays = new Vector<Replay>();
+	private final long[] keyframeTimes;
+	
+	// True once a keyframe has set up the world, and while the trace's current record is still to be carried out:
+	private boolean started;
+	private boolean pending;
+	
+	// How many replies differed from the recording, and when the first one did:
+	protected int mismatches;
+	protected long firstMismatchTime = -1;
+	
+	/**
+	 * Create a new replayer that steps the given simulation.
+	 * @param core The simulation to replay into.  Robots are added to it as the trace needs them.
+	 * @param trace The trace, positioned at its start.
+	 * @throws IOException If the trace was recorded with a different timestep.
+	 */
+	public TraceReplayer(CreateSimulatorCore core, TraceReader trace) throws IOException
+	{
+		if (trace.getTimestep() != core.getTimestep())
+			throw new IOException("Trace was recorded with a " + trace.getTimestep() + "us timestep, not " + core.getTimestep() + "us");
+		this.core = core;
+		this.trace = trace;
+		keyframeTimes = trace.getKeyframeTimes();
+	}
+	
+	/**
+	 * Replays the whole trace to its end.
+	 * @return The number of replies that differed from the recording.
+	 * @throws IOException If the trace can't be read.
+	 */
+	public int run() throws IOException
+	{
+		while (nextRecord())
+			apply();
+		return mismatches;
+	}
+	
+	/**
+	 * Replays the trace up to the given time, stepping the simulation there even if the trace ends first.
+	 * @param time The simulated time to stop at, in microseconds.
+	 * @return The number of replies so far that differed from the recording.
+	 * @throws IOException If the trace can't be read.
+	 */
+	public int runTo(long time) throws IOException
+	{
+		while (nextRecord() && trace.getTime() <= time)
+			apply();
+		while (core.getSimulatedTime() < time)
+			core.step();
+		return mismatches;
+	}
+	
+	/**
+	 * Puts the simulation in the state the trace had at the given time.
+	 * Loads the last keyframe at or before then and replays the records after it, unless carrying on
+	 *   from where the replay already is gets there sooner.
+	 * @param time The simulated time to go to, in microseconds.
+	 * @throws IOException If the trace can't be read, or has no keyframe early enough to go back to.
+	 */
+	public void seek(long time) throws IOException
+	{
+		int k = Arrays.binarySearch(keyframeTimes, time);
+		if (k < 0)
+			k = -k - 2;
+		long keyframe = k < 0 ? -1 : keyframeTimes[k];
+		long now = core.getSimulatedTime();
+		
+		if (started && time >= now && keyframe <= now)
+		{
+			runTo(time);
+			return;
+		}
+		if (keyframe < 0)
+			throw new IOException("No keyframe at or before " + time + "us to start from");
+		
+		trace.seek(time);
+		started = false;
+		pending = false;
+		// Replies to commands from before the keyframe can't be checked
+		replays.clear();
+		runTo(time);
+	} // end seek()
+	
+	/**
+	 * Makes sure the trace's current record is one still to be carried out.
+	 * @return False at the end of the trace.
+	 */
+	private boolean nextRecord() throws IOException
+	{
+		if (!pending)
+			pending = trace.next();
+		return pending;
+	}
+	
+	/**
+	 * Carries out the trace's current record, once the simulation has caught up to it.
+	 */
+	private void apply()
+	{
+		pending = false;
+		if (trace.getType() == TraceRecorder.EVENT_KEYFRAME)
+		{
+			if (!started)
+				loadKeyframe();
+			return;
+		}
+		
+		while (core.getSimulatedTime() < trace.getTime())
+			core.step();
+		started = true;
+		getReplay(trace.getRobot()).apply();
+	}
+	
+	/**
+	 * Puts the world in the state held by the current keyframe.
+	 */
+	private void loadKeyframe()
+	{
+		ByteBuffer state = trace.getDataBuffer();
+		long time = state.getLong();
+		WorldState world = core.getWorld();
+		synchronized (world)
+		{
+			world.loadState(state, time);
+			core.setSimulatedTime(time);
+		}
+		started = true;
+	}
+	
+	/**
+	 * Returns the replay for the robot with the given id, adding the robot if there isn't one yet.
+	 */
+	protected Replay getReplay(int id)
+	{
+		if (id >= replays.size())
+			replays.setSize(id + 1);
+		Replay replay = replays.get(id);
+		if (replay == null)
+		{
+			WorldState world = core.getWorld();
+			while (world.getCount() <= id)
+				core.addRobot();
+			replay = new Replay(world.getRobot(id));
+			replays.set(id, replay);
+		}
+		return replay;
+	}
+	
+	/**
+	 * Returns the number of replies so far that differed from the recording.
+	 * @return
+	 */
+	public int getMismatches()
+	{
+		return mismatches;
+	}
+	
+	/**
+	 * Returns the simulated time of the first reply that differed from the recording, or -1 if none have.
+	 * @return
+	 */
+	public long getFirstMismatchTime()
+	{
+		return firstMismatchTime;
+	}
+	
+	/**
+	 * One robot's part of the trace, fed through the same command handling as a live controller's.
+	 * Waits end straight away, because the recorded times already say when the next command came.
+	 */
+	protected class Replay extends RobotRepeater
+	{
+		// False until the first command, so a reply to one from before a seek isn't checked:
+		protected boolean commanded;
+		
+		protected Replay(SimulatedRobot robot)
+		{
+			super(robot);
+		}
+		
+		/**
+		 * Carries out the trace's current record.
+		 */
+		protected void apply()
+		{
+			// The replayer's trace, not the one a repeater records to
+			TraceReader trace = TraceReplayer.this.trace;
+			byte[] data = trace.getData();
+			switch (trace.getType())
+			{
+			case TraceRecorder.EVENT_POSE:
+				simulatedRobot.setPose(trace.getDouble(0), trace.getDouble(1), trace.getDouble(2));
+				break;
+			case TraceRecorder.EVENT_COMMAND:
+				if (command.length < trace.getLength())
+					command = new byte[trace.getLength()];
+				System.arraycopy(data, 0, command, 0, trace.getLength());
+				commandLength = trace.getLength();
+				replyLength = 0;
+				rawReplyLength = 0;
+				commanded = true;
+				controlSimulated();
+				break;
+			case TraceRecorder.EVENT_REPLY:
+				// The reply to a wait is recorded once the wait is over, after the command made it here
+				boolean same = !commanded || rawReplyLength == trace.getLength();
+				for (int k=0; same && k < rawReplyLength; k++)
+					same = rawReply[k] == data[k];
+				if (!same)
+				{
+					if (mismatches == 0)
+						firstMismatchTime = trace.getTime();
+					mismatches++;
+				}
+				replyLength = 0;
+				rawReplyLength = 0;
+				break;
+			default:
+				// Records from newer versions are skipped
+				break;
+			}
+		} // end apply()
+		
+		protected void waitSimulated(int opcode, long amount)
+		{
+			addReply(1, 1);
+		}
+	} // end class Replay
+} // end class TraceReplayer
@@ -0,0 +1,275 @@
+package create.simulator;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * The simulated time shared by everything that drives the robots in a CreateSimulatorCore.
+ * Each controller registers as a participant.  While any participant is running, simulated time
+ *   stands still; once they're all waiting, the last one to start waiting steps the simulation
+ *   straight on to the next time someone needs waking.  A controller that waits ten seconds
+ *   therefore costs only the work of simulating them, never ten seconds of wall-clock time.
+ * A waiting robot's wheel speeds can't change, so waits for distance or angle are worked out from
+ *   the closed-form motion when they start and queued with the timers; nothing is checked per step.
+ * A wait that can never end (such as waiting for distance with the wheels stopped) lasts forever,
+ *   just as it would on the real robot.
+ * Waiting parks on a lock rather than a monitor, so controllers on virtual threads don't pin their
+ *   carrier threads while they wait.
+ * @author dvanhumb
+ */
+public class VirtualClock
+{
+	private final CreateSimulatorCore core;
+	// Guards everything below, and wakes waiters once time has moved on:
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition woken = lock.newCondition();
+	
+	// The number of registered participants and how many of them are waiting:
+	private int participants;
+	private int waiting;
+	
+	// Every wait, soonest first; those that never end sort last:
+	private final PriorityQueue<Waiter> timers = new PriorityQueue<Waiter>();
+	// Orders waits that end at the same moment by when they started:
+	private long sequence;
+	
+	/**
+	 * Create a new clock that advances the given simulation.
+	 * @param core The simulation to step.
+	 */
+	public VirtualClock(CreateSimulatorCore core)
+	{
+		this.core = core;
+	}
+	
+	/**
+	 * Add a participant.  Simulated time won't advance until it waits or unregisters.
+	 */
+	public void register()
+	{
+		lock.lock();
+		try
+		{
+			participants++;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Remove a participant, letting the others carry on without it.
+	 */
+	public void unregister()
+	{
+		lock.lock();
+		try
+		{
+			participants--;
+			if (participants > 0 && waiting == participants)
+				advance();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the current simulated time, in microseconds.
+	 * @return
+	 */
+	public long getTime()
+	{
+		lock.lock();
+		try
+		{
+			return core.getSimulatedTime();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the length of the simulation's steps, in microseconds.
+	 * @return
+	 */
+	public long getTimestep()
+	{
+		return core.getTimestep();
+	}
+	
+	// -----------------------------
+	// Waits, only for participants:
+	// -----------------------------
+	
+	/**
+	 * Wait for a length of simulated time.
+	 * @param micros The time to wait, in microseconds.
+	 */
+	public void sleep(long micros)
+	{
+		block(new Waiter(null, Waiter.TIME, micros));
+	}
+	
+	/**
+	 * Wait until a robot has driven the given distance from where it is now.
+	 * @param robot The robot to watch.
+	 * @param millimeters The distance, with negative values meaning backwards.
+	 */
+	public void waitDistance(SimulatedRobot robot, int millimeters)
+	{
+		block(new Waiter(robot, Waiter.DISTANCE, millimeters));
+	}
+	
+	/**
+	 * Wait until a robot has turned through the given angle from where it is now.
+	 * @param robot The robot to watch.
+	 * @param degrees The angle, with counter-clockwise being positive.
+	 */
+	public void waitAngle(SimulatedRobot robot, int degrees)
+	{
+		block(new Waiter(robot, Waiter.ANGLE, Math.toRadians(degrees)));
+	}
+	
+	private void block(Waiter waiter)
+	{
+		lock.lock();
+		try
+		{
+			if (waiting == participants)
+				throw new IllegalStateException("Only registered participants can wait on the clock");
+			
+			waiter.start(core.getSimulatedTime(), core.getTimestep(), sequence++);
+			timers.add(waiter);
+			waiting++;
+			
+			if (wakeFinished())
+				woken.signalAll();
+			if (waiting == participants)
+				advance(); // Everyone else is already waiting, so move the world on
+			
+			while (!waiter.woken)
+			{
+				try
+				{
+					woken.await();
+				}
+				catch (InterruptedException er)
+				{
+					// Give up on the wait, but let the caller see the interruption
+					if (!waiter.woken)
+					{
+						timers.remove(waiter);
+						waiting--;
+					}
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	} // end block()
+	
+	/**
+	 * Steps the simulation until at least one waiting participant can carry on.
+	 * Only called with every participant waiting, so nothing else touches the robots meanwhile.
+	 */
+	private void advance()
+	{
+		if (timers.isEmpty() || timers.peek().wakeTime == Waiter.NEVER)
+			return; // Nothing can ever change
+		
+		// Go straight to the next wake-up
+		long wake = timers.peek().wakeTime;
+		while (core.getSimulatedTime() < wake)
+			core.step();
+		
+		wakeFinished();
+		woken.signalAll();
+	} // end advance()
+	
+	/**
+	 * Marks every wait that has ended as woken.
+	 * @return True if any were.
+	 */
+	private boolean wakeFinished()
+	{
+		boolean woke = false;
+		long now = core.getSimulatedTime();
+		while (!timers.isEmpty() && timers.peek().wakeTime <= now)
+		{
+			timers.poll().woken = true;
+			waiting--;
+			woke = true;
+		}
+		return woke;
+	} // end wakeFinished()
+	
+	/**
+	 * One participant's wait.
+	 */
+	private static class Waiter implements Comparable<Waiter>
+	{
+		static final int TIME = 0;
+		static final int DISTANCE = 1;
+		static final int ANGLE = 2;
+		static final long NEVER = Long.MAX_VALUE;
+		
+		final SimulatedRobot robot;
+		final int kind;
+		// How far to go: microseconds, millimeters or radians
+		final double amount;
+		
+		long wakeTime;
+		long order;
+		boolean woken;
+		
+		Waiter(SimulatedRobot robot, int kind, double amount)
+		{
+			this.robot = robot;
+			this.kind = kind;
+			this.amount = amount;
+		}
+		
+		/**
+		 * Works out when the wait ends.  Distance and angle grow by the same amount every step while
+		 *   the wheel speeds stay put, so the wait ends on the first step that reaches the amount.
+		 */
+		void start(long now, long timestep, long order)
+		{
+			this.order = order;
+			if (kind == TIME)
+			{
+				wakeTime = now + (long)amount;
+				return;
+			}
+			
+			double rate = kind == DISTANCE ? robot.getVelocity() : robot.getAngularVelocity();
+			if (amount == 0)
+				wakeTime = now;
+			else if (rate == 0 || (rate > 0) != (amount > 0))
+				wakeTime = NEVER; // Moving the wrong way, or not at all
+			else
+			{
+				double steps = amount / (rate * timestep * 1e-6);
+				// Don't let rounding add a step when the amount falls exactly on one
+				long whole = (long)Math.ceil(steps - 1e-9);
+				wakeTime = now + Math.max(1, whole) * timestep;
+			}
+		} // end start()
+		
+		public int compareTo(Waiter other)
+		{
+			if (wakeTime != other.wakeTime)
+				return wakeTime < other.wakeTime ? -1 : 1;
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+	} // end class Waiter
+} // end class VirtualClock
@@ -0,0 +1,1234 @@
+package create.simulator;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The state of every robot in a simulation, stored as packed primitive arrays indexed by robot id.
+ * Keeping each quantity in its own array lets a step be a single linear scan, so very large swarms can be
+ *   simulated.  Each robot costs 142 bytes of state, up to 48 more in the two spatial hashes rebuilt every
+ *   step and 8 in the list of IR senders, so about two hundred bytes; a crowd where every robot touches
+ *   its neighbours adds up to about 50 more for the contact pairs.  The arrays grow by doubling, so up
+ *   to twice that may be allocated.
+ * SimulatedRobot provides a per-robot view of one slot.
+ * A step integrates and evaluates each robot's own sensors against the arena, then searches for robot-robot
+ *   contacts and IR reception; both only read shared state, so they can be split across a ForkJoinPool.  A sequential
+ *   merge then resolves the contacts in a fixed order, so results are bit-identical whatever the number of threads.
+ * This class is not thread-safe; callers synchronize on the WorldState.
+ * @author dvanhumb
+ */
+public class WorldState
+{
+	/**
+	 * The charge of a freshly-charged battery, in milliamp-hours.
+	 */
+	public static final double BATTERY_CAPACITY = 3000.0;
+	/**
+	 * The current the robot draws while sitting still, in milliamps.
+	 */
+	public static final double IDLE_CURRENT = 150.0;
+	/**
+	 * The extra current drawn per mm/s of wheel speed, per wheel, in milliamps.
+	 */
+	public static final double DRIVE_CURRENT = 0.5;
+	
+	// Bits of the packed sensor word.  The low byte matches the Bumps and Wheel Drops packet.
+	public static final int SENSOR_BUMP_RIGHT = 0x01;
+	public static final int SENSOR_BUMP_LEFT = 0x02;
+	public static final int SENSOR_DROP_RIGHT = 0x04;
+	public static final int SENSOR_DROP_LEFT = 0x08;
+	public static final int SENSOR_DROP_CASTER = 0x10;
+	public static final int SENSOR_WALL = 0x100;
+	public static final int SENSOR_CLIFF_LEFT = 0x200;
+	public static final int SENSOR_CLIFF_FRONT_LEFT = 0x400;
+	public static final int SENSOR_CLIFF_FRONT_RIGHT = 0x800;
+	public static final int SENSOR_CLIFF_RIGHT = 0x1000;
+	public static final int SENSOR_VIRTUAL_WALL = 0x2000;
+	/**
+	 * All the bumper bits.
+	 */
+	public static final int SENSOR_BUMPS = SENSOR_BUMP_LEFT | SENSOR_BUMP_RIGHT;
+	// The bits that come from the arena rather than from other robots:
+	private static final int ARENA_SENSORS = SENSOR_WALL | SENSOR_CLIFF_LEFT | SENSOR_CLIFF_FRONT_LEFT
+		| SENSOR_CLIFF_FRONT_RIGHT | SENSOR_CLIFF_RIGHT | SENSOR_VIRTUAL_WALL;
+	// The previous step's bumper bits are kept this far up the sensor word to spot new collisions
+	private static final int PREVIOUS_BUMPS_SHIFT = 24;
+	
+	/**
+	 * How far a robot's IR transmitter can be received, in millimeters.
+	 */
+	public static final double IR_RANGE = 1500.0;
+	/**
+	 * Worlds with fewer robots than this are stepped on the calling thread, unless told otherwise.
+	 * Going by the physicsStep and physicsStepParallel benchmarks, splitting a step costs a fixed 10-20us,
+	 *   and the split phases are about 92% of a step, which takes 28us for 256 robots and 77us for 512.
+	 *   So on two cores splitting about breaks even at 256 robots and saves a quarter of the step at 512.
+	 */
+	public static final int PARALLEL_THRESHOLD = 512;
+	// The number of robots in each chunk of work, about 20us of it, so four cores all have work at the threshold
+	private static final int GRAIN = 128;
+	private static final int PHASE_INTEGRATE = 0;
+	private static final int PHASE_SEARCH = 1;
+	
+	/**
+	 * The IR code reported when nothing has been received.
+	 */
+	public static final int IR_NONE = 255;
+	
+	/**
+	 * The number of bytes saveState() takes for each robot.
+	 */
+	public static final int ROBOT_STATE_SIZE = 10 * 8 + 15 * 4 + 2;
+	
+	// The analog signals kept for each robot, in the order of their sensor packets:
+	public static final int SIGNAL_WALL = 0;
+	public static final int SIGNAL_CLIFF_LEFT = 1;
+	public static final int SIGNAL_CLIFF_FRONT_LEFT = 2;
+	public static final int SIGNAL_CLIFF_FRONT_RIGHT = 3;
+	public static final int SIGNAL_CLIFF_RIGHT = 4;
+	private static final int SIGNALS = 5;
+	/**
+	 * The strongest signal an analog sensor reports.
+	 */
+	public static final int MAX_SIGNAL = 4095;
+	/**
+	 * The signal a cliff sensor reports over ordinary floor.
+	 */
+	public static final int FLOOR_SIGNAL = 1500;
+	/**
+	 * How far the wall sensor can see, in millimeters; its signal fades to nothing at this distance.
+	 */
+	public static final double WALL_SENSOR_RANGE = 100.0;
+	/**
+	 * How close a wall must be for the wall sensor to report it, in millimeters.
+	 */
+	public static final double WALL_SENSOR_THRESHOLD = 30.0;
+	// Where the cliff sensors sit: 150mm out from the center, at 70 and 20 degrees either side of straight ahead
+	private static final double CLIFF_SENSOR_DISTANCE = 150.0;
+	private static final double[] CLIFF_SENSOR_COS = {Math.cos(Math.toRadians(70)), Math.cos(Math.toRadians(20)), Math.cos(Math.toRadians(-20)), Math.cos(Math.toRadians(-70))};
+	private static final double[] CLIFF_SENSOR_SIN = {Math.sin(Math.toRadians(70)), Math.sin(Math.toRadians(20)), Math.sin(Math.toRadians(-20)), Math.sin(Math.toRadians(-70))};
+	private static final int[] CLIFF_SENSOR_BITS = {SENSOR_CLIFF_LEFT, SENSOR_CLIFF_FRONT_LEFT, SENSOR_CLIFF_FRONT_RIGHT, SENSOR_CLIFF_RIGHT};
+	// The wall sensor looks out to the right from the front-right of the bumper
+	private static final double WALL_SENSOR_COS = Math.cos(Math.toRadians(-60));
+	private static final double WALL_SENSOR_SIN = Math.sin(Math.toRadians(-60));
+	// How many times a robot is pushed back out of the walls in one step, for corners
+	private static final int WALL_PUSHES = 4;
+	
+	private static final double STRAIGHT_EPSILON = 1e-12;
+	// Below this many radians per step, a short series is exact to double precision
+	private static final double SERIES_LIMIT = 0.01;
+	private static final double TWO_PI = 2.0 * Math.PI;
+	private static final double MICROS_PER_HOUR = 3600e6;
+	
+	/**
+	 * The number of robots in the world.
+	 */
+	protected int count;
+	
+	// Pose, in millimeters and radians counter-clockwise from the x-axis:
+	protected double[] x, y, heading;
+	// The cosine and sine of each heading, kept so a step needs no trigonometry:
+	protected double[] cosHeading, sinHeading;
+	// Wheel speeds currently being driven, in mm/s:
+	protected int[] leftSpeed, rightSpeed;
+	// The last drive request, as reported by the requested-speed sensor packets:
+	protected int[] requestedSpeed, requestedRadius;
+	// Odometry accumulated since it was last read, in millimeters and radians:
+	protected double[] distance, angle;
+	// Odometry accumulated since the robot was added, which reading never resets:
+	protected double[] odometer, totalAngle;
+	// Battery charge, in milliamp-hours:
+	protected double[] charge;
+	// Packed sensor bits, see the SENSOR_* constants:
+	protected int[] sensors;
+	// The IR byte each robot is transmitting and the last one it received:
+	protected int[] irSent, irReceived;
+	
+	// The number of collisions each robot has had:
+	protected int[] collisions;
+	// The Open Interface mode each robot is in, see the OI_MODE_* constants, and whether it's switched on:
+	protected int[] oiMode;
+	protected boolean[] powered;
+	// Whether each robot has moved since contacts were last searched; robots that haven't can't have hit each other
+	protected boolean[] moved;
+	// What each robot sensed of the arena when it last moved: the sensor bits, including bumps,
+	//   and the analog signals in runs of SIGNALS
+	protected int[] arenaBits;
+	protected int[] signals;
+	
+	/**
+	 * The walls, virtual walls and cliffs the robots sense, or null for an open floor.
+	 */
+	protected ArenaIndex arena;
+	
+	/**
+	 * How much time this world has been stepped through, in microseconds.
+	 */
+	protected long time;
+	
+	// Worlds with fewer robots than this are stepped on the calling thread:
+	private int parallelThreshold = PARALLEL_THRESHOLD;
+	
+	// Reused every step so stepping doesn't allocate:
+	private final SpatialHash contactGrid = new SpatialHash();
+	private final SpatialHash irGrid = new SpatialHash();
+	private int[] irSenders = new int[0];
+	private int irSenderCount;
+	// The overlapping pairs found in each chunk, as (moving robot, other robot) runs:
+	private int[][] chunkPairs = new int[0][];
+	private int[] chunkPairCount = new int[0];
+	
+	/**
+	 * Create a new, empty world.
+	 * @param capacity The number of robots to make room for up front.
+	 */
+	public WorldState(int capacity)
+	{
+		allocate(Math.max(1, capacity));
+	}
+	
+	private void allocate(int capacity)
+	{
+		x = grow(x, capacity);
+		y = grow(y, capacity);
+		heading = grow(heading, capacity);
+		cosHeading = grow(cosHeading, capacity);
+		sinHeading = grow(sinHeading, capacity);
+		leftSpeed = grow(leftSpeed, capacity);
+		rightSpeed = grow(rightSpeed, capacity);
+		requestedSpeed = grow(requestedSpeed, capacity);
+		requestedRadius = grow(requestedRadius, capacity);
+		distance = grow(distance, capacity);
+		angle = grow(angle, capacity);
+		odometer = grow(odometer, capacity);
+		totalAngle = grow(totalAngle, capacity);
+		charge = grow(charge, capacity);
+		sensors = grow(sensors, capacity);
+		irSent = grow(irSent, capacity);
+		irReceived = grow(irReceived, capacity);
+		collisions = grow(collisions, capacity);
+		oiMode = grow(oiMode, capacity);
+		powered = grow(powered, capacity);
+		moved = grow(moved, capacity);
+		arenaBits = grow(arenaBits, capacity);
+		signals = grow(signals, capacity * SIGNALS);
+		
+		int chunks = (capacity + GRAIN - 1) / GRAIN;
+		int oldChunks = chunkPairs.length;
+		if (chunks > oldChunks)
+		{
+			chunkPairs = Arrays.copyOf(chunkPairs, chunks);
+			for (int chunk=oldChunks; chunk < chunks; chunk++)
+				chunkPairs[chunk] = new int[16];
+			chunkPairCount = Arrays.copyOf(chunkPairCount, chunks);
+		}
+	}
+	
+	private static double[] grow(double[] array, int capacity)
+	{
+		return array == null ? new double[capacity] : Arrays.copyOf(array, capacity);
+	}
+	
+	private static int[] grow(int[] array, int capacity)
+	{
+		return array == null ? new int[capacity] : Arrays.copyOf(array, capacity);
+	}
+	
+	private static boolean[] grow(boolean[] array, int capacity)
+	{
+		return array == null ? new boolean[capacity] : Arrays.copyOf(array, capacity);
+	}
+	
+	/**
+	 * Add a robot to the world, switched on and sitting still with a full battery.
+	 * @param x The x-coordinate of the robot's center, in millimeters.
+	 * @param y The y-coordinate of the robot's center, in millimeters.
+	 * @param heading The direction the robot faces, in radians counter-clockwise from the x-axis.
+	 * @return The new robot's id.
+	 */
+	public int addRobot(double x, double y, double heading)
+	{
+		if (count == this.x.length)
+			allocate(count * 2);
+		
+		int id = count++;
+		setPose(id, x, y, heading);
+		charge[id] = BATTERY_CAPACITY;
+		irSent[id] = IR_NONE;
+		irReceived[id] = IR_NONE;
+		powered[id] = true;
+		clearSignals(id);
+		return id;
+	}
+	
+	/**
+	 * Returns a SimulatedRobot view of the given robot.
+	 * @param id The robot's id.
+	 * @return
+	 */
+	public SimulatedRobot getRobot(int id)
+	{
+		checkId(id);
+		return new SimulatedRobot(this, id);
+	}
+	
+	// ----------------------
+	// Robot-control methods:
+	// ----------------------
+	
+	/**
+	 * Give speeds to a robot's wheels individually.
+	 * @param id The robot's id.
+	 * @param left The speed of the left wheel in mm/s. Capped to -500 to 500.
+	 * @param right The speed of the right wheel in mm/s. Capped to -500 to 500.
+	 */
+	public void driveDirect(int id, int left, int right)
+	{
+		checkId(id);
+		leftSpeed[id] = cap(left, SimulatedRobot.MAX_SPEED);
+		rightSpeed[id] = cap(right, SimulatedRobot.MAX_SPEED);
+		
+		requestedSpeed[id] = (leftSpeed[id] + rightSpeed[id]) / 2;
+		requestedRadius[id] = 0;
+	}
+	
+	/**
+	 * Drive a robot along a circle, as the Open Interface's Drive command does.
+	 * @param id The robot's id.
+	 * @param speed The average speed of the wheels in mm/s. Capped to -500 to 500.
+	 * @param radius The radius of the circle in mm, see SimulatedRobot.driveRadius().
+	 */
+	public void driveRadius(int id, int speed, int radius)
+	{
+		checkId(id);
+		speed = cap(speed, SimulatedRobot.MAX_SPEED);
+		
+		// The Open Interface sends the radius as a signed 16-bit value
+		short r = (short)radius;
+		
+		requestedSpeed[id] = speed;
+		requestedRadius[id] = r;
+		
+		if (r == Short.MIN_VALUE || r == Short.MAX_VALUE || r == 0)
+		{
+			// Straight
+			leftSpeed[id] = speed;
+			rightSpeed[id] = speed;
+		}
+		else if (r == -1)
+		{
+			// Clockwise in place
+			leftSpeed[id] = speed;
+			rightSpeed[id] = -speed;
+		}
+		else if (r == 1)
+		{
+			// Counter-clockwise in place
+			leftSpeed[id] = -speed;
+			rightSpeed[id] = speed;
+		}
+		else
+		{
+			double rad = cap(r, SimulatedRobot.MAX_RADIUS);
+			double half = SimulatedRobot.WHEEL_BASE / 2;
+			leftSpeed[id] = (int)Math.round(speed * (rad - half) / rad);
+			rightSpeed[id] = (int)Math.round(speed * (rad + half) / rad);
+		}
+	} // end driveRadius(int, int, int)
+	
+	/**
+	 * Start a robot transmitting the given byte from its IR transmitter.
+	 * The robot keeps transmitting it, like a beacon, until told to send something else.
+	 * @param id The robot's id.
+	 * @param code The byte to send, or IR_NONE to stop transmitting.
+	 */
+	public void sendIR(int id, int code)
+	{
+		checkId(id);
+		irSent[id] = code & 0xff;
+	}
+	
+	/**
+	 * Sets a robot's Open Interface mode, as the Start, Safe and Full commands do.
+	 * @param id The robot's id.
+	 * @param mode One of the OI_MODE_* constants.
+	 */
+	public void setMode(int id, int mode)
+	{
+		checkId(id);
+		oiMode[id] = mode;
+	}
+	
+	/**
+	 * Switches a robot on or off.  Switching it off stops its wheels and its IR transmitter,
+	 *   and it forgets its Open Interface mode.
+	 */
+	public void setPowered(int id, boolean on)
+	{
+		checkId(id);
+		if (!on)
+		{
+			driveDirect(id, 0, 0);
+			irSent[id] = IR_NONE;
+			oiMode[id] = OI_Constants.OI_MODE_OFF;
+		}
+		powered[id] = on;
+	}
+	
+	/**
+	 * Move a robot directly to the given pose without touching its odometry.
+	 */
+	public void setPose(int id, double x, double y, double heading)
+	{
+		checkId(id);
+		this.x[id] = x;
+		this.y[id] = y;
+		this.heading[id] = Math.IEEEremainder(heading, TWO_PI);
+		cosHeading[id] = Math.cos(heading);
+		sinHeading[id] = Math.sin(heading);
+		moved[id] = true;
+	}
+	
+	/**
+	 * Sets the arena every robot senses.
+	 * @param arena The index of the arena, or null for an open floor.
+	 */
+	public void setArena(ArenaIndex arena)
+	{
+		this.arena = arena;
+		for (int i=0; i < count; i++)
+		{
+			arenaBits[i] = 0;
+			clearSignals(i);
+		}
+		// Everyone needs to look at their new surroundings
+		Arrays.fill(moved, 0, count, true);
+	}
+	
+	public ArenaIndex getArena()
+	{
+		return arena;
+	}
+	
+	// -------------------
+	// Simulation methods:
+	// -------------------
+	
+	/**
+	 * Changes how many robots the world needs before step() splits the work across its pool, such as
+	 *   to measure where splitting starts to pay.  The result of a step is the same either way.
+	 * @param robots The fewest robots to split, or 0 to always split; PARALLEL_THRESHOLD by default.
+	 */
+	public void setParallelThreshold(int robots)
+	{
+		parallelThreshold = robots;
+	}
+	
+	/**
+	 * Advance every robot in the world by one timestep on the calling thread.
+	 * @param micros The length of the timestep, in microseconds.
+	 */
+	public void step(long micros)
+	{
+		step(micros, null);
+	}
+	
+	/**
+	 * Advance every robot in the world by one timestep, splitting the per-robot work across the given pool.
+	 * Robots are always split into the same fixed-size chunks and anything that crosses chunks is
+	 *   merged in chunk order, so the pool only changes how fast this runs, never the result.
+	 * @param micros The length of the timestep, in microseconds.
+	 * @param pool The pool to split the work across, or null to use the calling thread.
+	 */
+	public void step(long micros, ForkJoinPool pool)
+	{
+		if (count < parallelThreshold || (pool != null && pool.getParallelism() < 2))
+			pool = null;
+		
+		// Phase one: each robot on its own
+		runChunks(pool, PHASE_INTEGRATE, micros);
+		
+		// Phase two: read-only searches for contacts and IR, after the grids are built
+		contactGrid.build(x, y, null, count, 2 * SimulatedRobot.ROBOT_RADIUS);
+		irSenderCount = 0;
+		for (int i=0; i < count; i++)
+		{
+			if (irSent[i] != IR_NONE)
+			{
+				if (irSenderCount == irSenders.length)
+					irSenders = Arrays.copyOf(irSenders, Math.max(16, irSenderCount * 2));
+				irSenders[irSenderCount++] = i;
+			}
+		}
+		irGrid.build(x, y, irSenders, irSenderCount, IR_RANGE);
+		runChunks(pool, PHASE_SEARCH, micros);
+		
+		// The deterministic merge
+		resolveContacts();
+		time += micros;
+	} // end step(long, ForkJoinPool)
+	
+	private void runChunks(ForkJoinPool pool, int phase, long micros)
+	{
+		int chunks = (count + GRAIN - 1) / GRAIN;
+		if (pool == null)
+		{
+			for (int chunk=0; chunk < chunks; chunk++)
+				runChunk(phase, chunk, micros);
+		}
+		else
+			pool.invoke(new ChunkTask(phase, 0, chunks, micros));
+	}
+	
+	private void runChunk(int phase, int chunk, long micros)
+	{
+		int from = chunk * GRAIN;
+		int to = Math.min(count, from + GRAIN);
+		if (phase == PHASE_INTEGRATE)
+		{
+			integrate(from, to, micros);
+			evaluateSensors(from, to);
+		}
+		else
+		{
+			findContacts(chunk, from, to);
+			receiveIR(from, to);
+		}
+	}
+	
+	/**
+	 * Advance the robots with ids from (inclusive) to to (exclusive) by one timestep.
+	 * Does no allocation and only touches those robots' slots.
+	 * @param from The first robot to step.
+	 * @param to One past the last robot to step.
+	 * @param micros The length of the timestep, in microseconds.
+	 */
+	protected void integrate(int from, int to, long micros)
+	{
+		double dt = micros * 1e-6;
+		double turnPerStep = dt / SimulatedRobot.WHEEL_BASE;
+		double idleDrain = IDLE_CURRENT * micros / MICROS_PER_HOUR;
+		double driveDrain = DRIVE_CURRENT * micros / MICROS_PER_HOUR;
+		
+		for (int i=from; i < to; i++)
+		{
+			int vl = leftSpeed[i], vr = rightSpeed[i];
+			charge[i] = Math.max(0, charge[i] - idleDrain - driveDrain * (Math.abs(vl) + Math.abs(vr)));
+			if (vl == 0 && vr == 0)
+				continue;
+			moved[i] = true;
+			
+			double v = (vl + vr) * 0.5;
+			double d = v * dt;
+			double theta = (vr - vl) * turnPerStep;
+			double c = cosHeading[i], s = sinHeading[i];
+			
+			if (Math.abs(theta) < STRAIGHT_EPSILON)
+			{
+				x[i] += d * c;
+				y[i] += d * s;
+			}
+			else
+			{
+				// Follow the exact arc about the instantaneous center of rotation,
+				//   rotating the cached heading vector instead of calling sin and cos each step
+				double sinTheta, cosThetaMinusOne;
+				if (Math.abs(theta) < SERIES_LIMIT)
+				{
+					double t2 = theta * theta;
+					sinTheta = theta * (1 - t2 * (1.0/6) * (1 - t2 * (1.0/20)));
+					cosThetaMinusOne = -t2 * 0.5 * (1 - t2 * (1.0/12) * (1 - t2 * (1.0/30)));
+				}
+				else
+				{
+					sinTheta = Math.sin(theta);
+					cosThetaMinusOne = Math.cos(theta) - 1;
+				}
+				
+				double r = d / theta;
+				double dc = c * cosThetaMinusOne - s * sinTheta;
+				double ds = s * cosThetaMinusOne + c * sinTheta;
+				x[i] += r * ds;
+				y[i] -= r * dc;
+				
+				c += dc;
+				s += ds;
+				// Keep the heading vector unit length so rounding can't build up
+				double k = 1.5 - 0.5 * (c * c + s * s);
+				cosHeading[i] = c * k;
+				sinHeading[i] = s * k;
+				heading[i] = wrap(heading[i] + theta);
+			}
+			
+			distance[i] += d;
+			angle[i] += theta;
+			odometer[i] += d;
+			totalAngle[i] += theta;
+		}
+	} // end integrate(int, int, long)
+	
+	/**
+	 * Works out the sensor readings that depend only on each robot's own surroundings,
+	 *   for the robots with ids from (inclusive) to to (exclusive).
+	 * Only robots that have moved look at the arena again; the rest keep what they sensed before.
+	 */
+	protected void evaluateSensors(int from, int to)
+	{
+		for (int i=from; i < to; i++)
+		{
+			// Remember last step's bumps so the merge can count new collisions
+			int bits = sensors[i];
+			bits = (bits & ~SENSOR_BUMPS & ~ARENA_SENSORS & ((1 << PREVIOUS_BUMPS_SHIFT) - 1)) | ((bits & SENSOR_BUMPS) << PREVIOUS_BUMPS_SHIFT);
+			if (arena != null)
+			{
+				if (moved[i])
+					senseArena(i);
+				bits |= arenaBits[i];
+			}
+			sensors[i] = bits;
+		}
+	} // end evaluateSensors(int, int)
+	
+	/**
+	 * Pushes a robot back out of any walls it has driven into, then works out what its bumpers,
+	 *   wall sensor, cliff sensors and virtual wall sensor make of the arena.
+	 * Only touches the robot's own slots, so robots can be handled in parallel.
+	 */
+	protected void senseArena(int i)
+	{
+		double radius = SimulatedRobot.ROBOT_RADIUS;
+		int bits = 0;
+		
+		for (int push=0; push < WALL_PUSHES; push++)
+		{
+			int wall = arena.nearestSegment(x[i], y[i], radius, Arena.WALL);
+			if (wall < 0)
+				break;
+			
+			double dx = arena.closestX(wall, x[i], y[i]) - x[i];
+			double dy = arena.closestY(wall, x[i], y[i]) - y[i];
+			double dist = Math.sqrt(dx*dx + dy*dy);
+			if (dist == 0)
+			{
+				// Right on the wall, so back away from it
+				dx = cosHeading[i];
+				dy = sinHeading[i];
+				x[i] -= dx * radius;
+				y[i] -= dy * radius;
+			}
+			else
+			{
+				double scale = (radius - dist) / dist;
+				x[i] -= dx * scale;
+				y[i] -= dy * scale;
+			}
+			bits |= bumpersFacing(i, dx, dy);
+		}
+		
+		double c = cosHeading[i], s = sinHeading[i];
+		double radiusX = radius * (c * WALL_SENSOR_COS - s * WALL_SENSOR_SIN);
+		double radiusY = radius * (s * WALL_SENSOR_COS + c * WALL_SENSOR_SIN);
+		double wallDistance = arena.castRay(x[i] + radiusX, y[i] + radiusY, s, -c, WALL_SENSOR_RANGE, Arena.WALL);
+		int base = i * SIGNALS;
+		if (wallDistance < WALL_SENSOR_RANGE)
+		{
+			signals[base + SIGNAL_WALL] = (int)Math.round(MAX_SIGNAL * (1 - wallDistance / WALL_SENSOR_RANGE));
+			if (wallDistance <= WALL_SENSOR_THRESHOLD)
+				bits |= SENSOR_WALL;
+		}
+		else
+			signals[base + SIGNAL_WALL] = 0;
+		
+		for (int k=0; k < CLIFF_SENSOR_BITS.length; k++)
+		{
+			double sx = x[i] + CLIFF_SENSOR_DISTANCE * (c * CLIFF_SENSOR_COS[k] - s * CLIFF_SENSOR_SIN[k]);
+			double sy = y[i] + CLIFF_SENSOR_DISTANCE * (s * CLIFF_SENSOR_COS[k] + c * CLIFF_SENSOR_SIN[k]);
+			if (arena.isOverCliff(sx, sy))
+			{
+				bits |= CLIFF_SENSOR_BITS[k];
+				signals[base + SIGNAL_CLIFF_LEFT + k] = 0;
+			}
+			else
+				signals[base + SIGNAL_CLIFF_LEFT + k] = FLOOR_SIGNAL;
+		}
+		
+		if (arena.nearestSegment(x[i], y[i], radius, Arena.VIRTUAL_WALL) >= 0)
+			bits |= SENSOR_VIRTUAL_WALL;
+		
+		arenaBits[i] = bits;
+	} // end senseArena(int)
+	
+	private void clearSignals(int id)
+	{
+		int base = id * SIGNALS;
+		signals[base + SIGNAL_WALL] = 0;
+		for (int k=SIGNAL_CLIFF_LEFT; k <= SIGNAL_CLIFF_RIGHT; k++)
+			signals[base + k] = FLOOR_SIGNAL;
+	}
+	
+	/**
+	 * Lists the pairs of overlapping robots involving a robot in the given chunk that has moved.
+	 * A pair where both robots moved is listed once, under the lower id.  Robots sitting still
+	 *   are skipped, so a swarm that's mostly waiting costs little to search.
+	 * Only reads shared state, so chunks can be searched in parallel.
+	 */
+	protected void findContacts(int chunk, int from, int to)
+	{
+		double reach = 2 * SimulatedRobot.ROBOT_RADIUS;
+		double reach2 = reach * reach;
+		int[] pairs = chunkPairs[chunk];
+		int found = 0;
+		
+		for (int i=from; i < to; i++)
+		{
+			if (!moved[i])
+				continue;
+			
+			int cx = contactGrid.cellX[i], cy = contactGrid.cellY[i];
+			double xi = x[i], yi = y[i];
+			for (int gx=cx-1; gx <= cx+1; gx++)
+			{
+				for (int gy=cy-1; gy <= cy+1; gy++)
+				{
+					int bucket = contactGrid.bucket(gx, gy);
+					int last = contactGrid.start[bucket+1];
+					for (int k=contactGrid.start[bucket]; k < last; k++)
+					{
+						int j = contactGrid.items[k];
+						if (j == i || (j < i && moved[j]) || contactGrid.cellX[j] != gx || contactGrid.cellY[j] != gy)
+							continue;
+						
+						double dx = x[j] - xi, dy = y[j] - yi;
+						if (dx*dx + dy*dy >= reach2)
+							continue;
+						
+						if (found + 2 > pairs.length)
+							pairs = chunkPairs[chunk] = Arrays.copyOf(pairs, Math.max(16, pairs.length * 2));
+						pairs[found++] = i;
+						pairs[found++] = j;
+					}
+				}
+			}
+		}
+		chunkPairCount[chunk] = found;
+	} // end findContacts(int, int, int)
+	
+	/**
+	 * Pushes apart the overlapping robots found by findContacts(), pressing the bumpers of those hit
+	 *   from the front, then counts new collisions.
+	 * Runs sequentially in chunk order so the result never depends on thread scheduling.
+	 */
+	protected void resolveContacts()
+	{
+		double reach = 2 * SimulatedRobot.ROBOT_RADIUS;
+		int chunks = (count + GRAIN - 1) / GRAIN;
+		
+		// Start afresh; only pushes from here on count as moving before the next search
+		Arrays.fill(moved, 0, count, false);
+		for (int chunk=0; chunk < chunks; chunk++)
+		{
+			int[] pairs = chunkPairs[chunk];
+			for (int p=0; p < chunkPairCount[chunk]; p += 2)
+			{
+				int i = pairs[p], j = pairs[p+1];
+				
+				// Earlier pushes may have moved these robots, so measure them again
+				double dx = x[j] - x[i], dy = y[j] - y[i];
+				double dist = Math.sqrt(dx*dx + dy*dy);
+				if (dist >= reach)
+					continue;
+				
+				double push;
+				if (dist == 0)
+				{
+					// Exactly on top of each other, so pick a direction
+					dx = 1;
+					dy = 0;
+					push = reach * 0.5;
+				}
+				else
+					push = (reach - dist) * 0.5 / dist;
+				x[i] -= dx * push;
+				y[i] -= dy * push;
+				x[j] += dx * push;
+				y[j] += dy * push;
+				moved[i] = true;
+				moved[j] = true;
+				
+				sensors[i] |= bumpersFacing(i, dx, dy);
+				sensors[j] |= bumpersFacing(j, -dx, -dy);
+			}
+		}
+		
+		// Count the robots whose bumpers were just pressed
+		for (int i=0; i < count; i++)
+		{
+			int bits = sensors[i];
+			if ((bits & SENSOR_BUMPS) != 0 && ((bits >>> PREVIOUS_BUMPS_SHIFT) & SENSOR_BUMPS) == 0)
+				collisions[i]++;
+		}
+	} // end resolveContacts()
+	
+	/**
+	 * Returns the bumper bits that would be pressed by something in the given direction from a robot.
+	 * The bumper covers the front half of the robot; hits near the middle press both sides.
+	 * @param id The robot being hit.
+	 * @param dx The x-component of the direction towards the obstacle.
+	 * @param dy The y-component of the direction towards the obstacle.
+	 * @return
+	 */
+	protected int bumpersFacing(int id, double dx, double dy)
+	{
+		double forward = dx * cosHeading[id] + dy * sinHeading[id];
+		double left = dy * cosHeading[id] - dx * sinHeading[id];
+		if (forward <= 0)
+			return 0;
+		// Within about 20 degrees of straight ahead, both bumpers close
+		if (Math.abs(left) < forward * 0.36)
+			return SENSOR_BUMPS;
+		return left > 0 ? SENSOR_BUMP_LEFT : SENSOR_BUMP_RIGHT;
+	}
+	
+	/**
+	 * Gives each robot in the range the IR byte from the nearest transmitting robot, lowest id first on ties.
+	 * Each robot only writes its own slot, so ranges can be handled in parallel.
+	 */
+	protected void receiveIR(int from, int to)
+	{
+		if (irSenderCount == 0)
+		{
+			Arrays.fill(irReceived, from, to, IR_NONE);
+			return;
+		}
+		
+		double range2 = IR_RANGE * IR_RANGE;
+		for (int i=from; i < to; i++)
+		{
+			int cx = irGrid.cell(x[i]), cy = irGrid.cell(y[i]);
+			int best = -1;
+			double bestDist2 = range2;
+			for (int gx=cx-1; gx <= cx+1; gx++)
+			{
+				for (int gy=cy-1; gy <= cy+1; gy++)
+				{
+					int bucket = irGrid.bucket(gx, gy);
+					for (int k=irGrid.start[bucket]; k < irGrid.start[bucket+1]; k++)
+					{
+						int j = irGrid.items[k];
+						if (j == i || irGrid.cellX[k] != gx || irGrid.cellY[k] != gy)
+							continue;
+						double dx = x[j] - x[i], dy = y[j] - y[i];
+						double dist2 = dx*dx + dy*dy;
+						if (dist2 < bestDist2 || (dist2 == bestDist2 && best >= 0 && j < best))
+						{
+							best = j;
+							bestDist2 = dist2;
+						}
+					}
+				}
+			}
+			irReceived[i] = best < 0 ? IR_NONE : irSent[best];
+		}
+	} // end receiveIR(int, int)
+	
+	/**
+	 * Runs one phase of a step over a range of chunks, splitting it in half until it's a single chunk.
+	 */
+	private class ChunkTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 8719283465L;
+		
+		private final int phase, from, to;
+		private final long micros;
+		
+		ChunkTask(int phase, int from, int to, long micros)
+		{
+			this.phase = phase;
+			this.from = from;
+			this.to = to;
+			this.micros = micros;
+		}
+		
+		protected void compute()
+		{
+			if (to - from <= 1)
+			{
+				for (int chunk=from; chunk < to; chunk++)
+					runChunk(phase, chunk, micros);
+			}
+			else
+			{
+				int middle = (from + to) >>> 1;
+				invokeAll(new ChunkTask(phase, from, middle, micros), new ChunkTask(phase, middle, to, micros));
+			}
+		}
+	} // end class ChunkTask
+	
+	/**
+	 * A uniform grid hashed into a fixed table, rebuilt each step with a counting sort so robots in
+	 *   each cell stay in id order.  Its arrays are only reallocated when the world grows.
+	 */
+	private static class SpatialHash
+	{
+		// start[b] .. start[b+1] index the entries in bucket b
+		int[] start = new int[0];
+		int[] items = new int[0];
+		// The cell each entry sits in, indexed the same way as the ids passed to build()
+		int[] cellX = new int[0], cellY = new int[0];
+		private int[] entryBucket = new int[0];
+		private int mask;
+		private double inverseCellSize;
+		
+		/**
+		 * Sorts entries into cells.
+		 * @param ids The robots to add, or null to add robots 0 to n-1.  When given, cellX and cellY are
+		 *   indexed by position in the sorted items rather than by robot id.
+		 */
+		void build(double[] x, double[] y, int[] ids, int n, double cellSize)
+		{
+			inverseCellSize = 1.0 / cellSize;
+			int tableSize = Integer.highestOneBit(Math.max(2, n) * 2);
+			mask = tableSize - 1;
+			if (start.length < tableSize + 1)
+				start = new int[tableSize + 1];
+			else
+				Arrays.fill(start, 0, tableSize + 1, 0);
+			if (items.length < n)
+			{
+				items = new int[n];
+				entryBucket = new int[n];
+				cellX = new int[n];
+				cellY = new int[n];
+			}
+			
+			for (int e=0; e < n; e++)
+			{
+				int id = ids == null ? e : ids[e];
+				int gx = cell(x[id]), gy = cell(y[id]);
+				if (ids == null)
+				{
+					cellX[e] = gx;
+					cellY[e] = gy;
+				}
+				int b = bucket(gx, gy);
+				entryBucket[e] = b;
+				start[b+1]++;
+			}
+			for (int b=0; b < tableSize; b++)
+				start[b+1] += start[b];
+			
+			// Fill each bucket in entry order, using the next bucket's start as a cursor
+			for (int e=n-1; e >= 0; e--)
+			{
+				int b = entryBucket[e];
+				int slot = --start[b+1];
+				items[slot] = ids == null ? e : ids[e];
+			}
+			// Each cursor start[b+1] has walked back to where bucket b begins; shift them into place
+			System.arraycopy(start, 1, start, 0, tableSize);
+			start[tableSize] = n;
+			
+			if (ids != null)
+			{
+				for (int k=0; k < n; k++)
+				{
+					cellX[k] = cell(x[items[k]]);
+					cellY[k] = cell(y[items[k]]);
+				}
+			}
+		} // end build()
+		
+		int cell(double coordinate)
+		{
+			// A cast and a compare is much cheaper than Math.floor()
+			double scaled = coordinate * inverseCellSize;
+			int truncated = (int)scaled;
+			return scaled < truncated ? truncated - 1 : truncated;
+		}
+		
+		int bucket(int gx, int gy)
+		{
+			// Mix the bits well; the low bits of neighbouring cells must not collide
+			int h = gx * 0x9E3779B1 + gy;
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			return h & mask;
+		}
+	} // end class SpatialHash
+	
+	// ----------------
+	// Sensor readings:
+	// ----------------
+	
+	/**
+	 * Returns the distance a robot travelled since the last call, in whole millimeters.
+	 * Any fraction of a millimeter is kept for the next reading.
+	 */
+	public int readDistance(int id)
+	{
+		checkId(id);
+		int whole = (int)distance[id];
+		distance[id] -= whole;
+		return whole;
+	}
+	
+	/**
+	 * Returns the angle a robot turned since the last call, in whole degrees counter-clockwise.
+	 * Any fraction of a degree is kept for the next reading.
+	 */
+	public int readAngle(int id)
+	{
+		checkId(id);
+		int whole = (int)Math.toDegrees(angle[id]);
+		angle[id] -= Math.toRadians(whole);
+		return whole;
+	}
+	
+	/**
+	 * Returns the signed distance a robot has driven since it was added, in millimeters.
+	 * Unlike readDistance(), this doesn't reset.
+	 */
+	public double getOdometer(int id)
+	{
+		checkId(id);
+		return odometer[id];
+	}
+	
+	/**
+	 * Returns the angle a robot has turned since it was added, in radians counter-clockwise.
+	 * Unlike readAngle(), this doesn't reset.
+	 */
+	public double getTotalAngle(int id)
+	{
+		checkId(id);
+		return totalAngle[id];
+	}
+	
+	/**
+	 * Returns a robot's battery voltage in millivolts, falling linearly as the battery drains.
+	 */
+	public int getBatteryVoltage(int id)
+	{
+		return 12000 + (int)(4000 * getCharge(id) / BATTERY_CAPACITY);
+	}
+	
+	/**
+	 * Returns the current flowing into a robot's battery in milliamps, negative while discharging.
+	 */
+	public int getBatteryCurrent(int id)
+	{
+		checkId(id);
+		return -(int)Math.round(IDLE_CURRENT + DRIVE_CURRENT * (Math.abs(leftSpeed[id]) + Math.abs(rightSpeed[id])));
+	}
+	
+	public double getX(int id)
+	{
+		checkId(id);
+		return x[id];
+	}
+	
+	public double getY(int id)
+	{
+		checkId(id);
+		return y[id];
+	}
+	
+	public double getHeading(int id)
+	{
+		checkId(id);
+		return heading[id];
+	}
+	
+	public int getLeftSpeed(int id)
+	{
+		checkId(id);
+		return leftSpeed[id];
+	}
+	
+	public int getRightSpeed(int id)
+	{
+		checkId(id);
+		return rightSpeed[id];
+	}
+	
+	public int getRequestedSpeed(int id)
+	{
+		checkId(id);
+		return requestedSpeed[id];
+	}
+	
+	public int getRequestedRadius(int id)
+	{
+		checkId(id);
+		return requestedRadius[id];
+	}
+	
+	public double getCharge(int id)
+	{
+		checkId(id);
+		return charge[id];
+	}
+	
+	/**
+	 * Returns a robot's packed sensor bits, see the SENSOR_* constants.
+	 */
+	public int getSensors(int id)
+	{
+		checkId(id);
+		return sensors[id] & ((1 << PREVIOUS_BUMPS_SHIFT) - 1);
+	}
+	
+	/**
+	 * Returns one of a robot's analog sensor signals, from 0 to MAX_SIGNAL.
+	 * @param id The robot's id.
+	 * @param signal One of the SIGNAL_* constants.
+	 * @return
+	 */
+	public int getSignal(int id, int signal)
+	{
+		checkId(id);
+		return signals[id * SIGNALS + signal];
+	}
+	
+	/**
+	 * Returns the last IR byte a robot received, or IR_NONE if nothing is in range.
+	 */
+	public int getIRReceived(int id)
+	{
+		checkId(id);
+		return irReceived[id];
+	}
+	
+	/**
+	 * Returns the number of times a robot's bumpers have been newly pressed.
+	 */
+	public int getCollisions(int id)
+	{
+		checkId(id);
+		return collisions[id];
+	}
+	
+	public int getMode(int id)
+	{
+		checkId(id);
+		return oiMode[id];
+	}
+	
+	public boolean isPowered(int id)
+	{
+		checkId(id);
+		return powered[id];
+	}
+	
+	// ----------
+	// Snapshots:
+	// ----------
+	
+	/**
+	 * Writes the complete state of every robot, so loadState() can put the world back exactly as it is.
+	 * Takes 4 + ROBOT_STATE_SIZE bytes per robot; the arena and the time aren't included.
+	 * @param out Where to write the state.
+	 */
+	public void saveState(ByteBuffer out)
+	{
+		out.putInt(count);
+		for (int i=0; i < count; i++)
+		{
+			out.putDouble(x[i]).putDouble(y[i]).putDouble(heading[i]).putDouble(cosHeading[i]).putDouble(sinHeading[i]);
+			out.putDouble(distance[i]).putDouble(angle[i]).putDouble(odometer[i]).putDouble(totalAngle[i]).putDouble(charge[i]);
+			out.putInt(leftSpeed[i]).putInt(rightSpeed[i]).putInt(requestedSpeed[i]).putInt(requestedRadius[i]);
+			out.putInt(sensors[i]).putInt(irSent[i]).putInt(irReceived[i]).putInt(collisions[i]).putInt(oiMode[i]);
+			out.putInt(arenaBits[i]);
+			for (int k=0; k < SIGNALS; k++)
+				out.putInt(signals[i * SIGNALS + k]);
+			out.put((byte)(powered[i] ? 1 : 0)).put((byte)(moved[i] ? 1 : 0));
+		}
+	} // end saveState()
+	
+	/**
+	 * Puts every robot back as saveState() found it, adding robots if the world has fewer.
+	 * @param in The saved state.
+	 * @param time The time to set the world to, in microseconds.
+	 * @throws IllegalArgumentException If the world has more robots than the saved state.
+	 */
+	public void loadState(ByteBuffer in, long time)
+	{
+		int saved = in.getInt();
+		if (saved < count)
+			throw new IllegalArgumentException("The saved state has " + saved + " robots, but the world has " + count);
+		while (count < saved)
+			addRobot(0, 0, 0);
+		
+		for (int i=0; i < count; i++)
+		{
+			x[i] = in.getDouble();
+			y[i] = in.getDouble();
+			heading[i] = in.getDouble();
+			cosHeading[i] = in.getDouble();
+			sinHeading[i] = in.getDouble();
+			distance[i] = in.getDouble();
+			angle[i] = in.getDouble();
+			odometer[i] = in.getDouble();
+			totalAngle[i] = in.getDouble();
+			charge[i] = in.getDouble();
+			leftSpeed[i] = in.getInt();
+			rightSpeed[i] = in.getInt();
+			requestedSpeed[i] = in.getInt();
+			requestedRadius[i] = in.getInt();
+			sensors[i] = in.getInt();
+			irSent[i] = in.getInt();
+			irReceived[i] = in.getInt();
+			collisions[i] = in.getInt();
+			oiMode[i] = in.getInt();
+			arenaBits[i] = in.getInt();
+			for (int k=0; k < SIGNALS; k++)
+				signals[i * SIGNALS + k] = in.getInt();
+			powered[i] = in.get() != 0;
+			moved[i] = in.get() != 0;
+		}
+		this.time = time;
+	} // end loadState()
+	
+	/**
+	 * Returns the number of robots in the world.
+	 * @return
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+	
+	/**
+	 * Returns how much time this world has been stepped through, in microseconds.
+	 * @return
+	 */
+	public long getTime()
+	{
+		return time;
+	}
+	
+	protected void checkId(int id)
+	{
+		if (id < 0 || id >= count)
+			throw new IndexOutOfBoundsException("No robot with id " + id);
+	}
+	
+	/**
+	 * Wraps an angle that's at most one turn out of range back into -PI to PI, without the cost of a remainder.
+	 */
+	private static double wrap(double angle)
+	{
+		if (angle > Math.PI)
+			return angle - TWO_PI;
+		else if (angle < -Math.PI)
+			return angle + TWO_PI;
+		return angle;
+	}
+	
+	private static int cap(int value, int limit)
+	{
+		return Math.max(-limit, Math.min(limit, value));
+	}
+} // end class WorldState
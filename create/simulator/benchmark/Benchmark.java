@@ -0,0 +1,50 @@
+package create.simulator.benchmark;
+
+/**
+ * One suite of measurements for the BenchmarkRunner.
+ * A suite is measured once for each of its parameters, such as a number of robots or a protocol.
+ * setUp() is called before each parameter is measured and tearDown() after, neither of them timed.
+ * @author dvanhumb
+ */
+public abstract class Benchmark
+{
+	/**
+	 * Returns the suite's name, as it appears in the results.
+	 * @return
+	 */
+	public abstract String getName();
+	
+	/**
+	 * Returns what the parameter means, such as "robots", as it appears in the results.
+	 * @return
+	 */
+	public abstract String getParameterName();
+	
+	/**
+	 * Returns the parameters the suite is measured with by default.
+	 * @return
+	 */
+	public abstract String[] getParameters();
+	
+	/**
+	 * Gets ready to measure with the given parameter.
+	 * @param parameter One of the suite's parameters.
+	 * @throws Exception If it can't be measured.
+	 */
+	public abstract void setUp(String parameter) throws Exception;
+	
+	/**
+	 * Carries out the operation being measured the given number of times.
+	 * @param operations How many times to carry it out.
+	 * @return Something that depends on every operation's result, so none of the work can be optimized away.
+	 * @throws Exception If an operation fails, which ends the suite.
+	 */
+	public abstract long run(int operations) throws Exception;
+	
+	/**
+	 * Cleans up after measuring with the last parameter.
+	 */
+	public void tearDown()
+	{
+	}
+} // end class Benchmark
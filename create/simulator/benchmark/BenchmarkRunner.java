@@ -0,0 +1,327 @@
+package create.simulator.benchmark;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Runs the simulator's benchmarks and writes their results in a form scripts can compare.
+ * <pre>
+ * java create.simulator.benchmark.BenchmarkRunner [suite...] [--warmup=N] [--iterations=N] [--time=ms]
+ *     [--format=csv|json] [--output=file] [--baseline=file.csv] [--threshold=percent]
+ * </pre>
+ * Each suite is measured with each of its parameters: first a few warm-up iterations so the JIT
+ *   compiler has done its work, then the measured iterations, each running the operation for about
+ *   the given time.  The score is the mean time per operation, with the half-width of its 99.9%
+ *   confidence interval as the error, as JMH reports it.  The JSON output uses JMH's layout so the
+ *   usual tools can read it.
+ * Given a baseline of earlier CSV results, any score that's slower by more than the threshold is
+ *   reported as a regression and the exit code is 1.
+ * @author dvanhumb
+ */
+public class BenchmarkRunner
+{
+	// Student's t for a two-sided 99.9% interval, by degrees of freedom from 1:
+	private static final double[] T_999 = {
+		636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59,
+		4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85,
+		3.82, 3.79, 3.77, 3.75, 3.73, 3.71, 3.69, 3.67, 3.66, 3.65
+	};
+	private static final double T_999_LIMIT = 3.29;
+	
+	protected Vector<Benchmark> suites = new Vector<Benchmark>();
+	protected int warmupIterations = 3;
+	protected int iterations = 5;
+	protected long iterationMillis = 500;
+	protected boolean json;
+	protected PrintStream output = System.out;
+	protected File baseline;
+	protected double threshold = 10.0;
+	// Where the suites' results go, so the work behind them can't be optimized away:
+	private volatile long sink;
+	
+	/**
+	 * Returns every suite there is, in the order they're run.
+	 */
+	public static Vector<Benchmark> getAllSuites()
+	{
+		Vector<Benchmark> suites = new Vector<Benchmark>();
+		suites.add(new PhysicsStepBenchmark());
+		suites.add(new ParallelStepBenchmark());
+		suites.add(new SensorBenchmark());
+		suites.add(new CodecBenchmark());
+		suites.add(new RepeaterBenchmark());
+		suites.add(new FileBenchmark());
+		return suites;
+	}
+	
+	public static void main(String[] args)
+	{
+		System.exit(run(args));
+	}
+	
+	/**
+	 * Runs the benchmarks described by the command-line arguments.
+	 * @param args The command-line arguments.
+	 * @return The process exit code: 0 if all went well, 1 for a failure or a regression, 2 for bad arguments.
+	 */
+	public static int run(String[] args)
+	{
+		BenchmarkRunner runner = new BenchmarkRunner();
+		Vector<Benchmark> all = getAllSuites();
+		try
+		{
+			for (String arg : args)
+			{
+				if (arg.startsWith("--warmup="))
+					runner.warmupIterations = Integer.parseInt(arg.substring(9));
+				else if (arg.startsWith("--iterations="))
+					runner.iterations = Integer.parseInt(arg.substring(13));
+				else if (arg.startsWith("--time="))
+					runner.iterationMillis = Long.parseLong(arg.substring(7));
+				else if (arg.startsWith("--format="))
+					runner.json = arg.substring(9).equals("json");
+				else if (arg.startsWith("--output="))
+					runner.output = new PrintStream(new FileOutputStream(arg.substring(9)));
+				else if (arg.startsWith("--baseline="))
+					runner.baseline = new File(arg.substring(11));
+				else if (arg.startsWith("--threshold="))
+					runner.threshold = Double.parseDouble(arg.substring(12));
+				else
+				{
+					Benchmark suite = findSuite(all, arg);
+					if (suite == null)
+					{
+						System.err.println("No benchmark called '" + arg + "'");
+						return 2;
+					}
+					runner.suites.add(suite);
+				}
+			}
+		}
+		catch (NumberFormatException er)
+		{
+			System.err.println("Bad number: " + er.getMessage());
+			return 2;
+		}
+		catch (IOException er)
+		{
+			System.err.println("Can't write the results: " + er.getMessage());
+			return 2;
+		}
+		if (runner.iterations < 1 || runner.warmupIterations < 0 || runner.iterationMillis < 1)
+		{
+			System.err.println("Usage: [suite...] [--warmup=N] [--iterations=N] [--time=ms] [--format=csv|json] [--output=file] [--baseline=file.csv] [--threshold=percent]");
+			return 2;
+		}
+		if (runner.suites.isEmpty())
+			runner.suites = all;
+		
+		try
+		{
+			return runner.runAll() ? 0 : 1;
+		}
+		finally
+		{
+			if (runner.output != System.out)
+				runner.output.close();
+		}
+	} // end run(String[])
+	
+	private static Benchmark findSuite(Vector<Benchmark> suites, String name)
+	{
+		for (Benchmark suite : suites)
+		{
+			if (suite.getName().equalsIgnoreCase(name))
+				return suite;
+		}
+		return null;
+	}
+	
+	/**
+	 * Measures every suite with every parameter, writing the results as it goes.
+	 * @return True if every measurement was made and none regressed.
+	 */
+	protected boolean runAll()
+	{
+		Map<String, Double> baseScores = null;
+		if (baseline != null)
+		{
+			try
+			{
+				baseScores = loadBaseline(baseline);
+			}
+			catch (IOException er)
+			{
+				System.err.println("Can't read the baseline: " + er.getMessage());
+				return false;
+			}
+		}
+		
+		boolean allGood = true;
+		boolean first = true;
+		if (json)
+			output.println("[");
+		else
+			output.println("benchmark,parameter,value,iterations,ns_per_op,error_ns,ops_per_s");
+		
+		for (Benchmark suite : suites)
+		{
+			for (String parameter : suite.getParameters())
+			{
+				System.err.printf("%s %s=%s...\n", suite.getName(), suite.getParameterName(), parameter);
+				double[] scores;
+				try
+				{
+					suite.setUp(parameter);
+					try
+					{
+						scores = measure(suite);
+					}
+					finally
+					{
+						suite.tearDown();
+					}
+				}
+				catch (Exception er)
+				{
+					System.err.printf("%s %s=%s failed: %s\n", suite.getName(), suite.getParameterName(), parameter, er);
+					allGood = false;
+					continue;
+				}
+				
+				double mean = mean(scores);
+				double error = error(scores, mean);
+				if (json)
+				{
+					if (!first)
+						output.println(",");
+					writeJson(suite, parameter, scores, mean, error);
+				}
+				else
+					output.printf(Locale.ROOT, "%s,%s,%s,%d,%.3f,%.3f,%.1f\n", suite.getName(), suite.getParameterName(), parameter, scores.length, mean, error, 1e9 / mean);
+				output.flush();
+				first = false;
+				
+				Double base = baseScores == null ? null : baseScores.get(suite.getName() + "," + parameter);
+				if (base != null && mean > base * (1 + threshold / 100))
+				{
+					System.err.printf(Locale.ROOT, "Regression: %s %s=%s went from %.3f to %.3f ns/op (%+.1f%%)\n",
+						suite.getName(), suite.getParameterName(), parameter, base, mean, (mean / base - 1) * 100);
+					allGood = false;
+				}
+			}
+		}
+		if (json)
+			output.println("\n]");
+		return allGood;
+	} // end runAll()
+	
+	/**
+	 * Runs the warm-up and measured iterations of a suite that's been set up.
+	 * @return The nanoseconds per operation of each measured iteration.
+	 */
+	protected double[] measure(Benchmark suite) throws Exception
+	{
+		// Find how many operations fill an iteration, doubling from one
+		long target = iterationMillis * 1000000;
+		int operations = 1;
+		long elapsed;
+		while (true)
+		{
+			long start = System.nanoTime();
+			sink += suite.run(operations);
+			elapsed = System.nanoTime() - start;
+			if (elapsed >= target / 4 || operations >= Integer.MAX_VALUE / 2)
+				break;
+			operations *= 2;
+		}
+		operations = (int)Math.max(1, Math.min(Integer.MAX_VALUE, (double)operations * target / Math.max(1, elapsed)));
+		
+		for (int k=0; k < warmupIterations; k++)
+			sink += suite.run(operations);
+		
+		double[] scores = new double[iterations];
+		for (int k=0; k < iterations; k++)
+		{
+			long start = System.nanoTime();
+			sink += suite.run(operations);
+			scores[k] = (double)(System.nanoTime() - start) / operations;
+		}
+		return scores;
+	} // end measure()
+	
+	private static double mean(double[] values)
+	{
+		double sum = 0;
+		for (double value : values)
+			sum += value;
+		return sum / values.length;
+	}
+	
+	/**
+	 * Returns the half-width of the 99.9% confidence interval around the mean.
+	 */
+	private static double error(double[] values, double mean)
+	{
+		int n = values.length;
+		if (n < 2)
+			return Double.NaN;
+		double sum = 0;
+		for (double value : values)
+			sum += (value - mean) * (value - mean);
+		double t = n - 1 <= T_999.length ? T_999[n - 2] : T_999_LIMIT;
+		return t * Math.sqrt(sum / (n - 1) / n);
+	}
+	
+	private void writeJson(Benchmark suite, String parameter, double[] scores, double mean, double error)
+	{
+		output.println("  {");
+		output.printf("    \"benchmark\" : \"create.simulator.benchmark.%s.%s\",\n", suite.getClass().getSimpleName(), suite.getName());
+		output.println("    \"mode\" : \"avgt\",");
+		output.printf("    \"warmupIterations\" : %d,\n", warmupIterations);
+		output.printf("    \"measurementIterations\" : %d,\n", iterations);
+		output.printf("    \"params\" : { \"%s\" : \"%s\" },\n", suite.getParameterName(), parameter);
+		output.println("    \"primaryMetric\" : {");
+		output.printf(Locale.ROOT, "      \"score\" : %.3f,\n", mean);
+		output.printf(Locale.ROOT, "      \"scoreError\" : %s,\n", Double.isNaN(error) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", error));
+		output.println("      \"scoreUnit\" : \"ns/op\",");
+		output.print("      \"rawData\" : [ [");
+		for (int k=0; k < scores.length; k++)
+			output.printf(Locale.ROOT, "%s %.3f", k == 0 ? "" : ",", scores[k]);
+		output.println(" ] ]");
+		output.println("    }");
+		output.print("  }");
+	} // end writeJson()
+	
+	/**
+	 * Reads the scores from earlier CSV results, keyed by "suite,value".
+	 */
+	private static Map<String, Double> loadBaseline(File file) throws IOException
+	{
+		Map<String, Double> scores = new HashMap<String, Double>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			String line = in.readLine();
+			while ((line = in.readLine()) != null)
+			{
+				String[] parts = line.split(",");
+				if (parts.length < 5)
+					continue;
+				try
+				{
+					scores.put(parts[0] + "," + parts[2], Double.parseDouble(parts[4]));
+				}
+				catch (NumberFormatException er)
+				{
+					// Not a line of results
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return scores;
+	} // end loadBaseline()
+} // end class BenchmarkRunner
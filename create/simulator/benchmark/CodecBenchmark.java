@@ -0,0 +1,89 @@
+package create.simulator.benchmark;
+
+import create.simulator.*;
+
+/**
+ * Measures OICodec in the binary and text protocols.
+ * One operation decodes a Drive Direct command and a Query List of four packets, as a controller
+ *   sends them, and encodes the four sensor values sent back.
+ * @author dvanhumb
+ */
+public class CodecBenchmark extends Benchmark implements OI_Constants
+{
+	private static final int[] PACKETS = {PACKET_BUMPS_DROPS, PACKET_WALL, PACKET_DISTANCE, PACKET_ANGLE};
+	
+	protected boolean text;
+	// The commands as they arrive, one after the other:
+	protected byte[] input;
+	protected byte[] command = new byte[64];
+	protected byte[] line = new byte[64];
+	protected byte[] reply = new byte[64];
+	
+	public String getName()
+	{
+		return "oiCodec";
+	}
+	
+	public String getParameterName()
+	{
+		return "protocol";
+	}
+	
+	public String[] getParameters()
+	{
+		return new String[] {"binary", "text"};
+	}
+	
+	public void setUp(String parameter)
+	{
+		text = parameter.equals("text");
+		if (text)
+			input = "0x91 0x00C8 0xFF38\n0x95 0x04 0x07 0x08 0x13 0x14\n".getBytes();
+		else
+			input = new byte[] {(byte)COMMAND_DRIVE_DIRECT, 0x00, (byte)0xC8, (byte)0xFF, 0x38,
+				(byte)COMMAND_QUERY_LIST, 4, (byte)PACKETS[0], (byte)PACKETS[1], (byte)PACKETS[2], (byte)PACKETS[3]};
+	}
+	
+	public long run(int operations) throws Exception
+	{
+		long sum = 0;
+		for (int k=0; k < operations; k++)
+		{
+			// Decode the commands
+			int position = 0;
+			while (position < input.length)
+			{
+				if (text)
+				{
+					int end = position;
+					while (input[end] != '\n')
+						end++;
+					// parseTextCommand() wants the line at the start of its buffer, as RobotRepeater reads it
+					System.arraycopy(input, position, line, 0, end - position);
+					sum += OICodec.parseTextCommand(line, end - position, command);
+					position = end + 1;
+				}
+				else
+				{
+					int length = OICodec.getCommandLength(input, position, input.length - position);
+					sum += OICodec.getSignedWord(input, position + 1);
+					position += length;
+				}
+			}
+			
+			// Encode the reply
+			int used = 0;
+			for (int p=0; p < PACKETS.length; p++)
+			{
+				int packet = PACKETS[p];
+				int value = OICodec.clampToPacket(packet, k - p * 1000);
+				if (text)
+					used = OICodec.putTextValue(reply, used, value, OICodec.getPacketSize(packet));
+				else
+					used = OICodec.putValue(reply, used, value, OICodec.getPacketSize(packet));
+			}
+			sum += used + reply[used - 1];
+		}
+		return sum;
+	} // end run()
+} // end class CodecBenchmark
@@ -0,0 +1,67 @@
+package create.simulator.benchmark;
+
+import create.simulator.utils.*;
+
+import java.io.*;
+
+/**
+ * Measures the CreateUtils file routines a build leans on, for several sizes of source file.
+ * One operation copies the file, as a build copies the runtime headers, and loads it whole, as the
+ *   editor loads a module.
+ * @author dvanhumb
+ */
+public class FileBenchmark extends Benchmark
+{
+	private static final String LINE = "\tdriveDirect(200, 200); // a typical line of a controller's source\n";
+	
+	protected File folder, source, copy;
+	
+	public String getName()
+	{
+		return "createUtilsFileIO";
+	}
+	
+	public String getParameterName()
+	{
+		return "kilobytes";
+	}
+	
+	public String[] getParameters()
+	{
+		return new String[] {"4", "64", "256"};
+	}
+	
+	public void setUp(String parameter) throws IOException
+	{
+		folder = File.createTempFile("benchmark", "");
+		folder.delete();
+		if (!folder.mkdir())
+			throw new IOException("Can't make a temporary folder at " + folder);
+		source = new File(folder, "source.cpp");
+		copy = new File(folder, "copy.cpp");
+		
+		long size = Long.parseLong(parameter) * 1024;
+		PrintWriter out = new PrintWriter(new FileWriter(source));
+		for (long written=0; written < size; written += LINE.length())
+			out.print(LINE);
+		out.close();
+	}
+	
+	public long run(int operations) throws IOException
+	{
+		long sum = 0;
+		for (int k=0; k < operations; k++)
+		{
+			CreateUtils.copyFile(source, copy);
+			sum += CreateUtils.loadEntireFile(copy).length();
+		}
+		return sum;
+	}
+	
+	public void tearDown()
+	{
+		source.delete();
+		copy.delete();
+		folder.delete();
+	}
+} // end class FileBenchmark
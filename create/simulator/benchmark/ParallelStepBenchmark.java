@@ -0,0 +1,48 @@
+package create.simulator.benchmark;
+
+import create.simulator.*;
+
+import java.util.concurrent.*;
+
+/**
+ * Measures the same steps as PhysicsStepBenchmark split across a ForkJoinPool with a thread per
+ *   processor, however few robots there are.  Comparing the two shows where splitting starts to pay,
+ *   which is what WorldState.PARALLEL_THRESHOLD is set from.
+ * @author dvanhumb
+ */
+public class ParallelStepBenchmark extends PhysicsStepBenchmark
+{
+	protected ForkJoinPool pool;
+	
+	public String getName()
+	{
+		return "physicsStepParallel";
+	}
+	
+	public String[] getParameters()
+	{
+		return new String[] {"256", "512", "1000", "10000"};
+	}
+	
+	public void setUp(String parameter)
+	{
+		super.setUp(parameter);
+		world.setParallelThreshold(0);
+		// Two threads at least, or the world steps on the calling thread anyway
+		pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+	}
+	
+	public long run(int operations)
+	{
+		for (int k=0; k < operations; k++)
+			world.step(CreateSimulatorCore.DEFAULT_TIMESTEP, pool);
+		return Double.doubleToLongBits(world.getRobot(0).getX());
+	}
+	
+	public void tearDown()
+	{
+		super.tearDown();
+		pool.shutdown();
+		pool = null;
+	}
+} // end class ParallelStepBenchmark
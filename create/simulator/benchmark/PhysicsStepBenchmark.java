@@ -0,0 +1,57 @@
+package create.simulator.benchmark;
+
+import create.simulator.*;
+
+/**
+ * Measures one simulation step of a world of driving robots, for several sizes of swarm.
+ * The robots are spread out on a grid and each drives in its own circle, so most steps are
+ *   integration with the occasional collision, as in a busy arena.
+ * @author dvanhumb
+ */
+public class PhysicsStepBenchmark extends Benchmark
+{
+	// The space between robots on the grid, in millimeters:
+	private static final double SPACING = 600.0;
+	
+	protected WorldState world;
+	
+	public String getName()
+	{
+		return "physicsStep";
+	}
+	
+	public String getParameterName()
+	{
+		return "robots";
+	}
+	
+	public String[] getParameters()
+	{
+		return new String[] {"1", "100", "256", "512", "1000", "10000"};
+	}
+	
+	public void setUp(String parameter)
+	{
+		int robots = Integer.parseInt(parameter);
+		int side = (int)Math.ceil(Math.sqrt(robots));
+		world = new WorldState(robots);
+		for (int i=0; i < robots; i++)
+		{
+			int id = world.addRobot((i % side) * SPACING, (i / side) * SPACING, i * 0.7);
+			// Different wheel speeds give circles of different sizes
+			world.driveDirect(id, 200 + i % 7 * 25, 150 + i % 5 * 40);
+		}
+	}
+	
+	public long run(int operations)
+	{
+		for (int k=0; k < operations; k++)
+			world.step(CreateSimulatorCore.DEFAULT_TIMESTEP);
+		return Double.doubleToLongBits(world.getRobot(0).getX());
+	}
+	
+	public void tearDown()
+	{
+		world = null;
+	}
+} // end class PhysicsStepBenchmark
@@ -0,0 +1,96 @@
+package create.simulator.benchmark;
+
+import create.simulator.*;
+
+import java.io.*;
+
+/**
+ * Measures how fast a RobotRepeater reads, carries out and answers commands in each protocol.
+ * The commands come from memory and the replies are thrown away, so this is the repeater's own cost
+ *   without any pipes or controller process.  One operation is one command, alternately a Drive Direct
+ *   and a Query List of four packets.
+ * @author dvanhumb
+ */
+public class RepeaterBenchmark extends Benchmark implements OI_Constants
+{
+	// How many commands are prepared, and so the most one repeater is given:
+	private static final int BATCH = 4096;
+	
+	protected WorldState world;
+	protected byte[] input;
+	// Where each command ends in the input:
+	protected int[] ends = new int[BATCH];
+	protected long replyBytes;
+	protected OutputStream sink = new OutputStream()
+	{
+		public void write(int b)
+		{
+			replyBytes++;
+		}
+		
+		public void write(byte[] buffer, int offset, int length)
+		{
+			replyBytes += length;
+		}
+	};
+	
+	public String getName()
+	{
+		return "repeaterThroughput";
+	}
+	
+	public String getParameterName()
+	{
+		return "protocol";
+	}
+	
+	public String[] getParameters()
+	{
+		return new String[] {"binary", "text"};
+	}
+	
+	public void setUp(String parameter) throws IOException
+	{
+		boolean binary = parameter.equals("binary");
+		world = new WorldState(1);
+		world.addRobot(0, 0, 0);
+		
+		ByteArrayOutputStream commands = new ByteArrayOutputStream();
+		if (binary)
+		{
+			// Ask for binary frames first, as a controller does
+			commands.write(("0x" + Integer.toHexString(COMMAND_START) + " 0x" + Integer.toHexString(SIM_REQUEST_BINARY) + "\n").getBytes());
+		}
+		for (int k=0; k < BATCH; k++)
+		{
+			if (binary && k % 2 == 0)
+				commands.write(new byte[] {5, (byte)COMMAND_DRIVE_DIRECT, 0x00, (byte)0xC8, (byte)0xFF, 0x38});
+			else if (binary)
+				commands.write(new byte[] {6, (byte)COMMAND_QUERY_LIST, 4, PACKET_BUMPS_DROPS, PACKET_WALL, PACKET_DISTANCE, PACKET_ANGLE});
+			else if (k % 2 == 0)
+				commands.write("0x91 0x00C8 0xFF38\n".getBytes());
+			else
+				commands.write("0x95 0x04 0x07 0x08 0x13 0x14\n".getBytes());
+			ends[k] = commands.size();
+		}
+		input = commands.toByteArray();
+	} // end setUp()
+	
+	public long run(int operations)
+	{
+		SimulatedRobot robot = world.getRobot(0);
+		while (operations > 0)
+		{
+			int count = Math.min(operations, BATCH);
+			// A repeater runs until its controller's stream ends
+			new RobotRepeater(new ByteArrayInputStream(input, 0, ends[count - 1]), sink, robot).run();
+			operations -= count;
+		}
+		return replyBytes;
+	}
+	
+	public void tearDown()
+	{
+		world = null;
+	}
+} // end class RepeaterBenchmark
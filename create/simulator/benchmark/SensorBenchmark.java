@@ -0,0 +1,106 @@
+package create.simulator.benchmark;
+
+import create.simulator.*;
+
+import java.util.*;
+
+/**
+ * Measures the arena queries behind one robot's wall and cliff sensors, for several sizes of map.
+ * Each map is a square arena strewn with boxes and cliffs at the same density, so a bigger map
+ *   means more segments in total but about as many near each robot.  One operation is what
+ *   WorldState does for one robot's sensors: a wall search, a wall ray and four cliff checks.
+ * @author dvanhumb
+ */
+public class SensorBenchmark extends Benchmark
+{
+	// The space given to each box or cliff, in millimeters:
+	private static final double OBSTACLE_SPACING = 2000.0;
+	private static final double BOX_SIZE = 400.0;
+	// How many places to query from, in turn:
+	private static final int POINTS = 4096;
+	
+	protected ArenaIndex index;
+	protected double[] pointX = new double[POINTS], pointY = new double[POINTS];
+	protected double[] pointHeading = new double[POINTS];
+	
+	public String getName()
+	{
+		return "sensorRaycast";
+	}
+	
+	public String getParameterName()
+	{
+		return "mapMeters";
+	}
+	
+	public String[] getParameters()
+	{
+		return new String[] {"5", "50", "500"};
+	}
+	
+	public void setUp(String parameter)
+	{
+		double size = Double.parseDouble(parameter) * 1000.0;
+		Random random = new Random(1);
+		Arena arena = new Arena();
+		arena.addWall(0, 0, size, 0);
+		arena.addWall(size, 0, size, size);
+		arena.addWall(size, size, 0, size);
+		arena.addWall(0, size, 0, 0);
+		
+		int across = Math.max(1, (int)(size / OBSTACLE_SPACING));
+		for (int row=0; row < across; row++)
+		{
+			for (int column=0; column < across; column++)
+			{
+				double x = (column + random.nextDouble() * 0.5) * OBSTACLE_SPACING;
+				double y = (row + random.nextDouble() * 0.5) * OBSTACLE_SPACING;
+				if (random.nextInt(10) == 0)
+					arena.addCliff(new double[] {x, y, x + BOX_SIZE, y, x + BOX_SIZE, y + BOX_SIZE, x, y + BOX_SIZE});
+				else
+				{
+					arena.addWall(x, y, x + BOX_SIZE, y);
+					arena.addWall(x + BOX_SIZE, y, x + BOX_SIZE, y + BOX_SIZE);
+					arena.addWall(x + BOX_SIZE, y + BOX_SIZE, x, y + BOX_SIZE);
+					arena.addWall(x, y + BOX_SIZE, x, y);
+				}
+			}
+		}
+		index = arena.buildIndex();
+		
+		for (int k=0; k < POINTS; k++)
+		{
+			pointX[k] = random.nextDouble() * size;
+			pointY[k] = random.nextDouble() * size;
+			pointHeading[k] = random.nextDouble() * 2 * Math.PI;
+		}
+	} // end setUp()
+	
+	public long run(int operations)
+	{
+		long sum = 0;
+		for (int k=0; k < operations; k++)
+		{
+			int p = k & (POINTS - 1);
+			double x = pointX[p], y = pointY[p];
+			double cos = Math.cos(pointHeading[p]), sin = Math.sin(pointHeading[p]);
+			
+			sum += index.nearestSegment(x, y, SimulatedRobot.ROBOT_RADIUS, Arena.WALL);
+			double hit = index.castRay(x, y, cos, sin, SimulatedRobot.ROBOT_RADIUS + WorldState.WALL_SENSOR_RANGE, Arena.WALL);
+			if (hit != Double.POSITIVE_INFINITY)
+				sum += (long)hit;
+			for (int c=0; c < 4; c++)
+			{
+				double angle = pointHeading[p] + (c - 1.5) * 0.6;
+				if (index.isOverCliff(x + Math.cos(angle) * 150, y + Math.sin(angle) * 150))
+					sum++;
+			}
+		}
+		return sum;
+	} // end run()
+	
+	public void tearDown()
+	{
+		index = null;
+	}
+} // end class SensorBenchmark
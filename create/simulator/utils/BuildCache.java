@@ -0,0 +1,362 @@
+package create.simulator.utils;
+
+import include.FileNabber;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Remembers which build of a project each compiled binary came from, so unchanged projects aren't
+ *   compiled again.
+ * A build is identified by a SHA-256 hash of everything that goes into it: the project's source files,
+ *   the runtime library, the compiler's command line and the compiler's version.  Next to each binary
+ *   is a stamp file holding the hash it was built from, the binary's size and how long it took to
+ *   compile; if the stamp matches, the binary can be used as it is.
+ * Counts of hits and misses, and the compile time hits have saved, are kept for the session.
+ * @author dvanhumb
+ */
+public class BuildCache
+{
+	/**
+	 * Added to a binary's name to make the name of its stamp file.
+	 */
+	public static final String STAMP_SUFFIX = ".buildhash";
+	// Changing this invalidates every stamp, for when what goes into the hash changes:
+	private static final String FORMAT = "createSimulator build cache 1";
+	
+	private static BuildCache shared;
+	// The runtime library copied into every build:
+	private static final String[] RUNTIME_FILES = {FileNabber.FILE_MAIN, FileNabber.FILE_HEADER_CM, FileNabber.FILE_HEADER_OI};
+	// The runtime library's hash, and each compiler's version, which don't change while we run:
+	private static String runtimeHash;
+	private static final Map<String, String> toolVersions = new HashMap<String, String>();
+	
+	private int hits, misses;
+	private long savedMillis;
+	private String lastResult = "";
+	
+	/**
+	 * Returns the cache the projects use.
+	 * @return
+	 */
+	public static synchronized BuildCache getShared()
+	{
+		if (shared == null)
+			shared = new BuildCache();
+		return shared;
+	}
+	
+	/**
+	 * Works out the hash of a build.
+	 * @param sourceFolder The folder holding the project's sources; every file directly in it is included,
+	 *   apart from copies of the runtime library.
+	 * @param modules The modules in the order they're compiled, which matters as it sets the order of the includes.
+	 * @param command The compiler command line.
+	 * @param compiler The compiler program, whose version is included.
+	 * @return The hash as hex digits.
+	 * @throws IOException If a source can't be read.
+	 */
+	public static String computeKey(File sourceFolder, String[] modules, String command, String compiler) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		addString(digest, FORMAT);
+		addString(digest, getRuntimeHash());
+		addString(digest, command);
+		addString(digest, getToolVersion(compiler));
+		for (String module : modules)
+			addString(digest, module);
+		
+		// Every file in the source folder, since modules can include headers kept alongside them
+		File[] files = sourceFolder.listFiles();
+		if (files == null)
+			throw new IOException("Can't list " + sourceFolder);
+		Arrays.sort(files);
+		for (File file : files)
+		{
+			if (!file.isFile() || isRuntimeFile(file.getName()))
+				continue;
+			addString(digest, file.getName());
+			FileInputStream in = new FileInputStream(file);
+			try
+			{
+				addStream(digest, in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		return toHex(digest.digest());
+	} // end computeKey()
+	
+	/**
+	 * Works out the hash of a build of the runtime library on its own.
+	 * @param command The compiler command line.
+	 * @param compiler The compiler program, whose version is included.
+	 * @return The hash as hex digits.
+	 * @throws IOException If the runtime library can't be read.
+	 */
+	public static String computeRuntimeKey(String command, String compiler) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		addString(digest, FORMAT);
+		addString(digest, getRuntimeHash());
+		addString(digest, command);
+		addString(digest, getToolVersion(compiler));
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Checks whether a binary was built from the given hash, counting a hit or a miss.
+	 * @param binary The compiled program.
+	 * @param key The hash of the build that would replace it.
+	 * @return True if the binary is up to date and needn't be built.
+	 */
+	public synchronized boolean check(File binary, String key)
+	{
+		String[] stamp = readStamp(binary);
+		if (stamp != null && stamp[0].equals(key) && binary.isFile() && Long.toString(binary.length()).equals(stamp[1]))
+		{
+			long millis = Long.parseLong(stamp[2]);
+			hits++;
+			savedMillis += millis;
+			lastResult = String.format("Up to date, skipped compiling (saved %.1f s)", millis / 1000.0);
+			return true;
+		}
+		misses++;
+		lastResult = "Compiling";
+		return false;
+	}
+	
+	/**
+	 * Records that a binary has just been built from the given hash.
+	 * @param binary The compiled program.
+	 * @param key The hash it was built from.
+	 * @param compileMillis How long it took to compile, which is what later hits save.
+	 */
+	public synchronized void store(File binary, String key, long compileMillis)
+	{
+		lastResult = String.format("Compiled in %.1f s", compileMillis / 1000.0);
+		try
+		{
+			PrintWriter out = new PrintWriter(new FileWriter(getStampFile(binary)));
+			out.printf("%s %d %d\n", key, binary.length(), compileMillis);
+			out.close();
+		}
+		catch (IOException er)
+		{
+			// The next build just won't be skipped
+			getStampFile(binary).delete();
+		}
+	}
+	
+	/**
+	 * Forgets which build a binary came from, such as after a failed build.
+	 * @param binary The compiled program.
+	 */
+	public synchronized void invalidate(File binary)
+	{
+		getStampFile(binary).delete();
+	}
+	
+	/**
+	 * Returns what happened to the last build, and the totals for the session, for the status bar.
+	 * @return
+	 */
+	public synchronized String getSummary()
+	{
+		return String.format("%s.  Build cache: %d hit%s, %d miss%s, %.1f s saved", lastResult,
+			hits, hits == 1 ? "" : "s", misses, misses == 1 ? "" : "es", savedMillis / 1000.0);
+	}
+	
+	public synchronized int getHits()
+	{
+		return hits;
+	}
+	
+	public synchronized int getMisses()
+	{
+		return misses;
+	}
+	
+	/**
+	 * Returns the compile time hits have saved this session, in milliseconds.
+	 * @return
+	 */
+	public synchronized long getSavedMillis()
+	{
+		return savedMillis;
+	}
+	
+	/**
+	 * Returns true for the runtime files a build copies in beside the sources, which are hashed separately.
+	 */
+	private static boolean isRuntimeFile(String name)
+	{
+		for (String runtime : RUNTIME_FILES)
+		{
+			if (runtime.equals(name))
+				return true;
+		}
+		return false;
+	}
+	
+	private static File getStampFile(File binary)
+	{
+		return new File(binary.getParentFile(), binary.getName() + STAMP_SUFFIX);
+	}
+	
+	/**
+	 * Returns the stamp's hash, binary size and compile time, or null if there's no usable stamp.
+	 */
+	private static String[] readStamp(File binary)
+	{
+		File file = getStampFile(binary);
+		if (!file.isFile())
+			return null;
+		try
+		{
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try
+			{
+				String line = in.readLine();
+				String[] parts = line == null ? null : line.trim().split(" ");
+				if (parts == null || parts.length != 3)
+					return null;
+				Long.parseLong(parts[2]);
+				return parts;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException er)
+		{
+			return null;
+		}
+		catch (NumberFormatException er)
+		{
+			return null;
+		}
+	} // end readStamp()
+	
+	/**
+	 * Returns the hash of the runtime library copied into every build.
+	 */
+	private static synchronized String getRuntimeHash() throws IOException
+	{
+		if (runtimeHash == null)
+		{
+			MessageDigest digest = newDigest();
+			for (String name : RUNTIME_FILES)
+			{
+				InputStream in = FileNabber.getFile(name);
+				if (in == null)
+					throw new IOException("Missing runtime file " + name);
+				try
+				{
+					addString(digest, name);
+					addStream(digest, in);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			runtimeHash = toHex(digest.digest());
+		}
+		return runtimeHash;
+	} // end getRuntimeHash()
+	
+	/**
+	 * Returns what a compiler says its version is, or an empty string if it won't say.
+	 */
+	private static String getToolVersion(String tool)
+	{
+		synchronized (toolVersions)
+		{
+			String version = toolVersions.get(tool);
+			if (version != null)
+				return version;
+			
+			version = "";
+			try
+			{
+				Process process = Runtime.getRuntime().exec(new String[] {tool, "--version"});
+				process.getOutputStream().close();
+				BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+				String line = in.readLine();
+				while (in.readLine() != null)
+					; // Let it finish
+				in.close();
+				if (process.waitFor() == 0 && line != null)
+					version = line;
+			}
+			catch (IOException er)
+			{
+				// Then the compile will fail anyway
+			}
+			catch (InterruptedException er)
+			{
+				Thread.currentThread().interrupt();
+			}
+			toolVersions.put(tool, version);
+			return version;
+		}
+	} // end getToolVersion()
+	
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException er)
+		{
+			// Every Java runtime has SHA-256
+			throw new RuntimeException(er);
+		}
+	}
+	
+	private static void addString(MessageDigest digest, String text)
+	{
+		byte[] bytes;
+		try
+		{
+			bytes = text.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException er)
+		{
+			throw new RuntimeException(er);
+		}
+		// Lengths first, so "ab"+"c" and "a"+"bc" hash differently
+		addLength(digest, bytes.length);
+		digest.update(bytes);
+	}
+	
+	private static void addStream(MessageDigest digest, InputStream in) throws IOException
+	{
+		// Hashed on its own first, so where it ends is unambiguous
+		MessageDigest content = newDigest();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			content.update(buffer, 0, read);
+		digest.update(content.digest());
+	}
+	
+	private static void addLength(MessageDigest digest, int length)
+	{
+		digest.update(new byte[] {(byte)(length >> 24), (byte)(length >> 16), (byte)(length >> 8), (byte)length});
+	}
+	
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder text = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			text.append(String.format("%02x", b & 0xff));
+		return text.toString();
+	}
+} // end class BuildCache
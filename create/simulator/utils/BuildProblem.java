@@ -3,6 +3,7 @@ package create.simulator.utils;
 import create.simulator.window.*;
 
 import java.io.*;
+import java.util.*;
 
 public class BuildProblem extends Throwable
 {
@@ -11,6 +12,8 @@ public class BuildProblem extends Throwable
 	protected CreateProject project;
 	protected String errorData, commentData;
 	protected int commandResult;
+	protected Vector<Diagnostic> diagnostics;
+	protected int errorCount, warningCount;
 	
 	/**
 	 * Create a new BuildProblem with the CreateProject that the problem happened on, a String comment, a String error
@@ -27,6 +30,57 @@ public class BuildProblem extends Throwable
 		
 		commentData = comment;
 		errorData = error;
+		setDiagnostics(DiagnosticParser.parse(error));
+	}
+	
+	/**
+	 * Create a new BuildProblem from the output of the program that caused the error, already parsed as it arrived.
+	 * @param project The CreateProject where this BuildProblem occurred.
+	 * @param comment The program's standard output.
+	 * @param errors The parsed error output of the program.
+	 * @param commandResult The error code the program returned.
+	 */
+	public BuildProblem(CreateProject project, String comment, DiagnosticParser errors, int commandResult)
+	{
+		this.project = project;
+		this.commandResult = commandResult;
+		
+		commentData = comment;
+		errorData = errors.getText();
+		setDiagnostics(errors);
+	}
+	
+	/**
+	 * Create a new BuildProblem holding several others, such as from modules compiled at the same time.
+	 * @param project The CreateProject where the BuildProblems occurred.
+	 * @param problems The problems, of which there must be at least one.
+	 */
+	public BuildProblem(CreateProject project, Vector<BuildProblem> problems)
+	{
+		this.project = project;
+		
+		StringBuilder comments = new StringBuilder();
+		StringBuilder errors = new StringBuilder();
+		diagnostics = new Vector<Diagnostic>();
+		for (BuildProblem problem : problems)
+		{
+			if (commandResult == 0)
+				commandResult = problem.getReturnValue();
+			// Each is already no longer than a parser keeps
+			if (comments.length() < DiagnosticParser.MAX_TEXT)
+				comments.append(problem.getCommentData());
+			if (errors.length() < DiagnosticParser.MAX_TEXT)
+				errors.append(problem.getErrorData());
+			for (Diagnostic diagnostic : problem.getDiagnostics())
+			{
+				if (diagnostics.size() < DiagnosticParser.MAX_DIAGNOSTICS)
+					diagnostics.add(diagnostic);
+			}
+			errorCount += problem.getErrorCount();
+			warningCount += problem.getWarningCount();
+		}
+		commentData = comments.toString();
+		errorData = errors.toString();
 	}
 	
 	/**
@@ -42,21 +96,24 @@ public class BuildProblem extends Throwable
 		this.project = project;
 		this.commandResult = commandResult;
 		
-		errorData = "";
-		String line = errIn.readLine();
-		while (line != null)
-		{
-			errorData += line + "\n";
-			line = errIn.readLine();
-		}
+		DiagnosticParser errors = new DiagnosticParser();
+		String line;
+		while ((line = errIn.readLine()) != null)
+			errors.addLine(line);
+		errorData = errors.getText();
+		setDiagnostics(errors);
 		
-		commentData = "";
-		line = stdIn.readLine();
-		while (line != null)
-		{
-			commentData += line + "\n";
-			line = stdIn.readLine();
-		}
+		DiagnosticParser comments = new DiagnosticParser();
+		while ((line = stdIn.readLine()) != null)
+			comments.addLine(line);
+		commentData = comments.getText();
+	}
+	
+	private void setDiagnostics(DiagnosticParser parser)
+	{
+		diagnostics = parser.getDiagnostics();
+		errorCount = parser.getErrorCount();
+		warningCount = parser.getWarningCount();
 	}
 	
 	/**
@@ -86,6 +143,29 @@ public class BuildProblem extends Throwable
 		return errorData;
 	}
 	
+	/**
+	 * Returns the errors, warnings and notes found in the error messages, as many of them as were kept.
+	 * @return
+	 */
+	public Vector<Diagnostic> getDiagnostics()
+	{
+		return diagnostics;
+	}
+	
+	/**
+	 * Returns how many errors the error messages held, including any that weren't kept.
+	 * @return
+	 */
+	public int getErrorCount()
+	{
+		return errorCount;
+	}
+	
+	public int getWarningCount()
+	{
+		return warningCount;
+	}
+	
 	/**
 	 * Returns any comments wrapped by this BuildProgram.
 	 * @return
@@ -0,0 +1,274 @@
+package create.simulator.utils;
+
+import create.simulator.window.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A compiler, or other build tool, run as a separate process.
+ * Its output and error streams are each read by a thread of their own while it runs, so a tool that
+ *   writes more than the pipes hold never blocks waiting for us to read.  Each line is parsed into
+ *   diagnostics and passed on to the build listener as it arrives, so the editor can show how the
+ *   build is getting on.
+ * Every process that's running can be stopped at once to cancel a build; until the cancellation is
+ *   cleared, no more processes are started.
+ * @author dvanhumb
+ */
+public class BuildProcess
+{
+	/**
+	 * The result of a process that was stopped, or never started, because the build was cancelled.
+	 */
+	public static final int RESULT_CANCELLED = -3;
+	public static final String MESSAGE_CANCELLED = "Build cancelled.";
+	
+	private static final Set<BuildProcess> running = new HashSet<BuildProcess>();
+	private static boolean cancelled;
+	private static volatile BuildListener listener;
+	
+	protected String[] command;
+	protected Process process;
+	protected Drainer output, errors;
+	protected int result = RESULT_CANCELLED;
+	
+	/**
+	 * Runs a command to completion.
+	 * @param command The program and its arguments.
+	 * @param folder The folder to run it in.
+	 * @return The finished process, whose result and output can be read.
+	 * @throws IOException If the program can't be started.
+	 */
+	public static BuildProcess run(String[] command, File folder) throws IOException
+	{
+		return run(command, folder, null);
+	}
+	
+	/**
+	 * Runs a command to completion, copying its standard output to a stream rather than keeping it.
+	 * @param command The program and its arguments.
+	 * @param folder The folder to run it in.
+	 * @param outputStream Where its standard output goes, or null to keep it as text.
+	 * @return The finished process, whose result and output can be read.
+	 * @throws IOException If the program can't be started.
+	 */
+	public static BuildProcess run(String[] command, File folder, OutputStream outputStream) throws IOException
+	{
+		BuildProcess build = new BuildProcess(command);
+		synchronized (running)
+		{
+			if (cancelled)
+				return build;
+			build.process = Runtime.getRuntime().exec(command, null, folder);
+			running.add(build);
+		}
+		try
+		{
+			build.process.getOutputStream().close();
+			build.output = new Drainer(build.process.getInputStream(), outputStream);
+			build.errors = new Drainer(build.process.getErrorStream(), null);
+			build.output.start();
+			build.errors.start();
+			build.result = build.waitFor();
+		}
+		finally
+		{
+			synchronized (running)
+			{
+				running.remove(build);
+			}
+		}
+		if (build.output.failure != null)
+			throw build.output.failure;
+		return build;
+	} // end run()
+	
+	/**
+	 * Stops every process that's running and refuses to start any more, until clearCancel() is called.
+	 */
+	public static void cancelAll()
+	{
+		synchronized (running)
+		{
+			cancelled = true;
+			for (BuildProcess build : running)
+				build.process.destroy();
+		}
+	}
+	
+	/**
+	 * Lets processes be started again after a cancellation.
+	 */
+	public static void clearCancel()
+	{
+		synchronized (running)
+		{
+			cancelled = false;
+		}
+	}
+	
+	public static boolean isCancelled()
+	{
+		synchronized (running)
+		{
+			return cancelled;
+		}
+	}
+	
+	/**
+	 * Sets who's told about each line the processes write, and any other news of the build.
+	 * @param newListener The listener, or null for nobody.
+	 */
+	public static void setListener(BuildListener newListener)
+	{
+		listener = newListener;
+	}
+	
+	/**
+	 * Passes a message about the build's progress to the listener, if there is one.
+	 * @param message
+	 */
+	public static void report(String message)
+	{
+		BuildListener current = listener;
+		if (current != null)
+			current.buildProgress(message);
+	}
+	
+	protected BuildProcess(String[] command)
+	{
+		this.command = command;
+	}
+	
+	/**
+	 * Returns the process's exit code, or RESULT_CANCELLED if it was stopped or never started.
+	 * @return
+	 */
+	public int getResult()
+	{
+		return result;
+	}
+	
+	public boolean succeeded()
+	{
+		return result == 0;
+	}
+	
+	/**
+	 * Returns what the process wrote to its standard output, unless that was sent elsewhere.
+	 * @return
+	 */
+	public String getOutput()
+	{
+		return output == null ? "" : output.parser.getText();
+	}
+	
+	public String getErrors()
+	{
+		if (errors == null)
+			return MESSAGE_CANCELLED;
+		return errors.parser.getText();
+	}
+	
+	/**
+	 * Returns the problem to report if the process failed, or null if it succeeded.
+	 * @param project The project being built.
+	 * @return
+	 */
+	public BuildProblem getProblem(CreateProject project)
+	{
+		if (succeeded())
+			return null;
+		if (result == RESULT_CANCELLED)
+			return new BuildProblem(project, MESSAGE_CANCELLED, getErrors(), result);
+		return new BuildProblem(project, getOutput(), errors.parser, result);
+	}
+	
+	/**
+	 * Waits for the process and both the threads reading from it.
+	 */
+	private int waitFor()
+	{
+		boolean interrupted = false;
+		while (true)
+		{
+			try
+			{
+				int code = process.waitFor();
+				output.join();
+				errors.join();
+				if (interrupted)
+					Thread.currentThread().interrupt();
+				// A process stopped by cancelAll() exits with whatever its signal gave it
+				synchronized (running)
+				{
+					if (cancelled && code != 0)
+						return RESULT_CANCELLED;
+				}
+				return code;
+			}
+			catch (InterruptedException er)
+			{
+				// Interrupting the build is the same as cancelling it
+				interrupted = true;
+				process.destroy();
+			}
+		}
+	} // end waitFor()
+	
+	/**
+	 * Reads everything from one of the process's streams, either parsing it or copying it to another stream.
+	 */
+	private static class Drainer extends Thread
+	{
+		private InputStream in;
+		private OutputStream copy;
+		private DiagnosticParser parser = new DiagnosticParser();
+		private IOException failure;
+		
+		public Drainer(InputStream in, OutputStream copy)
+		{
+			this.in = in;
+			this.copy = copy;
+			setDaemon(true);
+		}
+		
+		public void run()
+		{
+			try
+			{
+				if (copy != null)
+				{
+					byte[] buffer = new byte[8192];
+					int read;
+					while ((read = in.read(buffer)) != -1)
+						copy.write(buffer, 0, read);
+				}
+				else
+				{
+					BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+					String line;
+					while ((line = reader.readLine()) != null)
+					{
+						parser.addLine(line);
+						report(line);
+					}
+				}
+			}
+			catch (IOException er)
+			{
+				// A stream closed by destroy() just ends early
+				if (copy != null)
+					failure = er;
+			}
+			finally
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException er) { }
+			}
+		}
+	} // end class Drainer
+} // end class BuildProcess
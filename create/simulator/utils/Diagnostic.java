@@ -0,0 +1,116 @@
+package create.simulator.utils;
+
+/**
+ * One message from the compiler or linker: an error, a warning or a note, and where it was found.
+ * @author dvanhumb
+ */
+public class Diagnostic
+{
+	public static final int SEVERITY_NOTE = 0;
+	public static final int SEVERITY_WARNING = 1;
+	public static final int SEVERITY_ERROR = 2;
+	
+	protected String file;
+	protected int line, column;
+	protected int severity;
+	protected String message;
+	// What the compiler said it was doing, such as "In function 'void loop()'", if anything:
+	protected String context;
+	
+	/**
+	 * Creates a new Diagnostic.
+	 * @param file The file it's about, as the compiler named it, or null if it isn't about a file.
+	 * @param line The line it's about, counting from 1, or 0 if it isn't about a line.
+	 * @param column The column it's about, counting from 1, or 0 if it isn't about a column.
+	 * @param severity One of the SEVERITY_ constants.
+	 * @param message What the compiler said.
+	 * @param context What the compiler said it was doing at the time, or null.
+	 */
+	public Diagnostic(String file, int line, int column, int severity, String message, String context)
+	{
+		this.file = file;
+		this.line = line;
+		this.column = column;
+		this.severity = severity;
+		this.message = message;
+		this.context = context;
+	}
+	
+	public String getFile()
+	{
+		return file;
+	}
+	
+	/**
+	 * Returns the file's name without its folder, which is how the editor names modules, or null.
+	 * @return
+	 */
+	public String getFileName()
+	{
+		if (file == null)
+			return null;
+		int slash = Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\'));
+		return file.substring(slash + 1);
+	}
+	
+	public int getLine()
+	{
+		return line;
+	}
+	
+	public int getColumn()
+	{
+		return column;
+	}
+	
+	public int getSeverity()
+	{
+		return severity;
+	}
+	
+	public boolean isError()
+	{
+		return severity == SEVERITY_ERROR;
+	}
+	
+	public String getMessage()
+	{
+		return message;
+	}
+	
+	public String getContext()
+	{
+		return context;
+	}
+	
+	public String getSeverityName()
+	{
+		switch (severity)
+		{
+		case SEVERITY_ERROR:
+			return "error";
+		case SEVERITY_WARNING:
+			return "warning";
+		default:
+			return "note";
+		}
+	}
+	
+	/**
+	 * Returns the diagnostic the way gcc would print it.
+	 */
+	public String toString()
+	{
+		StringBuilder text = new StringBuilder();
+		if (file != null)
+		{
+			text.append(file).append(':');
+			if (line > 0)
+				text.append(line).append(':');
+			if (column > 0)
+				text.append(column).append(':');
+			text.append(' ');
+		}
+		return text.append(getSeverityName()).append(": ").append(message).toString();
+	}
+} // end class Diagnostic
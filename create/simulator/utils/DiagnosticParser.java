@@ -0,0 +1,166 @@
+package create.simulator.utils;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Turns what gcc and the linker write into Diagnostics, a line at a time as it's written.
+ * Only the first MAX_DIAGNOSTICS diagnostics and the first MAX_TEXT characters of the text are
+ *   kept, so a compile that fails with thousands of template errors can't use up the memory; the
+ *   errors and warnings past those are still counted.
+ * @author dvanhumb
+ */
+public class DiagnosticParser
+{
+	public static final int MAX_DIAGNOSTICS = 1000;
+	public static final int MAX_TEXT = 256 * 1024;
+	
+	// "file:line:column: severity: message", where the column is optional:
+	private static final Pattern LOCATED = Pattern.compile("^(.+?):(\\d+):(?:(\\d+):)? (fatal error|error|warning|note): (.*)$");
+	// "file:(.text+0x1a): message", from the linker:
+	private static final Pattern LINKER = Pattern.compile("^(.+?):\\(\\.[^)]*\\): (.*)$");
+	// "program: severity: message", from a tool with nothing more specific to say:
+	private static final Pattern UNLOCATED = Pattern.compile("^([^:]+): (fatal error|error|warning|note): (.*)$");
+	// "file: In function 'void loop()':", which the following diagnostics are about; the linker says "in function":
+	private static final Pattern CONTEXT = Pattern.compile("^(.+?): ((?:In|At|in) .*):$");
+	
+	protected Vector<Diagnostic> diagnostics = new Vector<Diagnostic>();
+	protected StringBuilder text = new StringBuilder();
+	protected int errorCount, warningCount;
+	protected boolean truncated;
+	private String context;
+	
+	/**
+	 * Parses the whole of some output at once.
+	 * @param output What the compiler wrote.
+	 * @return The parser, holding the results.
+	 */
+	public static DiagnosticParser parse(String output)
+	{
+		DiagnosticParser parser = new DiagnosticParser();
+		if (output != null)
+		{
+			for (String line : output.split("\n"))
+				parser.addLine(line);
+		}
+		return parser;
+	}
+	
+	/**
+	 * Parses the next line of output.
+	 * @param line The line, without its line ending.
+	 * @return The diagnostic the line held, or null if it didn't hold one.
+	 */
+	public synchronized Diagnostic addLine(String line)
+	{
+		if (text.length() + line.length() < MAX_TEXT)
+			text.append(line).append('\n');
+		else if (!truncated)
+		{
+			text.append("[Output truncated]\n");
+			truncated = true;
+		}
+		
+		Diagnostic diagnostic = parseLine(line);
+		if (diagnostic == null)
+			return null;
+		if (diagnostic.getSeverity() == Diagnostic.SEVERITY_ERROR)
+			errorCount++;
+		else if (diagnostic.getSeverity() == Diagnostic.SEVERITY_WARNING)
+			warningCount++;
+		if (diagnostics.size() < MAX_DIAGNOSTICS)
+			diagnostics.add(diagnostic);
+		return diagnostic;
+	} // end addLine()
+	
+	/**
+	 * Returns the diagnostics found so far, up to MAX_DIAGNOSTICS of them.
+	 * @return
+	 */
+	public synchronized Vector<Diagnostic> getDiagnostics()
+	{
+		return new Vector<Diagnostic>(diagnostics);
+	}
+	
+	/**
+	 * Returns the output so far, up to MAX_TEXT characters of it.
+	 * @return
+	 */
+	public synchronized String getText()
+	{
+		return text.toString();
+	}
+	
+	/**
+	 * Returns how many errors there have been, including any that weren't kept.
+	 * @return
+	 */
+	public synchronized int getErrorCount()
+	{
+		return errorCount;
+	}
+	
+	public synchronized int getWarningCount()
+	{
+		return warningCount;
+	}
+	
+	/**
+	 * Returns true if any of the output or diagnostics had to be dropped.
+	 * @return
+	 */
+	public synchronized boolean isTruncated()
+	{
+		return truncated || errorCount + warningCount > diagnostics.size();
+	}
+	
+	protected Diagnostic parseLine(String line)
+	{
+		Matcher match = LOCATED.matcher(line);
+		if (match.matches())
+		{
+			int column = match.group(3) == null ? 0 : parseNumber(match.group(3));
+			return new Diagnostic(match.group(1), parseNumber(match.group(2)), column, parseSeverity(match.group(4)), match.group(5), context);
+		}
+		
+		match = CONTEXT.matcher(line);
+		if (match.matches())
+		{
+			context = match.group(2);
+			return null;
+		}
+		
+		match = LINKER.matcher(line);
+		if (match.matches())
+			return new Diagnostic(match.group(1), 0, 0, Diagnostic.SEVERITY_ERROR, match.group(2), context);
+		
+		match = UNLOCATED.matcher(line);
+		if (match.matches())
+			return new Diagnostic(null, 0, 0, parseSeverity(match.group(2)), match.group(1) + ": " + match.group(3), null);
+		
+		// Source lines, carets and "In file included from" lines say nothing new
+		return null;
+	} // end parseLine()
+	
+	private static int parseSeverity(String name)
+	{
+		if (name.equals("warning"))
+			return Diagnostic.SEVERITY_WARNING;
+		if (name.equals("note"))
+			return Diagnostic.SEVERITY_NOTE;
+		return Diagnostic.SEVERITY_ERROR;
+	}
+	
+	private static int parseNumber(String digits)
+	{
+		try
+		{
+			return Integer.parseInt(digits);
+		}
+		catch (NumberFormatException er)
+		{
+			// Too long to be a line number
+			return 0;
+		}
+	}
+} // end class DiagnosticParser
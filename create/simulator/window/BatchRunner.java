@@ -0,0 +1,614 @@
+package create.simulator.window;
+
+import create.simulator.*;
+import create.simulator.utils.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs a folder of scenarios without a display, for continuous integration and parameter sweeps.
+ * Each scenario is a properties file ending in ".scenario":
+ * <pre>
+ * project = Wanderer          # the project in the sketchbook to run
+ * arena = room.arena          # optional, relative to the scenario file
+ * robots = 4                  # how many robots run the project (default 1)
+ * duration = 120              # simulated seconds to run for (default 60)
+ * area = 0 0 4000 4000        # where robots may start: left bottom right top (default 0 0 2000 2000)
+ * build = embedded            # run the Command Module build on an emulated ATmega168 (default local)
+ * link = 57600                # give a local build's serial link this baud rate (default instant)
+ * timeout = 300               # wall-clock seconds before the run is stopped (default --timeout, or ten times the duration)
+ * </pre>
+ * Every scenario is run once per seed, which picks the robots' starting poses, on a pool of workers
+ *   with simulated time running as fast as the controllers allow.  A line of comma-separated results
+ *   is written for each run, in scenario and seed order.
+ * A run that hasn't finished within its timeout, such as one whose controller never waits or has hung,
+ *   has its controllers stopped and is reported with the status "timeout".
+ * With --trace, each run is also recorded to its own trace in the given folder, named after the
+ *   scenario and seed, which TraceReplayer can replay and seek through.
+ * Nothing here touches AWT or Swing, so it runs on machines with no display.
+ * @author dvanhumb
+ */
+public class BatchRunner
+{
+	/**
+	 * The option that selects batch mode, followed by the folder of scenarios.
+	 */
+	public static final String BATCH_OPTION = "--batch";
+	
+	// How often robots' footprints are marked on the coverage grid, in microseconds:
+	private static final long COVERAGE_INTERVAL = 100000;
+	// The size of a coverage grid cell, in millimeters:
+	private static final double COVERAGE_CELL = 50.0;
+	// How many tries to find a clear spot for each robot before giving up:
+	private static final int PLACEMENT_TRIES = 1000;
+	// The simulated time between keyframes in recorded traces, in microseconds:
+	private static final long KEYFRAME_INTERVAL = 1000000;
+	// How many times a scenario's simulated duration a run may take in wall-clock time, unless told otherwise:
+	private static final int TIMEOUT_FACTOR = 10;
+	// Stops runs that go on past their timeouts:
+	private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		public Thread newThread(Runnable task)
+		{
+			Thread thread = new Thread(task, "BatchRunner watchdog");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	protected File scenarioFolder;
+	protected int seeds = 1;
+	protected int threads = Runtime.getRuntime().availableProcessors();
+	protected PrintStream output = System.out;
+	protected File traceFolder;
+	// The wall-clock time a run may take when its scenario doesn't say, in milliseconds, or 0 for the default:
+	protected long timeout;
+	
+	/**
+	 * Returns true if the command-line arguments ask for batch mode.
+	 */
+	public static boolean isBatchMode(String[] args)
+	{
+		for (String arg : args)
+		{
+			if (arg.equals(BATCH_OPTION) || arg.startsWith(BATCH_OPTION + "="))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Runs the batch described by the command-line arguments:
+	 * <pre>
+	 * --batch &lt;folder&gt; [--seeds=N] [--threads=N] [--output=file] [--trace=folder] [--timeout=seconds]
+	 * </pre>
+	 * @param args The command-line arguments.
+	 * @return The process exit code: 0 if every run finished, 1 if any failed, 2 for bad arguments.
+	 */
+	public static int run(String[] args)
+	{
+		BatchRunner runner = new BatchRunner();
+		try
+		{
+			for (int i=0; i < args.length; i++)
+			{
+				String arg = args[i];
+				if (arg.equals(BATCH_OPTION) && i+1 < args.length)
+					runner.scenarioFolder = new File(args[++i]);
+				else if (arg.startsWith(BATCH_OPTION + "="))
+					runner.scenarioFolder = new File(arg.substring(BATCH_OPTION.length() + 1));
+				else if (arg.startsWith("--seeds="))
+					runner.seeds = Integer.parseInt(arg.substring(8));
+				else if (arg.startsWith("--threads="))
+					runner.threads = Integer.parseInt(arg.substring(10));
+				else if (arg.startsWith("--output="))
+					runner.output = new PrintStream(new FileOutputStream(arg.substring(9)));
+				else if (arg.equals("--trace") && i+1 < args.length)
+					runner.traceFolder = new File(args[++i]);
+				else if (arg.startsWith("--trace="))
+					runner.traceFolder = new File(arg.substring(8));
+				else if (arg.startsWith("--timeout="))
+					runner.timeout = (long)(Double.parseDouble(arg.substring(10)) * 1000);
+			}
+		}
+		catch (NumberFormatException er)
+		{
+			System.err.println("Bad number: " + er.getMessage());
+			return 2;
+		}
+		catch (IOException er)
+		{
+			System.err.println("Can't write the results: " + er.getMessage());
+			return 2;
+		}
+		
+		if (runner.scenarioFolder == null || !runner.scenarioFolder.isDirectory())
+		{
+			System.err.println("Usage: " + BATCH_OPTION + " <scenario folder> [--seeds=N] [--threads=N] [--output=file] [--trace=folder] [--timeout=seconds]");
+			return 2;
+		}
+		if (runner.seeds < 1 || runner.threads < 1)
+		{
+			System.err.println("Seeds and threads must be at least 1");
+			return 2;
+		}
+		if (runner.timeout < 0)
+		{
+			System.err.println("The timeout can't be negative");
+			return 2;
+		}
+		if (runner.traceFolder != null && !runner.traceFolder.isDirectory() && !runner.traceFolder.mkdirs())
+		{
+			System.err.println("Can't make the trace folder " + runner.traceFolder);
+			return 2;
+		}
+		
+		try
+		{
+			return runner.runAll() ? 0 : 1;
+		}
+		finally
+		{
+			if (runner.output != System.out)
+				runner.output.close();
+		}
+	} // end run(String[])
+	
+	/**
+	 * Loads every scenario, builds the projects they use, then runs them all.
+	 * @return True if every run finished.
+	 */
+	protected boolean runAll()
+	{
+		File[] files = scenarioFolder.listFiles(new FilenameFilter()
+		{
+			public boolean accept(File dir, String name)
+			{
+				return name.endsWith(".scenario");
+			}
+		});
+		Arrays.sort(files);
+		
+		boolean allGood = true;
+		Vector<Scenario> scenarios = new Vector<Scenario>();
+		for (File file : files)
+		{
+			try
+			{
+				scenarios.add(new Scenario(file));
+			}
+			catch (IOException er)
+			{
+				System.err.println(er.getMessage());
+				allGood = false;
+			}
+		}
+		
+		// Build each project once for each way it's run, however many scenarios use it
+		Map<String, File> programs = new HashMap<String, File>();
+		Set<String> failedBuilds = new HashSet<String>();
+		for (Scenario scenario : scenarios)
+		{
+			if (programs.containsKey(scenario.getBuildName()) || failedBuilds.contains(scenario.getBuildName()))
+				continue;
+			
+			CreateProject project = CreateProject.loadProject(scenario.project);
+			if (project == null)
+			{
+				System.err.printf("%s: No project called '%s' in %s\n", scenario.name, scenario.project, MainLauncher.getSketchbookFolder());
+				failedBuilds.add(scenario.getBuildName());
+				continue;
+			}
+			try
+			{
+				if (scenario.embedded)
+				{
+					project.buildEmbeddedProject();
+					programs.put(scenario.getBuildName(), new File(project.embeddedBinFolder, project.getProjectName() + ".hex"));
+				}
+				else
+				{
+					project.buildSimulatorProject();
+					programs.put(scenario.getBuildName(), new File(project.localBinFolder, project.getProjectName()));
+				}
+			}
+			catch (BuildProblem problem)
+			{
+				System.err.printf("%s: Building '%s' failed:\n%s%s", scenario.name, scenario.project, problem.getCommentData(), problem.getErrorData());
+				failedBuilds.add(scenario.getBuildName());
+			}
+		}
+		
+		// Queue every run, then report them in order as they finish
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		Vector<Future<String>> results = new Vector<Future<String>>();
+		for (Scenario scenario : scenarios)
+		{
+			File program = programs.get(scenario.getBuildName());
+			long runTimeout = scenario.timeout > 0 ? scenario.timeout : timeout > 0 ? timeout : scenario.duration / 1000 * TIMEOUT_FACTOR;
+			for (int seed=1; seed <= seeds; seed++)
+				results.add(workers.submit(new Run(scenario, program, seed, runTimeout,
+					traceFolder == null ? null : new File(traceFolder, scenario.name + "-" + seed + ".trace"))));
+		}
+		workers.shutdown();
+		
+		output.println("scenario,seed,status,runtime_ms,simulated_s,collisions,coverage_m2,battery_used_mah");
+		for (Future<String> result : results)
+		{
+			try
+			{
+				String line = result.get();
+				if (!line.contains(",ok,"))
+					allGood = false;
+				output.println(line);
+				output.flush();
+			}
+			catch (InterruptedException er)
+			{
+				workers.shutdownNow();
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			catch (ExecutionException er)
+			{
+				er.getCause().printStackTrace();
+				allGood = false;
+			}
+		}
+		return allGood;
+	} // end runAll()
+	
+	/**
+	 * One scenario file.
+	 */
+	protected static class Scenario
+	{
+		protected final String name;
+		protected final String project;
+		protected final ArenaIndex arena;
+		protected final int robots;
+		protected final long duration;
+		protected final double[] area = {0, 0, 2000, 2000};
+		protected final boolean embedded;
+		protected final int baudRate;
+		// The wall-clock time a run may take in milliseconds, or 0 to leave it to the batch:
+		protected final long timeout;
+		
+		protected Scenario(File file) throws IOException
+		{
+			name = file.getName().substring(0, file.getName().length() - ".scenario".length());
+			Properties properties = new Properties();
+			FileReader in = new FileReader(file);
+			try
+			{
+				properties.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+			
+			project = getSetting(properties, "project", null);
+			if (project == null)
+				throw new IOException(file.getName() + ": No project given");
+			
+			String build = getSetting(properties, "build", "local");
+			if (!build.equals("local") && !build.equals("embedded"))
+				throw new IOException(file.getName() + ": The build must be local or embedded");
+			embedded = build.equals("embedded");
+			
+			// An embedded build's link always runs at the rate its program sets
+			String link = getSetting(properties, "link", "instant");
+			if (link.equals("instant"))
+				baudRate = 0;
+			else
+			{
+				try
+				{
+					baudRate = Integer.parseInt(link);
+				}
+				catch (NumberFormatException er)
+				{
+					throw new IOException(file.getName() + ": The link must be instant or a baud rate");
+				}
+				if (baudRate <= 0)
+					throw new IOException(file.getName() + ": The link must be instant or a baud rate");
+			}
+			
+			String arenaName = getSetting(properties, "arena", null);
+			arena = arenaName == null ? null : Arena.load(new File(file.getParentFile(), arenaName)).buildIndex();
+			
+			try
+			{
+				robots = Integer.parseInt(getSetting(properties, "robots", "1"));
+				duration = (long)(Double.parseDouble(getSetting(properties, "duration", "60")) * 1e6);
+				timeout = (long)(Double.parseDouble(getSetting(properties, "timeout", "0")) * 1000);
+				String areaText = getSetting(properties, "area", null);
+				if (areaText != null)
+				{
+					String[] parts = areaText.split("\\s+");
+					if (parts.length != 4)
+						throw new IOException(file.getName() + ": The area needs left, bottom, right and top");
+					for (int k=0; k < 4; k++)
+						area[k] = Double.parseDouble(parts[k]);
+				}
+			}
+			catch (NumberFormatException er)
+			{
+				throw new IOException(file.getName() + ": Not a number: " + er.getMessage());
+			}
+			if (robots < 1 || duration <= 0)
+				throw new IOException(file.getName() + ": Needs at least one robot and a positive duration");
+			if (timeout < 0)
+				throw new IOException(file.getName() + ": The timeout can't be negative");
+		} // end Scenario()
+		
+		/**
+		 * Returns what the project's build is known by, since a project can be run both ways.
+		 */
+		protected String getBuildName()
+		{
+			return project + (embedded ? " (embedded)" : "");
+		}
+		
+		/**
+		 * Returns a setting without any comment after it.
+		 */
+		private static String getSetting(Properties properties, String key, String fallback)
+		{
+			String value = properties.getProperty(key);
+			if (value == null)
+				return fallback;
+			int comment = value.indexOf('#');
+			if (comment >= 0)
+				value = value.substring(0, comment);
+			value = value.trim();
+			return value.length() == 0 ? fallback : value;
+		}
+	} // end class Scenario
+	
+	/**
+	 * One run of a scenario with one seed, producing its line of results.
+	 */
+	protected static class Run implements Callable<String>
+	{
+		protected final Scenario scenario;
+		protected final File program;
+		protected final int seed;
+		protected final long timeout;
+		protected final File traceFile;
+		
+		/**
+		 * @param timeout The wall-clock time the run may take, in milliseconds.
+		 * @param traceFile Where to record the run's trace, or null to record none.
+		 */
+		protected Run(Scenario scenario, File program, int seed, long timeout, File traceFile)
+		{
+			this.scenario = scenario;
+			this.program = program;
+			this.seed = seed;
+			this.timeout = timeout;
+			this.traceFile = traceFile;
+		}
+		
+		public String call()
+		{
+			if (program == null)
+				return result("build failed", 0, null, null);
+			
+			long started = System.nanoTime();
+			CreateSimulatorCore core = new CreateSimulatorCore();
+			core.getWorld().setArena(scenario.arena);
+			VirtualClock clock = core.getClock();
+			
+			// Take part in the clock ourselves, so time can't pass before the controllers are going
+			clock.register();
+			Process[] processes = new Process[scenario.robots];
+			Thread[] repeaters = new Thread[scenario.robots];
+			EmbeddedController[] emulated = new EmbeddedController[scenario.robots];
+			Set<Long> covered = new HashSet<Long>();
+			TraceRecorder trace = null;
+			String status = "ok";
+			
+			// Past the timeout, wake this thread from whatever wait it's stuck in so the run can be stopped
+			final Thread runThread = Thread.currentThread();
+			final AtomicBoolean timedOut = new AtomicBoolean();
+			ScheduledFuture<?> alarm = watchdog.schedule(new Runnable()
+			{
+				public void run()
+				{
+					timedOut.set(true);
+					runThread.interrupt();
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+			try
+			{
+				if (!placeRobots(core))
+				{
+					status = "no room to start";
+					return result(status, System.nanoTime() - started, core, covered);
+				}
+				
+				// The first keyframe holds the starting poses, so a replay can start from the very beginning
+				if (traceFile != null)
+				{
+					trace = new TraceRecorder(traceFile, core.getTimestep());
+					core.setTrace(trace, KEYFRAME_INTERVAL);
+				}
+				
+				Vector<SimulatedRobot> robots = core.getRobots();
+				for (int r=0; r < robots.size(); r++)
+				{
+					if (scenario.embedded)
+					{
+						emulated[r] = new EmbeddedController(program);
+						emulated[r].setRobot(robots.get(r));
+						emulated[r].setClock(clock);
+						emulated[r].setScheduler(core.getScheduler());
+						emulated[r].startRobot();
+						continue;
+					}
+					ProcessBuilder builder = new ProcessBuilder(program.getAbsolutePath());
+					builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+					processes[r] = builder.start();
+					RobotRepeater repeater = new RobotRepeater(processes[r], robots.get(r));
+					repeater.setClock(clock);
+					repeater.setBaudRate(scenario.baudRate);
+					repeater.setLoopPeriod(core.getScheduler().getLoopPeriod());
+					repeater.setTrace(trace);
+					repeaters[r] = new Thread(repeater, scenario.name + "-" + seed + "-" + r);
+					repeaters[r].setDaemon(true);
+					repeaters[r].start();
+				}
+				
+				// Let the controllers run, stopping now and then to see where the robots have been
+				long end = core.getSimulatedTime() + scenario.duration;
+				while (core.getSimulatedTime() < end)
+				{
+					clock.sleep(Math.min(COVERAGE_INTERVAL, end - core.getSimulatedTime()));
+					if (Thread.currentThread().isInterrupted())
+					{
+						status = timedOut.get() ? "timeout" : "interrupted";
+						break;
+					}
+					markCoverage(core.getWorld(), covered);
+				}
+				return result(status, System.nanoTime() - started, core, covered);
+			}
+			catch (IOException er)
+			{
+				return result("can't start: " + er.getMessage(), System.nanoTime() - started, core, covered);
+			}
+			finally
+			{
+				// The alarm may have gone off on the way out; its interruption is over with now
+				alarm.cancel(false);
+				if (timedOut.get())
+					Thread.interrupted();
+				
+				// Kill the controllers and free any repeaters waiting on the clock
+				for (int r=0; r < processes.length; r++)
+				{
+					if (emulated[r] != null)
+						emulated[r].stopRobot();
+					if (processes[r] != null)
+						processes[r].destroy();
+					if (repeaters[r] != null)
+						repeaters[r].interrupt();
+				}
+				for (Thread repeater : repeaters)
+				{
+					try
+					{
+						if (repeater != null)
+							repeater.join();
+					}
+					catch (InterruptedException er)
+					{
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				clock.unregister();
+				if (trace != null)
+				{
+					core.setTrace(null, KEYFRAME_INTERVAL);
+					try
+					{
+						trace.close();
+					}
+					catch (IOException er)
+					{
+						System.err.println("Can't finish the trace " + traceFile + ": " + er.getMessage());
+					}
+				}
+				core.shutdown();
+			}
+		} // end call()
+		
+		/**
+		 * Adds the robots at random clear spots in the scenario's starting area, chosen by the seed.
+		 * @return False if there wasn't room for them all.
+		 */
+		private boolean placeRobots(CreateSimulatorCore core)
+		{
+			Random random = new Random(seed);
+			double radius = SimulatedRobot.ROBOT_RADIUS;
+			double[] xs = new double[scenario.robots], ys = new double[scenario.robots];
+			for (int r=0; r < scenario.robots; r++)
+			{
+				int tries = 0;
+				boolean clear;
+				do
+				{
+					if (++tries > PLACEMENT_TRIES)
+						return false;
+					xs[r] = scenario.area[0] + random.nextDouble() * (scenario.area[2] - scenario.area[0]);
+					ys[r] = scenario.area[1] + random.nextDouble() * (scenario.area[3] - scenario.area[1]);
+					clear = scenario.arena == null || (scenario.arena.nearestSegment(xs[r], ys[r], radius, Arena.WALL | Arena.CLIFF) < 0
+						&& !scenario.arena.isOverCliff(xs[r], ys[r]));
+					for (int other=0; clear && other < r; other++)
+					{
+						double dx = xs[r] - xs[other], dy = ys[r] - ys[other];
+						clear = dx*dx + dy*dy >= 4 * radius * radius;
+					}
+				} while (!clear);
+				core.addRobot(xs[r], ys[r], random.nextDouble() * 2 * Math.PI);
+			}
+			return true;
+		} // end placeRobots()
+		
+		/**
+		 * Marks the coverage cells under each robot.
+		 */
+		private static void markCoverage(WorldState world, Set<Long> covered)
+		{
+			double radius = SimulatedRobot.ROBOT_RADIUS;
+			int reach = (int)Math.ceil(radius / COVERAGE_CELL);
+			synchronized (world)
+			{
+				for (int id=0; id < world.getCount(); id++)
+				{
+					long cx = (long)Math.floor(world.getX(id) / COVERAGE_CELL);
+					long cy = (long)Math.floor(world.getY(id) / COVERAGE_CELL);
+					for (long gx=cx-reach; gx <= cx+reach; gx++)
+					{
+						for (long gy=cy-reach; gy <= cy+reach; gy++)
+						{
+							double dx = (gx + 0.5) * COVERAGE_CELL - world.getX(id);
+							double dy = (gy + 0.5) * COVERAGE_CELL - world.getY(id);
+							if (dx*dx + dy*dy <= radius * radius)
+								covered.add((gx << 32) ^ (gy & 0xffffffffL));
+						}
+					}
+				}
+			}
+		} // end markCoverage()
+		
+		private String result(String status, long nanos, CreateSimulatorCore core, Set<Long> covered)
+		{
+			int collisions = 0;
+			double used = 0;
+			double simulated = 0;
+			if (core != null)
+			{
+				WorldState world = core.getWorld();
+				synchronized (world)
+				{
+					for (int id=0; id < world.getCount(); id++)
+					{
+						collisions += world.getCollisions(id);
+						used += WorldState.BATTERY_CAPACITY - world.getCharge(id);
+					}
+				}
+				simulated = core.getSimulatedTime() * 1e-6;
+			}
+			double coverage = covered == null ? 0 : covered.size() * COVERAGE_CELL * COVERAGE_CELL * 1e-6;
+			return String.format(Locale.US, "%s,%d,%s,%d,%.1f,%d,%.2f,%.1f", scenario.name, seed, status.replace(',', ';'),
+				nanos / 1000000, simulated, collisions, coverage, used);
+		}
+	} // end class Run
+} // end class BatchRunner
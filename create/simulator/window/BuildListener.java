@@ -0,0 +1,23 @@
+package create.simulator.window;
+
+import create.simulator.utils.*;
+
+/**
+ * Told how a build requested from the BuildService is getting on.
+ * @author dvanhumb
+ */
+public interface BuildListener
+{
+	/**
+	 * Called with each step the build takes and each line the compiler writes.
+	 * @param message
+	 */
+	public void buildProgress(String message);
+	
+	/**
+	 * Called once the build is over.
+	 * @param project The project that was built.
+	 * @param problem Why the build failed, or null if it succeeded.
+	 */
+	public void buildFinished(CreateProject project, BuildProblem problem);
+}
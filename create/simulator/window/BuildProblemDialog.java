@@ -4,6 +4,7 @@ import create.simulator.utils.*;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.util.*;
 import javax.swing.*;
 
 public class BuildProblemDialog implements ActionListener
@@ -14,9 +15,12 @@ public class BuildProblemDialog implements ActionListener
 	
 	protected JLabel returnValue;
 	protected JTextArea errorMessage, commentMessage;
+	protected JList<Diagnostic> diagnosticList;
 	protected JTabbedPane messageTabs;
 	
-	protected JButton close;
+	protected JButton goTo, close;
+	
+	protected Vector<DiagnosticSelectionListener> listeners = new Vector<DiagnosticSelectionListener>();
 	
 	public BuildProblemDialog(JFrame parent)
 	{
@@ -35,14 +39,31 @@ public class BuildProblemDialog implements ActionListener
 		commentMessage.setEditable(false);
 		JScrollPane commentScroll = new JScrollPane(commentMessage);
 		
+		diagnosticList = new JList<Diagnostic>();
+		diagnosticList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		// Double-clicking a problem goes to it, as the Go to button does
+		diagnosticList.addMouseListener(new MouseAdapter()
+		{
+			public void mouseClicked(MouseEvent e)
+			{
+				if (e.getClickCount() == 2)
+					goToSelected();
+			}
+		});
+		JScrollPane diagnosticScroll = new JScrollPane(diagnosticList);
+		
+		goTo = new JButton("Go to problem");
+		goTo.addActionListener(this);
 		close = new JButton("Close");
 		close.addActionListener(this);
 		
 		messageTabs = new JTabbedPane();
+		messageTabs.add("Problems", diagnosticScroll);
 		messageTabs.add("Standard messages", commentScroll);
 		messageTabs.add("Error messages", errorScroll);
 		
 		JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+		buttonPanel.add(goTo);
 		buttonPanel.add(close);
 		
 		dialog.getContentPane().add(returnValue, BorderLayout.NORTH);
@@ -54,19 +75,57 @@ public class BuildProblemDialog implements ActionListener
 	
 	public void actionPerformed(ActionEvent e)
 	{
-		dialog.setVisible(false);
+		if (e.getSource() == goTo)
+			goToSelected();
+		else
+			dialog.setVisible(false);
+	}
+	
+	public void addDiagnosticSelectionListener(DiagnosticSelectionListener l)
+	{
+		listeners.add(l);
+	}
+	
+	public void removeDiagnosticSelectionListener(DiagnosticSelectionListener l)
+	{
+		listeners.remove(l);
 	}
 	
 	public void showMessage(BuildProblem problem)
 	{
-		returnValue.setText(String.format("Return value: %d", problem.getReturnValue()));
+		String summary = String.format("Return value: %d.  %d error%s, %d warning%s", problem.getReturnValue(),
+			problem.getErrorCount(), problem.getErrorCount() == 1 ? "" : "s",
+			problem.getWarningCount(), problem.getWarningCount() == 1 ? "" : "s");
+		Vector<Diagnostic> diagnostics = problem.getDiagnostics();
+		if (diagnostics.size() < problem.getErrorCount() + problem.getWarningCount())
+			summary += String.format(" (the first %d shown)", diagnostics.size());
+		returnValue.setText(summary);
 		
 		commentMessage.setText(problem.getCommentData());
 		errorMessage.setText(problem.getErrorData());
+		diagnosticList.setListData(diagnostics);
+		if (!diagnostics.isEmpty())
+			diagnosticList.setSelectedIndex(0);
+		goTo.setEnabled(!diagnostics.isEmpty());
 		
-		messageTabs.setSelectedIndex(0);
+		// Show the problems if any were found, otherwise whatever the compiler said
+		messageTabs.setSelectedIndex(diagnostics.isEmpty() ? 1 : 0);
 		
 		dialog.setLocationRelativeTo(parent);
 		dialog.setVisible(true);
 	}
+	
+	/**
+	 * Tells the listeners which problem was chosen, and gets out of the way so it can be fixed.
+	 */
+	protected void goToSelected()
+	{
+		Diagnostic diagnostic = diagnosticList.getSelectedValue();
+		if (diagnostic == null)
+			return;
+		
+		dialog.setVisible(false);
+		for (DiagnosticSelectionListener listener : listeners)
+			listener.diagnosticSelected(diagnostic);
+	}
 }
@@ -0,0 +1,307 @@
+package create.simulator.window;
+
+import create.simulator.utils.*;
+
+import java.util.*;
+
+import gnu.io.*;
+import javax.swing.*;
+
+/**
+ * Builds projects on a thread of its own, so the editor stays responsive while the compiler runs.
+ * Builds are run one at a time, in the order they're asked for.  Asking for a build that's already
+ *   waiting its turn doesn't add another; whoever asked is just told when that one finishes.  Asking
+ *   for a build that's already running waits for it to finish and builds again, since the sources may
+ *   have changed since it started.
+ * Listeners are called on the Swing event thread.  Progress messages arriving faster than the event
+ *   thread can show them are merged, so only the latest is shown.
+ * @author dvanhumb
+ */
+public class BuildService
+{
+	public static final int BUILD_SIMULATOR = 0;
+	public static final int BUILD_SERIAL = 1;
+	public static final int BUILD_EMBEDDED = 2;
+	public static final int DOWNLOAD_TO_ROBOT = 3;
+	
+	private static BuildService shared;
+	
+	protected Vector<Request> queue = new Vector<Request>();
+	protected Request current;
+	protected Thread worker;
+	
+	/**
+	 * Returns the service the editor windows share.
+	 * @return
+	 */
+	public static synchronized BuildService getShared()
+	{
+		if (shared == null)
+			shared = new BuildService();
+		return shared;
+	}
+	
+	/**
+	 * Asks for a project to be built.
+	 * @param project The project to build.
+	 * @param kind What to build it for: BUILD_SIMULATOR, BUILD_SERIAL or BUILD_EMBEDDED.
+	 * @param listener Who to tell how it goes.
+	 */
+	public void build(CreateProject project, int kind, BuildListener listener)
+	{
+		submit(new Request(project, kind, null), listener);
+	}
+	
+	/**
+	 * Asks for a project's embedded build to be downloaded to the Command Module.
+	 * @param project The project, which must already have been built for the Command Module.
+	 * @param port The serial port the Command Module is on.
+	 * @param listener Who to tell how it goes.
+	 */
+	public void download(CreateProject project, CommPortIdentifier port, BuildListener listener)
+	{
+		submit(new Request(project, DOWNLOAD_TO_ROBOT, port), listener);
+	}
+	
+	/**
+	 * Cancels every build of a project, stopping the one that's running and dropping any that are waiting.
+	 * @param project The project.
+	 * @return True if there was anything to cancel.
+	 */
+	public boolean cancel(CreateProject project)
+	{
+		Vector<Request> dropped = new Vector<Request>();
+		boolean stopped = false;
+		synchronized (queue)
+		{
+			for (Request request : queue)
+			{
+				if (request.isFor(project))
+					dropped.add(request);
+			}
+			queue.removeAll(dropped);
+			
+			if (current != null && current.isFor(project))
+			{
+				BuildProcess.cancelAll();
+				stopped = true;
+			}
+		}
+		
+		for (Request request : dropped)
+			request.finished(new BuildProblem(project, BuildProcess.MESSAGE_CANCELLED, BuildProcess.MESSAGE_CANCELLED, BuildProcess.RESULT_CANCELLED));
+		return stopped || !dropped.isEmpty();
+	} // end cancel()
+	
+	/**
+	 * Returns true if a project is being built or waiting to be.
+	 * @param project
+	 * @return
+	 */
+	public boolean isBuilding(CreateProject project)
+	{
+		synchronized (queue)
+		{
+			if (current != null && current.isFor(project))
+				return true;
+			for (Request request : queue)
+			{
+				if (request.isFor(project))
+					return true;
+			}
+			return false;
+		}
+	}
+	
+	protected void submit(Request request, BuildListener listener)
+	{
+		synchronized (queue)
+		{
+			// Merge with the same build if it hasn't started yet
+			for (Request waiting : queue)
+			{
+				if (waiting.isSameAs(request))
+				{
+					waiting.listeners.add(listener);
+					return;
+				}
+			}
+			request.listeners.add(listener);
+			queue.add(request);
+			
+			if (worker == null)
+			{
+				worker = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						runBuilds();
+					}
+				}, "Build service");
+				worker.setDaemon(true);
+				worker.start();
+			}
+			queue.notifyAll();
+		}
+	} // end submit()
+	
+	/**
+	 * Runs the builds as they're asked for, forever.
+	 */
+	protected void runBuilds()
+	{
+		while (true)
+		{
+			final Request request;
+			synchronized (queue)
+			{
+				while (queue.isEmpty())
+				{
+					try
+					{
+						queue.wait();
+					}
+					catch (InterruptedException er) { }
+				}
+				request = queue.remove(0);
+				current = request;
+				BuildProcess.clearCancel();
+			}
+			
+			BuildProcess.setListener(new BuildListener()
+			{
+				public void buildProgress(String message)
+				{
+					request.progress(message);
+				}
+				
+				public void buildFinished(CreateProject project, BuildProblem problem)
+				{
+				}
+			});
+			BuildProblem problem = null;
+			try
+			{
+				request.run();
+			}
+			catch (BuildProblem er)
+			{
+				problem = er;
+			}
+			catch (RuntimeException er)
+			{
+				problem = new BuildProblem(request.project, "The build failed unexpectedly.", er.toString(), -2);
+			}
+			finally
+			{
+				BuildProcess.setListener(null);
+				synchronized (queue)
+				{
+					current = null;
+				}
+			}
+			request.finished(problem);
+		}
+	} // end runBuilds()
+	
+	/**
+	 * One build asked for, with everyone waiting to hear how it goes.
+	 */
+	protected static class Request
+	{
+		protected CreateProject project;
+		protected int kind;
+		protected CommPortIdentifier port;
+		protected Vector<BuildListener> listeners = new Vector<BuildListener>();
+		// The latest progress message not shown yet, if one's been passed to the event thread:
+		private String pendingMessage;
+		
+		public Request(CreateProject project, int kind, CommPortIdentifier port)
+		{
+			this.project = project;
+			this.kind = kind;
+			this.port = port;
+		}
+		
+		public boolean isFor(CreateProject other)
+		{
+			return project.getProjectName().equals(other.getProjectName());
+		}
+		
+		public boolean isSameAs(Request other)
+		{
+			return isFor(other.project) && kind == other.kind && port == other.port;
+		}
+		
+		public void run() throws BuildProblem
+		{
+			switch (kind)
+			{
+			case BUILD_SIMULATOR:
+				BuildProcess.report("Building " + project.getProjectName() + " for the simulator");
+				project.buildSimulatorProject();
+				break;
+			case BUILD_SERIAL:
+				BuildProcess.report("Building " + project.getProjectName() + " for serial control");
+				project.buildSerialProject();
+				break;
+			case BUILD_EMBEDDED:
+				BuildProcess.report("Building " + project.getProjectName() + " for the Command Module");
+				project.buildEmbeddedProject();
+				break;
+			case DOWNLOAD_TO_ROBOT:
+				BuildProcess.report("Downloading " + project.getProjectName() + " to the Command Module");
+				project.downloadToRobot(port);
+				break;
+			}
+		}
+		
+		/**
+		 * Passes a progress message to the listeners, unless they're still behind on the last one.
+		 */
+		public void progress(String message)
+		{
+			synchronized (this)
+			{
+				boolean scheduled = pendingMessage != null;
+				pendingMessage = message;
+				if (scheduled)
+					return;
+			}
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					String message;
+					synchronized (Request.this)
+					{
+						message = pendingMessage;
+						pendingMessage = null;
+					}
+					for (BuildListener listener : getListeners())
+						listener.buildProgress(message);
+				}
+			});
+		}
+		
+		public void finished(final BuildProblem problem)
+		{
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					for (BuildListener listener : getListeners())
+						listener.buildFinished(project, problem);
+				}
+			});
+		}
+		
+		private BuildListener[] getListeners()
+		{
+			synchronized (listeners)
+			{
+				return listeners.toArray(new BuildListener[listeners.size()]);
+			}
+		}
+	} // end class Request
+} // end class BuildService
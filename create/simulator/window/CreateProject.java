@@ -30,6 +30,18 @@ public class CreateProject
 	 */
 	protected Vector<String> moduleNames;
 	
+	/**
+	 * Matches the same files as SourceFileFilter, without being a Swing FileFilter,
+	 *   so projects can be built headless.
+	 */
+	private static final FilenameFilter MODULE_FILTER = new FilenameFilter()
+	{
+		public boolean accept(File dir, String name)
+		{
+			return name.toLowerCase().endsWith(".cc") && new File(dir, name).isFile();
+		}
+	};
+	
 	protected CreateProject(File projectFolder)
 	{
 		projectName = projectFolder.getName();
@@ -45,7 +57,7 @@ public class CreateProject
 		
 		// Load information about each module
 		moduleNames = new Vector<String>();
-		for (String module : sourceFolder.list(SourceFileFilter.getSingleton()))
+		for (String module : sourceFolder.list(MODULE_FILTER))
 			moduleNames.add(module);
 	}
 	
@@ -74,66 +86,55 @@ public class CreateProject
 		// If we're running Linux, try compiling with GCC:
 		if (MainLauncher.getRuntimePlatform() == Platform.LINUX)
 		{
-			File mainSource = null;
-			File header1 = null, header2 = null;
+			File binary = new File(localBinFolder, getProjectName());
+			BuildCache cache = BuildCache.getShared();
 			
 			// Try compiling the project under Linux using GCC:
 			try
 			{
-				Runtime runtime = Runtime.getRuntime();
-				
-				// Copy the source library into the project folder
 				String[] modules = getModuleNames();
+				// The runtime library is compiled once and linked in, so only the modules are compiled here
+				File runtimeObject = RuntimeLibrary.getLocalObject(this);
+				ModuleBuilder builder = new ModuleBuilder(this, sourceFolder, localBinFolder, runtimeObject);
 				
-				mainSource = new File(sourceFolder, FileNabber.FILE_MAIN);
-				header1 = new File(sourceFolder, FileNabber.FILE_HEADER_CM);
-				header2 = new File(sourceFolder, FileNabber.FILE_HEADER_OI);
+				// Skip the whole build if nothing that goes into it has changed
+				String key = BuildCache.computeKey(sourceFolder, modules, builder.getCommand(), RuntimeLibrary.COMPILER);
+				if (cache.check(binary, key))
+					return;
+				cache.invalidate(binary);
+				long started = System.currentTimeMillis();
 				
-				// Copy the main file,
-				PrintStream main = new PrintStream(new FileOutputStream(mainSource));
-				main.println("#include \"cm.h\"");
-				for (String module : modules)
+				// Compile the modules that have changed on their own, then link them all
+				boolean compiled = false;
+				try
 				{
-					// This prevents infinite loops:
-					if (!module.equals(FileNabber.FILE_MAIN))
-						main.printf("#include \"%s\"\n", module);
+					builder.compile(modules);
+					compiled = true;
+					builder.link(modules, binary);
 				}
-				CreateUtils.copyFile(FileNabber.FILE_MAIN, main);
-				main.flush();
-				main.close();
-				
-				// Copy the headers.
-				CreateUtils.copyFile(FileNabber.FILE_HEADER_CM, header1);
-				CreateUtils.copyFile(FileNabber.FILE_HEADER_OI, header2);
-				
-				// Try to compile the files
-				String command = String.format("g++ -DMODE_LOCAL -o ..%s%s%s%s %s", File.separator, localBinFolder.getName(), File.separator, getProjectName(), FileNabber.FILE_MAIN);
-				
-				Process compiler = runtime.exec(command, null, sourceFolder);
-				InputStream stdIn = compiler.getInputStream();
-				InputStream errIn = compiler.getErrorStream();
-				Integer result = null;
-				try {
-					result = compiler.waitFor();
-				} catch (InterruptedException er) { }
-				
-				if (result != 0)
+				catch (BuildProblem problem)
 				{
-					// Something failed
-					throw new BuildProblem(this, new BufferedReader(new InputStreamReader(stdIn)), new BufferedReader(new InputStreamReader(errIn)), result);
+					// Modules written to be included into one file may use each other's declarations, or
+					//   share a header that defines functions, which only links once; those still build
+					//   as they always have
+					if (!compiled && !isDeclarationProblem(problem))
+						throw problem;
+					try
+					{
+						compileWholeProject(modules, runtimeObject);
+					}
+					catch (BuildProblem wholeProblem)
+					{
+						// The modules' own problems name the modules, rather than the main file including them
+						throw problem;
+					}
 				}
+				cache.store(binary, key, System.currentTimeMillis() - started);
 			}
 			catch (IOException er)
 			{
 				throw new BuildProblem(this, "File I/O error.", er.getMessage(), -2);
 			}
-			finally
-			{
-				// Delete the files we added:
-				if (mainSource != null) mainSource.delete();
-				if (header1 != null) header1.delete();
-				if (header2 != null) header2.delete();
-			}
 //			return new BuildProblem(this, "Compiler failed.", "Unhandled error ocurred.", -1);
 		}
 		else
@@ -143,6 +144,62 @@ public class CreateProject
 		}
 	} // end compileLocalProblem()
 	
+	/**
+	 * Compiles every module for local execution as one file, the way projects were always built,
+	 *   for projects whose modules don't compile on their own.
+	 */
+	private void compileWholeProject(String[] modules, File runtimeObject) throws BuildProblem, IOException
+	{
+		File mainSource = new File(sourceFolder, FileNabber.FILE_MAIN);
+		try
+		{
+			// Write a main file including every module,
+			PrintStream main = new PrintStream(new FileOutputStream(mainSource));
+			main.println("#include \"cm.h\"");
+			for (String module : modules)
+			{
+				// This prevents infinite loops:
+				if (!module.equals(FileNabber.FILE_MAIN))
+					main.printf("#include \"%s\"\n", module);
+			}
+			main.flush();
+			main.close();
+			
+			// The headers are kept with the runtime library
+			String[] command = {RuntimeLibrary.COMPILER, RuntimeLibrary.LOCAL_FLAGS, "-I" + runtimeObject.getParent(),
+					"-o", ".." + File.separator + localBinFolder.getName() + File.separator + getProjectName(),
+					FileNabber.FILE_MAIN, runtimeObject.getAbsolutePath()};
+			BuildProcess.report("Compiling every module together");
+			BuildProblem problem = BuildProcess.run(command, sourceFolder).getProblem(this);
+			if (problem != null)
+				throw problem;
+		}
+		finally
+		{
+			// Delete the file we added:
+			mainSource.delete();
+		}
+	} // end compileWholeProject()
+	
+	/**
+	 * Returns true if every error in a problem is one gcc gives for a name declared in another module,
+	 *   which compiling the modules together would fix.
+	 */
+	private static boolean isDeclarationProblem(BuildProblem problem)
+	{
+		if (problem.getErrorCount() == 0 || problem.getErrorCount() > problem.getDiagnostics().size())
+			return false;
+		for (Diagnostic diagnostic : problem.getDiagnostics())
+		{
+			if (!diagnostic.isError())
+				continue;
+			String message = diagnostic.getMessage();
+			if (!message.contains("was not declared") && !message.contains("has not been declared") && !message.contains("does not name a type"))
+				return false;
+		}
+		return true;
+	} // end isDeclarationProblem()
+	
 	/**
 	 * Compiles the current code for execution on the Command Module.
 	 * @return If there's a problem, returns a BuildProblem object.
@@ -154,181 +211,16 @@ public class CreateProject
 	
 	private void compileEmbeddedProject() throws BuildProblem
 	{
-		// If we're running Linux, try compiling with GCC:
+		// If we're running Linux, try compiling with AVR-GCC:
 		if (MainLauncher.getRuntimePlatform() == Platform.LINUX)
 		{
-			/*
-			File mainSource = null;
-			File header1 = null, header2 = null;
-			
-			// Try compiling the project under Linux using AVR-GCC:
 			try
 			{
-				// Copy the source library into the project folder
-				String[] modules = getModuleNames();
-				
-				mainSource = new File(sourceFolder, FileNabber.FILE_MAIN);
-				header1 = new File(sourceFolder, FileNabber.FILE_HEADER_CM);
-				header2 = new File(sourceFolder, FileNabber.FILE_HEADER_OI);
-				
-				// Copy the main file,
-				PrintStream main = new PrintStream(new FileOutputStream(mainSource));
-				main.print("#include \"cm.h\"\n");
-				for (String module : modules)
-				{
-					// This prevents infinite loops:
-					if (!module.equals(FileNabber.FILE_MAIN))
-						main.printf("#include \"%s\"\n", module);
-				}
-				CreateUtils.copyFile(FileNabber.FILE_MAIN, main);
-				main.flush();
-				main.close();
-				
-				// Copy the headers.
-				CreateUtils.copyFile(FileNabber.FILE_HEADER_CM, header1);
-				CreateUtils.copyFile(FileNabber.FILE_HEADER_OI, header2);
-				
-				/*
-				 * Compile: Done
-				 * avr-g++ -c -mmcu=atmega168 -I. -gdwarf-2 -DF_CPU=18432000UL  -Os -funsigned-char -funsigned-bitfields -fpack-struct -fshort-enums -Wall -Wstrict-prototypes -Wa,-adhlns={$project}.lst  -std=gnu99 -MD -MP -MF .dep/{$project}.o.d {$source} -o {$project}.o
-				 * 
-				 * Link:
-				 * avr-g++ -mmcu=atmega168 -I. -gdwarf-2 -DF_CPU=18432000UL  -Os -funsigned-char -funsigned-bitfields -fpack-struct -fshort-enums -Wall -Wstrict-prototypes -Wa,-adhlns={$project}.o  -std=gnu99 -MD -MP -MF .dep/{$project}.elf.d {$project}.o --output {$project}.elf -Wl,-Map={$project}.map,--cref -lm
-				 * 
-				 * Creating load file for Flash:
-				 * avr-objcopy -O ihex -R .eeprom {$project}.elf {$project}.hex
-				 * 
-				 * Creating load file for EEPROM:
-				 * avr-objcopy -j .eeprom --set-section-flags=.eeprom="alloc,load" --change-section-lma .eeprom=0 -O ihex {$project}.elf {$project}.eep
-				 * 
-				 * Creating extended listing:
-				 * avr-objdump -h -S {$project}.elf > {$project}.lss
-				 * 
-				 * Creating symbol table:
-				 * avr-nm -n {$project}.elf > {$project}.sym
-				 * /
-				
-				// Compile the files
-				String command;
-				BuildProblem problem = null;
-				
-//				command = String.format("avr-g++ -DMODE_EMBEDDED -c -mmcu=atmega168 -I. -gdwarf-2 -DF_CPU=18432000UL -Os -funsigned-char -funsigned-bitfields -fpack-struct -fshort-enums -Wall -Wa,-adhlns=%s.lst -MD -MP -MF .dep/%s.o.d %s -o %s.o", projectName, projectName, FileNabber.FILE_MAIN, projectName);
-				command = String.format("avr-g++ -DMODE_EMBEDDED -c -mmcu=atmega168 -I. -gdwarf-2 -DF_CPU=18432000UL -Os -funsigned-char -funsigned-bitfields -fpack-struct -fshort-enums -Wall -Wa,-adhlns=../ebin/%s.lst -MD -MP %s -o ../ebin/%s.o", projectName, FileNabber.FILE_MAIN, projectName);
-				System.out.println(command);
-				problem = runProgram(command, sourceFolder);
-				if (problem != null)
-					return problem;
-				
-				// Link the files:
-				command = String.format("avr-g++ -mmcu=atmega168 -I. -gdwarf-2 -DF_CPU=18432000UL  -Os -funsigned-char -funsigned-bitfields -fpack-struct -fshort-enums -Wall -Wstrict-prototypes -Wa,-adhlns=%s.o  -std=gnu99 -MD -MP -MF .dep/%s.elf.d %s.o --output %s.elf -Wl,-Map=%s.map,--cref -lm", projectName, projectName, projectName, projectName, projectName);
-				System.out.println(command);
-				problem = runProgram(command, embeddedBinFolder);
-				if (problem != null)
-					return problem;
-				
-				// Create a load file for Flash ROMs:
-				command = String.format("avr-objcopy -O ihex -R .eeprom %s.elf %s.hex", projectName, projectName);
-				System.out.println(command);
-				problem = runProgram(command, embeddedBinFolder);
-				if (problem != null)
-					return problem;
-				
-				// Create a load file for EEPROMs:
-				command = String.format("avr-objcopy -j .eeprom --set-section-flags=.eeprom=alloc,load --change-section-lma .eeprom=0 -O ihex %s.elf %s.eep", projectName, projectName);
-				System.out.println(command);
-				problem = runProgram(command, embeddedBinFolder);
-				if (problem != null)
-					return problem;
-				
-				// Create an extended listing:
-				command = String.format("avr-objdump -h -S %s.elf", projectName);
-				System.out.println(command);
-				problem = runProgramDirected(command, embeddedBinFolder, new File(embeddedBinFolder, projectName+".lss"));
-				if (problem != null)
-					return problem;
-				
-				// Create the symbol table:
-				command = String.format("avr-nm -n %s.elf", projectName);
-				System.out.println(command);
-				problem = runProgramDirected(command, embeddedBinFolder, new File(embeddedBinFolder, projectName+".sym"));
-				if (problem != null)
-					return problem;
-				
-				// If we got here, we succeeded
-				return null;
-			}
-			catch (IOException er)
-			{
-				return new BuildProblem(this, "File I/O error.", er.getMessage(), -2);
-			}
-			finally
-			{
-				// Delete the files we added:
-				if (mainSource != null) mainSource.delete();
-				if (header1 != null) header1.delete();
-				if (header2 != null) header2.delete();
-			}
-//			return new BuildProblem(this, "Compiler failed.", "Unhandled error occurred.", -1);
-			 */
-			// TEMP: Launch the Makefile instead of directly running the commands
-			
-			File fileMain, fileHeaderCm, fileHeaderOi;
-			try
-			{
-				// Clean out the embedded binary folder:
-				for (String module : embeddedBinFolder.list())
-					(new File(embeddedBinFolder, module)).delete();
-				
-				// Copy the source library into the project folder
-				String[] modules = getModuleNames();
-				
-				fileMain = new File(embeddedBinFolder, projectName+".cpp");
-				fileHeaderCm = new File(embeddedBinFolder, FileNabber.FILE_HEADER_CM);
-				fileHeaderOi = new File(embeddedBinFolder, FileNabber.FILE_HEADER_OI);
-				
-				// Copy the main file,
-				PrintStream main = new PrintStream(new FileOutputStream(fileMain));
-				main.print("#include \"cm.h\"\n");
-				// Dump all the source files into the main module
-				for (String module : modules)
-				{
-					main.printf("// Source file %s:\n", module);
-					CreateUtils.copyFile(new File(sourceFolder, module), main);
-				}
-				CreateUtils.copyFile(FileNabber.FILE_MAIN, main);
-				main.flush();
-				main.close();
-				
-				// Copy the headers.
-				CreateUtils.copyFile(FileNabber.FILE_HEADER_CM, fileHeaderCm);
-				CreateUtils.copyFile(FileNabber.FILE_HEADER_OI, fileHeaderOi);
-				
-				// Copy all the project source files:
-//				for (String module : modules)
-//				{
-//					CreateUtils.copyFile(new File(sourceFolder, module), new File(embeddedBinFolder, module));
-//				}
-				
-				// Copy the Makefile:
-				PrintStream makefile = new PrintStream(new FileOutputStream(new File(embeddedBinFolder, "Makefile")));
-				makefile.printf("TARGET = %s\n", projectName);
-				CreateUtils.copyFile(FileNabber.FILE_MAKEFILE, makefile);
-//				BufferedReader makefileIn = new BufferedReader(new InputStreamReader(FileNabber.getFile(FileNabber.FILE_MAKEFILE)));
-//				String line;
-//				while ((line = makefileIn.readLine()) != null)
-//					makefile.println(line.replace("$(TARGET)", projectName));
-				makefile.flush();
-				makefile.close();
-				
-				// Run the makefile:
-				BuildProblem problem;
-				problem = runProgram("make", embeddedBinFolder);
-				if (problem != null)
-					throw problem;
+				new EmbeddedBuilder(this, sourceFolder, embeddedBinFolder).build(getModuleNames());
 			}
 			catch (IOException er)
 			{
-				
+				throw new BuildProblem(this, "File I/O error.", er.getMessage(), -2);
 			}
 		}
 		else
@@ -338,83 +230,15 @@ public class CreateProject
 		}
 	} // end compileEmbeddedProject()
 	
-	private BuildProblem runProgram(String command, File folder) throws IOException
-	{
-		Process compiler = Runtime.getRuntime().exec(command, null, folder);
-		InputStream stdIn = compiler.getInputStream();
-		InputStream errIn = compiler.getErrorStream();
-		Integer result = null;
-		try {
-			result = compiler.waitFor();
-		} catch (InterruptedException er) { }
-		
-		if (result == 0)
-		{
-			// We succeeded
-			return null;
-		}
-		else
-		{
-			// Something failed
-			return new BuildProblem(this, new BufferedReader(new InputStreamReader(stdIn)), new BufferedReader(new InputStreamReader(errIn)), result);
-		}
-	} // end runProgram(command, folder)
-	
-	protected BuildProblem runProgramDirected(String command, File folder, File output) throws IOException
-	{
-		Process compiler = Runtime.getRuntime().exec(new String[]{"/bin/sh", "-c", command}, null, folder);
-		
-		InputStream stdIn = compiler.getInputStream();
-		InputStream errIn = compiler.getErrorStream();
-		Integer result = null;
-		try {
-			result = compiler.waitFor();
-		} catch (InterruptedException er) {}
-		
-		// Pipe the stdIn into the output given
-		FileOutputStream out = new FileOutputStream(output);
-		byte[] buffer = new byte[1024];
-		int bytesRead;
-		while ((bytesRead = stdIn.read(buffer)) != -1)
-		{
-			out.write(buffer, 0, bytesRead);
-		}
-		out.flush();
-		out.close();
-		
-		if (result == 0)
-		{
-			// We succeeded
-			return null;
-		}
-		else
-		{
-			// Something failed
-			return new BuildProblem(this, new BufferedReader(new InputStreamReader(stdIn)), new BufferedReader(new InputStreamReader(errIn)), result);
-		}
-	} // end runProgram(command, folder, output)
-	
 	public void downloadToRobot(CommPortIdentifier id) throws BuildProblem
 	{
-		String portName = id.getName();
-		
-		// Copy the Makefile over again, setting the port id this time:
 		try
 		{
-			PrintStream makefile = new PrintStream(new FileOutputStream(new File(embeddedBinFolder, FileNabber.FILE_MAKEFILE)));
-			makefile.printf("AVRDUDE_PORT = %s\n", portName);
-			CreateUtils.copyFile(FileNabber.FILE_MAKEFILE, makefile);
-			makefile.flush();
-			makefile.close();
-			
-			BuildProblem problem = null;
-			problem = runProgram("make program", embeddedBinFolder);
-			if (problem != null)
-				throw problem;
+			new EmbeddedBuilder(this, sourceFolder, embeddedBinFolder).download(id.getName());
 		}
 		catch (IOException er)
 		{
-			
+			throw new BuildProblem(this, "File I/O error.", er.getMessage(), -2);
 		}
 	} // end downloadToRobot(CommPortIdentifier)
 	
@@ -482,7 +306,7 @@ public class CreateProject
 	 */
 	public String[] getModuleNames()
 	{
-		return sourceFolder.list(SourceFileFilter.getSingleton());
+		return sourceFolder.list(MODULE_FILTER);
 	}
 	
 	/**
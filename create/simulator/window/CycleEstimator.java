@@ -0,0 +1,431 @@
+package create.simulator.window;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Estimates how many clock cycles the Command Module takes to run each function, and so how long
+ *   each pass through loop() takes, from the listing the embedded build makes.
+ * Each function is split into basic blocks, and the estimate is the slowest way through them,
+ *   taking every branch the slower way and adding what each call costs.  A loop is counted once,
+ *   since how many times it goes round can't be told from the code, except for the loops that wait
+ *   on the serial port: each of those waits for one character to be sent or received at the baud
+ *   rate, so reading a sensor costs the round trip to the robot.  The timer interrupt that counts
+ *   milliseconds is added for each millisecond the pass takes.
+ * The baud rate defaults to the 57600 the runtime sets up, and can be changed with the
+ *   "createSimulator.baudRate" system property for programs that call cm_baud_rate().
+ * @author dvanhumb
+ */
+public class CycleEstimator
+{
+	public static final long CLOCK = 18432000;
+	public static final int DEFAULT_BAUD = 57600;
+	public static final String BAUD_PROPERTY = "createSimulator.baudRate";
+	// A start bit, eight data bits and a stop bit:
+	public static final int BITS_PER_CHARACTER = 10;
+	// The timer 1 compare interrupt, which the runtime sets to fire every millisecond:
+	public static final String TIMER_INTERRUPT = "__vector_11";
+	
+	// Where UCSR0A, the serial port's status register, is in the data space:
+	private static final String UCSR0A = "0x00c0";
+	
+	// "  94:	cf 93       	push	r28":
+	private static final Pattern INSTRUCTION = Pattern.compile("^\\s*([0-9a-fA-F]+):\\t([0-9a-fA-F ]+)\\t(\\S+)(?:\\t(.*))?$");
+	// "; 0xaa <main+0x4>", the target of a branch:
+	private static final Pattern BRANCH_TARGET = Pattern.compile(";\\s*0x([0-9a-fA-F]+)");
+	
+	private static final Map<String, Integer> CYCLES = new HashMap<String, Integer>();
+	static
+	{
+		// Everything else takes one cycle
+		for (String mnemonic : new String[] {"adiw", "sbiw", "mul", "muls", "mulsu", "fmul", "fmuls", "fmulsu",
+				"ld", "ldd", "st", "std", "lds", "sts", "push", "pop", "cbi", "sbi", "rjmp", "ijmp"})
+			CYCLES.put(mnemonic, 2);
+		for (String mnemonic : new String[] {"jmp", "rcall", "icall", "lpm", "elpm"})
+			CYCLES.put(mnemonic, 3);
+		for (String mnemonic : new String[] {"call", "ret", "reti", "spm"})
+			CYCLES.put(mnemonic, 4);
+	}
+	
+	protected int baud;
+	protected Map<String, Function> functions = new LinkedHashMap<String, Function>();
+	protected Set<String> recursive = new TreeSet<String>();
+	
+	/**
+	 * One instruction in the listing.
+	 */
+	protected static class Instruction
+	{
+		protected long address;
+		protected int size;
+		protected String mnemonic, operands;
+		protected long target = -1;
+		protected String callee;
+		
+		public boolean isBranch()
+		{
+			return mnemonic.startsWith("br");
+		}
+		
+		public boolean isSkip()
+		{
+			return mnemonic.equals("cpse") || mnemonic.equals("sbrc") || mnemonic.equals("sbrs") || mnemonic.equals("sbic") || mnemonic.equals("sbis");
+		}
+		
+		public boolean isJump()
+		{
+			return mnemonic.equals("rjmp") || mnemonic.equals("jmp");
+		}
+		
+		public boolean isCall()
+		{
+			return mnemonic.equals("call") || mnemonic.equals("rcall");
+		}
+		
+		public boolean isReturn()
+		{
+			return mnemonic.equals("ret") || mnemonic.equals("reti");
+		}
+		
+		public int getCycles()
+		{
+			Integer cycles = CYCLES.get(mnemonic);
+			return cycles == null ? 1 : cycles;
+		}
+	} // end class Instruction
+	
+	/**
+	 * A function's instructions and what's been worked out about them.
+	 */
+	public static class Function
+	{
+		protected String name;
+		protected Vector<Instruction> instructions = new Vector<Instruction>();
+		// The index of the first instruction of each basic block, in order:
+		protected Vector<Integer> blocks = new Vector<Integer>();
+		protected int loops, serialWaits;
+		protected boolean indirect;
+		// The slowest way through, including what it calls, or -1 until it's worked out:
+		protected long worst = -1;
+		
+		public String getName()
+		{
+			return name;
+		}
+		
+		public long getWorstCycles()
+		{
+			return worst;
+		}
+		
+		/**
+		 * Returns how many loops the estimate counts only once, not counting those waiting on the serial port.
+		 * @return
+		 */
+		public int getUncountedLoops()
+		{
+			return loops;
+		}
+	} // end class Function
+	
+	/**
+	 * Reads a build's listing and estimates every function in it.
+	 * @param listingFile The output of objdump -S -C.
+	 * @return The estimates.
+	 * @throws IOException If the listing can't be read.
+	 */
+	public static CycleEstimator estimate(File listingFile) throws IOException
+	{
+		CycleEstimator estimator = new CycleEstimator();
+		estimator.readListing(listingFile);
+		for (Function function : estimator.functions.values())
+			estimator.getWorstCycles(function.name, new HashSet<String>());
+		return estimator;
+	}
+	
+	public CycleEstimator()
+	{
+		baud = Integer.getInteger(BAUD_PROPERTY, DEFAULT_BAUD);
+	}
+	
+	public void setBaud(int baud)
+	{
+		this.baud = baud;
+	}
+	
+	/**
+	 * Returns how many cycles it takes the serial port to send or receive one character.
+	 * @return
+	 */
+	public long getCharacterCycles()
+	{
+		return CLOCK * BITS_PER_CHARACTER / baud;
+	}
+	
+	public void readListing(File file) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			Function function = null;
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				Matcher match = FootprintAnalyzer.LABEL.matcher(line);
+				if (match.matches())
+				{
+					function = new Function();
+					function.name = match.group(2);
+					functions.put(function.name, function);
+					continue;
+				}
+				
+				match = INSTRUCTION.matcher(line);
+				if (!match.matches() || function == null)
+					continue;
+				Instruction instruction = new Instruction();
+				instruction.address = Long.parseLong(match.group(1), 16);
+				instruction.size = match.group(2).trim().split("\\s+").length;
+				instruction.mnemonic = match.group(3);
+				instruction.operands = match.group(4) == null ? "" : match.group(4);
+				if (instruction.isBranch() || instruction.isJump())
+				{
+					Matcher target = BRANCH_TARGET.matcher(instruction.operands);
+					if (target.find())
+						instruction.target = Long.parseLong(target.group(1), 16);
+				}
+				if (instruction.isCall() || instruction.isJump())
+				{
+					Matcher target = FootprintAnalyzer.TARGET.matcher(instruction.operands);
+					if (target.find() && target.group(2) == null && !(instruction.isJump() && target.group(1).equals(function.name)))
+						instruction.callee = target.group(1);
+				}
+				if (instruction.mnemonic.equals("icall") || instruction.mnemonic.equals("eicall"))
+					function.indirect = true;
+				function.instructions.add(instruction);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		
+		for (Function each : functions.values())
+			findBlocks(each);
+	} // end readListing()
+	
+	/**
+	 * Splits a function into basic blocks, and counts its loops.
+	 */
+	protected void findBlocks(Function function)
+	{
+		Vector<Instruction> instructions = function.instructions;
+		Set<Integer> leaders = new TreeSet<Integer>();
+		if (!instructions.isEmpty())
+			leaders.add(0);
+		for (int i=0; i < instructions.size(); i++)
+		{
+			Instruction instruction = instructions.get(i);
+			if (instruction.isBranch() || instruction.isSkip() || instruction.isJump() || instruction.isReturn() || instruction.mnemonic.equals("ijmp"))
+			{
+				if (i + 1 < instructions.size())
+					leaders.add(i + 1);
+				if (instruction.isSkip() && i + 2 < instructions.size())
+					leaders.add(i + 2);
+				int target = indexOf(function, instruction.target);
+				if (target >= 0)
+					leaders.add(target);
+				
+				// A jump back is the end of a loop
+				if (target >= 0 && target <= i)
+				{
+					if (waitsOnSerial(function, target, i))
+						function.serialWaits++;
+					else
+						function.loops++;
+				}
+			}
+		}
+		function.blocks.addAll(leaders);
+	} // end findBlocks()
+	
+	private boolean waitsOnSerial(Function function, int from, int to)
+	{
+		for (int i=from; i <= to; i++)
+		{
+			Instruction instruction = function.instructions.get(i);
+			if (instruction.mnemonic.equals("lds") && instruction.operands.toLowerCase().contains(UCSR0A))
+				return true;
+		}
+		return false;
+	}
+	
+	private static int indexOf(Function function, long address)
+	{
+		if (address < 0)
+			return -1;
+		for (int i=0; i < function.instructions.size(); i++)
+		{
+			if (function.instructions.get(i).address == address)
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the slowest way through a function, including what it calls.
+	 * Working back from the end, each instruction's cost is its own plus the slower of where it can
+	 *   go next; going back to the start of a loop costs nothing more, so each loop is counted once.
+	 */
+	protected long getWorstCycles(String name, Set<String> visiting)
+	{
+		Function function = functions.get(name);
+		if (function == null)
+			return 0;
+		if (function.worst >= 0)
+			return function.worst;
+		if (!visiting.add(name))
+		{
+			recursive.add(name);
+			return 0;
+		}
+		
+		Vector<Instruction> instructions = function.instructions;
+		long[] cost = new long[instructions.size() + 1];
+		for (int i=instructions.size() - 1; i >= 0; i--)
+		{
+			Instruction instruction = instructions.get(i);
+			long next = cost[i + 1];
+			int target = indexOf(function, instruction.target);
+			long onward = target > i ? cost[target] : 0;
+			
+			if (instruction.isReturn())
+				cost[i] = instruction.getCycles();
+			else if (instruction.isBranch())
+				cost[i] = Math.max(1 + next, 2 + onward);
+			else if (instruction.isSkip())
+			{
+				// Skipping a two-word instruction takes a cycle more than skipping a one-word one
+				int skipped = i + 2 <= instructions.size() ? i + 2 : instructions.size();
+				int words = i + 1 < instructions.size() ? instructions.get(i + 1).size / 2 : 1;
+				cost[i] = Math.max(1 + next, 1 + words + cost[skipped]);
+			}
+			else if (instruction.isJump())
+			{
+				// A jump to another function is a tail call, which returns for us
+				if (instruction.callee != null && target < 0)
+					cost[i] = instruction.getCycles() + getWorstCycles(instruction.callee, visiting);
+				else
+					cost[i] = instruction.getCycles() + onward;
+			}
+			else if (instruction.isCall())
+				cost[i] = instruction.getCycles() + (instruction.callee == null ? 0 : getWorstCycles(instruction.callee, visiting)) + next;
+			else
+				cost[i] = instruction.getCycles() + next;
+		}
+		visiting.remove(name);
+		
+		function.worst = (instructions.isEmpty() ? 0 : cost[0]) + function.serialWaits * getCharacterCycles();
+		return function.worst;
+	} // end getWorstCycles()
+	
+	/**
+	 * Returns the slowest pass through loop(), in cycles, including calling it and the timer interrupts during it.
+	 * If loop() was built into main(), main()'s slowest pass is used, which includes setting up.
+	 * @return
+	 */
+	public long getLoopPeriodCycles()
+	{
+		Function loop = functions.get("loop()");
+		long cycles;
+		if (loop != null)
+			// main()'s call, and the jump back to make it again
+			cycles = CYCLES.get("call") + loop.worst + CYCLES.get("rjmp");
+		else if (functions.containsKey("main"))
+			cycles = functions.get("main").worst;
+		else
+			return 0;
+		
+		Function timer = functions.get(TIMER_INTERRUPT);
+		if (timer != null)
+		{
+			long cyclesPerMs = CLOCK / 1000;
+			// Taking the interrupt pushes the return address and jumps through the vector table
+			long interrupt = 4 + CYCLES.get("jmp") + timer.worst;
+			cycles += (cycles / cyclesPerMs + 1) * interrupt;
+		}
+		return cycles;
+	} // end getLoopPeriodCycles()
+	
+	public static double toMicroseconds(long cycles)
+	{
+		return cycles * 1000000.0 / CLOCK;
+	}
+	
+	/**
+	 * Returns a line for the status bar.
+	 * @return
+	 */
+	public String getSummary()
+	{
+		return String.format("Each pass through loop() takes up to about %.0f microseconds", toMicroseconds(getLoopPeriodCycles()));
+	}
+	
+	public Function getFunction(String name)
+	{
+		return functions.get(name);
+	}
+	
+	/**
+	 * Writes the estimates for loop(), the runtime's calls, and every function's basic blocks.
+	 * @param out
+	 */
+	public void writeReport(PrintStream out)
+	{
+		out.printf("Clock %d Hz, serial port at %d baud (%.1f microseconds a character)\n", CLOCK, baud,
+			toMicroseconds(getCharacterCycles()));
+		long period = getLoopPeriodCycles();
+		out.printf("Each pass through loop(): up to %d cycles, %.1f microseconds\n", period, toMicroseconds(period));
+		for (String name : recursive)
+			out.printf("Recursive, so it could take longer: %s\n", name);
+		for (Function function : functions.values())
+		{
+			if (function.indirect)
+				out.printf("Calls through a pointer, which aren't counted: %s\n", function.name);
+			// main()'s own loop, round loop(), is what the period is
+			if (function.loops > 0 && !function.name.equals("main"))
+				out.printf("Has %d loop(s) counted only once: %s\n", function.loops, function.name);
+		}
+		
+		out.println();
+		out.println("Runtime calls:");
+		for (Function function : functions.values())
+		{
+			if (function.name.startsWith("cm_"))
+				out.printf("  %9d cycles %10.1f us  %s\n", function.worst, toMicroseconds(function.worst), function.name);
+		}
+		
+		out.println();
+		out.println("Functions and their basic blocks:");
+		for (Function function : functions.values())
+		{
+			if (function.instructions.isEmpty())
+				continue;
+			out.printf("  %9d cycles %10.1f us  %s\n", function.worst, toMicroseconds(function.worst), function.name);
+			for (int b=0; b < function.blocks.size(); b++)
+			{
+				int start = function.blocks.get(b);
+				int end = b + 1 < function.blocks.size() ? function.blocks.get(b + 1) : function.instructions.size();
+				int cycles = 0;
+				for (int i=start; i < end; i++)
+				{
+					Instruction instruction = function.instructions.get(i);
+					// A branch or skip is counted the slower way
+					cycles += instruction.getCycles() + (instruction.isBranch() ? 1 : instruction.isSkip() ? 2 : 0);
+				}
+				out.printf("      %6x: %3d instructions, %4d cycles\n", function.instructions.get(start).address, end - start, cycles);
+			}
+		}
+	} // end writeReport()
+} // end class CycleEstimator
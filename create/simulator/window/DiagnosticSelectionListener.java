@@ -0,0 +1,8 @@
+package create.simulator.window;
+
+import create.simulator.utils.*;
+
+public interface DiagnosticSelectionListener
+{
+	public void diagnosticSelected(Diagnostic diagnostic);
+}
@@ -11,11 +11,12 @@ import java.util.*;
 import gnu.io.*;
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.text.*;
 
 import org.fife.ui.rsyntaxtextarea.*;
 import org.fife.ui.rtextarea.*;
 
-public class EditorWindow implements ActionListener, WindowListener, TabSelectionListener
+public class EditorWindow implements ActionListener, WindowListener, TabSelectionListener, DiagnosticSelectionListener
 {
 	public static final String COMMAND_SAVE_MODULE = "save-module";
 	public static final String COMMAND_NEW_PROJECT = "new-project";
@@ -27,11 +28,16 @@ public class EditorWindow implements ActionListener, WindowListener, TabSelectio
 	public static final String COMMAND_RUN_SIMULATOR = "run-simulator";
 	public static final String COMMAND_RUN_SERIAL= "run-serial";
 	public static final String COMMAND_RUN_EMBEDDED = "run-embedded";
+	public static final String COMMAND_RUN_CANCEL = "run-cancel";
 	public static final String COMMAND_HELP_ABOUT = "help-about";
 	public static final String COMMAND_CHOOSE_PROJECT = "choose-project";
 	
 	public static final Icon ICON_SOURCE = IconLoader.getIcon("source.png");
 	
+	// The backgrounds of the lines compiler errors and warnings are on:
+	protected static final Color COLOR_ERROR_LINE = new Color(255, 210, 210);
+	protected static final Color COLOR_WARNING_LINE = new Color(255, 245, 190);
+	
 	/**
 	 * The CreateProject associated with this EditorWindow.
 	 * If this is null, don't show the editing panel, instead show the project choosing panel
@@ -91,6 +97,7 @@ public class EditorWindow implements ActionListener, WindowListener, TabSelectio
 	protected EventAction actionRunSimulator;
 	protected EventAction actionRunSerial;
 	protected EventAction actionRunEmbedded;
+	protected EventAction actionRunCancel;
 	
 	protected EventAction actionHelpAbout;
 	
@@ -107,6 +114,26 @@ public class EditorWindow implements ActionListener, WindowListener, TabSelectio
 		setup();
 	}
 	
+	/**
+	 * Names the text areas' shared Cut, Copy and Paste actions for the menus.
+	 * Kept here, rather than in MainLauncher, so the launcher never loads Swing when run headless.
+	 */
+	public static void setUpTextActions()
+	{
+		@SuppressWarnings("unused")
+		RTextArea textArea = new RTextArea();
+		
+		Action cut = RTextArea.getAction(RTextArea.CUT_ACTION);
+		cut.putValue(Action.NAME, "Cut");
+		cut.putValue(Action.SHORT_DESCRIPTION, null);
+		Action copy = RTextArea.getAction(RTextArea.COPY_ACTION);
+		copy.putValue(Action.NAME, "Copy");
+		copy.putValue(Action.SHORT_DESCRIPTION, null);
+		Action paste = RTextArea.getAction(RTextArea.PASTE_ACTION);
+		paste.putValue(Action.NAME, "Paste");
+		paste.putValue(Action.SHORT_DESCRIPTION, null);
+	}
+	
 	/**
 	 * Creates a new EditorWindow with the given CreateProject to start editing.
 	 * @param project The CreateProject to edit.
@@ -142,12 +169,14 @@ public class EditorWindow implements ActionListener, WindowListener, TabSelectio
 		actionRunSimulator = EventAction.createEventAction("Run simulator...", COMMAND_RUN_SIMULATOR, this);
 		actionRunSerial = EventAction.createEventAction("Run serial control...", COMMAND_RUN_SERIAL, this);
 		actionRunEmbedded = EventAction.createEventAction("Run on Command Module...", COMMAND_RUN_EMBEDDED, this);
+		actionRunCancel = EventAction.createEventAction("Cancel build", COMMAND_RUN_CANCEL, this);
 		
 		actionEditCut = RTextArea.getAction(RTextArea.CUT_ACTION);
 		actionEditCopy = RTextArea.getAction(RTextArea.COPY_ACTION);
 		actionEditPaste = RTextArea.getAction(RTextArea.PASTE_ACTION);
 		
 		actionModuleSave.setEnabled(false);
+		actionRunCancel.setEnabled(false);
 		
 		// The Editing card:
 		editingPanel = new JPanel(new BorderLayout());
@@ -195,6 +224,8 @@ public class EditorWindow implements ActionListener, WindowListener, TabSelectio
 		menuRun.add(EventAction.createActionMenuItem(actionRunEmbedded));
 		menuRun.add(EventAction.createActionMenuItem(actionRunSerial));
 		menuRun.add(EventAction.createActionMenuItem(actionRunSimulator));
+		menuRun.addSeparator();
+		menuRun.add(EventAction.createActionMenuItem(actionRunCancel));
 		menubar.add(menuRun);
 		
 		mainContainer.add(editingPanel, EDITING_PANEL);
@@ -227,6 +258,7 @@ public class EditorWindow implements ActionListener, WindowListener, TabSelectio
 		window.setLocationRelativeTo(null);
 		
 		buildProblemDialog = new BuildProblemDialog(window);
+		buildProblemDialog.addDiagnosticSelectionListener(this);
 		portChooserDialog = new SerialPortChooserDialog(window);
 	} // end setup()
 	
@@ -277,6 +309,7 @@ public class EditorWindow implements ActionListener, WindowListener, TabSelectio
 		if (project == null)
 			return;
 		
+		BuildService.getShared().cancel(project);
 		project = null;
 		selectedTab = null;
 		
@@ -400,58 +433,175 @@ public class EditorWindow implements ActionListener, WindowListener, TabSelectio
 		else if (command.equals(COMMAND_RUN_EMBEDDED))
 		{
 			// Run -> Run on Command Module...
-			try
-			{
-				// Compile the project
-				project.buildEmbeddedProject();
-				
-				// Choose a serial port
-				CommPortIdentifier portId = portChooserDialog.choosePort("<html>Choose a serial port to download the code to the Command Module with:</html>");
-				if (portId == null)
-					return;
-				else
-					project.downloadToRobot(portId);
-				
-				// Tell the project to download to the robot
-				
-				JOptionPane.showMessageDialog(window, "Compile completed successfully.", "Create Simulator", JOptionPane.INFORMATION_MESSAGE);
-			}
-			catch (BuildProblem er)
+			startBuild(BuildService.BUILD_EMBEDDED, new BuildWatcher()
 			{
-				buildProblemDialog.showMessage(er);
-			}
+				public void buildSucceeded(CreateProject builtProject)
+				{
+					// Choose a serial port
+					CommPortIdentifier portId = portChooserDialog.choosePort("<html>Choose a serial port to download the code to the Command Module with:</html>");
+					if (portId == null)
+						return;
+					
+					// Tell the project to download to the robot
+					actionRunCancel.setEnabled(true);
+					BuildService.getShared().download(builtProject, portId, new BuildWatcher()
+					{
+						public void buildSucceeded(CreateProject builtProject)
+						{
+							JOptionPane.showMessageDialog(window, "Compile completed successfully.", "Create Simulator", JOptionPane.INFORMATION_MESSAGE);
+						}
+					});
+				}
+			});
 		}
 		else if (command.equals(COMMAND_RUN_SERIAL))
 		{
 			// Run -> Run serial control...
-			try
+			startBuild(BuildService.BUILD_SERIAL, new BuildWatcher()
+			{
+				public void buildSucceeded(CreateProject builtProject)
+				{
+					statusBar.setText(BuildCache.getShared().getSummary());
+					JOptionPane.showMessageDialog(window, "Compile completed successfully.", "Create Simulator", JOptionPane.INFORMATION_MESSAGE);
+				}
+			});
+		}
+		else if (command.equals(COMMAND_RUN_SIMULATOR))
+		{
+			// Run -> Run simulator...
+			startBuild(BuildService.BUILD_SIMULATOR, new BuildWatcher()
+			{
+				public void buildSucceeded(CreateProject builtProject)
+				{
+					statusBar.setText(BuildCache.getShared().getSummary());
+					JOptionPane.showMessageDialog(window, "Compile completed successfully.", "Create Simulator", JOptionPane.INFORMATION_MESSAGE);
+				}
+			});
+		}
+		else if (command.equals(COMMAND_RUN_CANCEL))
+		{
+			// Run -> Cancel build
+			if (project != null && BuildService.getShared().cancel(project))
+				statusBar.setText("Cancelling build...");
+		}
+	} // end actionPerformed()
+	
+	/**
+	 * Asks the build service to build the current project, so the window stays responsive while it compiles.
+	 * @param kind One of BuildService's kinds of build.
+	 * @param watcher What to do when it's done.
+	 */
+	protected void startBuild(int kind, BuildWatcher watcher)
+	{
+		if (project == null)
+			return;
+		
+		statusBar.setText("Waiting to build...");
+		actionRunCancel.setEnabled(true);
+		BuildService.getShared().build(project, kind, watcher);
+	}
+	
+	/**
+	 * Shows a build's progress in the status bar and reports how it ended.
+	 */
+	protected abstract class BuildWatcher implements BuildListener
+	{
+		public void buildProgress(String message)
+		{
+			statusBar.setText(message);
+		}
+		
+		public void buildFinished(CreateProject builtProject, BuildProblem problem)
+		{
+			actionRunCancel.setEnabled(project != null && BuildService.getShared().isBuilding(project));
+			if (problem == null || problem.getReturnValue() != BuildProcess.RESULT_CANCELLED)
+				markDiagnostics(problem);
+			if (problem == null)
 			{
-				project.buildSerialProject();
-				
-				JOptionPane.showMessageDialog(window, "Compile completed successfully.", "Create Simulator", JOptionPane.INFORMATION_MESSAGE);
+				statusBar.setText("Build complete");
+				buildSucceeded(builtProject);
 			}
-			catch (BuildProblem er)
+			else if (problem.getReturnValue() == BuildProcess.RESULT_CANCELLED)
+				statusBar.setText(BuildProcess.MESSAGE_CANCELLED);
+			else
 			{
-				buildProblemDialog.showMessage(er);
+				statusBar.setText("Build failed");
+				buildProblemDialog.showMessage(problem);
 			}
 		}
-		else if (command.equals(COMMAND_RUN_SIMULATOR))
+		
+		/**
+		 * Called on the event thread once the project has been built.
+		 * @param builtProject
+		 */
+		public abstract void buildSucceeded(CreateProject builtProject);
+	} // end class BuildWatcher
+	
+	/**
+	 * Highlights the lines of each module the compiler complained about, clearing the last build's highlights.
+	 * @param problem The build's problem, or null to just clear them.
+	 */
+	protected void markDiagnostics(BuildProblem problem)
+	{
+		for (ProjectTab tab : projectTabs)
 		{
-			// Run -> Run simulator...
-			try
+			TextEditorPane editor = tab.getEditor();
+			editor.removeAllLineHighlights();
+			if (problem == null)
+				continue;
+			
+			for (Diagnostic diagnostic : problem.getDiagnostics())
 			{
-				project.buildSimulatorProject();
-				
-				// If we got here, we succeeded
-				JOptionPane.showMessageDialog(window, "Compile completed successfully.", "Create Simulator", JOptionPane.INFORMATION_MESSAGE);
+				if (diagnostic.getLine() < 1 || !tab.getModuleName().equals(diagnostic.getFileName()))
+					continue;
+				if (diagnostic.getSeverity() == Diagnostic.SEVERITY_NOTE)
+					continue;
+				try
+				{
+					editor.addLineHighlight(diagnostic.getLine() - 1, diagnostic.isError() ? COLOR_ERROR_LINE : COLOR_WARNING_LINE);
+				}
+				catch (BadLocationException er)
+				{
+					// The module has changed since it was compiled
+				}
 			}
-			catch (BuildProblem er)
+		}
+	} // end markDiagnostics()
+	
+	/**
+	 * Shows the module and line a compiler message is about.
+	 */
+	public void diagnosticSelected(Diagnostic diagnostic)
+	{
+		for (int i=0; i < projectTabs.size(); i++)
+		{
+			ProjectTab tab = projectTabs.get(i);
+			if (!tab.getModuleName().equals(diagnostic.getFileName()))
+				continue;
+			
+			editorTabs.setSelectedIndex(i);
+			TextEditorPane editor = tab.getEditor();
+			if (diagnostic.getLine() > 0)
 			{
-				buildProblemDialog.showMessage(er);
+				try
+				{
+					int start = editor.getLineStartOffset(Math.min(diagnostic.getLine(), editor.getLineCount()) - 1);
+					int end = editor.getLineEndOffset(Math.min(diagnostic.getLine(), editor.getLineCount()) - 1);
+					// The column counts from 1, and the line's end includes its newline
+					editor.setCaretPosition(Math.min(start + Math.max(diagnostic.getColumn() - 1, 0), Math.max(start, end - 1)));
+				}
+				catch (BadLocationException er)
+				{
+					// Leave the caret where it was
+				}
 			}
+			editor.requestFocusInWindow();
+			statusBar.setText(diagnostic.toString());
+			return;
 		}
-	} // end actionPerformed()
-
+		statusBar.setText(diagnostic.toString());
+	} // end diagnosticSelected()
+	
 	public void windowActivated(WindowEvent e)
 	{
 		
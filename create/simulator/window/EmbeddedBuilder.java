@@ -0,0 +1,434 @@
+package create.simulator.window;
+
+import include.FileNabber;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import create.simulator.utils.*;
+
+/**
+ * Builds a project for the Command Module with the avr-gcc tools, as the Makefile did.
+ * The modules are put together into one source file in ebin, which is compiled and linked; then the
+ *   flash and EEPROM images, the listing and the symbol table, which only depend on the linked
+ *   program, are made at the same time.  Last, the listing and symbol table are read to see how much
+ *   flash and RAM the program needs, which is written to Name.footprint; a program that needs more
+ *   than the Command Module has fails to build.  How long each pass through loop() takes is
+ *   estimated from the listing too, and written to Name.cycles.
+ * Nothing in ebin is deleted first: each step is skipped if its output is newer than its inputs and
+ *   the commands haven't changed, so building an unchanged project again does nothing.
+ * The tools are found on the path as avr-g++ and so on; the "createSimulator.avrToolPrefix" system
+ *   property replaces the "avr-" in front of their names, to use a toolchain installed elsewhere.
+ * @author dvanhumb
+ */
+public class EmbeddedBuilder
+{
+	public static final String MCU = "atmega168";
+	public static final String F_CPU = "18432000UL";
+	public static final String PROGRAMMER = "stk500";
+	public static final String TOOL_PREFIX = System.getProperty("createSimulator.avrToolPrefix", "avr-");
+	
+	// Where the dependency file and the commands the outputs were made with are kept
+	private static final String DEPENDENCY_FOLDER = ".dep";
+	private static final String COMMANDS_FILE = "commands";
+	
+	private static final String[] COMPILE_FLAGS = {
+		"-mmcu=" + MCU, "-I.", "-gdwarf-2", "-DF_CPU=" + F_CPU, "-DMODE_EMBEDDED", "-Os",
+		"-funsigned-char", "-funsigned-bitfields", "-fpack-struct", "-fshort-enums", "-Wall"
+	};
+	
+	protected CreateProject project;
+	protected File sourceFolder, binFolder;
+	protected String name;
+	
+	/**
+	 * Gets ready to build a project for the Command Module.
+	 * @param project The project, which any problem is reported against.
+	 * @param sourceFolder The folder holding the modules.
+	 * @param binFolder The folder everything that's built goes in.
+	 */
+	public EmbeddedBuilder(CreateProject project, File sourceFolder, File binFolder)
+	{
+		this.project = project;
+		this.sourceFolder = sourceFolder;
+		this.binFolder = binFolder;
+		name = project.getProjectName();
+	}
+	
+	/**
+	 * Builds the project, doing only the steps whose inputs have changed.
+	 * @param modules The project's modules.
+	 * @return How many steps were carried out.
+	 * @throws BuildProblem If a step fails.
+	 * @throws IOException If the files in ebin can't be written.
+	 */
+	public int build(String[] modules) throws BuildProblem, IOException
+	{
+		File dependencies = new File(binFolder, DEPENDENCY_FOLDER);
+		if (!dependencies.isDirectory() && !dependencies.mkdirs())
+			throw new IOException("Can't make the folder " + dependencies);
+		
+		// Anything made with other commands, or other tools, has to be made again
+		String commands = getCommands();
+		File commandsFile = new File(dependencies, COMMANDS_FILE);
+		if (!commands.equals(readFile(commandsFile)))
+		{
+			for (String output : new String[] {".o", ".elf", ".hex", ".eep", ".lss", ".sym"})
+				getFile(output).delete();
+			writeFile(commandsFile, commands);
+		}
+		
+		writeSources(modules);
+		
+		int steps = 0;
+		File object = getFile(".o");
+		if (isStale(object, readDependencies()))
+		{
+			BuildProcess.report("Compiling " + name + " for the Command Module");
+			run(getCompileCommand(), object, null);
+			steps++;
+		}
+		
+		File elf = getFile(".elf");
+		if (isStale(elf, Collections.singletonList(object)))
+		{
+			BuildProcess.report("Linking " + elf.getName());
+			run(getLinkCommand(), elf, null);
+			steps++;
+		}
+		
+		// The rest only need the linked program, so they can all be made at once
+		Vector<String[]> stale = new Vector<String[]>();
+		for (String[] step : getPostLinkSteps())
+		{
+			if (isStale(getFile(step[0]), Collections.singletonList(elf)))
+				stale.add(step);
+		}
+		if (!stale.isEmpty())
+			runPostLinkSteps(stale);
+		
+		// Checked every time, since the budgets may have changed even if the program hasn't
+		FootprintAnalyzer footprint = FootprintAnalyzer.analyze(getFile(".sym"), getFile(".lss"));
+		PrintStream report = new PrintStream(new FileOutputStream(getFile(".footprint")));
+		try
+		{
+			footprint.writeReport(report);
+		}
+		finally
+		{
+			report.close();
+		}
+		BuildProcess.report(footprint.getSummary());
+		BuildProblem problem = footprint.checkBudgets(project, elf.getName());
+		if (problem != null)
+			throw problem;
+		
+		CycleEstimator cycles = CycleEstimator.estimate(getFile(".lss"));
+		report = new PrintStream(new FileOutputStream(getFile(".cycles")));
+		try
+		{
+			cycles.writeReport(report);
+		}
+		finally
+		{
+			report.close();
+		}
+		BuildProcess.report(cycles.getSummary());
+		return steps + stale.size();
+	} // end build()
+	
+	/**
+	 * Downloads the built program to the Command Module.
+	 * @param port The name of the serial port the Command Module is on.
+	 * @throws BuildProblem If avrdude fails.
+	 * @throws IOException If avrdude can't be run.
+	 */
+	public void download(String port) throws BuildProblem, IOException
+	{
+		String[] command = {"avrdude", "-p", MCU, "-P", port, "-c", PROGRAMMER, "-U", "flash:w:" + name + ".hex"};
+		BuildProblem problem = BuildProcess.run(command, binFolder).getProblem(project);
+		if (problem != null)
+			throw problem;
+	}
+	
+	/**
+	 * Returns one of the files the build makes, by its extension.
+	 */
+	public File getFile(String extension)
+	{
+		return new File(binFolder, name + extension);
+	}
+	
+	protected String[] getCompileCommand()
+	{
+		Vector<String> command = new Vector<String>();
+		command.add(TOOL_PREFIX + "g++");
+		command.add("-c");
+		command.addAll(Arrays.asList(COMPILE_FLAGS));
+		command.add("-Wa,-adhlns=" + name + ".lst");
+		command.add("-MD");
+		command.add("-MP");
+		command.add("-MF");
+		command.add(DEPENDENCY_FOLDER + File.separator + name + ".o.d");
+		command.add(name + ".cpp");
+		command.add("-o");
+		command.add(name + ".o");
+		return command.toArray(new String[command.size()]);
+	}
+	
+	protected String[] getLinkCommand()
+	{
+		return new String[] {TOOL_PREFIX + "gcc", "-mmcu=" + MCU, "-gdwarf-2", "-Os", name + ".o",
+			"--output", name + ".elf", "-Wl,-Map=" + name + ".map,--cref", "-lm"};
+	}
+	
+	/**
+	 * Returns the steps that follow the link: each is the extension of the file it makes, followed
+	 *   by its command, with "-" in place of the output file for a command that writes to its output.
+	 */
+	protected String[][] getPostLinkSteps()
+	{
+		String elf = name + ".elf";
+		return new String[][] {
+			{".hex", TOOL_PREFIX + "objcopy", "-O", "ihex", "-R", ".eeprom", elf, name + ".hex"},
+			{".eep", TOOL_PREFIX + "objcopy", "-j", ".eeprom", "--set-section-flags=.eeprom=alloc,load",
+				"--change-section-lma", ".eeprom=0", "-O", "ihex", elf, name + ".eep"},
+			{".lss", TOOL_PREFIX + "objdump", "-h", "-S", "-l", "-C", elf, "-"},
+			{".sym", TOOL_PREFIX + "nm", "-n", "-S", "-C", elf, "-"}
+		};
+	}
+	
+	/**
+	 * Returns every command the build runs, one per line, to tell when they change.
+	 */
+	protected String getCommands()
+	{
+		StringBuilder commands = new StringBuilder();
+		commands.append(RuntimeLibrary.join(getCompileCommand())).append('\n');
+		commands.append(RuntimeLibrary.join(getLinkCommand())).append('\n');
+		for (String[] step : getPostLinkSteps())
+			commands.append(RuntimeLibrary.join(step)).append('\n');
+		return commands.toString();
+	}
+	
+	/**
+	 * Writes the source file holding every module and the runtime library, and the headers, leaving
+	 *   any that are already as they should be alone so the compile can be skipped.
+	 */
+	protected void writeSources(String[] modules) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream main = new PrintStream(bytes);
+		main.print("#include \"cm.h\"\n");
+		// Dump all the source files into the main module, marked so messages name the modules
+		for (String module : modules)
+		{
+			main.printf("// Source file %s:\n", module);
+			main.printf("#line 1 \"%s\"\n", module);
+			CreateUtils.copyFile(new File(sourceFolder, module), main);
+		}
+		main.printf("#line 1 \"%s\"\n", FileNabber.FILE_MAIN);
+		CreateUtils.copyFile(FileNabber.FILE_MAIN, main);
+		main.flush();
+		updateFile(getFile(".cpp"), bytes.toByteArray());
+		
+		for (String header : new String[] {FileNabber.FILE_HEADER_CM, FileNabber.FILE_HEADER_OI})
+		{
+			bytes.reset();
+			CreateUtils.copyFile(header, main);
+			main.flush();
+			updateFile(new File(binFolder, header), bytes.toByteArray());
+		}
+	} // end writeSources()
+	
+	/**
+	 * Returns the files the compiler said the object depends on, or just the source file before the first compile.
+	 */
+	protected List<File> readDependencies() throws IOException
+	{
+		Vector<File> files = new Vector<File>();
+		files.add(getFile(".cpp"));
+		File depends = new File(new File(binFolder, DEPENDENCY_FOLDER), name + ".o.d");
+		if (!depends.isFile())
+			return files;
+		for (String dependency : ModuleBuilder.readDependencies(depends))
+		{
+			File file = new File(dependency);
+			files.add(file.isAbsolute() ? file : new File(binFolder, dependency));
+		}
+		return files;
+	}
+	
+	/**
+	 * Carries out the steps that follow the link, all at once.
+	 */
+	protected void runPostLinkSteps(Vector<String[]> steps) throws BuildProblem, IOException
+	{
+		BuildProcess.report("Making " + steps.size() + " files from " + name + ".elf");
+		ExecutorService pool = Executors.newFixedThreadPool(steps.size());
+		try
+		{
+			Vector<Future<BuildProblem>> results = new Vector<Future<BuildProblem>>();
+			for (final String[] step : steps)
+			{
+				results.add(pool.submit(new Callable<BuildProblem>()
+				{
+					public BuildProblem call() throws IOException
+					{
+						String[] command = Arrays.copyOfRange(step, 1, step.length);
+						boolean toOutput = command[command.length - 1].equals("-");
+						if (toOutput)
+							command = Arrays.copyOf(command, command.length - 1);
+						try
+						{
+							EmbeddedBuilder.this.run(command, getFile(step[0]), toOutput ? getFile(step[0]) : null);
+							return null;
+						}
+						catch (BuildProblem problem)
+						{
+							return problem;
+						}
+					}
+				}));
+			}
+			
+			Vector<BuildProblem> problems = new Vector<BuildProblem>();
+			for (Future<BuildProblem> future : results)
+			{
+				try
+				{
+					BuildProblem problem = future.get();
+					if (problem != null)
+						problems.add(problem);
+				}
+				catch (InterruptedException er)
+				{
+					Thread.currentThread().interrupt();
+					throw new BuildProblem(project, BuildProcess.MESSAGE_CANCELLED, BuildProcess.MESSAGE_CANCELLED, BuildProcess.RESULT_CANCELLED);
+				}
+				catch (ExecutionException er)
+				{
+					if (er.getCause() instanceof IOException)
+						throw (IOException)er.getCause();
+					throw new RuntimeException(er.getCause());
+				}
+			}
+			if (!problems.isEmpty())
+				throw new BuildProblem(project, problems);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	} // end runPostLinkSteps()
+	
+	/**
+	 * Runs one step in ebin.  If it fails, its output is deleted so it's never taken for up to date.
+	 * @param command The step's command.
+	 * @param output The file it makes.
+	 * @param redirect If the step writes the file to its standard output, the file; otherwise null.
+	 */
+	protected void run(String[] command, File output, File redirect) throws BuildProblem, IOException
+	{
+		BuildProblem problem;
+		if (redirect == null)
+			problem = BuildProcess.run(command, binFolder).getProblem(project);
+		else
+		{
+			// Written beside it and moved into place, so a half-written file is never left with a new date
+			File partial = new File(binFolder, redirect.getName() + ".tmp");
+			FileOutputStream out = new FileOutputStream(partial);
+			try
+			{
+				problem = BuildProcess.run(command, binFolder, out).getProblem(project);
+			}
+			finally
+			{
+				out.close();
+			}
+			if (problem == null)
+			{
+				redirect.delete();
+				if (!partial.renameTo(redirect))
+					throw new IOException("Can't move " + partial + " to " + redirect);
+			}
+			else
+				partial.delete();
+		}
+		
+		if (problem != null)
+		{
+			output.delete();
+			throw problem;
+		}
+	} // end run()
+	
+	/**
+	 * Returns true if a file is missing, or older than any of the files it's made from.
+	 */
+	protected static boolean isStale(File output, List<File> inputs)
+	{
+		if (!output.isFile())
+			return true;
+		long made = output.lastModified();
+		for (File input : inputs)
+		{
+			if (!input.isFile() || input.lastModified() > made)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Replaces a file's contents, unless it already holds exactly those, so its date only changes when it does.
+	 */
+	private static void updateFile(File file, byte[] contents) throws IOException
+	{
+		if (file.isFile() && file.length() == contents.length)
+		{
+			byte[] existing = new byte[contents.length];
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try
+			{
+				in.readFully(existing);
+			}
+			finally
+			{
+				in.close();
+			}
+			if (Arrays.equals(existing, contents))
+				return;
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(contents);
+		}
+		finally
+		{
+			out.close();
+		}
+	} // end updateFile()
+	
+	private static String readFile(File file)
+	{
+		if (!file.isFile())
+			return null;
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			CreateUtils.copyFile(file, new PrintStream(bytes));
+			return bytes.toString();
+		}
+		catch (IOException er)
+		{
+			return null;
+		}
+	}
+	
+	private static void writeFile(File file, String text) throws IOException
+	{
+		updateFile(file, text.getBytes());
+	}
+} // end class EmbeddedBuilder
@@ -0,0 +1,521 @@
+package create.simulator.window;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import create.simulator.utils.*;
+
+/**
+ * Works out how much of the Command Module's flash and RAM a build uses, from the symbol table and
+ *   listing the embedded build makes.
+ * The section headers give the totals; the symbol table gives each function's and variable's size,
+ *   and the listing's line numbers say which module each function came from.  The stack isn't in
+ *   either, so it's estimated from the listing: each function's frame is what its prologue pushes
+ *   and reserves, and the deepest chain of calls from main(), plus the deepest interrupt handler,
+ *   is taken as the worst case.  Calls through pointers and recursion can't be followed, so they're
+ *   reported as making the estimate too low.
+ * The budgets default to the ATmega168's 16 KB of flash and 1 KB of RAM, and can be lowered with the
+ *   "createSimulator.flashBudget" and "createSimulator.ramBudget" system properties.
+ * @author dvanhumb
+ */
+public class FootprintAnalyzer
+{
+	public static final int FLASH_SIZE = 16 * 1024;
+	public static final int RAM_SIZE = 1024;
+	public static final String FLASH_BUDGET_PROPERTY = "createSimulator.flashBudget";
+	public static final String RAM_BUDGET_PROPERTY = "createSimulator.ramBudget";
+	// How many of the largest functions and variables the report lists:
+	public static final int LARGEST_COUNT = 10;
+	// Where avr-gcc puts RAM in the address space the tools use:
+	private static final long RAM_ADDRESS = 0x800000;
+	// The bytes a call pushes for its return address:
+	private static final int RETURN_ADDRESS_SIZE = 2;
+	private static final String NO_MODULE = "(libraries)";
+	// How far through its prologue a function's listing is: before the stack pointer is read into the
+	//   frame pointer, while the frame pointer is being moved down, and once it has been written back
+	private static final int PROLOGUE_START = 0;
+	private static final int PROLOGUE_FRAME = 1;
+	private static final int PROLOGUE_DONE = 2;
+	
+	// "addr [size] type name", from nm -n -S -C:
+	private static final Pattern SYMBOL = Pattern.compile("^([0-9a-fA-F]+)(?: ([0-9a-fA-F]+))? (\\S) (.+)$");
+	// "  1 .text  000002b4  00000000  00000000  00000094  2**1", from objdump -h:
+	private static final Pattern SECTION = Pattern.compile("^\\s*\\d+ (\\S+)\\s+([0-9a-fA-F]+)\\s+[0-9a-fA-F]+\\s+[0-9a-fA-F]+\\s+[0-9a-fA-F]+\\s+2\\*\\*\\d+\\s*$");
+	// "00000094 <loop()>:", starting a function in the disassembly:
+	static final Pattern LABEL = Pattern.compile("^([0-9a-fA-F]+) <(.+)>:$");
+	// "/path/B.cc:12", from objdump -l:
+	private static final Pattern LINE = Pattern.compile("^(\\S[^:]*):(\\d+)(?: \\(discriminator \\d+\\))?$");
+	// "  94:	cf 93       	push	r28":
+	private static final Pattern INSTRUCTION = Pattern.compile("^\\s*[0-9a-fA-F]+:\\t[0-9a-fA-F ]+\\t(\\S+)(?:\\t(.*))?$");
+	// "<loop()>" at the end of a call's operands, without an offset into the function:
+	static final Pattern TARGET = Pattern.compile("<([^<>]+?)(\\+0x[0-9a-fA-F]+)?>\\s*$");
+	
+	protected int flashBudget, ramBudget;
+	protected Map<String, Long> sections = new LinkedHashMap<String, Long>();
+	protected Map<String, Symbol> symbols = new LinkedHashMap<String, Symbol>();
+	protected int worstStack;
+	protected Vector<String> worstChain = new Vector<String>();
+	protected Set<String> recursive = new TreeSet<String>();
+	protected Set<String> indirect = new TreeSet<String>();
+	
+	/**
+	 * A function or variable in the program.
+	 */
+	public static class Symbol
+	{
+		protected String name;
+		protected long address;
+		protected int size;
+		protected char type;
+		protected String module = NO_MODULE;
+		// The bytes the function's prologue pushes and reserves:
+		protected int frame;
+		protected Set<String> calls = new LinkedHashSet<String>();
+		
+		public String getName()
+		{
+			return name;
+		}
+		
+		public int getSize()
+		{
+			return size;
+		}
+		
+		public String getModule()
+		{
+			return module;
+		}
+		
+		public int getFrame()
+		{
+			return frame;
+		}
+		
+		public boolean isInRam()
+		{
+			return address >= RAM_ADDRESS;
+		}
+		
+		public boolean isFunction()
+		{
+			return !isInRam() && Character.toLowerCase(type) == 't';
+		}
+	} // end class Symbol
+	
+	/**
+	 * Reads and analyzes a build's symbol table and listing.
+	 * @param symbolFile The output of nm -n -S -C.
+	 * @param listingFile The output of objdump -h -S -l -C.
+	 * @return The analysis.
+	 * @throws IOException If either file can't be read.
+	 */
+	public static FootprintAnalyzer analyze(File symbolFile, File listingFile) throws IOException
+	{
+		FootprintAnalyzer analyzer = new FootprintAnalyzer();
+		analyzer.readSymbols(symbolFile);
+		analyzer.readListing(listingFile);
+		analyzer.estimateStack();
+		return analyzer;
+	}
+	
+	public FootprintAnalyzer()
+	{
+		flashBudget = Integer.getInteger(FLASH_BUDGET_PROPERTY, FLASH_SIZE);
+		ramBudget = Integer.getInteger(RAM_BUDGET_PROPERTY, RAM_SIZE);
+	}
+	
+	public void setBudgets(int flashBudget, int ramBudget)
+	{
+		this.flashBudget = flashBudget;
+		this.ramBudget = ramBudget;
+	}
+	
+	public void readSymbols(File file) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				Matcher match = SYMBOL.matcher(line);
+				if (!match.matches())
+					continue;
+				Symbol symbol = new Symbol();
+				symbol.address = Long.parseLong(match.group(1), 16);
+				symbol.size = match.group(2) == null ? 0 : Integer.parseInt(match.group(2), 16);
+				symbol.type = match.group(3).charAt(0);
+				symbol.name = match.group(4);
+				// The first definition of a name is the real one; later ones are aliases and labels
+				if (!symbols.containsKey(symbol.name))
+					symbols.put(symbol.name, symbol);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	} // end readSymbols()
+	
+	/**
+	 * Reads the section sizes, which module each function is from, and each function's frame and calls.
+	 */
+	public void readListing(File file) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			Symbol function = null;
+			boolean moduleFound = false;
+			int prologue = PROLOGUE_START;
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				Matcher match = INSTRUCTION.matcher(line);
+				if (match.matches())
+				{
+					if (function != null)
+						prologue = readInstruction(function, match.group(1), match.group(2), prologue);
+					continue;
+				}
+				
+				match = LABEL.matcher(line);
+				if (match.matches())
+				{
+					function = symbols.get(match.group(2));
+					if (function == null)
+					{
+						// A label nm didn't list, such as a section's start
+						function = new Symbol();
+						function.name = match.group(2);
+						function.address = Long.parseLong(match.group(1), 16);
+						function.type = 't';
+						symbols.put(function.name, function);
+					}
+					moduleFound = false;
+					prologue = PROLOGUE_START;
+					continue;
+				}
+				
+				match = LINE.matcher(line);
+				if (match.matches())
+				{
+					// The first line of a function is where it's defined
+					if (function != null && !moduleFound)
+					{
+						String name = match.group(1);
+						function.module = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+						moduleFound = true;
+					}
+					continue;
+				}
+				
+				match = SECTION.matcher(line);
+				if (match.matches())
+					sections.put(match.group(1), Long.parseLong(match.group(2), 16));
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	} // end readListing()
+	
+	/**
+	 * Adds what one instruction does to the stack and the calls to a function.
+	 * @param prologue How far through the prologue the function is, as one of the PROLOGUE_* constants.
+	 * @return How far through the prologue it is after this instruction.
+	 */
+	private int readInstruction(Symbol function, String mnemonic, String operands, int prologue)
+	{
+		if (operands == null)
+			operands = "";
+		if (mnemonic.equals("push"))
+			function.frame++;
+		else if (mnemonic.equals("call") || mnemonic.equals("rcall") || mnemonic.equals("jmp") || mnemonic.equals("rjmp"))
+		{
+			Matcher match = TARGET.matcher(operands);
+			// Jumps within the function, and into the middle of others, aren't calls; a jump to another's start is a tail call
+			boolean jump = mnemonic.endsWith("jmp");
+			if (match.find() && match.group(2) == null && !(jump && match.group(1).equals(function.name)))
+				function.calls.add(match.group(1));
+		}
+		else if (mnemonic.equals("icall") || mnemonic.equals("eicall") || mnemonic.equals("ijmp") || mnemonic.equals("eijmp"))
+			indirect.add(function.name);
+		else if (prologue == PROLOGUE_START)
+		{
+			// A frame is made by copying the stack pointer to the frame pointer first; without that, r28 is just a register
+			if (mnemonic.equals("in") && operands.startsWith("r28") && parseImmediate(operands) == 0x3d)
+				return PROLOGUE_FRAME;
+		}
+		else if (prologue == PROLOGUE_FRAME)
+		{
+			// The frame pointer is moved down by the frame's size, then copied back to the stack pointer
+			int value = parseImmediate(operands);
+			if (mnemonic.equals("sbiw") && operands.startsWith("r28"))
+				function.frame += value;
+			else if (mnemonic.equals("subi") && operands.startsWith("r28"))
+				function.frame += value;
+			else if (mnemonic.equals("sbci") && operands.startsWith("r29"))
+				function.frame += value << 8;
+			else if (mnemonic.equals("out") && operands.startsWith("0x3d"))
+				return PROLOGUE_DONE;
+		}
+		return prologue;
+	} // end readInstruction()
+	
+	private static int parseImmediate(String operands)
+	{
+		int comma = operands.indexOf(',');
+		if (comma < 0)
+			return 0;
+		// Anything after the value is objdump's comment
+		String value = operands.substring(comma + 1).trim().split("\\s")[0];
+		try
+		{
+			if (value.startsWith("0x") || value.startsWith("0X"))
+				return Integer.parseInt(value.substring(2), 16);
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException er)
+		{
+			return 0;
+		}
+	}
+	
+	/**
+	 * Finds the deepest chain of calls from main(), and adds the deepest interrupt handler, which could interrupt it.
+	 */
+	public void estimateStack()
+	{
+		Map<String, Integer> depths = new HashMap<String, Integer>();
+		Map<String, String> deepestCallee = new HashMap<String, String>();
+		int mainDepth = RETURN_ADDRESS_SIZE + getDepth("main", depths, deepestCallee, new HashSet<String>());
+		
+		int handlerDepth = 0;
+		String deepestHandler = null;
+		for (Symbol symbol : symbols.values())
+		{
+			if (!symbol.name.startsWith("__vector_"))
+				continue;
+			int depth = RETURN_ADDRESS_SIZE + getDepth(symbol.name, depths, deepestCallee, new HashSet<String>());
+			if (depth > handlerDepth)
+			{
+				handlerDepth = depth;
+				deepestHandler = symbol.name;
+			}
+		}
+		worstStack = mainDepth + handlerDepth;
+		
+		worstChain.clear();
+		for (String name = "main"; name != null && symbols.containsKey(name) && !worstChain.contains(name); name = deepestCallee.get(name))
+			worstChain.add(name);
+		if (deepestHandler != null)
+			worstChain.add("(interrupted by " + deepestHandler + ")");
+	} // end estimateStack()
+	
+	/**
+	 * Returns the most stack a function and whatever it calls can use.
+	 */
+	private int getDepth(String name, Map<String, Integer> depths, Map<String, String> deepestCallee, Set<String> visiting)
+	{
+		Integer known = depths.get(name);
+		if (known != null)
+			return known;
+		Symbol function = symbols.get(name);
+		if (function == null)
+			return 0;
+		if (!visiting.add(name))
+		{
+			// A cycle, which could go around any number of times
+			recursive.add(name);
+			return 0;
+		}
+		
+		int deepest = 0;
+		for (String callee : function.calls)
+		{
+			int depth = RETURN_ADDRESS_SIZE + getDepth(callee, depths, deepestCallee, visiting);
+			if (depth > deepest)
+			{
+				deepest = depth;
+				deepestCallee.put(name, callee);
+			}
+		}
+		visiting.remove(name);
+		depths.put(name, function.frame + deepest);
+		return function.frame + deepest;
+	} // end getDepth()
+	
+	/**
+	 * Returns the bytes of flash used: the code and the data's starting values.
+	 * @return
+	 */
+	public long getFlashUsed()
+	{
+		return getSection(".text") + getSection(".data");
+	}
+	
+	/**
+	 * Returns the bytes of RAM used by variables, not counting the stack.
+	 * @return
+	 */
+	public long getStaticRamUsed()
+	{
+		return getSection(".data") + getSection(".bss") + getSection(".noinit");
+	}
+	
+	/**
+	 * Returns the estimated most bytes of stack the program could use.
+	 * @return
+	 */
+	public int getWorstStack()
+	{
+		return worstStack;
+	}
+	
+	public long getSection(String name)
+	{
+		Long size = sections.get(name);
+		return size == null ? 0 : size;
+	}
+	
+	/**
+	 * Returns the bytes of flash each module's functions use, largest first.
+	 * @return
+	 */
+	public Map<String, Integer> getFlashByModule()
+	{
+		final Map<String, Integer> modules = new HashMap<String, Integer>();
+		for (Symbol symbol : symbols.values())
+		{
+			if (!symbol.isFunction())
+				continue;
+			Integer total = modules.get(symbol.module);
+			modules.put(symbol.module, (total == null ? 0 : total) + symbol.size);
+		}
+		
+		Vector<String> names = new Vector<String>(modules.keySet());
+		Collections.sort(names, new Comparator<String>()
+		{
+			public int compare(String a, String b)
+			{
+				return modules.get(b) - modules.get(a);
+			}
+		});
+		Map<String, Integer> sorted = new LinkedHashMap<String, Integer>();
+		for (String name : names)
+			sorted.put(name, modules.get(name));
+		return sorted;
+	} // end getFlashByModule()
+	
+	/**
+	 * Returns the largest functions, or the largest variables in RAM.
+	 * @param inRam True for variables in RAM, false for functions.
+	 * @param count How many to return at most.
+	 * @return
+	 */
+	public Vector<Symbol> getLargest(boolean inRam, int count)
+	{
+		Vector<Symbol> largest = new Vector<Symbol>();
+		for (Symbol symbol : symbols.values())
+		{
+			if (symbol.size > 0 && (inRam ? symbol.isInRam() : symbol.isFunction()))
+				largest.add(symbol);
+		}
+		Collections.sort(largest, new Comparator<Symbol>()
+		{
+			public int compare(Symbol a, Symbol b)
+			{
+				return b.size - a.size;
+			}
+		});
+		if (largest.size() > count)
+			largest.setSize(count);
+		return largest;
+	}
+	
+	/**
+	 * Returns a line for the status bar.
+	 * @return
+	 */
+	public String getSummary()
+	{
+		return String.format("Flash: %d of %d bytes.  RAM: %d of %d bytes, with about %d bytes of stack",
+			getFlashUsed(), flashBudget, getStaticRamUsed() + worstStack, ramBudget, worstStack);
+	}
+	
+	/**
+	 * Writes the whole analysis.
+	 * @param out
+	 */
+	public void writeReport(PrintStream out)
+	{
+		out.printf("Flash: %d of %d bytes (%.1f%%): .text %d, .data %d\n", getFlashUsed(), flashBudget,
+			100.0 * getFlashUsed() / flashBudget, getSection(".text"), getSection(".data"));
+		out.printf("RAM: %d of %d bytes (%.1f%%): .data %d, .bss %d, .noinit %d, stack about %d\n",
+			getStaticRamUsed() + worstStack, ramBudget, 100.0 * (getStaticRamUsed() + worstStack) / ramBudget,
+			getSection(".data"), getSection(".bss"), getSection(".noinit"), worstStack);
+		out.print("Deepest calls:");
+		for (String name : worstChain)
+			out.print(" " + name);
+		out.println();
+		for (String name : recursive)
+			out.printf("Recursive, so the stack could be deeper: %s\n", name);
+		for (String name : indirect)
+			out.printf("Calls through a pointer, so the stack could be deeper: %s\n", name);
+		
+		out.println();
+		out.println("Flash by module:");
+		for (Map.Entry<String, Integer> module : getFlashByModule().entrySet())
+		{
+			if (module.getValue() > 0)
+				out.printf("  %7d  %s\n", module.getValue(), module.getKey());
+		}
+		
+		out.println();
+		out.println("Largest functions:");
+		for (Symbol symbol : getLargest(false, LARGEST_COUNT))
+			out.printf("  %7d  %s (%s, %d bytes of stack)\n", symbol.size, symbol.name, symbol.module, symbol.frame);
+		
+		out.println();
+		out.println("Largest variables:");
+		for (Symbol symbol : getLargest(true, LARGEST_COUNT))
+			out.printf("  %7d  %s\n", symbol.size, symbol.name);
+	} // end writeReport()
+	
+	/**
+	 * Returns the problem to fail the build with if it's over either budget, or null if it fits.
+	 * The messages are in gcc's form, so they're listed with the compiler's.
+	 * @param project The project being built.
+	 * @param program The name of the linked program, which the messages are about.
+	 * @return
+	 */
+	public BuildProblem checkBudgets(CreateProject project, String program)
+	{
+		StringBuilder errors = new StringBuilder();
+		if (getFlashUsed() > flashBudget)
+		{
+			errors.append(String.format("%s: error: the program needs %d bytes of flash, %d more than the %d available\n",
+				program, getFlashUsed(), getFlashUsed() - flashBudget, flashBudget));
+			for (Symbol symbol : getLargest(false, 3))
+				errors.append(String.format("%s: note: %s in %s uses %d bytes\n", program, symbol.name, symbol.module, symbol.size));
+		}
+		long ram = getStaticRamUsed() + worstStack;
+		if (ram > ramBudget)
+		{
+			errors.append(String.format("%s: error: the program needs about %d bytes of RAM (%d for variables, %d for the stack), %d more than the %d available\n",
+				program, ram, getStaticRamUsed(), worstStack, ram - ramBudget, ramBudget));
+			for (Symbol symbol : getLargest(true, 3))
+				errors.append(String.format("%s: note: %s uses %d bytes\n", program, symbol.name, symbol.size));
+		}
+		if (errors.length() == 0)
+			return null;
+		
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		writeReport(new PrintStream(report));
+		return new BuildProblem(project, report.toString(), errors.toString(), 1);
+	} // end checkBudgets()
+} // end class FootprintAnalyzer
@@ -0,0 +1,361 @@
+package create.simulator.window;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import create.simulator.utils.*;
+
+/**
+ * Compiles a project's modules for local execution, each as its own translation unit, and links them
+ *   with the runtime library.
+ * The objects go in lbin/obj along with the dependency files gcc writes for them, which list every
+ *   header each module included.  A module is only compiled again if it, or one of those headers, has
+ *   changed since its object was made, and the modules that need compiling are compiled in parallel,
+ *   one per processor, so editing one file of a large project only recompiles that file.
+ * Each module is compiled with cm.h included first, as it was when every module was included into
+ *   one main file.
+ * @author dvanhumb
+ */
+public class ModuleBuilder
+{
+	public static final String OBJECT_FOLDER = "obj";
+	// Holds the flags the objects were compiled with; if they change, every module is compiled again
+	private static final String FLAGS_FILE = "flags";
+	
+	protected CreateProject project;
+	protected File sourceFolder, objectFolder;
+	protected File runtimeObject;
+	// The compiler and flags every module is compiled with, before the names of its files:
+	protected String[] flags;
+	
+	/**
+	 * Gets ready to build a project's modules.
+	 * @param project The project, which any problem is reported against.
+	 * @param sourceFolder The folder holding the modules.
+	 * @param binFolder The folder the objects folder goes in.
+	 * @param runtimeObject The compiled runtime library, whose folder holds the headers to compile against.
+	 */
+	public ModuleBuilder(CreateProject project, File sourceFolder, File binFolder, File runtimeObject)
+	{
+		this.project = project;
+		this.sourceFolder = sourceFolder;
+		this.runtimeObject = runtimeObject;
+		objectFolder = new File(binFolder, OBJECT_FOLDER);
+		flags = new String[] {RuntimeLibrary.COMPILER, RuntimeLibrary.LOCAL_FLAGS, "-I" + runtimeObject.getParent(), "-include", "cm.h", "-MD"};
+	}
+	
+	/**
+	 * Returns the command line a module is compiled with, less the module's own file names, for the build hash.
+	 * @return
+	 */
+	public String getCommand()
+	{
+		return RuntimeLibrary.join(flags);
+	}
+	
+	/**
+	 * Compiles every module whose object is missing or out of date.
+	 * @param modules The project's modules.
+	 * @return How many modules were compiled.
+	 * @throws BuildProblem If any module fails to compile, holding the messages from every one that failed.
+	 * @throws IOException If the objects folder can't be used.
+	 */
+	public int compile(String[] modules) throws BuildProblem, IOException
+	{
+		if (!objectFolder.isDirectory() && !objectFolder.mkdirs())
+			throw new IOException("Can't make the folder " + objectFolder);
+		
+		// Objects made with other flags, or from another runtime, can't be kept
+		String command = getCommand();
+		File flagsFile = new File(objectFolder, FLAGS_FILE);
+		if (!command.equals(readFlags(flagsFile)))
+		{
+			clean(null);
+			PrintWriter out = new PrintWriter(new FileWriter(flagsFile));
+			out.println(command);
+			out.close();
+		}
+		else
+			clean(modules);
+		
+		Vector<String> stale = new Vector<String>();
+		for (String module : modules)
+		{
+			if (isStale(module))
+				stale.add(module);
+		}
+		if (stale.isEmpty())
+			return 0;
+		BuildProcess.report(String.format("Compiling %d of %d modules", stale.size(), modules.length));
+		
+		int threads = Math.min(stale.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try
+		{
+			Vector<Future<BuildProblem>> results = new Vector<Future<BuildProblem>>();
+			for (final String module : stale)
+			{
+				results.add(pool.submit(new Callable<BuildProblem>()
+				{
+					public BuildProblem call() throws IOException
+					{
+						return compileModule(module);
+					}
+				}));
+			}
+			
+			// Wait for them all, so every module's errors are reported together
+			Vector<BuildProblem> problems = new Vector<BuildProblem>();
+			for (Future<BuildProblem> future : results)
+			{
+				BuildProblem problem = getResult(future);
+				if (problem != null)
+					problems.add(problem);
+			}
+			// Every module compiled after a cancellation fails the same way, so only say it once
+			if (BuildProcess.isCancelled())
+				throw new BuildProblem(project, BuildProcess.MESSAGE_CANCELLED, BuildProcess.MESSAGE_CANCELLED, BuildProcess.RESULT_CANCELLED);
+			if (!problems.isEmpty())
+				throw new BuildProblem(project, problems);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		return stale.size();
+	} // end compile()
+	
+	/**
+	 * Links the modules' objects and the runtime library into a program.
+	 * @param modules The project's modules, all compiled.
+	 * @param binary The program to make.
+	 * @throws BuildProblem If the link fails.
+	 * @throws IOException If the linker can't be run.
+	 */
+	public void link(String[] modules, File binary) throws BuildProblem, IOException
+	{
+		Vector<String> command = new Vector<String>();
+		command.add(RuntimeLibrary.COMPILER);
+		command.add("-o");
+		command.add(binary.getAbsolutePath());
+		for (String module : modules)
+			command.add(getObject(module).getAbsolutePath());
+		command.add(runtimeObject.getAbsolutePath());
+		
+		BuildProcess.report("Linking " + binary.getName());
+		BuildProblem problem = run(command.toArray(new String[command.size()]));
+		if (problem != null)
+			throw problem;
+	}
+	
+	/**
+	 * Returns true if a module has no object, or has changed, or includes a header that has changed, since it was compiled.
+	 * @param module The module's file name.
+	 * @return
+	 */
+	public boolean isStale(String module)
+	{
+		File object = getObject(module);
+		File depends = getDependencyFile(module);
+		if (!object.isFile() || !depends.isFile())
+			return true;
+		
+		long compiled = object.lastModified();
+		List<String> dependencies;
+		try
+		{
+			dependencies = readDependencies(depends);
+		}
+		catch (IOException er)
+		{
+			return true;
+		}
+		// Without at least the module itself, the file isn't gcc's
+		if (dependencies.isEmpty())
+			return true;
+		for (String name : dependencies)
+		{
+			File file = new File(name);
+			if (!file.isAbsolute())
+				file = new File(sourceFolder, name);
+			// A header that's gone may have been replaced by one elsewhere on the include path
+			if (!file.isFile() || file.lastModified() > compiled)
+				return true;
+		}
+		return false;
+	} // end isStale()
+	
+	/**
+	 * Reads the files a dependency file written by gcc's -MD says its object depends on.
+	 * The file is a make rule, "object.o: source.cc header.h ...", which may be split over lines
+	 *   ending in backslashes, and in which spaces in file names are escaped with backslashes.
+	 * @param file The dependency file.
+	 * @return The files, as they were named on the command line or found on the include path.
+	 * @throws IOException If the file can't be read.
+	 */
+	public static List<String> readDependencies(File file) throws IOException
+	{
+		StringBuilder rule = new StringBuilder();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (line.endsWith("\\") && !line.endsWith("\\\\"))
+					rule.append(line, 0, line.length() - 1).append(' ');
+				else
+				{
+					rule.append(line);
+					break;
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		
+		Vector<String> names = new Vector<String>();
+		// Skip the target, which is followed by the first colon that's followed by a space
+		int start = rule.indexOf(": ");
+		if (start < 0)
+			return names;
+		StringBuilder name = new StringBuilder();
+		for (int i=start + 2; i <= rule.length(); i++)
+		{
+			char c = i < rule.length() ? rule.charAt(i) : ' ';
+			if (c == '\\' && i + 1 < rule.length() && rule.charAt(i + 1) == ' ')
+			{
+				name.append(' ');
+				i++;
+			}
+			else if (c == ' ' || c == '\t')
+			{
+				if (name.length() > 0)
+					names.add(name.toString());
+				name.setLength(0);
+			}
+			else
+				name.append(c);
+		}
+		return names;
+	} // end readDependencies()
+	
+	public File getObject(String module)
+	{
+		return new File(objectFolder, getBaseName(module) + ".o");
+	}
+	
+	public File getDependencyFile(String module)
+	{
+		return new File(objectFolder, getBaseName(module) + ".d");
+	}
+	
+	/**
+	 * Compiles one module, returning its problem if it failed.
+	 */
+	protected BuildProblem compileModule(String module) throws IOException
+	{
+		File object = getObject(module);
+		// Don't leave an old object that looks newer than the failed source
+		object.delete();
+		
+		String[] command = new String[flags.length + 6];
+		System.arraycopy(flags, 0, command, 0, flags.length);
+		int i = flags.length;
+		command[i++] = "-MF";
+		command[i++] = getDependencyFile(module).getAbsolutePath();
+		command[i++] = "-c";
+		// By the name it has in the source folder, so messages name it the way the editor does
+		command[i++] = module;
+		command[i++] = "-o";
+		command[i++] = object.getAbsolutePath();
+		BuildProcess.report("Compiling " + module);
+		BuildProblem problem = run(command);
+		// A compiler that was stopped part way may have left some of an object behind
+		if (problem != null)
+			object.delete();
+		return problem;
+	}
+	
+	/**
+	 * Runs a compiler command in the source folder, returning its problem if it failed.
+	 */
+	protected BuildProblem run(String[] command) throws IOException
+	{
+		return BuildProcess.run(command, sourceFolder).getProblem(project);
+	}
+	
+	/**
+	 * Deletes the objects in the objects folder that don't belong to any of the given modules.
+	 * @param modules The modules to keep the objects of, or null to delete them all.
+	 */
+	protected void clean(String[] modules)
+	{
+		Set<String> keep = new HashSet<String>();
+		if (modules != null)
+		{
+			for (String module : modules)
+			{
+				keep.add(getObject(module).getName());
+				keep.add(getDependencyFile(module).getName());
+			}
+		}
+		File[] files = objectFolder.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+		{
+			String name = file.getName();
+			if ((name.endsWith(".o") || name.endsWith(".d")) && !keep.contains(name))
+				file.delete();
+		}
+	}
+	
+	private BuildProblem getResult(Future<BuildProblem> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException er)
+		{
+			Thread.currentThread().interrupt();
+			return new BuildProblem(project, "Build interrupted.", "Build interrupted.", -1);
+		}
+		catch (ExecutionException er)
+		{
+			if (er.getCause() instanceof IOException)
+				throw (IOException)er.getCause();
+			throw new RuntimeException(er.getCause());
+		}
+	}
+	
+	private static String getBaseName(String module)
+	{
+		int dot = module.lastIndexOf('.');
+		return dot < 0 ? module : module.substring(0, dot);
+	}
+	
+	private static String readFlags(File file)
+	{
+		try
+		{
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try
+			{
+				return in.readLine();
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException er)
+		{
+			return null;
+		}
+	}
+} // end class ModuleBuilder
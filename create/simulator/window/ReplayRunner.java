@@ -0,0 +1,166 @@
+package create.simulator.window;
+
+import create.simulator.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Replays a recorded trace without a display, such as one written by a batch run with --trace:
+ * <pre>
+ * --replay &lt;trace&gt; [--seek=seconds] [--until=seconds] [--arena=file]
+ * </pre>
+ * The simulation is driven by the recorded commands rather than by the controllers, and every reply
+ *   the robots give is checked against the recorded one.  With --seek the replay jumps straight to
+ *   the given time through the nearest keyframe and reports where the robots were, then carries on
+ *   to the end of the trace, or to the time given by --until.
+ * The arena isn't part of the trace, so runs that had one need it given again to replay the same.
+ * @author dvanhumb
+ */
+public class ReplayRunner
+{
+	/**
+	 * The option that selects replay mode, followed by the trace.
+	 */
+	public static final String REPLAY_OPTION = "--replay";
+	
+	protected File traceFile;
+	protected File arenaFile;
+	// The simulated times to seek to and to stop at, in microseconds, or -1 for none:
+	protected long seekTime = -1;
+	protected long untilTime = -1;
+	protected PrintStream output = System.out;
+	
+	/**
+	 * Returns true if the command-line arguments ask for replay mode.
+	 */
+	public static boolean isReplayMode(String[] args)
+	{
+		for (String arg : args)
+		{
+			if (arg.equals(REPLAY_OPTION) || arg.startsWith(REPLAY_OPTION + "="))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Replays the trace named by the command-line arguments.
+	 * @param args The command-line arguments.
+	 * @return The process exit code: 0 if the replay matched the recording, 1 if it didn't, 2 for bad
+	 *   arguments or a trace that can't be read.
+	 */
+	public static int run(String[] args)
+	{
+		ReplayRunner runner = new ReplayRunner();
+		try
+		{
+			for (int i=0; i < args.length; i++)
+			{
+				String arg = args[i];
+				if (arg.equals(REPLAY_OPTION) && i+1 < args.length)
+					runner.traceFile = new File(args[++i]);
+				else if (arg.startsWith(REPLAY_OPTION + "="))
+					runner.traceFile = new File(arg.substring(REPLAY_OPTION.length() + 1));
+				else if (arg.startsWith("--seek="))
+					runner.seekTime = toMicros(arg.substring(7));
+				else if (arg.startsWith("--until="))
+					runner.untilTime = toMicros(arg.substring(8));
+				else if (arg.startsWith("--arena="))
+					runner.arenaFile = new File(arg.substring(8));
+			}
+		}
+		catch (NumberFormatException er)
+		{
+			System.err.println("Bad number: " + er.getMessage());
+			return 2;
+		}
+		
+		if (runner.traceFile == null || !runner.traceFile.isFile())
+		{
+			System.err.println("Usage: " + REPLAY_OPTION + " <trace> [--seek=seconds] [--until=seconds] [--arena=file]");
+			return 2;
+		}
+		if (runner.seekTime >= 0 && runner.untilTime >= 0 && runner.untilTime < runner.seekTime)
+		{
+			System.err.println("The replay can't stop before the time it seeks to");
+			return 2;
+		}
+		
+		try
+		{
+			return runner.replay() ? 0 : 1;
+		}
+		catch (IOException er)
+		{
+			System.err.println("Can't replay " + runner.traceFile + ": " + er.getMessage());
+			return 2;
+		}
+	} // end run(String[])
+	
+	/**
+	 * Reads a time in seconds, as given on the command line.
+	 */
+	private static long toMicros(String seconds)
+	{
+		long micros = (long)(Double.parseDouble(seconds) * 1e6);
+		if (micros < 0)
+			throw new NumberFormatException("Times can't be negative: " + seconds);
+		return micros;
+	}
+	
+	/**
+	 * Replays the trace, seeking first if asked, and reports how it went.
+	 * @return True if every reply matched the recording.
+	 * @throws IOException If the trace or arena can't be read.
+	 */
+	protected boolean replay() throws IOException
+	{
+		TraceReader trace = new TraceReader(traceFile);
+		CreateSimulatorCore core = new CreateSimulatorCore(trace.getTimestep());
+		try
+		{
+			if (arenaFile != null)
+				core.setArena(Arena.load(arenaFile));
+			TraceReplayer replayer = new TraceReplayer(core, trace);
+			
+			if (seekTime >= 0)
+			{
+				replayer.seek(seekTime);
+				printRobots(core);
+			}
+			if (untilTime >= 0)
+				replayer.runTo(untilTime);
+			else
+				replayer.run();
+			printRobots(core);
+			
+			if (replayer.getMismatches() == 0)
+				output.println("Replay matched the recording");
+			else
+				output.printf(Locale.US, "%d replies differed from the recording, the first at %.3fs\n",
+					replayer.getMismatches(), replayer.getFirstMismatchTime() * 1e-6);
+			return replayer.getMismatches() == 0;
+		}
+		finally
+		{
+			trace.close();
+			core.shutdown();
+		}
+	} // end replay()
+	
+	/**
+	 * Writes where each robot is at the simulation's current time.
+	 */
+	private void printRobots(CreateSimulatorCore core)
+	{
+		WorldState world = core.getWorld();
+		synchronized (world)
+		{
+			output.printf(Locale.US, "At %.3fs:\n", core.getSimulatedTime() * 1e-6);
+			for (int id=0; id < world.getCount(); id++)
+				output.printf(Locale.US, "  robot %d at (%.1f, %.1f) facing %.1f degrees\n", id,
+					world.getX(id), world.getY(id), Math.toDegrees(world.getHeading(id)));
+		}
+	}
+} // end class ReplayRunner
@@ -0,0 +1,115 @@
+package create.simulator.window;
+
+import include.FileNabber;
+
+import java.io.*;
+
+import create.simulator.utils.*;
+
+/**
+ * The runtime library that local builds link against: cm.h, oi.h and main.cpp compiled once for
+ *   MODE_LOCAL into an object file kept in the sketchbook, instead of into every project every time.
+ *   The headers are kept beside the object, so projects compile against the same ones.
+ * Each object is kept in a folder named for the hash of the runtime's sources, the compiler's version
+ *   and the flags, so a new compiler or a new version of the simulator gets a fresh object and no
+ *   project links against a stale one.
+ * @author dvanhumb
+ */
+public class RuntimeLibrary
+{
+	/**
+	 * The folder in the sketchbook the compiled runtimes are kept in.
+	 * It has no src folder, so it's never taken for a project.
+	 */
+	public static final String CACHE_FOLDER = ".runtime";
+	public static final String OBJECT_NAME = "cm-runtime.o";
+	public static final String COMPILER = "g++";
+	public static final String LOCAL_FLAGS = "-DMODE_LOCAL";
+	
+	// The source the runtime is compiled from: main.cpp, made to stand on its own
+	private static final String SOURCE_NAME = "cm-runtime.cpp";
+	
+	/**
+	 * Returns the runtime compiled for local execution, compiling it first if there isn't one yet.
+	 * The folder it's in holds the headers to compile modules against.
+	 * @param project The project being built, which any problem is reported against.
+	 * @return The object file to link with.
+	 * @throws BuildProblem If the runtime doesn't compile.
+	 */
+	public static synchronized File getLocalObject(CreateProject project) throws BuildProblem
+	{
+		String[] command = {COMPILER, LOCAL_FLAGS, "-c", "-o", OBJECT_NAME, SOURCE_NAME};
+		File scratch = null;
+		try
+		{
+			String key = BuildCache.computeRuntimeKey(join(command), COMPILER);
+			File folder = new File(new File(MainLauncher.getSketchbookFolder(), CACHE_FOLDER), key);
+			File object = new File(folder, OBJECT_NAME);
+			// The object is moved in last, so if it's there the headers should be too
+			if (object.isFile() && new File(folder, FileNabber.FILE_HEADER_CM).isFile() && new File(folder, FileNabber.FILE_HEADER_OI).isFile())
+				return object;
+			
+			// Compile in a folder of our own and move the object into place once it's complete,
+			//   so an interrupted build, or another simulator building at the same time, never leaves half an object
+			scratch = new File(folder.getParentFile(), key + ".tmp" + System.nanoTime());
+			if (!scratch.mkdirs())
+				throw new IOException("Can't make the folder " + scratch);
+			
+			PrintStream source = new PrintStream(new FileOutputStream(new File(scratch, SOURCE_NAME)));
+			source.println("#include \"cm.h\"");
+			// Defined by the project, which is linked in later
+			source.println("void init();");
+			source.println("void loop();");
+			CreateUtils.copyFile(FileNabber.FILE_MAIN, source);
+			source.close();
+			CreateUtils.copyFile(FileNabber.FILE_HEADER_CM, new File(scratch, FileNabber.FILE_HEADER_CM));
+			CreateUtils.copyFile(FileNabber.FILE_HEADER_OI, new File(scratch, FileNabber.FILE_HEADER_OI));
+			
+			BuildProcess.report("Compiling the runtime library");
+			BuildProblem problem = BuildProcess.run(command, scratch).getProblem(project);
+			if (problem != null)
+				throw problem;
+			
+			folder.mkdirs();
+			for (String name : new String[] {FileNabber.FILE_HEADER_CM, FileNabber.FILE_HEADER_OI, OBJECT_NAME})
+			{
+				File target = new File(folder, name);
+				if (!new File(scratch, name).renameTo(target) && !target.isFile())
+					throw new IOException("Can't move the compiled runtime to " + target);
+			}
+			return object;
+		}
+		catch (IOException er)
+		{
+			throw new BuildProblem(project, "File I/O error building the runtime library.", er.getMessage(), -2);
+		}
+		finally
+		{
+			if (scratch != null)
+			{
+				File[] files = scratch.listFiles();
+				if (files != null)
+				{
+					for (File file : files)
+						file.delete();
+				}
+				scratch.delete();
+			}
+		}
+	} // end getLocalObject()
+	
+	/**
+	 * Joins a command's words with spaces, as it would be typed.
+	 */
+	static String join(String[] command)
+	{
+		StringBuilder text = new StringBuilder();
+		for (String word : command)
+		{
+			if (text.length() > 0)
+				text.append(' ');
+			text.append(word);
+		}
+		return text.toString();
+	}
+} // end class RuntimeLibrary
@@ -471,9 +471,29 @@ uint8_t cm_robot_power_status(void);
 
 /**
  * Waits for the specified length of time in milliseconds.
+ * When running locally, this is simulated time, so long waits cost no real time.
  */
 void cm_wait_ms(const uint16_t &time);
 
+/**
+ * Waits until the robot has driven the given distance in millimeters, backwards for negative values.
+ * Waits forever if the robot isn't driving that way.
+ */
+void cm_wait_distance(const int16_t &distance);
+
+/**
+ * Waits until the robot has turned the given angle in degrees, counter-clockwise for positive values.
+ * Waits forever if the robot isn't turning that way.
+ */
+void cm_wait_angle(const int16_t &angle);
+
+/**
+ * When running locally, sensors are read together once per loop() and after each wait, and the
+ *   cm_read_* functions return that snapshot.  Call this to see fresh values before then,
+ *   for example when polling a sensor in a loop that doesn't wait.
+ */
+void cm_refresh_sensors(void);
+
 /* ************************************************ *
  * Functions intended to be private to this module: *
  * ************************************************ */
@@ -481,4 +501,5 @@ void sendByte(const uint8_t &value);
 void sendWord(const uint16_t &value);
 uint8_t readByte(void);
 uint16_t readWord(void);
+uint16_t readSensor(const uint8_t &packet);
 
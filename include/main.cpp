@@ -2,13 +2,9 @@
 
 //#include "cm.h"
 
-// For waiting in milliseconds
+// For choosing the protocol
 #ifdef MODE_LOCAL
-#ifdef WINDOW
-#include <Winbase.h>
-#else
-#include <unistd.h>
-#endif
+#include <string.h>
 #endif
 
 #ifdef MODE_EMBEDDED
@@ -16,6 +12,21 @@ volatile uint16_t __timer_count = 0;
 volatile uint8_t __timer_running = 0;
 #endif
 
+#ifdef MODE_LOCAL
+// Set once the repeater agrees to binary frames, see main()
+uint8_t __binary_protocol = 0;
+// The frame being built, sent whole by endCommand()
+uint8_t __frame[255];
+uint8_t __frame_length = 0;
+
+// The sensor snapshot, laid out like packet group 6 (packets 7 to 42)
+uint8_t __snapshot[Sen6Size];
+// Bit n is set if packet n is in the current snapshot
+unsigned long long __snapshot_valid = 0;
+// Bit n is set once the program has read packet n, so it's fetched with every snapshot
+unsigned long long __snapshot_wanted = 0;
+#endif
+
 void padCommand();
 void endCommand();
 
@@ -41,7 +52,11 @@ void cm_power_on(void)
 #endif
 #ifdef MODE_LOCAL
 	// Tell the repeater to power the robot on
-	printf("PowerOn\n");
+	if (__binary_protocol)
+		sendByte(CmdSimPowerOn);
+	else
+		printf("PowerOn");
+	endCommand();
 #endif
 }
 
@@ -63,7 +78,11 @@ void cm_power_off(void)
 #endif
 #ifdef MODE_LOCAL
 	// Tell the repeater to turn the robot off
-	printf("PowerOff\n");
+	if (__binary_protocol)
+		sendByte(CmdSimPowerOff);
+	else
+		printf("PowerOff");
+	endCommand();
 #endif
 }
 
@@ -71,6 +90,7 @@ void cm_power_off(void)
 void cm_full_mode(void)
 {
 	sendByte(CmdFull);
+	endCommand();
 }
 
 /**
@@ -80,6 +100,7 @@ void cm_full_mode(void)
 void cm_safe_mode(void)
 {
 	sendByte(CmdSafe);
+	endCommand();
 }
 
 /**
@@ -117,7 +138,9 @@ void cm_baud_rate(const uint8_t &baud)
 #ifdef MODE_EMBEDDED
 		UCSR0A |= _BV(TXC0);
 #endif
+		padCommand();
 		sendByte(baud);
+		endCommand();
 #ifdef MODE_EMBEDDED
 		// Wait until transmit is complete
 		while(!(UCSR0A & _BV(TXC0))) ;
@@ -344,12 +367,7 @@ void cm_play_song(const uint8_t &song_number)
  */
 uint8_t cm_read_left_bumper(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_BUMP_DROP);
-	endCommand();
-	
-	if (readByte() & 0x02)
+	if (readSensor(SEN_BUMP_DROP) & 0x02)
 		return 1;
 	else
 		return 0;
@@ -360,12 +378,7 @@ uint8_t cm_read_left_bumper(void)
  */
 uint8_t cm_read_right_bumper(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_BUMP_DROP);
-	endCommand();
-	
-	if (readByte() & 0x01)
+	if (readSensor(SEN_BUMP_DROP) & 0x01)
 		return 1;
 	else
 		return 0;
@@ -376,12 +389,7 @@ uint8_t cm_read_right_bumper(void)
  */
 uint8_t cm_read_left_wheel_drop(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_BUMP_DROP);
-	endCommand();
-	
-	if (readByte() & 0x08)
+	if (readSensor(SEN_BUMP_DROP) & 0x08)
 		return 1;
 	else
 		return 0;
@@ -392,12 +400,7 @@ uint8_t cm_read_left_wheel_drop(void)
  */
 uint8_t cm_read_right_wheel_drop(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_BUMP_DROP);
-	endCommand();
-	
-	if (readByte() & 0x04)
+	if (readSensor(SEN_BUMP_DROP) & 0x04)
 		return 1;
 	else
 		return 0;
@@ -408,12 +411,7 @@ uint8_t cm_read_right_wheel_drop(void)
  */
 uint8_t cm_read_caster_wheel_drop(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_BUMP_DROP);
-	endCommand();
-	
-	if (readByte() & 0x10)
+	if (readSensor(SEN_BUMP_DROP) & 0x10)
 		return 1;
 	else
 		return 0;
@@ -425,12 +423,7 @@ uint8_t cm_read_caster_wheel_drop(void)
  */
 uint8_t cm_read_wall(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_WALL);
-	endCommand();
-	
-	return readByte();
+	return readSensor(SEN_WALL);
 }
 
 /**
@@ -438,12 +431,7 @@ uint8_t cm_read_wall(void)
  */
 uint8_t cm_read_far_left_cliff(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_FAR_LEFT_CLIFF);
-	endCommand();
-	
-	return readByte();
+	return readSensor(SEN_FAR_LEFT_CLIFF);
 }
 
 /**
@@ -451,12 +439,7 @@ uint8_t cm_read_far_left_cliff(void)
  */
 uint8_t cm_read_front_left_cliff(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_FRONT_LEFT_CLIFF);
-	endCommand();
-	
-	return readByte();
+	return readSensor(SEN_FRONT_LEFT_CLIFF);
 }
 
 /**
@@ -464,12 +447,7 @@ uint8_t cm_read_front_left_cliff(void)
  */
 uint8_t cm_read_front_right_cliff(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_FRONT_RIGHT_CLIFF);
-	endCommand();
-	
-	return readByte();
+	return readSensor(SEN_FRONT_RIGHT_CLIFF);
 }
 
 /**
@@ -477,12 +455,7 @@ uint8_t cm_read_front_right_cliff(void)
  */
 uint8_t cm_read_far_right_cliff(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_FAR_RIGHT_CLIFF);
-	endCommand();
-	
-	return readByte();
+	return readSensor(SEN_FAR_RIGHT_CLIFF);
 }
 
 /**
@@ -490,12 +463,7 @@ uint8_t cm_read_far_right_cliff(void)
  */
 uint8_t cm_read_virtual_wall(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_VIRTUAL_WALL);
-	endCommand();
-	
-	return readByte();
+	return readSensor(SEN_VIRTUAL_WALL);
 }
 
 /*
@@ -509,12 +477,7 @@ TODO: Implement something to deal with the "Low Side Driver and Wheel Overcurren
  */
 uint8_t cm_read_ir(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_IR_CODE);
-	endCommand();
-	
-	return readByte();
+	return readSensor(SEN_IR_CODE);
 }
 
 /*
@@ -527,12 +490,7 @@ TODO: Implement the "Buttons" sensor request. code #18.
  */
 int16_t cm_read_distance(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_DISTANCE);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_DISTANCE);
 }
 
 /**
@@ -542,12 +500,7 @@ int16_t cm_read_distance(void)
  */
 int16_t cm_read_angle(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_ANGLE);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_ANGLE);
 }
 
 /**
@@ -556,12 +509,7 @@ int16_t cm_read_angle(void)
  */
 uint8_t cm_read_charging_state(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_CHARGE_STATE);
-	endCommand();
-	
-	return readByte();
+	return readSensor(SEN_CHARGE_STATE);
 }
 
 /**
@@ -569,12 +517,7 @@ uint8_t cm_read_charging_state(void)
  */
 uint16_t cm_read_battery_voltage(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_VOLTAGE);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_VOLTAGE);
 }
 
 /**
@@ -583,12 +526,7 @@ uint16_t cm_read_battery_voltage(void)
  */
 int16_t cm_read_battery_current(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_CURRENT);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_CURRENT);
 }
 
 /**
@@ -596,12 +534,7 @@ int16_t cm_read_battery_current(void)
  */
 int8_t cm_read_battery_temperature(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_TEMPERATURE);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_TEMPERATURE);
 }
 
 /**
@@ -610,12 +543,7 @@ int8_t cm_read_battery_temperature(void)
  */
 uint16_t cm_read_battery_charge(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_CHARGE);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_CHARGE);
 }
 
 /**
@@ -624,12 +552,7 @@ uint16_t cm_read_battery_charge(void)
  */
 uint16_t cm_read_battery_capacity(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_CAPACITY);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_CAPACITY);
 }
 
 /**
@@ -638,12 +561,7 @@ uint16_t cm_read_battery_capacity(void)
  */
 uint16_t cm_read_wall_signal(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_WALL_SIGNAL);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_WALL_SIGNAL);
 }
 
 /**
@@ -652,12 +570,7 @@ uint16_t cm_read_wall_signal(void)
  */
 uint16_t cm_read_left_cliff_signal(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_FAR_LEFT_CLIFF_SIGNAL);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_FAR_LEFT_CLIFF_SIGNAL);
 }
 
 /**
@@ -666,12 +579,7 @@ uint16_t cm_read_left_cliff_signal(void)
  */
 uint16_t cm_read_front_left_cliff_signal(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_FRONT_LEFT_CLIFF_SIGNAL);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_FRONT_LEFT_CLIFF_SIGNAL);
 }
 
 /**
@@ -680,12 +588,7 @@ uint16_t cm_read_front_left_cliff_signal(void)
  */
 uint16_t cm_read_front_right_cliff_signal(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_FRONT_RIGHT_CLIFF_SIGNAL);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_FRONT_RIGHT_CLIFF_SIGNAL);
 }
 
 /**
@@ -694,12 +597,7 @@ uint16_t cm_read_front_right_cliff_signal(void)
  */
 uint16_t cm_read_right_cliff_signal(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_FAR_RIGHT_CLIFF_SIGNAL);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_FAR_RIGHT_CLIFF_SIGNAL);
 }
 
 /*
@@ -716,12 +614,7 @@ TODO: Implement the "Charging Sources Available" sensor request. code #34, forma
  */
 uint8_t cm_read_oi_mode(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_OI_MODE);
-	endCommand();
-	
-	return readByte();
+	return readSensor(SEN_OI_MODE);
 }
 
 /**
@@ -730,12 +623,7 @@ uint8_t cm_read_oi_mode(void)
  */
 uint8_t cm_read_current_song_number(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_SONG_NUMBER);
-	endCommand();
-	
-	return readByte();
+	return readSensor(SEN_SONG_NUMBER);
 }
 
 /**
@@ -743,12 +631,7 @@ uint8_t cm_read_current_song_number(void)
  */
 uint8_t cm_read_is_song_playing(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_SONG_PLAYING);
-	endCommand();
-	
-	return readByte();
+	return readSensor(SEN_SONG_PLAYING);
 }
 
 /**
@@ -757,12 +640,7 @@ uint8_t cm_read_is_song_playing(void)
  */
 uint16_t cm_read_requested_speed(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_SPEED);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_SPEED);
 }
 
 /**
@@ -771,12 +649,7 @@ uint16_t cm_read_requested_speed(void)
  */
 uint16_t cm_read_requested_radius(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_RADIUS);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_RADIUS);
 }
 
 /**
@@ -785,12 +658,7 @@ uint16_t cm_read_requested_radius(void)
  */
 uint16_t cm_read_requested_right_speed(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_RIGHT_WHEEL_SPEED);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_RIGHT_WHEEL_SPEED);
 }
 
 /**
@@ -799,12 +667,7 @@ uint16_t cm_read_requested_right_speed(void)
  */
 uint16_t cm_read_requested_left_speed(void)
 {
-	sendByte(CmdSensors);
-	padCommand();
-	sendByte(SEN_LEFT_WHEEL_SPEED);
-	endCommand();
-	
-	return readWord();
+	return readSensor(SEN_LEFT_WHEEL_SPEED);
 }
 
 /**
@@ -818,9 +681,12 @@ uint8_t cm_robot_power_status(void)
 	else
 		return 0;
 #endif
-	// TODO: Figure out how to ask for this.
 #ifdef MODE_LOCAL
-	printf("RobotIsOn\n");
+	if (__binary_protocol)
+		sendByte(CmdSimRobotIsOn);
+	else
+		printf("RobotIsOn");
+	endCommand();
 	return readByte();
 #endif
 }
@@ -836,25 +702,229 @@ void cm_wait_ms(const uint16_t &time)
 	while (__timer_running) ;
 #endif
 #ifdef MODE_LOCAL
-	// TODO: Figure out how to wait in a resolution of milliseconds
-#ifdef WINDOWS
-	Sleep(time);
-#else
-	usleep(time);
+	// The simulator answers once the time has passed on its clock
+	sendByte(CmdSimWaitMs);
+	padCommand();
+	sendWord(time);
+	endCommand();
+	readByte();
+	
+	// The robot has moved on
+	cm_refresh_sensors();
+#endif
+}
+
+/**
+ * Waits until the robot has driven the given distance in millimeters.
+ */
+void cm_wait_distance(const int16_t &distance)
+{
+#ifdef MODE_EMBEDDED
+	// Poll the odometry; the OI's own wait would stop the robot answering anything else
+	int16_t travelled = 0;
+	cm_read_distance();
+	while ((distance >= 0) ? (travelled < distance) : (travelled > distance))
+	{
+		cm_wait_ms(15);
+		travelled += cm_read_distance();
+	}
+#endif
+#ifdef MODE_LOCAL
+	sendByte(CmdWaitDist);
+	padCommand();
+	sendWord(distance);
+	endCommand();
+	readByte();
+	cm_refresh_sensors();
 #endif
+}
+
+/**
+ * Waits until the robot has turned the given angle in degrees.
+ */
+void cm_wait_angle(const int16_t &angle)
+{
+#ifdef MODE_EMBEDDED
+	int16_t turned = 0;
+	cm_read_angle();
+	while ((angle >= 0) ? (turned < angle) : (turned > angle))
+	{
+		cm_wait_ms(15);
+		turned += cm_read_angle();
+	}
+#endif
+#ifdef MODE_LOCAL
+	sendByte(CmdWaitAngle);
+	padCommand();
+	sendWord(angle);
+	endCommand();
+	readByte();
+	cm_refresh_sensors();
+#endif
+}
+
+/**
+ * Makes the next sensor read fetch a new snapshot of every sensor the program uses.
+ * Called before each loop() and after each wait.  Simulated time only passes in waits and
+ *   between loops, so a loop polling a sensor until it changes must wait in between.
+ */
+void cm_refresh_sensors(void)
+{
+#ifdef MODE_LOCAL
+	__snapshot_valid = 0;
 #endif
 }
 
 /*
  * Generally-useful functions that the main library of code uses to communicate with the robot
  */
+
+// Returns the size of a single sensor packet in bytes.
+uint8_t packetSize(const uint8_t &packet)
+{
+	switch (packet)
+	{
+		case SEN_DISTANCE:
+		case SEN_ANGLE:
+		case SEN_VOLTAGE:
+		case SEN_CURRENT:
+		case SEN_CHARGE:
+		case SEN_CAPACITY:
+		case SEN_WALL_SIGNAL:
+		case SEN_FAR_LEFT_CLIFF_SIGNAL:
+		case SEN_FRONT_LEFT_CLIFF_SIGNAL:
+		case SEN_FRONT_RIGHT_CLIFF_SIGNAL:
+		case SEN_FAR_RIGHT_CLIFF_SIGNAL:
+		case SEN_ANALOG_INPUTS:
+		case SEN_SPEED:
+		case SEN_RADIUS:
+		case SEN_RIGHT_WHEEL_SPEED:
+		case SEN_LEFT_WHEEL_SPEED:
+			return 2;
+		default:
+			return 1;
+	}
+}
+
+#ifdef MODE_LOCAL
+// Returns where a packet sits in the snapshot.
+uint8_t snapshotOffset(const uint8_t &packet)
+{
+	uint8_t offset = 0;
+	for (uint8_t p=SEN_BUMP_DROP; p < packet; p++)
+		offset += packetSize(p);
+	return offset;
+}
+
+// Reads one packet's value from the robot into the snapshot.
+void fetchPacket(const uint8_t &packet)
+{
+	uint8_t offset = snapshotOffset(packet);
+	uint16_t value = (packetSize(packet) == 2) ? readWord() : readByte();
+	
+	// Distance and angle count from the last fetch, so keep any the program hasn't read yet
+	if (packet == SEN_DISTANCE || packet == SEN_ANGLE)
+		value += TO_UINT16(__snapshot[offset], __snapshot[offset+1]);
+	
+	if (packetSize(packet) == 2)
+	{
+		__snapshot[offset] = 0xff & (value >> 8);
+		__snapshot[offset+1] = 0xff & value;
+	}
+	else
+		__snapshot[offset] = 0xff & value;
+}
+
+// Fetches every packet the program has read so far with a single Query List command.
+void fetchSnapshot(void)
+{
+	uint8_t count = 0;
+	for (uint8_t p=SEN_BUMP_DROP; p <= SEN_LEFT_WHEEL_SPEED; p++)
+		if (__snapshot_wanted & (1ULL << p))
+			count++;
+	
+	sendByte(CmdSensorList);
+	padCommand();
+	sendByte(count);
+	for (uint8_t p=SEN_BUMP_DROP; p <= SEN_LEFT_WHEEL_SPEED; p++)
+	{
+		if (__snapshot_wanted & (1ULL << p))
+		{
+			padCommand();
+			sendByte(p);
+		}
+	}
+	endCommand();
+	
+	// The answers come back in the order asked
+	for (uint8_t p=SEN_BUMP_DROP; p <= SEN_LEFT_WHEEL_SPEED; p++)
+		if (__snapshot_wanted & (1ULL << p))
+			fetchPacket(p);
+	__snapshot_valid = __snapshot_wanted;
+}
+#endif
+
+/**
+ * Returns the value of a single sensor packet.
+ * In MODE_LOCAL this comes from the snapshot, fetching it first if it's out of date, so a
+ *   loop() that reads many sensors costs one round trip to the simulator instead of one per sensor.
+ */
+uint16_t readSensor(const uint8_t &packet)
+{
+#ifdef MODE_LOCAL
+	unsigned long long bit = 1ULL << packet;
+	if (!(__snapshot_valid & bit))
+	{
+		__snapshot_wanted |= bit;
+		if (__snapshot_valid == 0)
+			fetchSnapshot();
+		else
+		{
+			// A sensor the program hasn't read before; add it to this snapshot on its own
+			sendByte(CmdSensors);
+			padCommand();
+			sendByte(packet);
+			endCommand();
+			fetchPacket(packet);
+			__snapshot_valid |= bit;
+		}
+	}
+	
+	uint8_t offset = snapshotOffset(packet);
+	if (packetSize(packet) == 1)
+		return __snapshot[offset];
+	
+	uint16_t value = TO_UINT16(__snapshot[offset], __snapshot[offset+1]);
+	// Like the robot, distance and angle report nothing new until they've been fetched again
+	if (packet == SEN_DISTANCE || packet == SEN_ANGLE)
+	{
+		__snapshot[offset] = 0;
+		__snapshot[offset+1] = 0;
+	}
+	return value;
+#else
+	sendByte(CmdSensors);
+	sendByte(packet);
+	if (packetSize(packet) == 2)
+		return readWord();
+	return readByte();
+#endif
+}
 void sendByte(const uint8_t &value)
 {
 #ifdef MODE_EMBEDDED
 	while(!(UCSR0A & _BV(UDRE0))) ;
 	UDR0 = value;
 #else // Typically, MODE_LOCAL is defined if MODE_EMBEDDED isn't
-	printf("0x%02X", value);
+	if (__binary_protocol)
+	{
+		// A frame is one whole command of at most 255 bytes, which only a Query List of more than
+		//    253 packets outgrows; the repeater reads each frame as a command, so drop the rest
+		if (__frame_length < sizeof(__frame))
+			__frame[__frame_length++] = value;
+	}
+	else
+		printf("0x%02X", value);
 #endif	
 }
 
@@ -864,7 +934,13 @@ void sendWord(const uint16_t &value)
 	sendByte(0xff & (value >> 8));
 	sendByte(0xff & value);
 #else // Typically, MODE_LOCAL is defined if MODE_EMBEDDED isn't
-	printf("0x%04X", value);
+	if (__binary_protocol)
+	{
+		sendByte(0xff & (value >> 8));
+		sendByte(0xff & value);
+	}
+	else
+		printf("0x%04X", value);
 #endif
 }
 
@@ -875,20 +951,32 @@ uint8_t readByte(void)
 	return UDR0;
 #else // Typically, MODE_LOCAL is defined if MODE_EMBEDDED isn't
 	int value;
-	scanf("0x%x", &value);
+	if (__binary_protocol)
+		value = getchar();
+	else if (scanf(" 0x%x", &value) != 1)
+		value = EOF;
+	
+	// The repeater has gone away, so there's no robot left to control
+	if (value == EOF)
+		exit(0);
 	return (uint8_t)(0xff & value);
 #endif	
 }
 
 uint16_t readWord(void)
 {
-#ifdef MODE_EMBEDDED
-	return TO_UINT16(readByte(), readByte());
-#else // Typically, MODE_LOCAL is defined if MODE_EMBEDDED isn't
-	int value;
-	scanf("0x%x", &value);
-	return (uint16_t)(0xffff & value);
+#ifndef MODE_EMBEDDED
+	if (!__binary_protocol)
+	{
+		int value;
+		if (scanf(" 0x%x", &value) != 1)
+			exit(0);
+		return (uint16_t)(0xffff & value);
+	}
 #endif
+	// The high byte comes first; read it on its own so the order is guaranteed
+	uint8_t high = readByte();
+	return TO_UINT16(high, readByte());
 }
 
 // Used in MODE_LOCAL execution only, adds a space between codes so the repeater can translate
@@ -896,15 +984,27 @@ uint16_t readWord(void)
 void padCommand(void)
 {
 #ifdef MODE_LOCAL
-	printf(" ");
+	if (!__binary_protocol)
+		printf(" ");
 #endif
 }
 
-// Used in MODE_LOCAL execution only, adds a newline to the end of a command.
+// Used in MODE_LOCAL execution only, ends a command with a newline or sends its frame,
+//    then makes sure the repeater gets it.
 void endCommand(void)
 {
 #ifdef MODE_LOCAL
-	printf("\n");
+	if (__binary_protocol)
+	{
+		if (__frame_length == 0)
+			return;
+		putchar(__frame_length);
+		fwrite(__frame, 1, __frame_length, stdout);
+		__frame_length = 0;
+	}
+	else
+		printf("\n");
+	fflush(stdout);
 #endif
 }
 
@@ -923,9 +1023,9 @@ int main(void)
 	DDRD = 0xE6;
 	PORTD = 0x7D;
 	
-	// Set up the serial port
+	// Set up the serial port; received bytes are polled for, so there's no receive interrupt
 	UBRR0 = 19;
-	UCSR0B = (_BV(RXCIE0) | _BV(TXEN0) | _BV(RXEN0));
+	UCSR0B = (_BV(TXEN0) | _BV(RXEN0));
 	UCSR0C = (_BV(UCSZ00) | _BV(UCSZ01));
 	
 	// Set up timer 1 to generate an interrupt every 1 ms
@@ -933,9 +1033,14 @@ int main(void)
 	TCCR1B = (_BV(WGM12) | _BV(CS12));
 	OCR1A = 71;
 	TIMSK1 = _BV(OCIE1A);
+	sei();
 	
 	// Start the OI:
 	sendByte(CmdStart);
+	
+	init();
+	while (1)
+		loop();
 }
 
 // This is the timer callback
@@ -952,11 +1057,39 @@ SIGNAL(SIG_OUTPUT_COMPARE1A)
 #ifdef MODE_LOCAL
 int main(void)
 {
-	// TODO: Configure a timer
-	
-	
-	// Start the OI:
+	// Start the OI, asking the repeater to switch to binary frames.
+	// Define CM_TEXT_PROTOCOL or set CM_PROTOCOL=text to keep the readable text protocol for debugging.
+	const char *protocol = getenv("CM_PROTOCOL");
+#ifdef CM_TEXT_PROTOCOL
+	protocol = "text";
+#endif
 	sendByte(CmdStart);
+	if (protocol == NULL || strcmp(protocol, "text") != 0)
+	{
+		printf(" Binary");
+		endCommand();
+		uint8_t accepted = readByte();
+		
+		// The answer is still a line of text; skip its end before any binary arrives
+		int c;
+		while ((c = getchar()) != '\n' && c != EOF) ;
+		__binary_protocol = (accepted == 1);
+	}
+	else
+		endCommand();
+	
+	init();
+	while (1)
+	{
+		cm_refresh_sensors();
+		loop();
+		
+		// The simulator lets the rest of the loop period pass on its clock, so a loop that only
+		//   drives still moves the robot
+		sendByte(CmdSimNextLoop);
+		endCommand();
+		readByte();
+	}
 }
 #endif
 
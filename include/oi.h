@@ -28,6 +28,17 @@
 #define CmdOutputs      147
 #define CmdSensorList   149
 #define CmdIRChar       151
+#define CmdWaitTime     155
+#define CmdWaitDist     156
+#define CmdWaitAngle    157
+
+// Simulator commands, only understood by the simulator's RobotRepeater
+#define CmdSimPowerOn   240
+#define CmdSimPowerOff  241
+#define CmdSimRobotIsOn 242
+#define CmdSimWaitMs    243
+#define CmdSimNextLoop  244
+#define CmdSimBinary    254
 
 
 // Sensor byte indices - offsets in packets 0, 5 and 6